@@ -63,4 +63,7 @@ source step_66_lot_information_at_the_wards_level.sql;
 source step_67_add_patient_photo_table.sql;
 source step_68_update_main_menu.sql;
 source step_69_disclose_accounting_admin_features.sql;
-source step_70_increase_examination_note_field.sql;
\ No newline at end of file
+source step_70_increase_examination_note_field.sql;
+source step_71_stock_snapshots.sql;
+source step_72_movement_keyset_indexes.sql;
+source step_73_client_nodes.sql;
\ No newline at end of file
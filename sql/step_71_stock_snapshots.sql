@@ -0,0 +1,15 @@
+CREATE TABLE MEDICALDSRSTOCKSNAPSHOT (
+	MSS_ID int NOT NULL AUTO_INCREMENT,
+	MSS_DATE datetime NOT NULL,
+	MSS_MDSR_ID int NOT NULL,
+	MSS_LT_ID_A varchar(50) NULL DEFAULT NULL,
+	MSS_WRD_ID_A char(1) NULL DEFAULT NULL,
+	MSS_QTY double NOT NULL DEFAULT 0,
+	PRIMARY KEY (MSS_ID),
+	UNIQUE KEY IDX_MSS_DATE_MDSR_LT_WRD (MSS_DATE, MSS_MDSR_ID, MSS_LT_ID_A, MSS_WRD_ID_A)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE MEDICALDSRSTOCKSNAPSHOTDATE (
+	MSSD_DATE datetime NOT NULL,
+	PRIMARY KEY (MSSD_DATE)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,6 @@
+-- indexes matching the order of the paged stock and ward movement listings
+ALTER TABLE MEDICALDSRSTOCKMOV
+ADD INDEX MEDICALDSRSTOCKMOV_DATE_REFNO_idx (MMV_DATE ASC, MMV_REFNO ASC, MMV_ID ASC);
+
+ALTER TABLE MEDICALDSRSTOCKMOVWARD
+ADD INDEX MEDICALDSRSTOCKMOVWARD_DATE_idx (MMVN_DATE ASC, MMVN_ID ASC);
@@ -0,0 +1,6 @@
+-- one row for every installation that claimed its node id for the generated identifiers (UniqueIdGenerator)
+CREATE TABLE CLIENTNODE (
+	CN_ID int NOT NULL AUTO_INCREMENT,
+	CN_CREATED_DATE datetime NOT NULL,
+	PRIMARY KEY (CN_ID)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,200 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.dicom.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.isf.dicom.manager.DicomImportPipeline;
+import org.isf.dicom.manager.SourceFiles;
+import org.isf.dicom.model.FileDicom;
+import org.isf.menu.manager.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Compares the {@link DicomImportPipeline} with the former one file at a time import
+ * ({@link SourceFiles#loadDicom(FileDicom, File, int)}) on a study made of {@link #copies} copies of the
+ * DICOM and JPEG samples in <code>rsc-test/dicom/samples</code>, stored in the <code>rsc-test/dicom</code> storage of the tests.
+ * Every DICOM file of the study gets its own SOP instance UID, so that none is skipped as already stored.
+ * <p>
+ * Run with <code>mvn -Pbenchmark test-compile exec:exec -Dbenchmark=DicomImportBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DicomImportBenchmark {
+
+	private static final String SAMPLES = "rsc-test/dicom/samples";
+
+	private static final int PATIENT_ID = 99999;
+
+	@Param({ "8" })
+	public int copies;
+
+	private ClassPathXmlApplicationContext context;
+
+	private File study;
+
+	/**
+	 * The threads of the {@link DicomImportPipeline}, a state of its own so that only {@link #pipeline(Pipeline)}
+	 * runs once per value.
+	 */
+	@State(Scope.Benchmark)
+	public static class Pipeline {
+
+		@Param({ "1", "4", "8" })
+		public int threads;
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		context = new ClassPathXmlApplicationContext("applicationContext.xml");
+		Context.setApplicationContext(context);
+		study = Files.createTempDirectory("dicomstudy").toFile();
+		int[] dicomFiles = { 0 };
+		for (int i = 0; i < copies; i++) {
+			File folder = new File(study, "copy" + i);
+			_copySamples(new File(SAMPLES), folder, dicomFiles);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void cleanStorage() {
+		FileSystemUtils.deleteRecursively(new File("rsc-test/dicom/" + PATIENT_ID));
+	}
+
+	@TearDown
+	public void tearDown() {
+		cleanStorage();
+		FileSystemUtils.deleteRecursively(study);
+		context.close();
+	}
+
+	@Benchmark
+	public int pipeline(Pipeline state) throws Exception {
+		DicomImportPipeline pipeline = new DicomImportPipeline(state.threads, null);
+		pipeline.importDir(_template(), study, PATIENT_ID);
+		return pipeline.getLoaded();
+	}
+
+	@Benchmark
+	public int sequential() throws Exception {
+		return _loadDicomDir(study);
+	}
+
+	private int _loadDicomDir(File folder) throws Exception {
+		int loaded = 0;
+		for (File file : folder.listFiles()) {
+			if (file.isDirectory()) {
+				loaded += _loadDicomDir(file);
+			} else {
+				SourceFiles.loadDicom(_template(), file, PATIENT_ID);
+				loaded++;
+			}
+		}
+		return loaded;
+	}
+
+	private static FileDicom _template() {
+		FileDicom template = new FileDicom();
+		template.setDicomSeriesNumber("BenchmarkSeries");
+		return template;
+	}
+
+	/**
+	 * @param dicomFiles the number of DICOM files copied so far, numbering the SOP instance UIDs of the copies.
+	 */
+	private static void _copySamples(File from, File to, int[] dicomFiles) throws IOException {
+		to.mkdirs();
+		for (File file : from.listFiles()) {
+			if (file.isDirectory()) {
+				_copySamples(file, new File(to, file.getName()), dicomFiles);
+			} else if (file.getName().toLowerCase().endsWith(".dcm")) {
+				_copyDicom(file, new File(to, file.getName()), ++dicomFiles[0]);
+			} else {
+				Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+			}
+		}
+	}
+
+	private static void _copyDicom(File from, File to, int number) throws IOException {
+		DicomObject dicomObject;
+		String transferSyntaxUID;
+		DicomInputStream in = new DicomInputStream(from);
+		try {
+			dicomObject = in.readDicomObject();
+			transferSyntaxUID = in.getTransferSyntax().uid();
+		} finally {
+			in.close();
+		}
+		String instanceUID = dicomObject.getString(Tag.SOPInstanceUID);
+		if (instanceUID == null) {
+			Files.copy(from.toPath(), to.toPath());
+			return;
+		}
+		instanceUID = _numberedUID(instanceUID, number);
+		dicomObject.putString(Tag.SOPInstanceUID, VR.UI, instanceUID);
+		// the file meta information is written again, also for samples stored without it
+		dicomObject.initFileMetaInformation(dicomObject.getString(Tag.SOPClassUID), instanceUID, transferSyntaxUID);
+		DicomOutputStream out = new DicomOutputStream(to);
+		try {
+			out.writeDicomFile(dicomObject);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Appends the number to the UID, dropping its last components when needed to stay within the 64 characters of a UID.
+	 */
+	private static String _numberedUID(String uid, int number) {
+		String suffix = "." + number;
+		while (uid.length() + suffix.length() > 64 && uid.lastIndexOf('.') > 0) {
+			uid = uid.substring(0, uid.lastIndexOf('.'));
+		}
+		return uid + suffix;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicals.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.isf.medicals.model.Medical;
+import org.isf.medicals.service.MedicalSearchIndex;
+import org.isf.medicals.service.MedicalsIoOperationRepository;
+import org.isf.medtype.model.MedicalType;
+import org.isf.medtype.service.MedicalTypeIoOperationRepository;
+import org.isf.utils.benchmark.H2ApplicationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link MedicalSearchIndex} with the <code>LIKE '%...%'</code> repository query on an in-memory
+ * H2 database of its own ({@link H2ApplicationContext}), for a catalog of {@link #size} medicals.
+ * <p>
+ * Run with <code>mvn -Pbenchmark test-compile exec:exec -Dbenchmark=MedicalSearchBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MedicalSearchBenchmark {
+
+	private static final String[] NAMES = { "Amoxicillin", "Paracetamol", "Ibuprofen", "Metronidazole", "Ciprofloxacin",
+			"Artemether", "Lumefantrine", "Quinine", "Cotrimoxazole", "Doxycycline", "Gentamicin", "Ceftriaxone",
+			"Diclofenac", "Omeprazole", "Salbutamol", "Prednisolone", "Furosemide", "Metformin", "Insulin", "Oxytocin" };
+
+	private static final String[] FORMS = { "tablet", "capsule", "syrup", "injection", "suspension", "cream" };
+
+	@Param({ "3000" })
+	public int size;
+
+	@Param({ "amo", "cillin", "500mg", "syr", "ciproflox" })
+	public String query;
+
+	private H2ApplicationContext context;
+
+	private MedicalsIoOperationRepository repository;
+
+	private MedicalSearchIndex index;
+
+	@Setup
+	public void setUp() {
+		context = new H2ApplicationContext("medicalsearch");
+		repository = context.getBean(MedicalsIoOperationRepository.class);
+		MedicalType type = context.getBean(MedicalTypeIoOperationRepository.class).save(new MedicalType("B", "Benchmark"));
+		List<Medical> medicals = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			String description = NAMES[i % NAMES.length] + " " + (100 + i / NAMES.length) + "mg " + FORMS[i % FORMS.length];
+			medicals.add(new Medical(null, type, "P" + i, description, 0, 1, 0, 0, 0));
+		}
+		index = new MedicalSearchIndex();
+		index.rebuild(repository.save(medicals));
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public List<Integer> indexSearch() {
+		return index.search(query, 50);
+	}
+
+	@Benchmark
+	public List<Medical> repositoryQuery() {
+		return repository.findAllWhereDescriptionOrderByTypeAndDescription(query);
+	}
+}
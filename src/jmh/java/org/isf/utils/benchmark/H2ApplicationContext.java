@@ -0,0 +1,56 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.utils.benchmark;
+
+import java.util.Properties;
+
+import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * The <code>applicationContext.xml</code> of the application on a private in-memory H2 database, created empty
+ * for every context: benchmarks never touch the database configured in <code>database.properties</code>.
+ * <p>
+ * The connection properties are resolved by a placeholder configurer registered before the one of the XML
+ * configuration, which then finds nothing left to replace.
+ */
+public class H2ApplicationContext extends ClassPathXmlApplicationContext {
+
+	/**
+	 * @param database - the name of the in-memory database, dropped when the context is closed
+	 */
+	public H2ApplicationContext(String database) {
+		super(new String[] { "applicationContext.xml" }, false);
+		Properties properties = new Properties();
+		properties.setProperty("jdbc.class", "org.h2.Driver");
+		properties.setProperty("jdbc.url", "jdbc:h2:mem:" + database + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+		properties.setProperty("jdbc.username", "sa");
+		properties.setProperty("jdbc.password", "");
+		properties.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		properties.setProperty("hibernate.hbm2ddl.auto", "create-drop");
+		PropertyPlaceholderConfigurer configurer = new PropertyPlaceholderConfigurer();
+		configurer.setProperties(properties);
+		configurer.setIgnoreUnresolvablePlaceholders(true);
+		addBeanFactoryPostProcessor(configurer);
+		refresh();
+	}
+}
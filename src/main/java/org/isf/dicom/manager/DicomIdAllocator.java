@@ -0,0 +1,235 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.dicom.manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocator of the <code>idFile</code>s of {@link FileSystemDicomManager}.
+ * <p>
+ * Ids are leased in blocks: the first id not yet leased is stored in the <code>dicom.storage</code> file, which is
+ * updated under a file lock and forced to disk before any id of the new block is handed out. Within a block ids are
+ * taken from an {@link AtomicLong}, without locking. After a crash the unused ids of the last block are skipped,
+ * never handed out twice.
+ * <p>
+ * The value is written alternately in two checksummed slots, so that a torn write leaves the previous one readable.
+ * If the file exists but is empty, or neither slot is valid, the allocator restarts after the highest
+ * <code>idFile</code> found in the storage. The former format (a serialized <code>long</code> with the last id) is still read, and migrated by
+ * writing both slots over it: the file is never truncated, so it is not left empty by a crash.
+ */
+public class DicomIdAllocator {
+
+	static final String STORAGE_FILE = "dicom.storage";
+
+	private static final int DEFAULT_BLOCK_SIZE = 1000;
+
+	private static final int SLOT_SIZE = 16;
+
+	private static final long CHECKSUM = 0x4F484449434F4D4CL;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DicomIdAllocator.class);
+
+	/**
+	 * In-JVM locks by storage file, as a {@link FileLock} is held by the whole JVM
+	 */
+	private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+	private final File root;
+	private final File storage;
+	private final int blockSize;
+	private volatile Block block = new Block(0, 0);
+
+	/**
+	 * @param root - the root folder of the DICOM storage
+	 */
+	public DicomIdAllocator(File root) {
+		this(root, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param root - the root folder of the DICOM storage
+	 * @param blockSize - the number of ids leased at once
+	 */
+	public DicomIdAllocator(File root, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Invalid block size " + blockSize);
+		}
+		this.root = root;
+		this.storage = new File(root, STORAGE_FILE);
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return a new <code>idFile</code>, greater than zero
+	 * @throws IOException if a new block cannot be leased
+	 */
+	public long nextId() throws IOException {
+		while (true) {
+			Block current = block;
+			long id = current.next.getAndIncrement();
+			if (id < current.limit) {
+				return id;
+			}
+			synchronized (this) {
+				if (block == current) {
+					block = _lease();
+				}
+			}
+		}
+	}
+
+	private Block _lease() throws IOException {
+		Object lock = LOCKS.computeIfAbsent(storage.getCanonicalPath(), path -> new Object());
+		synchronized (lock) {
+			if (!root.exists() && !root.mkdirs()) {
+				throw new IOException("Unable to create " + root);
+			}
+			boolean created = !storage.exists();
+			FileChannel channel = FileChannel.open(storage.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			try {
+				FileLock fileLock = channel.lock();
+				try {
+					ByteBuffer content = ByteBuffer.allocate((int) Math.min(channel.size(), 2 * SLOT_SIZE));
+					while (content.hasRemaining() && channel.read(content, content.position()) > 0) {
+					}
+					content.flip();
+					long start = created && channel.size() == 0 ? 1 : _read(content);
+					int slot = _getSlot(content, start);
+					long limit = start + blockSize;
+					ByteBuffer value = ByteBuffer.allocate(SLOT_SIZE);
+					value.putLong(limit).putLong(limit ^ CHECKSUM).flip();
+					if (channel.size() < 2 * SLOT_SIZE) {
+						// new or former format: write both slots over the former content, shorter than them
+						ByteBuffer both = ByteBuffer.allocate(2 * SLOT_SIZE);
+						both.put(value.duplicate()).put(value).flip();
+						channel.write(both, 0);
+					} else {
+						channel.write(value, (long) slot * SLOT_SIZE);
+					}
+					channel.force(true);
+					return new Block(start, limit);
+				} finally {
+					fileLock.release();
+				}
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the first id not leased yet
+	 */
+	private long _read(ByteBuffer content) throws IOException {
+		int size = content.remaining();
+		if (size == 0) {
+			// a former migration interrupted after truncating the file
+			long maxId = _getMaxIdFile();
+			LOGGER.warn("Empty {}, restarting after the highest idFile {}", storage, maxId);
+			return maxId + 1;
+		}
+		if (size >= 14 && content.getShort(0) == (short) 0xACED && content.get(4) == 0x77 && content.get(5) == 8) {
+			// former format, ObjectOutputStream.writeLong() of the last id
+			return content.getLong(6) + 1;
+		}
+		long value = 0;
+		for (int slot = 0; (slot + 1) * SLOT_SIZE <= size; slot++) {
+			long slotValue = content.getLong(slot * SLOT_SIZE);
+			if ((slotValue ^ CHECKSUM) == content.getLong(slot * SLOT_SIZE + 8)) {
+				value = Math.max(value, slotValue);
+			}
+		}
+		if (value > 0) {
+			return value;
+		}
+		long maxId = _getMaxIdFile();
+		LOGGER.warn("Unreadable {}, restarting after the highest idFile {}", storage, maxId);
+		return maxId + 1;
+	}
+
+	/**
+	 * @return the slot to overwrite: the one not holding the current value
+	 */
+	private int _getSlot(ByteBuffer content, long current) {
+		if (content.remaining() < 2 * SLOT_SIZE) {
+			return 0;
+		}
+		long first = content.getLong(0);
+		boolean firstValid = (first ^ CHECKSUM) == content.getLong(8);
+		return firstValid && first == current ? 1 : 0;
+	}
+
+	/**
+	 * @return the highest <code>idFile</code> in the storage (root/patient/series/idFile.*)
+	 */
+	private long _getMaxIdFile() {
+		long maxId = 0;
+		File[] patients = root.listFiles(File::isDirectory);
+		if (patients == null) {
+			return maxId;
+		}
+		for (File patient : patients) {
+			File[] series = patient.listFiles(File::isDirectory);
+			if (series == null) {
+				continue;
+			}
+			for (File serie : series) {
+				String[] files = serie.list();
+				if (files == null) {
+					continue;
+				}
+				for (String name : files) {
+					int dot = name.indexOf('.');
+					try {
+						maxId = Math.max(maxId, Long.parseLong(dot < 0 ? name : name.substring(0, dot)));
+					} catch (NumberFormatException e) {
+						// not an instance file
+					}
+				}
+			}
+		}
+		return maxId;
+	}
+
+	private static final class Block {
+
+		private final AtomicLong next;
+		private final long limit;
+
+		private Block(long next, long limit) {
+			this.next = new AtomicLong(next);
+			this.limit = limit;
+		}
+	}
+}
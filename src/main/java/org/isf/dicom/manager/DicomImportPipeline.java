@@ -0,0 +1,301 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.dicom.manager;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.isf.dicom.model.FileDicom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports a folder of DICOM and JPEG files in stages:
+ * <ul>
+ * <li>scan, on the calling thread, walking the folders in name order;</li>
+ * <li>parse and decode, on a pool of {@link #getThreads()} threads: metadata, image, rotation and thumbnail
+ * ({@link SourceFiles#prepareDicom(FileDicom, File, int)}); metadata and image are read with the same reader,
+ * so they are a single task;</li>
+ * <li>persist, on a single writer thread taking the files in scan order, so the files of each series
+ * are stored in the order they were found ({@link SourceFiles#saveDicom(FileDicom, File)}).</li>
+ * </ul>
+ * At most {@link #getCapacity()} files are decoded or waiting to be stored: the scan blocks until the writer
+ * catches up. The first error, or {@link #cancel()}, stops the scan and cancels the pending files; the files already
+ * stored are kept. Every file is decoded on a copy of the template {@link FileDicom}.
+ */
+public class DicomImportPipeline {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DicomImportPipeline.class);
+
+	private static final long POLL_MILLIS = 100;
+
+	/**
+	 * Marks the end of the scan in the queue of the writer
+	 */
+	private static final Future<ImportedFile> END_OF_SCAN = new FutureTask<>(new Callable<ImportedFile>() {
+
+		@Override
+		public ImportedFile call() {
+			return null;
+		}
+	});
+
+	private final int threads;
+	private final int capacity;
+	private final AbstractDicomLoader dicomLoader;
+	private final AtomicInteger loaded = new AtomicInteger();
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private volatile boolean cancelled;
+
+	/**
+	 * @param dicomLoader - the progress window, notified after each stored file, can be <code>null</code>
+	 */
+	public DicomImportPipeline(AbstractDicomLoader dicomLoader) {
+		this(Runtime.getRuntime().availableProcessors(), dicomLoader);
+	}
+
+	/**
+	 * @param threads - the number of files decoded in parallel
+	 * @param dicomLoader - the progress window, notified after each stored file, can be <code>null</code>
+	 */
+	public DicomImportPipeline(int threads, AbstractDicomLoader dicomLoader) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		this.threads = threads;
+		this.capacity = 2 * threads;
+		this.dicomLoader = dicomLoader;
+	}
+
+	/**
+	 * Imports all the files in the folder and its subfolders, returning when they are all stored,
+	 * the import is cancelled or a file fails
+	 * 
+	 * @param fileDicom - the template with the details entered by the user
+	 * @param sourceFile - the folder to import
+	 * @param patient
+	 * @throws Exception the first error decoding or storing a file
+	 */
+	public void importDir(final FileDicom fileDicom, File sourceFile, final int patient) throws Exception {
+		final BlockingQueue<Future<ImportedFile>> pending = new ArrayBlockingQueue<>(capacity);
+		ExecutorService decoders = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("dicom-decode-"));
+		Thread writer = new DaemonThreadFactory("dicom-persist-").newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				persist(pending);
+			}
+		});
+		writer.start();
+		try {
+			scan(fileDicom, sourceFile, patient, pending, decoders);
+			_put(pending, END_OF_SCAN);
+			writer.join();
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+			throw e;
+		} finally {
+			for (Future<ImportedFile> future : pending) {
+				future.cancel(true);
+			}
+			decoders.shutdownNow();
+		}
+		Throwable error = failure.get();
+		if (error instanceof Exception) {
+			throw (Exception) error;
+		}
+		if (error != null) {
+			throw (Error) error;
+		}
+	}
+
+	/**
+	 * Stops the import: no more files are decoded or stored after the one being stored
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return the number of files stored, or skipped, so far
+	 */
+	public int getLoaded() {
+		return loaded.get();
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private void scan(final FileDicom fileDicom, File sourceFile, final int patient, BlockingQueue<Future<ImportedFile>> pending,
+			ExecutorService decoders) throws InterruptedException {
+		File[] files = sourceFile.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		for (final File file : files) {
+			if (cancelled)
+				return;
+			if (file.isDirectory()) {
+				scan(fileDicom, file, patient, pending, decoders);
+				continue;
+			}
+			FutureTask<ImportedFile> task = new FutureTask<>(new Callable<ImportedFile>() {
+
+				@Override
+				public ImportedFile call() throws Exception {
+					FileDicom dicom = _copy(fileDicom);
+					File dicomData = SourceFiles.prepareDicom(dicom, file, patient);
+					return dicomData == null ? null : new ImportedFile(dicom, dicomData);
+				}
+			});
+			if (!_put(pending, task))
+				return;
+			decoders.execute(task);
+		}
+	}
+
+	private void persist(BlockingQueue<Future<ImportedFile>> pending) {
+		try {
+			while (!cancelled) {
+				Future<ImportedFile> next = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (next == END_OF_SCAN)
+					return;
+				if (next == null)
+					continue;
+				ImportedFile imported = next.get();
+				if (cancelled)
+					return;
+				if (imported != null)
+					SourceFiles.saveDicom(imported.dicom, imported.dicomData);
+				int count = loaded.incrementAndGet();
+				if (dicomLoader != null)
+					dicomLoader.setLoaded(count);
+			}
+		} catch (CancellationException e) {
+			// cancelled by importDir
+		} catch (ExecutionException e) {
+			_fail(e.getCause());
+		} catch (Throwable e) {
+			_fail(e);
+		}
+	}
+
+	/**
+	 * Waits for room in the queue, giving up if the import is cancelled
+	 */
+	private boolean _put(BlockingQueue<Future<ImportedFile>> pending, Future<ImportedFile> future) throws InterruptedException {
+		while (!pending.offer(future, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (cancelled)
+				return false;
+		}
+		return true;
+	}
+
+	private void _fail(Throwable e) {
+		if (failure.compareAndSet(null, e) && !cancelled) {
+			LOGGER.error("DICOM import failed: {}", e.getMessage());
+		}
+		cancelled = true;
+	}
+
+	/**
+	 * Copy of the details entered by the user, without data and thumbnail
+	 */
+	private static FileDicom _copy(FileDicom fileDicom) {
+		FileDicom copy = new FileDicom();
+		copy.setPatId(fileDicom.getPatId());
+		copy.setFileName(fileDicom.getFileName());
+		copy.setDicomAccessionNumber(fileDicom.getDicomAccessionNumber());
+		copy.setDicomInstitutionName(fileDicom.getDicomInstitutionName());
+		copy.setDicomPatientID(fileDicom.getDicomPatientID());
+		copy.setDicomPatientName(fileDicom.getDicomPatientName());
+		copy.setDicomPatientAddress(fileDicom.getDicomPatientAddress());
+		copy.setDicomPatientAge(fileDicom.getDicomPatientAge());
+		copy.setDicomPatientSex(fileDicom.getDicomPatientSex());
+		copy.setDicomPatientBirthDate(fileDicom.getDicomPatientBirthDate());
+		copy.setDicomStudyId(fileDicom.getDicomStudyId());
+		copy.setDicomStudyDate(fileDicom.getDicomStudyDate());
+		copy.setDicomStudyDescription(fileDicom.getDicomStudyDescription());
+		copy.setDicomSeriesUID(fileDicom.getDicomSeriesUID());
+		copy.setDicomSeriesInstanceUID(fileDicom.getDicomSeriesInstanceUID());
+		copy.setDicomSeriesNumber(fileDicom.getDicomSeriesNumber());
+		copy.setDicomSeriesDescriptionCodeSequence(fileDicom.getDicomSeriesDescriptionCodeSequence());
+		copy.setDicomSeriesDate(fileDicom.getDicomSeriesDate());
+		copy.setDicomSeriesDescription(fileDicom.getDicomSeriesDescription());
+		copy.setDicomInstanceUID(fileDicom.getDicomInstanceUID());
+		copy.setModality(fileDicom.getModality());
+		copy.setDicomType(fileDicom.getDicomType());
+		copy.setFrameCount(fileDicom.getFrameCount());
+		return copy;
+	}
+
+	private static class ImportedFile {
+
+		private final FileDicom dicom;
+		private final File dicomData;
+
+		ImportedFile(FileDicom dicom, File dicomData) {
+			this.dicom = dicom;
+			this.dicomData = dicomData;
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.dicom.manager;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the DICOM instances stored by {@link FileSystemDicomManager}: for each series it maps the
+ * <code>dicomInstanceUID</code> to the <code>idFile</code>, so that duplicates are found without parsing
+ * every <code>.properties</code> file of the series.
+ * <p>
+ * The index of a series is kept in <code>&lt;patient dir&gt;/.index/&lt;series&gt;.index</code>, one
+ * <code>idFile TAB dicomInstanceUID</code> line per instance. A save appends one line, a rebuild replaces the
+ * whole file with an atomic move. The file is rebuilt from the <code>.properties</code> files when it is missing,
+ * cannot be parsed (e.g. a line torn by a crash) or does not count as many instances as the series directory.
+ * The most recently used series are cached in memory.
+ */
+public class DicomInstanceIndex {
+
+	static final String INDEX_DIR = ".index";
+
+	private static final String INDEX_SUFFIX = ".index";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DicomInstanceIndex.class);
+
+	private final Map<File, Map<String, Long>> cache;
+
+	/**
+	 * @param capacity - the maximum number of series kept in memory
+	 */
+	public DicomInstanceIndex(final int capacity) {
+		cache = new LinkedHashMap<File, Map<String, Long>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<File, Map<String, Long>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param seriesDir - the directory of the series
+	 * @param instanceUID - the <code>dicomInstanceUID</code>
+	 * @return the <code>idFile</code> of the instance in the series, <code>null</code> if not present
+	 * @throws IOException
+	 */
+	public synchronized Long getIdFile(File seriesDir, String instanceUID) throws IOException {
+		Map<String, Long> instances = _getInstances(seriesDir);
+		Long idFile = instances.get(instanceUID);
+		if (idFile != null && !new File(seriesDir, idFile + ".properties").exists()) {
+			// removed behind our back
+			idFile = rebuild(seriesDir).get(instanceUID);
+		}
+		return idFile;
+	}
+
+	/**
+	 * Records a new instance, whose <code>.properties</code> file has already been written
+	 *
+	 * @param seriesDir - the directory of the series
+	 * @param instanceUID - the <code>dicomInstanceUID</code>
+	 * @param idFile - the <code>idFile</code>
+	 * @throws IOException
+	 */
+	public synchronized void add(File seriesDir, String instanceUID, long idFile) throws IOException {
+		Map<String, Long> instances = _getInstances(seriesDir);
+		File index = _getIndexFile(seriesDir);
+		if (instances.containsKey(instanceUID) || !index.exists()) {
+			rebuild(seriesDir);
+			return;
+		}
+		Files.write(index.toPath(), _toLine(idFile, instanceUID).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		instances.put(instanceUID, idFile);
+	}
+
+	/**
+	 * Forgets a series, deleting its index
+	 *
+	 * @param seriesDir - the directory of the series
+	 */
+	public synchronized void remove(File seriesDir) {
+		cache.remove(seriesDir.getAbsoluteFile());
+		File index = _getIndexFile(seriesDir);
+		if (index.exists() && !index.delete()) {
+			LOGGER.warn("Unable to delete DICOM index {}", index);
+		}
+	}
+
+	/**
+	 * Rebuilds the index of a series from its <code>.properties</code> files
+	 *
+	 * @param seriesDir - the directory of the series
+	 * @return the instances of the series
+	 * @throws IOException
+	 */
+	public synchronized Map<String, Long> rebuild(File seriesDir) throws IOException {
+		Map<String, Long> instances = new HashMap<>();
+		File[] files = seriesDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.endsWith(".properties")) {
+					continue;
+				}
+				long idFile;
+				try {
+					idFile = Long.parseLong(name.substring(0, name.indexOf('.')));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				Properties properties = new Properties();
+				Reader reader = new FileReader(file);
+				try {
+					properties.load(reader);
+				} finally {
+					reader.close();
+				}
+				String instanceUID = properties.getProperty("dicomInstanceUID");
+				Long other = instances.get(instanceUID);
+				if (instanceUID != null && (other == null || other > idFile)) {
+					instances.put(instanceUID, idFile);
+				}
+			}
+		}
+		_write(seriesDir, instances);
+		cache.put(seriesDir.getAbsoluteFile(), instances);
+		return instances;
+	}
+
+	/**
+	 * @return the number of series kept in memory
+	 */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	private Map<String, Long> _getInstances(File seriesDir) throws IOException {
+		Map<String, Long> instances = cache.get(seriesDir.getAbsoluteFile());
+		if (instances == null) {
+			instances = _read(seriesDir);
+			if (instances == null) {
+				instances = rebuild(seriesDir);
+			} else {
+				cache.put(seriesDir.getAbsoluteFile(), instances);
+			}
+		}
+		return instances;
+	}
+
+	/**
+	 * @return the instances in the index of the series, <code>null</code> if it is missing, corrupt or stale
+	 */
+	private Map<String, Long> _read(File seriesDir) throws IOException {
+		File index = _getIndexFile(seriesDir);
+		if (!index.exists()) {
+			return null;
+		}
+		String content = new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8);
+		if (!content.isEmpty() && !content.endsWith("\n")) {
+			LOGGER.warn("Truncated DICOM index {}, rebuilding it", index);
+			return null;
+		}
+		Map<String, Long> instances = new HashMap<>();
+		int records = 0;
+		for (String line : content.split("\n")) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			int tab = line.indexOf('\t');
+			try {
+				instances.put(line.substring(tab + 1), Long.parseLong(line.substring(0, tab)));
+			} catch (RuntimeException e) {
+				LOGGER.warn("Corrupt DICOM index {}, rebuilding it", index);
+				return null;
+			}
+			records++;
+		}
+		String[] properties = seriesDir.list((dir, name) -> name.endsWith(".properties"));
+		if (records != instances.size() || properties == null || properties.length != records) {
+			LOGGER.info("Stale DICOM index {}, rebuilding it", index);
+			return null;
+		}
+		return instances;
+	}
+
+	private void _write(File seriesDir, Map<String, Long> instances) throws IOException {
+		File index = _getIndexFile(seriesDir);
+		File indexDir = index.getParentFile();
+		if (!indexDir.exists() && !indexDir.mkdirs()) {
+			throw new IOException("Unable to create " + indexDir);
+		}
+		StringBuilder content = new StringBuilder();
+		for (Map.Entry<String, Long> instance : instances.entrySet()) {
+			content.append(_toLine(instance.getValue(), instance.getKey()));
+		}
+		File temp = File.createTempFile(index.getName(), ".tmp", indexDir);
+		try {
+			Files.write(temp.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+			try {
+				Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private static String _toLine(long idFile, String instanceUID) {
+		return idFile + "\t" + instanceUID + "\n";
+	}
+
+	private static File _getIndexFile(File seriesDir) {
+		return new File(new File(seriesDir.getParentFile(), INDEX_DIR), seriesDir.getName() + INDEX_SUFFIX);
+	}
+}
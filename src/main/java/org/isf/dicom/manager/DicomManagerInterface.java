@@ -21,6 +21,9 @@
  */
 package org.isf.dicom.manager;
 
+import java.io.File;
+import java.io.InputStream;
+
 import org.isf.dicom.model.FileDicom;
 import org.isf.utils.exception.OHServiceException;
 
@@ -109,4 +112,25 @@ public interface DicomManagerInterface {
 	 * @throws OHServiceException
 	 */
 	void saveFile(FileDicom dicom) throws OHServiceException;
+
+	/**
+	 * Save the DICOM file and metadata, copying the DICOM data from the specified file
+	 * instead of {@link FileDicom#getDicomData()}, without loading it in memory
+	 *
+	 * @param dicom
+	 * @param dicomData - the file with the DICOM data
+	 * @throws OHServiceException
+	 */
+	void saveFile(FileDicom dicom, File dicomData) throws OHServiceException;
+
+	/**
+	 * Open the DICOM data as a stream, without loading it in memory; the caller has to close it
+	 *
+	 * @param idFile
+	 * @param patientID
+	 * @param seriesNumber
+	 * @return the stream, <code>null</code> if the file does not exist
+	 * @throws OHServiceException
+	 */
+	InputStream openDicomData(long idFile, int patientID, String seriesNumber) throws OHServiceException;
 }
@@ -0,0 +1,207 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.dicom.manager;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.isf.dicom.model.FileDicom;
+
+/**
+ * Cache of the decoded thumbnails of the DICOM files, by patient, series and <code>idFile</code>.
+ * <p>
+ * The cache is bounded by the memory taken by the decoded images: the least recently used are evicted
+ * once {@link #getMaxSize()} bytes are exceeded. The managers invalidate the thumbnails of a series
+ * when it is deleted and the one of a file when it is saved.
+ */
+public class DicomThumbnailCache {
+
+	/**
+	 * 16 MB, about 400 thumbnails 100 pixels wide
+	 */
+	public static final long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+
+	private final long maxSize;
+	private long size;
+	private final LinkedHashMap<Key, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public DicomThumbnailCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize - the bytes that the decoded images can take
+	 */
+	public DicomThumbnailCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the decoded thumbnail, <code>null</code> if not cached
+	 */
+	public synchronized BufferedImage get(int patientId, String seriesNumber, long idFile) {
+		BufferedImage image = images.get(new Key(patientId, seriesNumber, idFile));
+		if (image == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return image;
+	}
+
+	/**
+	 * Caches a decoded thumbnail, evicting the least recently used ones if needed;
+	 * an image larger than the whole cache is not cached
+	 */
+	public synchronized void put(int patientId, String seriesNumber, long idFile, BufferedImage image) {
+		if (image == null)
+			return;
+		long imageSize = sizeOf(image);
+		if (imageSize > maxSize)
+			return;
+		BufferedImage previous = images.put(new Key(patientId, seriesNumber, idFile), image);
+		size += imageSize;
+		if (previous != null) {
+			size -= sizeOf(previous);
+		}
+		Iterator<BufferedImage> eldest = images.values().iterator();
+		while (size > maxSize) {
+			size -= sizeOf(eldest.next());
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Decodes {@link FileDicom#getDicomThumbnail()}, caches the image and sets it in the file
+	 * 
+	 * @param dicom
+	 * @return the decoded thumbnail, <code>null</code> if the file has none or it cannot be decoded
+	 */
+	public BufferedImage decode(FileDicom dicom) {
+		if (dicom.getDicomThumbnail() == null)
+			return null;
+		BufferedImage image = dicom.getDicomThumbnailAsImage();
+		put(dicom.getPatId(), dicom.getDicomSeriesNumber(), dicom.getIdFile(), image);
+		dicom.setDicomThumbnailImage(image);
+		return image;
+	}
+
+	/**
+	 * Removes the thumbnail of a file
+	 */
+	public synchronized void invalidate(int patientId, String seriesNumber, long idFile) {
+		BufferedImage image = images.remove(new Key(patientId, seriesNumber, idFile));
+		if (image != null) {
+			size -= sizeOf(image);
+		}
+	}
+
+	/**
+	 * Removes the thumbnails of a series
+	 */
+	public synchronized void invalidate(int patientId, String seriesNumber) {
+		Iterator<Map.Entry<Key, BufferedImage>> entries = images.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, BufferedImage> entry = entries.next();
+			if (entry.getKey().isSeries(patientId, seriesNumber)) {
+				size -= sizeOf(entry.getValue());
+				entries.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		images.clear();
+		size = 0;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the bytes taken by the cached images
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of cached images
+	 */
+	public synchronized int getCount() {
+		return images.size();
+	}
+
+	/**
+	 * @return the bytes of the pixels of the image
+	 */
+	static long sizeOf(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+	}
+
+	private static final class Key {
+
+		private final int patientId;
+		private final String seriesNumber;
+		private final long idFile;
+
+		Key(int patientId, String seriesNumber, long idFile) {
+			this.patientId = patientId;
+			this.seriesNumber = seriesNumber;
+			this.idFile = idFile;
+		}
+
+		boolean isSeries(int patientId, String seriesNumber) {
+			return this.patientId == patientId && (this.seriesNumber == null ? seriesNumber == null : this.seriesNumber.equals(seriesNumber));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key key = (Key) obj;
+			return idFile == key.idFile && isSeries(key.patientId, key.seriesNumber);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 31 * patientId + (int) (idFile ^ (idFile >>> 32));
+			return 31 * hash + (seriesNumber == null ? 0 : seriesNumber.hashCode());
+		}
+	}
+}
@@ -21,15 +21,21 @@
  */
 package org.isf.dicom.manager;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileFilter;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.sql.Blob;
 import java.sql.SQLException;
 import java.text.ParseException;
@@ -66,6 +72,8 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 
 	private static final String DICOM_DATE_FORMAT = "EEE MMM dd hh:mm:ss z yyyy";
 
+	private static final int INDEX_CACHE_SIZE = 64;
+
 	private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemDicomManager.class);
 	
 	public FileSystemDicomManager() {
@@ -77,6 +85,21 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	private File dir = null;
 	private FilterSerieDetail dsf = new FilterSerieDetail();
 
+	/**
+	 * Instance UIDs of the most recently used series
+	 */
+	private DicomInstanceIndex instanceIndex = new DicomInstanceIndex(INDEX_CACHE_SIZE);
+
+	/**
+	 * Allocator of the idFiles in {@link #dir}
+	 */
+	private volatile DicomIdAllocator idAllocator;
+
+	/**
+	 * Decoded thumbnails of the files in {@link #dir}
+	 */
+	private final DicomThumbnailCache thumbnails = new DicomThumbnailCache();
+
 	/**
 	 * Constructor
 	 * @throws OHDicomException 
@@ -96,8 +119,17 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	/**
 	 * @param externalPrp - the properties to set
 	 */
-	public void setDir(Properties externalPrp) {
+	public synchronized void setDir(Properties externalPrp) {
 		this.dir = new File(externalPrp.getProperty("dicom.storage.filesystem"));
+		this.idAllocator = null;
+		this.thumbnails.clear();
+	}
+
+	/**
+	 * @return the cache of the decoded thumbnails
+	 */
+	public DicomThumbnailCache getThumbnailCache() {
+		return thumbnails;
 	}
 
 	/**
@@ -163,6 +195,8 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 
 			// System.out.println("FS deleteSerie "+patientId+","+seriesNumber);
 			File deleteFolder = getSerieDir(patientId, seriesNumber, false);
+			instanceIndex.remove(deleteFolder);
+			thumbnails.invalidate(patientId, seriesNumber);
 			File[] f = deleteFolder.listFiles();
 			boolean deleted = true;
 
@@ -227,7 +261,7 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	public FileDicom[] loadPatientFiles(int patientId) throws OHDicomException {
 		try {
 			File df = getPatientDir(patientId);
-			File[] series = df.listFiles();
+			File[] series = df.listFiles(new FilterSeries());
 			FileDicom[] db = new FileDicom[series.length];
 
 			for (int i = 0; i < series.length; i++) {
@@ -252,6 +286,19 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	 */
 	@Override
 	public void saveFile(FileDicom dicom) throws OHDicomException {
+		saveFile(dicom, null);
+	}
+
+	/**
+	 * Save the DICOM file and metadata, copying the DICOM data from the specified file
+	 * with {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}
+	 * 
+	 * @param dicom
+	 * @param dicomData - the file with the DICOM data, if <code>null</code> {@link FileDicom#getDicomData()} is used
+	 * @throws OHDicomException 
+	 */
+	@Override
+	public void saveFile(FileDicom dicom, File dicomData) throws OHDicomException {
 		if (exist(dicom))
 			return;
 
@@ -311,15 +358,15 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 			fos.close();
 
 			File data = new File(df, idFile + ".data");
-			Blob blob = dicom.getDicomData();
-			int blobLength = (int) blob.length();
-			byte[] blobAsBytes = blob.getBytes(1, blobLength);
-			save(data, blobAsBytes);
+			if (dicomData != null) {
+				save(data, dicomData);
+			} else {
+				save(data, dicom.getDicomData());
+			}
 			File thumn = new File(df, idFile + ".thumn");
-			blob = dicom.getDicomThumbnail();
-			blobLength = (int) blob.length();
-			blobAsBytes = blob.getBytes(1, blobLength);
-			save(thumn, blobAsBytes);
+			save(thumn, dicom.getDicomThumbnail());
+			thumbnails.invalidate(patId, seriesNumber, idFile);
+			instanceIndex.add(df, dicomInstanceUID, idFile);
 		} catch (Exception exception) {
 			throw new OHDicomException(exception, new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
 					MessageBundle.formatMessage("angal.dicommanager.genericerror.fmt.msg", exception.getMessage()),
@@ -328,7 +375,7 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	}
 
 	/*
-	 * Load DICOM data + Thumbnail
+	 * Load DICOM data + Thumbnail, decoded or from the cache
 	 */
 	private FileDicom loadMetadata(long idFile, int patientId, String series) throws SerialException, IOException, SQLException {
 		// Series must exists, so we need to check it and return null in case
@@ -339,7 +386,13 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 		File sd = getSerieDir(patientId, series, false);
 		rv.setFrameCount(getFramesCount(patientId, series));
 		parseDicomProperties(idFile, rv, sd);
-		rv.setDicomThumbnail(loadThumbnail(sd, idFile));
+		BufferedImage thumbnail = thumbnails.get(patientId, series, idFile);
+		if (thumbnail != null) {
+			rv.setDicomThumbnailImage(thumbnail);
+		} else {
+			rv.setDicomThumbnail(loadThumbnail(sd, idFile));
+			thumbnails.decode(rv);
+		}
 		return rv;
 	}
 
@@ -408,13 +461,7 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	 * @throws SerialException 
 	 */
 	private Blob loadThumbnail(File sd, long idFile) throws IOException, SerialException, SQLException {
-		// System.out.println("loadThumbnail "+sd.getAbsolutePath()+","+idFile);
-			File fdc = new File(sd, idFile + ".thumn");
-			FileInputStream fis = new FileInputStream(fdc);
-			byte[] byteArray = new byte[fis.available()];
-			fis.read(byteArray);
-			fis.close();
-			return new SerialBlob(byteArray);
+		return new SerialBlob(Files.readAllBytes(new File(sd, idFile + ".thumn").toPath()));
 	}
 
 	/**
@@ -423,14 +470,61 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	 * @throws SerialException 
 	 */
 	private Blob loadDicomData(File sd, long idFile) throws IOException, SerialException, SQLException {
-		// System.out.println("loadDicomData "+sd.getAbsolutePath()+","+idFile);
-			File fdc = new File(sd, idFile + ".data");
-			FileInputStream fis = new FileInputStream(fdc);
-			byte[] byteArray = new byte[fis.available()];
-			fis.read(byteArray);
-			fis.close();
-			Blob blob = new SerialBlob(byteArray);
-			return blob;
+		return new SerialBlob(Files.readAllBytes(new File(sd, idFile + ".data").toPath()));
+	}
+
+	/**
+	 * Open the DICOM data as a stream on the file
+	 * 
+	 * @param idFile
+	 * @param patientId
+	 * @param seriesNumber
+	 * @return the stream, <code>null</code> if the file does not exist
+	 * @throws OHDicomException 
+	 */
+	@Override
+	public InputStream openDicomData(long idFile, int patientId, String seriesNumber) throws OHDicomException {
+		if (seriesNumber == null || seriesNumber.trim().length() == 0 || seriesNumber.equalsIgnoreCase("null"))
+			return null;
+		try {
+			File data = new File(getSerieDir(patientId, seriesNumber, false), idFile + ".data");
+			if (!data.exists())
+				return null;
+			return Files.newInputStream(data.toPath());
+		} catch (Exception exception) {
+			throw new OHDicomException(exception, new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
+					MessageBundle.formatMessage("angal.dicommanager.genericerror.fmt.msg", exception.getMessage()),
+					OHSeverityLevel.ERROR));
+		}
+	}
+
+	/**
+	 * Map the DICOM data in memory, read only: the content is paged in from the file by the OS when accessed
+	 * 
+	 * @param idFile
+	 * @param patientId
+	 * @param seriesNumber
+	 * @return the mapped data, <code>null</code> if the file does not exist
+	 * @throws OHDicomException 
+	 */
+	public ByteBuffer mapDicomData(long idFile, int patientId, String seriesNumber) throws OHDicomException {
+		if (seriesNumber == null || seriesNumber.trim().length() == 0 || seriesNumber.equalsIgnoreCase("null"))
+			return null;
+		try {
+			File data = new File(getSerieDir(patientId, seriesNumber, false), idFile + ".data");
+			if (!data.exists())
+				return null;
+			FileChannel channel = FileChannel.open(data.toPath(), StandardOpenOption.READ);
+			try {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				channel.close();
+			}
+		} catch (Exception exception) {
+			throw new OHDicomException(exception, new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
+					MessageBundle.formatMessage("angal.dicommanager.genericerror.fmt.msg", exception.getMessage()),
+					OHSeverityLevel.ERROR));
+		}
 	}
 
 	@Override
@@ -448,19 +542,7 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 			if (diuid == null || diuid.trim().isEmpty() || diuid.equalsIgnoreCase("null"))
 				return false;
 			File df = getSerieDir(patId, serieNumber, true);
-			File[] files = df.listFiles();
-			int i = 0;
-			while (!rv && i < files.length) {
-				String nf = files[i].getName();
-				// System.out.println(files[i].getAbsolutePath());
-				if (nf.endsWith(".properties")) {
-					Properties p = loadMetadata(files[i]);
-					String vl = p.getProperty("dicomInstanceUID");
-					rv = diuid.equals(vl);
-					// System.out.println("diuid "+diuid+" == "+vl);
-				}
-				i++;
-			}
+			rv = instanceIndex.getIdFile(df, diuid) != null;
 		} catch (Exception exception) {
 			throw new OHDicomException(exception, new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
 					MessageBundle.formatMessage("angal.dicommanager.genericerror.fmt.msg", exception.getMessage()),
@@ -478,14 +560,6 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 		return p;
 	}
 
-	private Properties loadMetadata(File mdf) throws IOException {
-		Properties p = new Properties();
-		FileReader fr = new FileReader(mdf);
-		p.load(fr);
-		fr.close();
-		return p;
-	}
-
 	/**
 	 * frames counter
 	 */
@@ -498,38 +572,17 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	/**
 	 * emulate SQL sequence on filesystem
 	 */
-	private synchronized long nextId() throws IOException {
-		long rv = 0;
-
-		try {
-
-			File i = new File(dir, "dicom.storage");
-			if (i.exists()) {
-				FileInputStream fis = new FileInputStream(i);
-				ObjectInputStream ois = new ObjectInputStream(fis);
-				rv = ois.readLong();
-				ois.close();
-				fis.close();
+	private long nextId() throws IOException {
+		DicomIdAllocator allocator = idAllocator;
+		if (allocator == null) {
+			synchronized (this) {
+				if (idAllocator == null) {
+					idAllocator = new DicomIdAllocator(dir);
+				}
+				allocator = idAllocator;
 			}
-
-			i.delete();
-
-			i = new File(dir, "dicom.storage");
-
-			rv++;
-
-			FileOutputStream fos = new FileOutputStream(i);
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
-			oos.writeLong(rv);
-			oos.flush();
-			fos.flush();
-			oos.close();
-			fos.close();
-
-		} catch (Exception exc) {
-
 		}
-		return rv;
+		return allocator.nextId();
 	}
 
 	/**
@@ -578,14 +631,50 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	 * Save content in specified file
 	 * 
 	 * @param outFile - the file to write into
-	 * @param content - byte vector to write
+	 * @param content - the content to write
 	 */
-	private void save(File outFile, byte[] content) throws IOException {
-		// System.out.println("FileSystemDicomManager: create "+outFile.getAbsolutePath());
-		FileOutputStream fos = new FileOutputStream(outFile);
-		fos.write(content);
-		fos.flush();
-		fos.close();
+	private void save(File outFile, Blob content) throws IOException, SQLException {
+		InputStream in = content.getBinaryStream();
+		try {
+			save(outFile, Channels.newChannel(in), content.length());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Copy the specified file, letting the OS transfer the content when possible
+	 * 
+	 * @param outFile - the file to write into
+	 * @param inFile - the file to copy
+	 */
+	private void save(File outFile, File inFile) throws IOException {
+		FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+		try {
+			save(outFile, in, in.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	private void save(File outFile, ReadableByteChannel in, long length) throws IOException {
+		FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			long position = 0;
+			while (position < length) {
+				long transferred = out.transferFrom(in, position, length - position);
+				if (transferred <= 0) {
+					break;
+				}
+				position += transferred;
+			}
+			if (position < length) {
+				throw new IOException("Unexpected end of data writing " + outFile + ": " + position + " of " + length + " bytes");
+			}
+		} finally {
+			out.close();
+		}
 	}
 
 	/**
@@ -661,6 +750,17 @@ public class FileSystemDicomManager implements DicomManagerInterface {
 	    }
 	}
 
+	/**
+	 * Filter for the series folders, excluding the index folder
+	 */
+	class FilterSeries implements FileFilter {
+
+		@Override
+		public boolean accept(File file) {
+			return file.isDirectory() && !file.getName().equals(DicomInstanceIndex.INDEX_DIR);
+		}
+	}
+
 	/**
 	 * Filter for files .thumn
 	 */
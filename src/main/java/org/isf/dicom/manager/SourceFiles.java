@@ -27,7 +27,6 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.Random;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
@@ -44,6 +43,7 @@ import org.imgscalr.Scalr;
 import org.imgscalr.Scalr.Rotation;
 import org.isf.dicom.model.FileDicom;
 import org.isf.generaldata.MessageBundle;
+import org.isf.utils.db.UniqueIdGenerator;
 import org.isf.utils.exception.OHDicomException;
 import org.isf.utils.exception.OHServiceException;
 import org.isf.utils.exception.model.OHExceptionMessage;
@@ -73,9 +73,9 @@ public class SourceFiles extends Thread {
 	private FileDicom fileDicom = null;
 	private int patient = 0;
 	private int filesCount = 0;
-	private int filesLoaded = 0;
 	private AbstractDicomLoader dicomLoader = null;
 	private AbstractThumbnailViewGui thumbnail = null;
+	private DicomImportPipeline pipeline = null;
 
 	public SourceFiles(FileDicom fileDicom, File sourceFile, int patient, int filesCount, AbstractThumbnailViewGui thumbnail, AbstractDicomLoader frame) {
 		this.patient = patient;
@@ -84,6 +84,7 @@ public class SourceFiles extends Thread {
 		this.filesCount = filesCount;
 		this.thumbnail = thumbnail;
 		this.dicomLoader = frame;
+		this.pipeline = new DicomImportPipeline(frame);
 		start();
 	}
 
@@ -104,8 +105,6 @@ public class SourceFiles extends Thread {
 	 * @throws Exception
 	 */
 	private void loadDicomDir(FileDicom fileDicom, File sourceFile, int patient) throws Exception {
-		// installLibs();
-		File[] files = sourceFile.listFiles();
 		String seriesNumber = fileDicom.getDicomSeriesNumber();
 		if (seriesNumber == null || seriesNumber.isEmpty()) {
 			try {
@@ -115,24 +114,7 @@ public class SourceFiles extends Thread {
 				seriesNumber = "";
 			}
 		}
-		for (File value : files) {
-
-			try {
-				Thread.sleep(10);
-			} catch (Exception e) {
-			}
-
-			if (!value.isDirectory()) {
-				try {
-					loadDicom(fileDicom, value, patient);
-				} catch (Exception e) {
-					throw e;
-				}
-				filesLoaded++;
-				dicomLoader.setLoaded(filesLoaded);
-			} else if (!".".equals(value.getName()) && !"..".equals(value.getName()))
-				loadDicomDir(fileDicom, value, patient);
-		}
+		pipeline.importDir(fileDicom, sourceFile, patient);
 	}
 
 	public static boolean checkSize(File sourceFile) throws OHDicomException {
@@ -161,11 +143,18 @@ public class SourceFiles extends Thread {
 	}
 
 	public boolean working() {
-		return (filesLoaded < filesCount);
+		return !pipeline.isCancelled() && pipeline.getLoaded() < filesCount;
 	}
 
 	public int getLoaded() {
-		return filesLoaded;
+		return pipeline.getLoaded();
+	}
+
+	/**
+	 * Stops the import, keeping the files already stored
+	 */
+	public void cancel() {
+		pipeline.cancel();
 	}
 
 	/**
@@ -238,12 +227,28 @@ public class SourceFiles extends Thread {
 	 * @param patient
 	 * @throws Exception
 	 */
+	public static void loadDicom(FileDicom dicomFileDetail, File sourceFile, int patient) throws Exception {
+		File dicomData = prepareDicom(dicomFileDetail, sourceFile, patient);
+		if (dicomData != null)
+			saveDicom(dicomFileDetail, dicomData);
+	}
+
+	/**
+	 * Read metadata, image and thumbnail of a dicom file, without storing it: it can run concurrently
+	 * on different files, each one with its own <code>dicomFileDetail</code>
+	 *
+	 * @param dicomFileDetail - updated with the file metadata and thumbnail
+	 * @param sourceFile
+	 * @param patient
+	 * @return the file with the data to store, <code>null</code> if the file has to be skipped
+	 * @throws Exception
+	 */
 	@SuppressWarnings("unused")
-	public static synchronized void loadDicom(FileDicom dicomFileDetail, File sourceFile, int patient) throws Exception {
+	static File prepareDicom(FileDicom dicomFileDetail, File sourceFile, int patient) throws Exception {
 		// installLibs();
 
 		if (".DS_Store".equals(sourceFile.getName()))
-			return;
+			return null;
 
 		try {
 			boolean isJpeg = StringUtils.endsWithIgnoreCase(sourceFile.getName(), ".jpg") || StringUtils.endsWithIgnoreCase(sourceFile.getName(), ".jpeg");
@@ -398,8 +403,6 @@ public class SourceFiles extends Thread {
 			}
 
 			// Loaded... Update dicomFileDetail
-			if (sourceFile != null)
-				dicomFileDetail.setDicomData(sourceFile);
 			if (sourceFile.getName() != null)
 				dicomFileDetail.setFileName(sourceFile.getName());
 			if (accessionNumber != null)
@@ -445,20 +448,31 @@ public class SourceFiles extends Thread {
 			if (modality != null)
 				dicomFileDetail.setModality(modality);
 			dicomFileDetail.setIdFile(0); //it trigger the DB save with SqlDicomManager
-			try {
-				DicomManagerFactory.getManager().saveFile(dicomFileDetail);
-				//dicomFileDetail.setDicomSeriesNumber(dicom.getDicomSeriesNumber()); //series number could be generated if missing.
-			} catch (OHServiceException ex) {
-				if (ex.getMessages() != null) {
-					throw new OHDicomException(ex.getCause(), ex.getMessages());
-				}
-			}
+			return sourceFile;
 
 		} catch (OHDicomException ecc) {
 			throw ecc;
 		}
 	}
 
+	/**
+	 * Store a dicom file read by {@link #prepareDicom(FileDicom, File, int)}, streaming the data from the file
+	 *
+	 * @param dicomFileDetail
+	 * @param dicomData
+	 * @throws OHDicomException
+	 */
+	static void saveDicom(FileDicom dicomFileDetail, File dicomData) throws OHDicomException {
+		try {
+			DicomManagerFactory.getManager().saveFile(dicomFileDetail, dicomData);
+			//dicomFileDetail.setDicomSeriesNumber(dicom.getDicomSeriesNumber()); //series number could be generated if missing.
+		} catch (OHServiceException ex) {
+			if (ex.getMessages() != null) {
+				throw new OHDicomException(ex.getCause(), ex.getMessages());
+			}
+		}
+	}
+
 	public static int checkOrientation(File sourceFile) throws ImageProcessingException, IOException {
 		Metadata metadata = ImageMetadataReader.readMetadata(sourceFile);
 		ExifIFD0Directory exifIFD0Directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
@@ -509,19 +523,11 @@ public class SourceFiles extends Thread {
 	/**
 	 * Creates a new unique series number
 	 *
+	 * @param patient the patient the series belongs to, not needed as the series number is unique for all patients
 	 * @return the new unique code.
 	 * @throws OHServiceException if an error occurs during the code generation.
 	 */
 	public static String generateSeriesNumber(int patient) throws OHServiceException {
-		Random random = new Random();
-		long candidateCode = 0;
-		boolean exists = false;
-		do {
-			candidateCode = Math.abs(random.nextLong());
-			exists = DicomManagerFactory.getManager().exist(patient, String.valueOf(candidateCode));
-
-		} while (exists);
-
-		return String.valueOf(candidateCode);
+		return UniqueIdGenerator.getInstance().nextIdAsString();
 	}
 }
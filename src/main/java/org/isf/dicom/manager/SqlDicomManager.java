@@ -21,6 +21,13 @@
  */
 package org.isf.dicom.manager;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InputStream;
+import java.sql.Blob;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.isf.dicom.model.FileDicom;
 import org.isf.dicom.service.DicomIoOperations;
 import org.isf.utils.exception.OHServiceException;
@@ -39,6 +46,11 @@ public class SqlDicomManager implements DicomManagerInterface {
 	@Autowired
 	private DicomIoOperations ioOperations;
 
+	/**
+	 * Decoded thumbnails of the files in the database
+	 */
+	private final DicomThumbnailCache thumbnails = new DicomThumbnailCache();
+
 	public SqlDicomManager() {
 	}
 
@@ -65,6 +77,7 @@ public class SqlDicomManager implements DicomManagerInterface {
 	 */
 	@Override
 	public boolean deleteSerie(int patientID, String seriesNumber) throws OHServiceException {
+		thumbnails.invalidate(patientID, seriesNumber);
 		return ioOperations.deleteSerie(patientID, seriesNumber);
 	}
 
@@ -130,7 +143,22 @@ public class SqlDicomManager implements DicomManagerInterface {
 	 */
 	@Override
 	public FileDicom[] loadPatientFiles(int patientID) throws OHServiceException {
-		return ioOperations.loadPatientFiles(patientID);
+		FileDicom[] dicoms = ioOperations.loadPatientFilesWithoutThumbnail(patientID);
+		Map<Long, FileDicom> missing = new HashMap<>();
+		for (FileDicom dicom : dicoms) {
+			BufferedImage thumbnail = thumbnails.get(dicom.getPatId(), dicom.getDicomSeriesNumber(), dicom.getIdFile());
+			if (thumbnail != null) {
+				dicom.setDicomThumbnailImage(thumbnail);
+			} else {
+				missing.put(dicom.getIdFile(), dicom);
+			}
+		}
+		for (Map.Entry<Long, Blob> thumbnail : ioOperations.loadThumbnails(missing.keySet()).entrySet()) {
+			FileDicom dicom = missing.get(thumbnail.getKey());
+			dicom.setDicomThumbnail(thumbnail.getValue());
+			thumbnails.decode(dicom);
+		}
+		return dicoms;
 	}
 
 	/**
@@ -142,6 +170,41 @@ public class SqlDicomManager implements DicomManagerInterface {
 	@Override
 	public void saveFile(FileDicom dicom) throws OHServiceException {
 		ioOperations.saveFile(dicom);
+		thumbnails.invalidate(dicom.getPatId(), dicom.getDicomSeriesNumber(), dicom.getIdFile());
+	}
+
+	/**
+	 * Save the DICOM file and metadata, streaming the DICOM data from the specified file
+	 *
+	 * @param dicom
+	 * @param dicomData
+	 * @throws OHServiceException
+	 */
+	@Override
+	public void saveFile(FileDicom dicom, File dicomData) throws OHServiceException {
+		ioOperations.saveFile(dicom, dicomData);
+		thumbnails.invalidate(dicom.getPatId(), dicom.getDicomSeriesNumber(), dicom.getIdFile());
+	}
+
+	/**
+	 * Open the DICOM data as a stream from the database
+	 *
+	 * @param idFile
+	 * @param patientID
+	 * @param seriesNumber
+	 * @return the stream, <code>null</code> if the file does not exist
+	 * @throws OHServiceException
+	 */
+	@Override
+	public InputStream openDicomData(long idFile, int patientID, String seriesNumber) throws OHServiceException {
+		return ioOperations.openDicomData(idFile);
+	}
+
+	/**
+	 * @return the cache of the decoded thumbnails
+	 */
+	public DicomThumbnailCache getThumbnailCache() {
+		return thumbnails;
 	}
 
 }
@@ -163,6 +163,9 @@ public class FileDicom extends Auditable<String>
 	
 	@Transient
 	private volatile int hashCode = 0;
+
+	@Transient
+	private BufferedImage dicomThumbnailImage;
 	
 	@ManyToOne(optional=true) 
 	@JoinColumn(name="DM_DCMT_ID", nullable=true)
@@ -240,6 +243,21 @@ public class FileDicom extends Auditable<String>
 		this.dicomType = dicomType;
 	}
 	
+	/**
+	 * Construct an DICOM Data Model without main data (image) and thumbnail for fast retrieval from DB
+	 */
+	public FileDicom(int patId, long idFile, String fileName, String dicomAccessionNumber, String dicomInstitutionName, String dicomPatientID, 
+			String dicomPatientName, String dicomPatientAddress, String dicomPatientAge, String dicomPatientSex, String dicomPatientBirthDate, 
+			String dicomStudyId, Date dicomStudyDate, String dicomStudyDescription, String dicomSeriesUID, String dicomSeriesInstanceUID, 
+			String dicomSeriesNumber, String dicomSeriesDescriptionCodeSequence, Date dicomSeriesDate, String dicomSeriesDescription, 
+			String dicomInstanceUID, String modality, String dicomTypeId, String dicomTypeDesc) 
+	{
+		this(patId, idFile, fileName, dicomAccessionNumber, dicomInstitutionName, dicomPatientID, dicomPatientName, dicomPatientAddress,
+				dicomPatientAge, dicomPatientSex, dicomPatientBirthDate, dicomStudyId, dicomStudyDate, dicomStudyDescription, dicomSeriesUID,
+				dicomSeriesInstanceUID, dicomSeriesNumber, dicomSeriesDescriptionCodeSequence, dicomSeriesDate, dicomSeriesDescription,
+				dicomInstanceUID, modality, null, dicomTypeId, dicomTypeDesc);
+	}
+	
 	/**
 	 * Construct an DICOM Data Model without main data (image) for fast retrieval from DB
 	 */
@@ -640,6 +658,15 @@ public class FileDicom extends Auditable<String>
 	 */
 	public void setDicomThumbnail(Blob dicomThumbnail) {
 		this.dicomThumbnail = dicomThumbnail;
+		this.dicomThumbnailImage = null;
+	}
+
+	/**
+	 * @param dicomThumbnailImage
+	 *            the decoded thumbnail, returned by {@link #getDicomThumbnailAsImage()} without decoding the Blob
+	 */
+	public void setDicomThumbnailImage(BufferedImage dicomThumbnailImage) {
+		this.dicomThumbnailImage = dicomThumbnailImage;
 	}
 	
 	/**
@@ -672,6 +699,7 @@ public class FileDicom extends Auditable<String>
 			}
 			Blob blob = new SerialBlob(byteArray);
 			this.dicomThumbnail = blob;
+			this.dicomThumbnailImage = null;
 
 		} catch (Exception exception) {
 			LOGGER.error(exception.getMessage(), exception);
@@ -679,11 +707,13 @@ public class FileDicom extends Auditable<String>
 	}
 
 	/**
-	 * Convert Blob data in BufferedImage object
+	 * Convert Blob data in BufferedImage object, unless the decoded thumbnail has been set
 	 * 
 	 * @return
 	 */
 	public BufferedImage getDicomThumbnailAsImage() {
+		if (dicomThumbnailImage != null)
+			return dicomThumbnailImage;
 
 		BufferedImage bi = null;
 		try {
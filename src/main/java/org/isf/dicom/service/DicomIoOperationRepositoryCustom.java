@@ -0,0 +1,41 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.dicom.service;
+
+import java.io.InputStream;
+import java.sql.SQLException;
+
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface DicomIoOperationRepositoryCustom {
+
+	/**
+	 * Opens the DICOM data (DM_DATA) of a file as a stream read from the JDBC blob, on a dedicated connection
+	 * released when the stream is closed.
+	 * @param idFile the id of the file.
+	 * @return the stream, <code>null</code> if the file does not exist or has no data.
+	 * @throws SQLException
+	 */
+	InputStream openDicomData(long idFile) throws SQLException;
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.dicom.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class DicomIoOperationRepositoryImpl implements DicomIoOperationRepositoryCustom {
+
+	private static final String SELECT_DICOM_DATA = "SELECT DM_DATA FROM DICOM WHERE DM_FILE_ID = ?";
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Override
+	public InputStream openDicomData(long idFile) throws SQLException {
+		final Connection connection = dataSource.getConnection();
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			statement = connection.prepareStatement(SELECT_DICOM_DATA, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(1);
+			statement.setLong(1, idFile);
+			resultSet = statement.executeQuery();
+			InputStream data = resultSet.next() ? resultSet.getBinaryStream(1) : null;
+			if (data == null) {
+				_close(resultSet, statement, connection);
+				return null;
+			}
+			final ResultSet openResultSet = resultSet;
+			final PreparedStatement openStatement = statement;
+			return new FilterInputStream(data) {
+
+				private boolean closed;
+
+				@Override
+				public void close() throws IOException {
+					if (closed) {
+						return;
+					}
+					closed = true;
+					try {
+						super.close();
+					} finally {
+						try {
+							_close(openResultSet, openStatement, connection);
+						} catch (SQLException e) {
+							throw new IOException(e);
+						}
+					}
+				}
+			};
+		} catch (SQLException | RuntimeException e) {
+			try {
+				_close(resultSet, statement, connection);
+			} catch (SQLException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+	}
+
+	private static void _close(ResultSet resultSet, PreparedStatement statement, Connection connection) throws SQLException {
+		try {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+		} finally {
+			try {
+				if (statement != null) {
+					statement.close();
+				}
+			} finally {
+				connection.close();
+			}
+		}
+	}
+}
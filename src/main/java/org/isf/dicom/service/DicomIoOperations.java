@@ -21,13 +21,29 @@
  */
 package org.isf.dicom.service;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import javax.sql.rowset.serial.SerialBlob;
+
+import org.hibernate.engine.jdbc.BlobProxy;
 import org.isf.dicom.model.FileDicom;
+import org.isf.generaldata.MessageBundle;
 import org.isf.utils.db.TranslateOHServiceException;
 import org.isf.utils.exception.OHServiceException;
+import org.isf.utils.exception.model.OHExceptionMessage;
+import org.isf.utils.exception.model.OHSeverityLevel;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -140,8 +156,25 @@ public class DicomIoOperations
 	public FileDicom[] loadPatientFiles(
 			int patientID) throws OHServiceException
 	{
-		List<FileDicom> dicomList = repository.findAllWhereIdGroupBySeriesInstanceUIDOrderSerDateDesc(patientID);
+		return _setFrameCount(repository.findAllWhereIdGroupBySeriesInstanceUIDOrderSerDateDesc(patientID), patientID);
+	}
 
+	/**
+	 * Load metadata from DICOM files stored in database for the patient, without the thumbnails
+	 * 
+	 * @param patientID
+	 * @return FileDicom array
+	 * @throws OHServiceException 
+	 * @see #loadThumbnails(Collection)
+	 */
+	public FileDicom[] loadPatientFilesWithoutThumbnail(
+			int patientID) throws OHServiceException
+	{
+		return _setFrameCount(repository.findAllWithoutThumbnailWhereIdGroupBySeriesInstanceUIDOrderSerDateDesc(patientID), patientID);
+	}
+
+	private FileDicom[] _setFrameCount(List<FileDicom> dicomList, int patientID)
+	{
 		FileDicom[] dicoms = new FileDicom[dicomList.size()];	
 		for (int i = 0; i < dicomList.size(); i++)
 		{
@@ -153,6 +186,32 @@ public class DicomIoOperations
 		return dicoms;
 	}
 
+	/**
+	 * Load the thumbnails of the DICOM files
+	 * 
+	 * @param idFiles
+	 * @return the thumbnails by idFile, read in memory
+	 * @throws OHServiceException 
+	 */
+	public Map<Long, Blob> loadThumbnails(
+			Collection<Long> idFiles) throws OHServiceException
+	{
+		Map<Long, Blob> thumbnails = new HashMap<>();
+		if (idFiles.isEmpty())
+			return thumbnails;
+		try {
+			for (Object[] row : repository.findThumbnailWhereIdFileIn(idFiles)) {
+				Blob blob = (Blob) row[1];
+				if (blob != null) {
+					thumbnails.put((Long) row[0], new SerialBlob(blob.getBytes(1, (int) blob.length())));
+				}
+			}
+		} catch (SQLException exception) {
+			throw _toOHServiceException(exception);
+		}
+		return thumbnails;
+	}
+
 	/**
 	 * Check if dicom is loaded
 	 *
@@ -180,6 +239,54 @@ public class DicomIoOperations
 		repository.save(dicom);
 	}
 
+	/**
+	 * Save the DICOM file and metadata in the database, streaming the DICOM data from the specified file
+	 * instead of {@link FileDicom#getDicomData()}
+	 * 
+	 * @param dicom
+	 * @param dicomData - the file with the DICOM data
+	 * @throws OHServiceException 
+	 */
+	public void saveFile(
+			FileDicom dicom,
+			File dicomData) throws OHServiceException 
+	{
+		try {
+			InputStream data = new FileInputStream(dicomData);
+			try {
+				dicom.setDicomData(BlobProxy.generateProxy(data, dicomData.length()));
+				repository.saveAndFlush(dicom);
+			} finally {
+				data.close();
+			}
+		} catch (IOException exception) {
+			throw _toOHServiceException(exception);
+		}
+	}
+
+	/**
+	 * Opens the DICOM data of a file as a stream from the database blob; the caller has to close it
+	 * 
+	 * @param idFile
+	 * @return the stream, <code>null</code> if the file does not exist
+	 * @throws OHServiceException 
+	 */
+	@Transactional(propagation=Propagation.NOT_SUPPORTED)
+	public InputStream openDicomData(
+			long idFile) throws OHServiceException 
+	{
+		try {
+			return repository.openDicomData(idFile);
+		} catch (SQLException exception) {
+			throw _toOHServiceException(exception);
+		}
+	}
+
+	private OHServiceException _toOHServiceException(Exception exception) {
+		return new OHServiceException(exception, new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
+				MessageBundle.getMessage("angal.sql.anunexpectederroroccurredpleasecheckthelogs.msg"), OHSeverityLevel.ERROR));
+	}
+
 	/**
 	 * Checks if the code is already in use
 	 *
@@ -87,6 +87,15 @@ public final class GeneralData extends ConfigurationProperties {
 	public static String PATIENTBILLGROUPED;
 	public static String PATIENTBILLSTATEMENT;
 	public static boolean DEBUG;
+	public static int NODEID;
+	public static boolean COALESCESTOCKQUANTITIES;
+	public static String STOCKSNAPSHOTPERIOD;
+	public static int STOCKSNAPSHOTLOOP;
+	public static boolean WARDSTOCKLEDGER;
+	public static int WARDSTOCKLEDGERLOOP;
+	public static boolean MEDICALCATALOGCACHE;
+	public static boolean EXPIRYWATCH;
+	public static int EXPIRYWATCHLOOP;
 
 	private static final String DEFAULT_LANGUAGE = "en";
 	private static final boolean DEFAULT_SINGLEUSER = false;
@@ -131,6 +140,15 @@ public final class GeneralData extends ConfigurationProperties {
 	private static final String DEFAULT_PATIENTBILLGROUPED = "PatientBillGrouped";
 	private static final String DEFAULT_PATIENTBILLSTATEMENT = "PatientBillStatement";
 	private static final boolean DEFAULT_DEBUG = false;
+	private static final int DEFAULT_NODEID = -1;
+	private static final boolean DEFAULT_COALESCESTOCKQUANTITIES = false;
+	private static final String DEFAULT_STOCKSNAPSHOTPERIOD = "MONTHLY";
+	private static final int DEFAULT_STOCKSNAPSHOTLOOP = 0;
+	private static final boolean DEFAULT_WARDSTOCKLEDGER = false;
+	private static final int DEFAULT_WARDSTOCKLEDGERLOOP = 600;
+	private static final boolean DEFAULT_MEDICALCATALOGCACHE = false;
+	private static final boolean DEFAULT_EXPIRYWATCH = false;
+	private static final int DEFAULT_EXPIRYWATCHLOOP = 600;
 
 	private static GeneralData mySingleData;
 	
@@ -185,6 +203,15 @@ public final class GeneralData extends ConfigurationProperties {
 		PATIENTBILLGROUPED = myGetProperty("PATIENTBILLGROUPED", DEFAULT_PATIENTBILLGROUPED);
 		PATIENTBILLSTATEMENT = myGetProperty("PATIENTBILLSTATEMENT", DEFAULT_PATIENTBILLSTATEMENT);
 		DEBUG = myGetProperty("DEBUG", DEFAULT_DEBUG);
+		NODEID = myGetProperty("NODEID", DEFAULT_NODEID);
+		COALESCESTOCKQUANTITIES = myGetProperty("COALESCESTOCKQUANTITIES", DEFAULT_COALESCESTOCKQUANTITIES);
+		STOCKSNAPSHOTPERIOD = myGetProperty("STOCKSNAPSHOTPERIOD", DEFAULT_STOCKSNAPSHOTPERIOD);
+		STOCKSNAPSHOTLOOP = myGetProperty("STOCKSNAPSHOTLOOP", DEFAULT_STOCKSNAPSHOTLOOP);
+		WARDSTOCKLEDGER = myGetProperty("WARDSTOCKLEDGER", DEFAULT_WARDSTOCKLEDGER);
+		WARDSTOCKLEDGERLOOP = myGetProperty("WARDSTOCKLEDGERLOOP", DEFAULT_WARDSTOCKLEDGERLOOP);
+		MEDICALCATALOGCACHE = myGetProperty("MEDICALCATALOGCACHE", DEFAULT_MEDICALCATALOGCACHE);
+		EXPIRYWATCH = myGetProperty("EXPIRYWATCH", DEFAULT_EXPIRYWATCH);
+		EXPIRYWATCHLOOP = myGetProperty("EXPIRYWATCHLOOP", DEFAULT_EXPIRYWATCHLOOP);
 			
 	}
 
@@ -22,7 +22,9 @@
 package org.isf.medicals.manager;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.isf.generaldata.MessageBundle;
 import org.isf.medicals.model.Medical;
@@ -62,6 +64,17 @@ public class MedicalBrowsingManager {
 		return ioOperations.getMedical(code);
 	}
 
+	/**
+	 * Returns the medicals with the specified codes.
+	 *
+	 * @param codes the medical codes.
+	 * @return the retrieved medicals by code, the codes not found are missing.
+	 * @throws OHServiceException
+	 */
+	public Map<Integer, Medical> getMedicalsByCode(Collection<Integer> codes) throws OHServiceException {
+		return ioOperations.getMedicalsByCode(codes);
+	}
+
 	/**
 	 * Returns all the medicals.
 	 * In case of error a message error is shown and a <code>null</code> value is returned.
@@ -129,6 +142,18 @@ public class MedicalBrowsingManager {
 		return ioOperations.getMedicals(description, type, critical);
 	}
 
+	/**
+	 * Returns the medicals whose description or product code contains the specified text, best matches first.
+	 *
+	 * @param text the text to search.
+	 * @param limit the maximum number of medicals to retrieve.
+	 * @return the retrieved medicals.
+	 * @throws OHServiceException
+	 */
+	public List<Medical> searchMedicals(String text, int limit) throws OHServiceException {
+		return ioOperations.searchMedicals(text, limit);
+	}
+
 	/**
 	 * Saves the specified {@link Medical}. The medical is updated with the generated id.
 	 * In case of wrong parameters values a message error is shown and a <code>false</code> value is returned.
@@ -0,0 +1,374 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicals.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.isf.generaldata.GeneralData;
+import org.isf.medicals.model.Medical;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Keeps in memory the whole {@link Medical} catalog, indexed by code, by product code, by type and by
+ * case-folded description, so that {@link MedicalsIoOperations} answers lookups and filters without a query.
+ * <p>
+ * When the catalog is enabled (<code>MEDICALCATALOGCACHE</code> in settings.properties) it is loaded at the
+ * first lookup, in a read-only transaction of its own. The medicals changed by {@link MedicalsIoOperations}
+ * or whose stock counters are changed by {@link MedicalQuantityCoalescer} are reloaded after the commit.
+ * Callers always get copies, so changing a returned medical does not change the catalog.
+ * The description filter is case-insensitive, as with the default MySQL collation, and is answered by a
+ * {@link MedicalSearchIndex} updated incrementally with the changed medicals.
+ */
+@Component
+public class MedicalCatalog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MedicalCatalog.class);
+
+	private static final Comparator<Medical> BY_DESCRIPTION = new Comparator<Medical>() {
+
+		@Override
+		public int compare(Medical medical1, Medical medical2) {
+			int result = String.CASE_INSENSITIVE_ORDER.compare(medical1.getDescription(), medical2.getDescription());
+			return result != 0 ? result : medical1.getCode().compareTo(medical2.getCode());
+		}
+	};
+
+	private static final Comparator<Medical> BY_TYPE_AND_DESCRIPTION = new Comparator<Medical>() {
+
+		@Override
+		public int compare(Medical medical1, Medical medical2) {
+			int result = String.CASE_INSENSITIVE_ORDER.compare(medical1.getType().getDescription(), medical2.getType().getDescription());
+			return result != 0 ? result : BY_DESCRIPTION.compare(medical1, medical2);
+		}
+	};
+
+	private static final Comparator<Medical> BY_SMART_CODE = new Comparator<Medical>() {
+
+		@Override
+		public int compare(Medical medical1, Medical medical2) {
+			String code1 = medical1.getProd_code() == null ? "" : medical1.getProd_code();
+			String code2 = medical2.getProd_code() == null ? "" : medical2.getProd_code();
+			int result = Integer.compare(code1.length(), code2.length());
+			if (result == 0) {
+				result = String.CASE_INSENSITIVE_ORDER.compare(code1, code2);
+			}
+			return result != 0 ? result : BY_DESCRIPTION.compare(medical1, medical2);
+		}
+	};
+
+	@Autowired
+	private MedicalsIoOperationRepository repository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private boolean enabled;
+
+	private volatile Catalog catalog;
+
+	private final MedicalSearchIndex searchIndex = new MedicalSearchIndex();
+
+	public MedicalCatalog() {
+		GeneralData.getGeneralData();
+		this.enabled = GeneralData.MEDICALCATALOGCACHE;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			catalog = null;
+		}
+	}
+
+	/**
+	 * Drops the catalog, that is loaded again at the next lookup.
+	 */
+	public void invalidate() {
+		catalog = null;
+	}
+
+	/**
+	 * @param code the medical code.
+	 * @return a copy of the medical, <code>null</code> if not found.
+	 */
+	public Medical getMedical(Integer code) {
+		return _copy(_getCatalog().byCode.get(code));
+	}
+
+	/**
+	 * @param codes the medical codes.
+	 * @return copies of the medicals found, by code, in the order of the specified codes.
+	 */
+	public Map<Integer, Medical> getMedicals(Collection<Integer> codes) {
+		Catalog current = _getCatalog();
+		Map<Integer, Medical> medicals = new LinkedHashMap<>();
+		for (Integer code : codes) {
+			Medical medical = current.byCode.get(code);
+			if (medical != null) {
+				medicals.put(code, _copy(medical));
+			}
+		}
+		return medicals;
+	}
+
+	/**
+	 * @param prodCode the product code (case-insensitive).
+	 * @return a copy of the medical with the specified product code, <code>null</code> if not found.
+	 */
+	public Medical getMedicalByProductCode(String prodCode) {
+		return prodCode == null ? null : _copy(_getCatalog().byProdCode.get(_fold(prodCode)));
+	}
+
+	/**
+	 * @return copies of all the medicals, sorted by description.
+	 */
+	public List<Medical> getMedicalsSortedByDescription() {
+		return _copy(_getCatalog().byDescription);
+	}
+
+	/**
+	 * @return copies of all the medicals, sorted by product code length, product code and description.
+	 */
+	public List<Medical> getMedicalsSortedBySmartCode() {
+		return _copy(_getCatalog().bySmartCode);
+	}
+
+	/**
+	 * Searches the medicals whose description or product code contains the specified text, case-insensitive.
+	 * @param text the text to search.
+	 * @param limit the maximum number of results.
+	 * @return copies of the medicals found, best matches first (see {@link MedicalSearchIndex}).
+	 */
+	public List<Medical> search(String text, int limit) {
+		Catalog current = _getCatalog();
+		List<Medical> medicals = new ArrayList<>();
+		for (Integer code : searchIndex.search(text, limit)) {
+			Medical medical = current.byCode.get(code);
+			if (medical != null) {
+				medicals.add(_copy(medical));
+			}
+		}
+		return medicals;
+	}
+
+	/**
+	 * Retrieves the medicals matching the specified criteria, sorted by type description and description.
+	 * @param description text contained in the description or in the product code (case-insensitive), or <code>null</code>.
+	 * @param type the medical type code, or <code>null</code>.
+	 * @param critical <code>true</code> to include only the medicals under their minimum quantity.
+	 * @return copies of the medicals found.
+	 */
+	public List<Medical> getMedicals(String description, String type, boolean critical) {
+		Catalog current = _getCatalog();
+		List<Medical> candidates = type == null ? current.byTypeAndDescription : current.byType.get(type);
+		if (candidates == null) {
+			return new ArrayList<>();
+		}
+		Set<Integer> matches = description == null ? null : new HashSet<>(searchIndex.search(description, Integer.MAX_VALUE));
+		List<Medical> medicals = new ArrayList<>();
+		for (Medical medical : candidates) {
+			if (matches != null && !matches.contains(medical.getCode())) {
+				continue;
+			}
+			if (critical && medical.getTotalQuantity() >= medical.getMinqty()) {
+				continue;
+			}
+			medicals.add(_copy(medical));
+		}
+		return medicals;
+	}
+
+	/**
+	 * @return the number of medicals in the catalog, <code>0</code> if not loaded.
+	 */
+	public int size() {
+		Catalog current = catalog;
+		return current == null ? 0 : current.byCode.size();
+	}
+
+	/**
+	 * Records that a medical has been created, changed or deleted: it is reloaded after the commit
+	 * of the current transaction, or at once outside a transaction.
+	 * @param code the medical code.
+	 */
+	public void changed(Integer code) {
+		if (!enabled || code == null) {
+			return;
+		}
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			_refresh(Collections.singleton(code));
+			return;
+		}
+		ChangedMedicals changed = (ChangedMedicals) TransactionSynchronizationManager.getResource(this);
+		if (changed == null) {
+			changed = new ChangedMedicals();
+			TransactionSynchronizationManager.bindResource(this, changed);
+			TransactionSynchronizationManager.registerSynchronization(changed);
+		}
+		changed.codes.add(code);
+	}
+
+	private Catalog _getCatalog() {
+		Catalog current = catalog;
+		if (current == null) {
+			synchronized (this) {
+				if (catalog == null) {
+					long start = System.currentTimeMillis();
+					List<Medical> medicals = _load(null);
+					searchIndex.rebuild(medicals);
+					catalog = new Catalog(medicals);
+					LOGGER.info("Medical catalog loaded {} medicals in {} ms", catalog.byCode.size(), System.currentTimeMillis() - start);
+				}
+				current = catalog;
+			}
+		}
+		return current;
+	}
+
+	private synchronized void _refresh(Set<Integer> codes) {
+		Catalog current = catalog;
+		if (current == null) {
+			return;
+		}
+		Map<Integer, Medical> medicals = new HashMap<>(current.byCode);
+		medicals.keySet().removeAll(codes);
+		for (Integer code : codes) {
+			searchIndex.remove(code);
+		}
+		for (Medical medical : _load(codes)) {
+			medicals.put(medical.getCode(), medical);
+			searchIndex.put(medical);
+		}
+		catalog = new Catalog(medicals.values());
+	}
+
+	/**
+	 * Loads the medicals in a new read-only transaction, so that they are detached and committed.
+	 */
+	private List<Medical> _load(final Set<Integer> codes) {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		transaction.setReadOnly(true);
+		return transaction.execute(new TransactionCallback<List<Medical>>() {
+
+			@Override
+			public List<Medical> doInTransaction(TransactionStatus status) {
+				return codes == null ? repository.findAll() : repository.findAllWhereCodeIn(codes);
+			}
+		});
+	}
+
+	private static String _fold(String text) {
+		return text == null ? "" : text.toLowerCase(Locale.ROOT);
+	}
+
+	private static Medical _copy(Medical medical) {
+		if (medical == null) {
+			return null;
+		}
+		try {
+			return (Medical) medical.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static List<Medical> _copy(List<Medical> medicals) {
+		List<Medical> copies = new ArrayList<>(medicals.size());
+		for (Medical medical : medicals) {
+			copies.add(_copy(medical));
+		}
+		return copies;
+	}
+
+	private class ChangedMedicals extends TransactionSynchronizationAdapter {
+
+		private final Set<Integer> codes = new HashSet<>();
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(MedicalCatalog.this);
+			if (status == STATUS_COMMITTED) {
+				_refresh(codes);
+			}
+		}
+	}
+
+	/**
+	 * An immutable view of the catalog with its indexes; changes build a new one.
+	 */
+	private static class Catalog {
+
+		private final Map<Integer, Medical> byCode = new HashMap<>();
+		private final Map<String, Medical> byProdCode = new HashMap<>();
+		private final Map<String, List<Medical>> byType = new HashMap<>();
+		private final List<Medical> byTypeAndDescription;
+		private final List<Medical> byDescription;
+		private final List<Medical> bySmartCode;
+
+		Catalog(Collection<Medical> medicals) {
+			List<Medical> sorted = new ArrayList<>(medicals);
+			Collections.sort(sorted, BY_TYPE_AND_DESCRIPTION);
+			for (Medical medical : sorted) {
+				byCode.put(medical.getCode(), medical);
+				if (medical.getProd_code() != null) {
+					byProdCode.put(_fold(medical.getProd_code()), medical);
+				}
+				List<Medical> ofType = byType.get(medical.getType().getCode());
+				if (ofType == null) {
+					ofType = new ArrayList<>();
+					byType.put(medical.getType().getCode(), ofType);
+				}
+				ofType.add(medical);
+			}
+			byTypeAndDescription = sorted;
+			byDescription = new ArrayList<>(sorted);
+			Collections.sort(byDescription, BY_DESCRIPTION);
+			bySmartCode = new ArrayList<>(sorted);
+			Collections.sort(bySmartCode, BY_SMART_CODE);
+		}
+	}
+}
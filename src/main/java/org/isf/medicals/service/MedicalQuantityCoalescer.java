@@ -0,0 +1,164 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicals.service;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.Before;
+import org.isf.generaldata.GeneralData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Applies the changes to the incoming and outgoing quantities of the {@link org.isf.medicals.model.Medical}s.
+ * <p>
+ * When coalescing is enabled (<code>COALESCESTOCKQUANTITIES</code> in settings.properties) the changes made inside
+ * a transaction are summed per medical and written just before the commit, with one update per medical,
+ * in medical code order so that concurrent transactions always lock the rows in the same order.
+ * Until then the stored quantities do not include the pending changes: they are written by {@link #flush()},
+ * which runs before every method of {@link MedicalsIoOperations} and every query of {@link MedicalsIoOperationRepository}.
+ * Outside a transaction, or when coalescing is disabled, every change is written at once.
+ */
+@Aspect
+@Component
+public class MedicalQuantityCoalescer {
+
+	@Autowired
+	private MedicalsIoOperationRepository medicalRepository;
+
+	@Autowired
+	private MedicalCatalog catalog;
+
+	private boolean enabled;
+
+	public MedicalQuantityCoalescer() {
+		GeneralData.getGeneralData();
+		this.enabled = GeneralData.COALESCESTOCKQUANTITIES;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Adds the specified quantity to the incoming quantity of a medical.
+	 * @param code the medical code.
+	 * @param quantity the quantity to add.
+	 * @return <code>false</code> if the medical has been updated at once and it does not exist, <code>true</code> otherwise.
+	 */
+	public boolean increaseIncomingQuantity(Integer code, double quantity) {
+		PendingQuantities pending = _pendingQuantities();
+		if (pending == null) {
+			int updated = medicalRepository.increaseIncomingQuantity(code, quantity);
+			catalog.changed(code);
+			return updated > 0;
+		}
+		catalog.changed(code);
+		_add(pending.incoming, code, quantity);
+		return true;
+	}
+
+	/**
+	 * Adds the specified quantity to the outgoing quantity of a medical.
+	 * @param code the medical code.
+	 * @param quantity the quantity to add.
+	 * @return <code>false</code> if the medical has been updated at once and it does not exist, <code>true</code> otherwise.
+	 */
+	public boolean increaseOutcomingQuantity(Integer code, double quantity) {
+		PendingQuantities pending = _pendingQuantities();
+		if (pending == null) {
+			int updated = medicalRepository.increaseOutcomingQuantity(code, quantity);
+			catalog.changed(code);
+			return updated > 0;
+		}
+		catalog.changed(code);
+		_add(pending.outgoing, code, quantity);
+		return true;
+	}
+
+	/**
+	 * Writes the changes still pending in the current transaction, if any.
+	 */
+	@Before("execution(public * org.isf.medicals.service.MedicalsIoOperations.*(..))"
+			+ " || execution(* org.isf.medicals.service.MedicalsIoOperationRepository+.find*(..))"
+			+ " || execution(* org.isf.medicals.service.MedicalsIoOperationRepository+.count*(..))")
+	public void flush() {
+		PendingQuantities pending = (PendingQuantities) TransactionSynchronizationManager.getResource(this);
+		if (pending != null) {
+			pending.flush();
+		}
+	}
+
+	private PendingQuantities _pendingQuantities() {
+		if (!enabled || !TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		PendingQuantities pending = (PendingQuantities) TransactionSynchronizationManager.getResource(this);
+		if (pending == null) {
+			pending = new PendingQuantities();
+			TransactionSynchronizationManager.bindResource(this, pending);
+			TransactionSynchronizationManager.registerSynchronization(pending);
+		}
+		return pending;
+	}
+
+	private void _add(Map<Integer, Double> quantities, Integer code, double quantity) {
+		Double current = quantities.get(code);
+		quantities.put(code, current == null ? quantity : current + quantity);
+	}
+
+	private class PendingQuantities extends TransactionSynchronizationAdapter {
+
+		private final Map<Integer, Double> incoming = new TreeMap<>();
+		private final Map<Integer, Double> outgoing = new TreeMap<>();
+
+		@Override
+		public void flush() {
+			for (Map.Entry<Integer, Double> quantity : incoming.entrySet()) {
+				medicalRepository.increaseIncomingQuantity(quantity.getKey(), quantity.getValue());
+			}
+			for (Map.Entry<Integer, Double> quantity : outgoing.entrySet()) {
+				medicalRepository.increaseOutcomingQuantity(quantity.getKey(), quantity.getValue());
+			}
+			incoming.clear();
+			outgoing.clear();
+		}
+
+		@Override
+		public void beforeCommit(boolean readOnly) {
+			flush();
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(MedicalQuantityCoalescer.this);
+		}
+	}
+}
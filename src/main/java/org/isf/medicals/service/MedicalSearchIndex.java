@@ -0,0 +1,291 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicals.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.isf.medicals.model.Medical;
+
+/**
+ * In-memory trigram index over the case-folded descriptions and product codes of the {@link Medical}s,
+ * answering substring searches without the <code>LIKE '%...%'</code> scan of the database.
+ * <p>
+ * Every medical gets a slot; each trigram maps to the {@link BitSet} of the slots containing it. A search
+ * intersects the sets of the trigrams of the text and then checks the candidates, so there are no false
+ * positives; texts shorter than a trigram check every medical. Medicals are added, replaced and removed one
+ * at a time, reusing the free slots. Matches are ranked: product code equal to the text, product code
+ * starting with it, description starting with it, a word of the description starting with it, description
+ * containing it, product code containing it; then by description.
+ */
+public class MedicalSearchIndex {
+
+	private static final int GRAM = 3;
+
+	private static final Comparator<Match> BY_RANK = new Comparator<Match>() {
+
+		@Override
+		public int compare(Match match1, Match match2) {
+			int result = Integer.compare(match1.rank, match2.rank);
+			if (result == 0) {
+				result = String.CASE_INSENSITIVE_ORDER.compare(match1.document.description, match2.document.description);
+			}
+			return result != 0 ? result : match1.document.code.compareTo(match2.document.code);
+		}
+	};
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Map<String, BitSet> postings = new HashMap<>();
+
+	private final Map<Integer, Integer> slots = new HashMap<>();
+
+	private final List<Document> documents = new ArrayList<>();
+
+	private final BitSet used = new BitSet();
+
+	private final Deque<Integer> free = new ArrayDeque<>();
+
+	/**
+	 * Replaces the content of the index.
+	 * @param medicals the medicals to index.
+	 */
+	public void rebuild(Collection<Medical> medicals) {
+		lock.writeLock().lock();
+		try {
+			postings.clear();
+			slots.clear();
+			documents.clear();
+			used.clear();
+			free.clear();
+			for (Medical medical : medicals) {
+				_put(medical);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a medical, or replaces it if already indexed.
+	 * @param medical the medical.
+	 */
+	public void put(Medical medical) {
+		lock.writeLock().lock();
+		try {
+			_remove(medical.getCode());
+			_put(medical);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a medical, if indexed.
+	 * @param code the medical code.
+	 */
+	public void remove(Integer code) {
+		lock.writeLock().lock();
+		try {
+			_remove(code);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of indexed medicals.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return slots.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Searches the medicals whose description or product code contains the specified text, case-insensitive.
+	 * @param text the text to search.
+	 * @param limit the maximum number of results.
+	 * @return the codes of the matching medicals, best matches first.
+	 */
+	public List<Integer> search(String text, int limit) {
+		String query = _fold(text);
+		List<Match> matches = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			BitSet candidates = _candidates(query);
+			for (int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot + 1)) {
+				Document document = documents.get(slot);
+				int rank = _rank(document, query);
+				if (rank >= 0) {
+					matches.add(new Match(document, rank));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(matches, BY_RANK);
+		List<Integer> codes = new ArrayList<>(Math.min(limit, matches.size()));
+		for (Match match : matches) {
+			if (codes.size() == limit) {
+				break;
+			}
+			codes.add(match.document.code);
+		}
+		return codes;
+	}
+
+	private BitSet _candidates(String query) {
+		if (query.length() < GRAM) {
+			return (BitSet) used.clone();
+		}
+		BitSet candidates = null;
+		for (int i = 0; i + GRAM <= query.length(); i++) {
+			BitSet posting = postings.get(query.substring(i, i + GRAM));
+			if (posting == null) {
+				return new BitSet();
+			}
+			if (candidates == null) {
+				candidates = (BitSet) posting.clone();
+			} else {
+				candidates.and(posting);
+			}
+		}
+		return candidates;
+	}
+
+	private static int _rank(Document document, String query) {
+		if (document.prodCode.equals(query)) {
+			return 0;
+		}
+		if (document.prodCode.startsWith(query)) {
+			return 1;
+		}
+		int index = document.foldedDescription.indexOf(query);
+		if (index == 0) {
+			return 2;
+		}
+		if (index > 0) {
+			for (; index > 0; index = document.foldedDescription.indexOf(query, index + 1)) {
+				if (!Character.isLetterOrDigit(document.foldedDescription.charAt(index - 1))) {
+					return 3;
+				}
+			}
+			return 4;
+		}
+		return document.prodCode.contains(query) ? 5 : -1;
+	}
+
+	private void _put(Medical medical) {
+		Integer slot = free.isEmpty() ? documents.size() : free.pop();
+		Document document = new Document(medical);
+		if (slot == documents.size()) {
+			documents.add(document);
+		} else {
+			documents.set(slot, document);
+		}
+		slots.put(document.code, slot);
+		used.set(slot);
+		for (String gram : document.grams()) {
+			BitSet posting = postings.get(gram);
+			if (posting == null) {
+				posting = new BitSet();
+				postings.put(gram, posting);
+			}
+			posting.set(slot);
+		}
+	}
+
+	private void _remove(Integer code) {
+		Integer slot = slots.remove(code);
+		if (slot == null) {
+			return;
+		}
+		Document document = documents.get(slot);
+		for (String gram : document.grams()) {
+			BitSet posting = postings.get(gram);
+			posting.clear(slot);
+			if (posting.isEmpty()) {
+				postings.remove(gram);
+			}
+		}
+		documents.set(slot, null);
+		used.clear(slot);
+		free.push(slot);
+	}
+
+	private static String _fold(String text) {
+		return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+	}
+
+	private static class Document {
+
+		private final Integer code;
+		private final String description;
+		private final String foldedDescription;
+		private final String prodCode;
+
+		Document(Medical medical) {
+			this.code = medical.getCode();
+			this.description = medical.getDescription() == null ? "" : medical.getDescription();
+			this.foldedDescription = description.toLowerCase(Locale.ROOT);
+			this.prodCode = medical.getProd_code() == null ? "" : medical.getProd_code().toLowerCase(Locale.ROOT);
+		}
+
+		Set<String> grams() {
+			Set<String> grams = new HashSet<>();
+			for (String text : new String[] { foldedDescription, prodCode }) {
+				for (int i = 0; i + GRAM <= text.length(); i++) {
+					grams.add(text.substring(i, i + GRAM));
+				}
+			}
+			return grams;
+		}
+	}
+
+	private static class Match {
+
+		private final Document document;
+		private final int rank;
+
+		Match(Document document, int rank) {
+			this.document = document;
+			this.rank = rank;
+		}
+	}
+}
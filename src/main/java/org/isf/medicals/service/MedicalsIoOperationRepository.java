@@ -21,6 +21,7 @@
  */
 package org.isf.medicals.service;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.isf.medicals.model.Medical;
@@ -30,7 +31,7 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public interface MedicalsIoOperationRepository extends JpaRepository<Medical, Integer> {
+public interface MedicalsIoOperationRepository extends JpaRepository<Medical, Integer>, MedicalsIoOperationRepositoryCustom {
 	@Query(value = "SELECT m FROM Medical m where m.description like :description order BY m.description")
 	List<Medical> findAllWhereDescriptionOrderByDescription(@Param("description") String description);
 	@Query(value = "SELECT m FROM Medical m order BY m.description")
@@ -68,6 +69,8 @@ public interface MedicalsIoOperationRepository extends JpaRepository<Medical, In
     Medical findOneWhereProductCode(@Param("prod_code") String prod_code);
     @Query(value = "SELECT m FROM Medical m WHERE m.prod_code = :prod_code AND m.code <> :id")
     Medical findOneWhereProductCode(@Param("prod_code") String prod_code, @Param("id") Integer id);
+    @Query(value = "SELECT m FROM Medical m LEFT JOIN FETCH m.type WHERE m.code IN :codes")
+    List<Medical> findAllWhereCodeIn(@Param("codes") Collection<Integer> codes);
 	
     
     @Query(value = "SELECT m FROM Medical m WHERE m.type.description LIKE %:type% ORDER BY LENGTH(m.prod_code), m.prod_code, m.description")
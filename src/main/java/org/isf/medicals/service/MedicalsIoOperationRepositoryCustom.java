@@ -0,0 +1,45 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicals.service;
+
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface MedicalsIoOperationRepositoryCustom {
+
+	/**
+	 * Atomically adds the specified quantity to the incoming quantity of a medical.
+	 * @param code the medical code.
+	 * @param quantity the quantity to add.
+	 * @return the number of updated rows.
+	 */
+	int increaseIncomingQuantity(Integer code, double quantity);
+
+	/**
+	 * Atomically adds the specified quantity to the outgoing quantity of a medical.
+	 * @param code the medical code.
+	 * @param quantity the quantity to add.
+	 * @return the number of updated rows.
+	 */
+	int increaseOutcomingQuantity(Integer code, double quantity);
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicals.service;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.Hibernate;
+import org.isf.medicals.model.Medical;
+import org.springframework.transaction.annotation.Transactional;
+
+@Transactional
+public class MedicalsIoOperationRepositoryImpl implements MedicalsIoOperationRepositoryCustom {
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Override
+	public int increaseIncomingQuantity(Integer code, double quantity) {
+		return _increase("inqty", code, quantity);
+	}
+
+	@Override
+	public int increaseOutcomingQuantity(Integer code, double quantity) {
+		return _increase("outqty", code, quantity);
+	}
+
+	/**
+	 * Updates the quantity in place, without reading the {@link Medical} first, so that
+	 * concurrent movements never overwrite each other. The version is increased as well, so that
+	 * saving an instance read before the update fails instead of writing back the old quantity.
+	 * An instance already loaded in the persistence context is refreshed, otherwise it would
+	 * keep showing the old quantity; its changes not written yet are flushed first, so that the refresh does not drop them.
+	 */
+	private int _increase(String field, Integer code, double quantity) {
+		Medical medical = entityManager.getReference(Medical.class, code);
+		boolean loaded = Hibernate.isInitialized(medical);
+		if (loaded) {
+			entityManager.flush();
+		}
+		int updated = entityManager
+				.createQuery("update versioned Medical m set m." + field + " = m." + field + " + :quantity where m.code = :code")
+				.setParameter("quantity", quantity)
+				.setParameter("code", code)
+				.executeUpdate();
+		if (loaded) {
+			entityManager.refresh(medical);
+		}
+		return updated;
+	}
+}
@@ -22,7 +22,10 @@
 package org.isf.medicals.service;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.isf.medicals.model.Medical;
 import org.isf.medicalstock.model.Movement;
@@ -53,6 +56,8 @@ public class MedicalsIoOperations
 	private MedicalsIoOperationRepository repository;
 	@Autowired	
 	private MovementIoOperationRepository moveRepository;
+	@Autowired
+	private MedicalCatalog catalog;
 	
 	/**
 	 * Retrieves the specified {@link Medical}.
@@ -63,9 +68,31 @@ public class MedicalsIoOperations
 	public Medical getMedical(
 			int code) throws OHServiceException 
 	{
+		if (catalog.isEnabled()) {
+			return catalog.getMedical(code);
+		}
 		return repository.findOne(code);
 	}
 
+	/**
+	 * Retrieves the {@link Medical}s with the specified codes.
+	 * @param codes the medical codes.
+	 * @return the stored medicals by code, the codes not found are missing.
+	 * @throws OHServiceException if an error occurs retrieving the stored medicals.
+	 */
+	public Map<Integer, Medical> getMedicalsByCode(Collection<Integer> codes) throws OHServiceException {
+		if (catalog.isEnabled()) {
+			return catalog.getMedicals(codes);
+		}
+		Map<Integer, Medical> medicals = new LinkedHashMap<>();
+		if (!codes.isEmpty()) {
+			for (Medical medical : repository.findAllWhereCodeIn(codes)) {
+				medicals.put(medical.getCode(), medical);
+			}
+		}
+		return medicals;
+	}
+
 	/**
 	 * Gets all stored {@link Medical}s.
 	 * @return all the stored medicals.
@@ -87,6 +114,8 @@ public class MedicalsIoOperations
 
 		if (description != null) {
 			medicals = repository.findAllWhereDescriptionOrderByDescription(description);
+		} else if (catalog.isEnabled()) {
+			medicals = catalog.getMedicalsSortedByDescription();
 		} else {
 			medicals = repository.findAllByOrderByDescription();
 		}
@@ -121,6 +150,9 @@ public class MedicalsIoOperations
 	public List<Medical> getMedicals(String description, String type, boolean critical) throws OHServiceException {
 		List<Medical> medicals = null;
 
+		if (catalog.isEnabled()) {
+			return catalog.getMedicals(description, type, critical);
+		}
 		if (description != null) {
 			if (type != null) {
 				if (critical) {
@@ -154,6 +186,23 @@ public class MedicalsIoOperations
 		return medicals;
 	}
 	
+	/**
+	 * Searches the {@link Medical}s whose description or product code contains the specified text.
+	 * With the medical catalog enabled the search is case-insensitive and the best matches come first
+	 * (see {@link MedicalSearchIndex}), otherwise the medicals are sorted by type and description.
+	 * @param text the text to search.
+	 * @param limit the maximum number of medicals to retrieve.
+	 * @return the retrieved medicals.
+	 * @throws OHServiceException if an error occurs retrieving the medicals.
+	 */
+	public List<Medical> searchMedicals(String text, int limit) throws OHServiceException {
+		if (catalog.isEnabled()) {
+			return catalog.search(text, limit);
+		}
+		List<Medical> medicals = repository.findAllWhereDescriptionOrderByTypeAndDescription(text);
+		return medicals.size() > limit ? new ArrayList<>(medicals.subList(0, limit)) : medicals;
+	}
+
 	/**
 	 * Checks if the specified {@link Medical} exists or not.
 	 * @param medical - the medical to check.
@@ -188,6 +237,10 @@ public class MedicalsIoOperations
 		
 		Medical foundMedical = null;
 		
+		if (catalog.isEnabled()) {
+			foundMedical = catalog.getMedicalByProductCode(medical.getProd_code());
+			return foundMedical != null && !(update && foundMedical.getCode().equals(medical.getCode()));
+		}
 		if (update) {
 			foundMedical = repository.findOneWhereProductCode(medical.getProd_code(), medical.getCode());
 		} else {
@@ -242,6 +295,9 @@ public class MedicalsIoOperations
 
 		Medical savedMedical = repository.save(medical);
 		result = (savedMedical != null);
+		if (result) {
+			catalog.changed(savedMedical.getCode());
+		}
 
 		return result;
 	}
@@ -259,6 +315,9 @@ public class MedicalsIoOperations
 
 		Medical savedMedical = repository.save(medical);
 		result = (savedMedical != null);
+		if (result) {
+			catalog.changed(savedMedical.getCode());
+		}
 
 		return result;
 	}
@@ -297,6 +356,7 @@ public class MedicalsIoOperations
 		
 		
 		repository.delete(medical);
+		catalog.changed(medical.getCode());
 
 		return result;
 	}
@@ -311,6 +371,8 @@ public class MedicalsIoOperations
 	private List<Medical> getMedicals(boolean nameSorted) throws OHServiceException {
 		if (nameSorted) {
 			return getMedicals(null);
+		} else if (catalog.isEnabled()) {
+			return catalog.getMedicalsSortedBySmartCode();
 		} else {
 			return repository.findAllOrderBySmartCodeAndDescription();
 		}
@@ -27,6 +27,7 @@ import java.util.List;
 import org.isf.generaldata.MessageBundle;
 import org.isf.medicalstock.model.Movement;
 import org.isf.medicalstock.service.MedicalStockIoOperations;
+import org.isf.utils.db.KeysetCursor;
 import org.isf.utils.exception.OHDataValidationException;
 import org.isf.utils.exception.OHServiceException;
 import org.isf.utils.exception.model.OHExceptionMessage;
@@ -64,6 +65,23 @@ public class MovBrowserManager {
 		return ioOperations.getMovements(wardId, dateFrom, dateTo);
 	}
 
+	/**
+	 * Retrieves a page of the movements associated to the specified {@link Ward}.
+	 *
+	 * @param wardId the ward id.
+	 * @param dateFrom the lower bound for the movement date range.
+	 * @param dateTo the upper bound for the movement date range.
+	 * @param after the cursor of the last movement of the previous page (see {@link MedicalStockIoOperations#getCursor(Movement)}),
+	 * <code>null</code> for the first page.
+	 * @param pageSize the maximum number of movements to retrieve.
+	 * @return the retrieved movements.
+	 * @throws OHServiceException
+	 */
+	public List<Movement> getMovements(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo,
+			KeysetCursor after, int pageSize) throws OHServiceException {
+		return ioOperations.getMovements(wardId, dateFrom, dateTo, after, pageSize);
+	}
+
 	/**
 	 * Retrieves all the movement associated to the specified reference number.
 	 *
@@ -115,6 +133,39 @@ public class MovBrowserManager {
 		return ioOperations.getMovements(medicalCode, medicalType, wardId, movType, movFrom, movTo, lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo);
 	}
 
+	/**
+	 * Retrieves a page of the {@link Movement}s with the specified criteria.
+	 *
+	 * @param medicalCode the medical code.
+	 * @param medicalType the medical type.
+	 * @param wardId the ward type.
+	 * @param movType the movement type.
+	 * @param movFrom the lower bound for the movement date range.
+	 * @param movTo the upper bound for the movement date range.
+	 * @param lotPrepFrom the lower bound for the lot preparation date range.
+	 * @param lotPrepTo the upper bound for the lot preparation date range.
+	 * @param lotDueFrom the lower bound for the lot due date range.
+	 * @param lotDueTo the lower bound for the lot due date range.
+	 * @param after the cursor of the last movement of the previous page (see {@link MedicalStockIoOperations#getCursor(Movement)}),
+	 * <code>null</code> for the first page.
+	 * @param pageSize the maximum number of movements to retrieve.
+	 * @return the retrieved movements.
+	 * @throws OHServiceException
+	 */
+	public List<Movement> getMovements(Integer medicalCode, String medicalType,
+			String wardId, String movType, GregorianCalendar movFrom, GregorianCalendar movTo,
+			GregorianCalendar lotPrepFrom, GregorianCalendar lotPrepTo,
+			GregorianCalendar lotDueFrom, GregorianCalendar lotDueTo,
+			KeysetCursor after, int pageSize) throws OHServiceException {
+
+		check(movFrom, movTo, "angal.medicalstock.chooseavalidmovementdate.msg");
+		check(lotPrepFrom, lotPrepTo, "angal.medicalstock.chooseavalidmovementdate.msg");
+		check(lotDueFrom, lotDueTo, "angal.medicalstock.chooseavalidduedate.msg");
+
+		return ioOperations.getMovements(medicalCode, medicalType, wardId, movType, movFrom, movTo, lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo,
+				after, pageSize);
+	}
+
 	private void check(GregorianCalendar from, GregorianCalendar to, String errMsgKey) throws OHDataValidationException {
 		if (from == null || to == null) {
 			if (!(from == null && to == null)) {
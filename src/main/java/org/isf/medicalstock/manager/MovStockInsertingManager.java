@@ -24,7 +24,11 @@ package org.isf.medicalstock.manager;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.isf.generaldata.GeneralData;
 import org.isf.generaldata.MessageBundle;
@@ -60,12 +64,36 @@ public class MovStockInsertingManager {
 	 * @throws OHServiceException
 	 */
 	protected void validateMovement(Movement movement, boolean checkReference) throws OHServiceException {
+		Set<String> usedRefNos = new HashSet<>();
+		String refNo = movement.getRefNo();
+		if (checkReference && refNo != null && !refNo.isEmpty() && refNoExists(refNo)) {
+			usedRefNos.add(refNo);
+		}
+		Map<String, List<Integer>> lotMedicals = new HashMap<>();
+		if (!isAutomaticLot_Out() && movement.getLot() != null) {
+			String lotCode = movement.getLot().getCode();
+			lotMedicals.put(lotCode, ioOperations.getMedicalsFromLot(lotCode));
+		}
+		validateMovement(movement, checkReference, getLastMovementDate(), usedRefNos, lotMedicals);
+	}
+
+	/**
+	 * Verify if the object is valid for CRUD against already retrieved data and return a list of errors, if any
+	 *
+	 * @param movement - the movement to validate
+	 * @param checkReference - if {@code true} the reference number must be set and not in {@code usedRefNos}
+	 * @param lastDate - the date of the last stored movement, may be {@code null}
+	 * @param usedRefNos - the reference numbers already used
+	 * @param lotMedicals - the ids of the medicals referencing each lot, lots not referenced may be missing
+	 * @throws OHServiceException
+	 */
+	protected void validateMovement(Movement movement, boolean checkReference, GregorianCalendar lastDate, Set<String> usedRefNos,
+			Map<String, List<Integer>> lotMedicals) throws OHServiceException {
 		List<OHExceptionMessage> errors = new ArrayList<>();
 		
 		// Check the Date
 		GregorianCalendar today = new GregorianCalendar();
 		GregorianCalendar movDate = movement.getDate();
-		GregorianCalendar lastDate = getLastMovementDate();
 		if (movDate.after(today)) {
 			errors.add(new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
 					MessageBundle.getMessage("angal.medicalstock.multiplecharging.adateinthefutureisnotallowed.msg"),
@@ -80,7 +108,7 @@ public class MovStockInsertingManager {
 		// Check the RefNo
 		if (checkReference) {
 			String refNo = movement.getRefNo();
-			errors.addAll(checkReferenceNumber(refNo));
+			errors.addAll(checkReferenceNumber(refNo, usedRefNos.contains(refNo)));
 		}
 
 		// Check Movement Type
@@ -135,7 +163,10 @@ public class MovStockInsertingManager {
 						OHSeverityLevel.ERROR));
 			}
 
-			List<Integer> medicalIds = ioOperations.getMedicalsFromLot(lot.getCode());
+			List<Integer> medicalIds = lotMedicals.get(lot.getCode());
+			if (medicalIds == null) {
+				medicalIds = new ArrayList<>();
+			}
 			if (movement.getMedical() != null && !(medicalIds.isEmpty() || (medicalIds.size() == 1 && medicalIds.get(0).intValue() == movement
 					.getMedical().getCode().intValue()))) {
 				errors.add(new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
@@ -203,13 +234,18 @@ public class MovStockInsertingManager {
 	 * @throws OHServiceException
 	 */
 	protected List<OHExceptionMessage> checkReferenceNumber(String referenceNumber) throws OHServiceException {
+		boolean used = referenceNumber != null && !referenceNumber.isEmpty() && refNoExists(referenceNumber);
+		return checkReferenceNumber(referenceNumber, used);
+	}
+
+	private List<OHExceptionMessage> checkReferenceNumber(String referenceNumber, boolean used) {
 		List<OHExceptionMessage> errors = new ArrayList<>();
 		if (referenceNumber == null || referenceNumber.isEmpty()) {
 			errors.add(new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
 					MessageBundle.getMessage("angal.medicalstock.multiplecharging.pleaseinsertareferencenumber.msg"),
 					OHSeverityLevel.ERROR));
 		} else {
-			if (refNoExists(referenceNumber)) {
+			if (used) {
 				errors.add(new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
 						MessageBundle.getMessage("angal.medicalstock.multiplecharging.theinsertedreferencenumberalreadyexists.msg"),
 						OHSeverityLevel.ERROR));
@@ -301,7 +337,9 @@ public class MovStockInsertingManager {
 	//	}
 
 	/**
-	 * Insert a list of charging {@link Movement}s and related {@link Lot}s
+	 * Insert a list of charging {@link Movement}s and related {@link Lot}s.
+	 * All the movements are validated first and then stored as a single batch,
+	 * if any of them is not valid nothing is stored.
 	 *
 	 * @param movements - the list of {@link Movement}s
 	 * @param referenceNumber - the reference number to be set for all movements
@@ -321,18 +359,65 @@ public class MovStockInsertingManager {
 				throw new OHDataValidationException(errors);
 			}
 		}
+		// the data every row is checked against is retrieved once and then kept up to date
+		// with the rows already checked, as if they were stored one after the other
+		if (movements.isEmpty()) {
+			return ok;
+		}
+		GregorianCalendar lastDate;
+		Set<String> usedRefNos;
+		Map<String, List<Integer>> lotMedicals;
+		try {
+			Set<String> refNos = new HashSet<>();
+			Set<String> lotCodes = new HashSet<>();
+			for (Movement mov : movements) {
+				if (checkReference && mov.getRefNo() != null) {
+					refNos.add(mov.getRefNo());
+				}
+				if (!isAutomaticLot_Out() && mov.getLot() != null) {
+					lotCodes.add(mov.getLot().getCode());
+				}
+			}
+			lastDate = getLastMovementDate();
+			usedRefNos = ioOperations.getUsedRefNos(refNos);
+			lotMedicals = ioOperations.getMedicalsFromLots(lotCodes);
+		} catch (OHServiceException e) {
+			throw chargingError(movements.get(0), e);
+		}
+
 		for (Movement mov : movements) {
 			try {
-				prepareChargingMovement(mov, checkReference);
+				validateMovement(mov, checkReference, lastDate, usedRefNos, lotMedicals);
 			} catch (OHServiceException e) {
-				List<OHExceptionMessage> errors = e.getMessages();
-				errors.add(new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
-						mov.getMedical() != null ? mov.getMedical().getDescription() : MessageBundle.getMessage("angal.medicalstock.nodescription.txt"),
-						OHSeverityLevel.ERROR));
-				throw new OHDataValidationException(errors);
+				throw chargingError(mov, e);
+			}
+			if (lastDate == null || mov.getDate().after(lastDate)) {
+				lastDate = mov.getDate();
+			}
+			if (checkReference) {
+				usedRefNos.add(mov.getRefNo());
+			}
+			Lot lot = mov.getLot();
+			if (!isAutomaticLot_In() && lot != null && !lot.getCode().isEmpty()) {
+				List<Integer> medicalIds = lotMedicals.get(lot.getCode());
+				if (medicalIds == null) {
+					medicalIds = new ArrayList<>();
+					lotMedicals.put(lot.getCode(), medicalIds);
+				}
+				if (!medicalIds.contains(mov.getMedical().getCode())) {
+					medicalIds.add(mov.getMedical().getCode());
+				}
 			}
 		}
-		return ok;
+		return ok && ioOperations.newMovements(movements);
+	}
+
+	private OHDataValidationException chargingError(Movement movement, OHServiceException e) {
+		List<OHExceptionMessage> errors = e.getMessages();
+		errors.add(new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
+				movement.getMedical() != null ? movement.getMedical().getDescription() : MessageBundle.getMessage("angal.medicalstock.nodescription.txt"),
+				OHSeverityLevel.ERROR));
+		return new OHDataValidationException(errors);
 	}
 
 	/**
@@ -402,6 +487,18 @@ public class MovStockInsertingManager {
 		return ok;
 	}
 
+	/**
+	 * Computes how the specified discharging {@link Movement}s would be split over the {@link Lot}s,
+	 * expiring first, when the lots are chosen automatically. Nothing is stored.
+	 *
+	 * @param movements - the list of {@link Movement}s to preview
+	 * @return the split movements, each one with its lot and quantity
+	 * @throws OHServiceException
+	 */
+	public List<Movement> getAutomaticDischargingPlan(List<Movement> movements) throws OHServiceException {
+		return ioOperations.getAutomaticDischargingPlan(movements);
+	}
+
 	/**
 	 * Prepare the insert of the specified {@link Movement}
 	 *
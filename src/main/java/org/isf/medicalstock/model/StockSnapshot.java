@@ -0,0 +1,135 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.model;
+
+import java.util.GregorianCalendar;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.validation.constraints.NotNull;
+
+/**
+ * ------------------------------------------
+ * StockSnapshot - balance of a medical (by lot and by ward) at a period boundary
+ * -----------------------------------------
+ * The balance takes into account all the movements dated strictly before
+ * the snapshot date. A <code>null</code> ward means the main store; a <code>null</code>
+ * lot means movements registered without lot.
+ * ------------------------------------------
+ */
+@Entity
+@Table(name="MEDICALDSRSTOCKSNAPSHOT", uniqueConstraints =
+		@UniqueConstraint(columnNames = { "MSS_DATE", "MSS_MDSR_ID", "MSS_LT_ID_A", "MSS_WRD_ID_A" }))
+public class StockSnapshot
+{
+	@Id
+	@GeneratedValue(strategy=GenerationType.AUTO)
+	@Column(name="MSS_ID")
+	private int code;
+
+	@NotNull
+	@Column(name="MSS_DATE")
+	private GregorianCalendar date;
+
+	@NotNull
+	@Column(name="MSS_MDSR_ID")
+	private Integer medicalCode;
+
+	@Column(name="MSS_LT_ID_A")
+	private String lotCode;
+
+	@Column(name="MSS_WRD_ID_A")
+	private String wardCode;
+
+	@NotNull
+	@Column(name="MSS_QTY")
+	private double quantity;
+
+	public StockSnapshot() {
+	}
+
+	public StockSnapshot(GregorianCalendar aDate, Integer aMedicalCode, String aLotCode, String aWardCode, double aQuantity) {
+		date = aDate;
+		medicalCode = aMedicalCode;
+		lotCode = aLotCode;
+		wardCode = aWardCode;
+		quantity = aQuantity;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	public void setCode(int code) {
+		this.code = code;
+	}
+
+	public GregorianCalendar getDate() {
+		return date;
+	}
+
+	public void setDate(GregorianCalendar date) {
+		this.date = date;
+	}
+
+	public Integer getMedicalCode() {
+		return medicalCode;
+	}
+
+	public void setMedicalCode(Integer medicalCode) {
+		this.medicalCode = medicalCode;
+	}
+
+	public String getLotCode() {
+		return lotCode;
+	}
+
+	public void setLotCode(String lotCode) {
+		this.lotCode = lotCode;
+	}
+
+	public String getWardCode() {
+		return wardCode;
+	}
+
+	public void setWardCode(String wardCode) {
+		this.wardCode = wardCode;
+	}
+
+	public double getQuantity() {
+		return quantity;
+	}
+
+	public void setQuantity(double quantity) {
+		this.quantity = quantity;
+	}
+
+	@Override
+	public String toString() {
+		return "StockSnapshot [medical=" + medicalCode + ", lot=" + lotCode + ", ward=" + wardCode + ", quantity=" + quantity + "]";
+	}
+}
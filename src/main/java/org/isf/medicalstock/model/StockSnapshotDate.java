@@ -0,0 +1,62 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.model;
+
+import java.util.GregorianCalendar;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * ------------------------------------------
+ * StockSnapshotDate - date of a stored {@link StockSnapshot}
+ * -----------------------------------------
+ * One row for every snapshot, also when all its balances are zero. Its primary key
+ * lets only one client create the snapshot of a date: the balances are stored
+ * in the same transaction that inserts the date.
+ * ------------------------------------------
+ */
+@Entity
+@Table(name="MEDICALDSRSTOCKSNAPSHOTDATE")
+public class StockSnapshotDate
+{
+	@Id
+	@Column(name="MSSD_DATE")
+	private GregorianCalendar date;
+
+	public StockSnapshotDate() {
+	}
+
+	public StockSnapshotDate(GregorianCalendar aDate) {
+		date = aDate;
+	}
+
+	public GregorianCalendar getDate() {
+		return date;
+	}
+
+	public void setDate(GregorianCalendar date) {
+		this.date = date;
+	}
+}
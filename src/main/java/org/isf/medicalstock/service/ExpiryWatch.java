@@ -0,0 +1,304 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.isf.generaldata.GeneralData;
+import org.isf.medicalstock.model.Lot;
+import org.isf.medicalstock.model.Movement;
+import org.isf.utils.db.AfterCommitUpdates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Keeps in memory the {@link Lot}s with a positive main store quantity, ordered by due date,
+ * so that the lots expiring before a date are found without scanning every medical.
+ * <p>
+ * When the watch is enabled (<code>EXPIRYWATCH</code> in settings.properties) the lots are loaded at the first
+ * query, reloaded every <code>EXPIRYWATCHLOOP</code> seconds by {@link ExpiryWatchJob} to pick up the changes
+ * made by other clients, and updated by {@link MedicalStockIoOperations} for every stored {@link Movement}
+ * once its transaction has committed (see {@link AfterCommitUpdates}). When disabled every query reads the lots
+ * from the database.
+ */
+@Component
+public class ExpiryWatch {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ExpiryWatch.class);
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	/**
+	 * How long a load waits for the transactions being committed, in milliseconds
+	 */
+	private static final long LOAD_TIMEOUT = 5000;
+
+	private static final Comparator<ExpiringLot> BY_DUE_DATE = new Comparator<ExpiringLot>() {
+
+		@Override
+		public int compare(ExpiringLot lot1, ExpiringLot lot2) {
+			int result = Long.compare(lot1.dueDate, lot2.dueDate);
+			return result != 0 ? result : lot1.lotCode.compareTo(lot2.lotCode);
+		}
+	};
+
+	@Autowired
+	private LotIoOperationRepository lotRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private boolean enabled;
+
+	private Lots watched;
+
+	private long warmUpMillis;
+
+	private final AfterCommitUpdates<Map<String, ExpiringLot>> updates = new AfterCommitUpdates<>(LinkedHashMap::new, this::_apply);
+
+	/**
+	 * A lot in the watch: a copy is returned to callers, so it does not change afterwards.
+	 */
+	public static class ExpiringLot {
+
+		private final String lotCode;
+		private final Integer medicalCode;
+		private final long dueDate;
+		private int quantity;
+
+		ExpiringLot(String lotCode, Integer medicalCode, long dueDate, int quantity) {
+			this.lotCode = lotCode;
+			this.medicalCode = medicalCode;
+			this.dueDate = dueDate;
+			this.quantity = quantity;
+		}
+
+		public String getLotCode() {
+			return lotCode;
+		}
+
+		public Integer getMedicalCode() {
+			return medicalCode;
+		}
+
+		public GregorianCalendar getDueDate() {
+			GregorianCalendar date = new GregorianCalendar();
+			date.setTimeInMillis(dueDate);
+			return date;
+		}
+
+		public int getQuantity() {
+			return quantity;
+		}
+
+		@Override
+		public String toString() {
+			return lotCode + " (" + quantity + ")";
+		}
+	}
+
+	public ExpiryWatch() {
+		GeneralData.getGeneralData();
+		this.enabled = GeneralData.EXPIRYWATCH;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			watched = null;
+		}
+	}
+
+	/**
+	 * Reloads all the lots with a positive main store quantity.
+	 * @return <code>false</code> if the transactions being committed did not complete in time and the watch has not been reloaded.
+	 */
+	public boolean reload() {
+		boolean reloaded = updates.reload(() -> {
+			long start = System.currentTimeMillis();
+			Lots loaded = _load();
+			synchronized (this) {
+				watched = loaded;
+				warmUpMillis = System.currentTimeMillis() - start;
+				LOGGER.info("Expiry watch loaded {} lots in {} ms", loaded.queue.size(), warmUpMillis);
+			}
+		}, LOAD_TIMEOUT);
+		if (!reloaded) {
+			LOGGER.warn("Expiry watch not loaded: transactions still committing after {} ms", LOAD_TIMEOUT);
+		}
+		return reloaded;
+	}
+
+	/**
+	 * Retrieves the lots with a positive main store quantity expiring before the specified date
+	 * (already expired lots included), expiring first on top.
+	 * @param date the limit date (excluded).
+	 * @return the expiring lots.
+	 */
+	public List<ExpiringLot> getExpiringBefore(GregorianCalendar date) {
+		if (enabled && !isLoaded()) {
+			reload();
+		}
+		synchronized (this) {
+			if (watched != null) {
+				return _getExpiringBefore(watched, date);
+			}
+		}
+		// when disabled, or not loaded in time, the lots are read at once and not kept
+		return _getExpiringBefore(_load(), date);
+	}
+
+	/**
+	 * Retrieves the lots with a positive main store quantity expiring within the specified number of days
+	 * from now (already expired lots included), expiring first on top.
+	 * @param days the number of days.
+	 * @return the expiring lots.
+	 */
+	public List<ExpiringLot> getExpiringWithin(int days) {
+		GregorianCalendar date = new GregorianCalendar();
+		date.setTimeInMillis(date.getTimeInMillis() + days * DAY_MILLIS);
+		return getExpiringBefore(date);
+	}
+
+	/**
+	 * @return <code>true</code> if the lots are kept in memory.
+	 */
+	public synchronized boolean isLoaded() {
+		return watched != null;
+	}
+
+	/**
+	 * @return the time spent by the last load, in milliseconds.
+	 */
+	public synchronized long getWarmUpMillis() {
+		return warmUpMillis;
+	}
+
+	/**
+	 * @return the number of lots with a positive main store quantity, <code>0</code> if not loaded.
+	 */
+	public synchronized int size() {
+		return watched == null ? 0 : watched.queue.size();
+	}
+
+	/**
+	 * Records the change of the quantity of the lot of a stored movement, applied to the watch
+	 * when the current transaction commits.
+	 * @param movement the stored movement.
+	 */
+	public void movementStored(Movement movement) {
+		Lot lot = movement.getLot();
+		if (!enabled || lot == null || lot.getDueDate() == null) {
+			return;
+		}
+		int quantity = movement.getType().getType().contains("+") ? movement.getQuantity() : -movement.getQuantity();
+		Map<String, ExpiringLot> changes = updates.getChanges();
+		boolean now = changes == null;
+		if (now) {
+			changes = new LinkedHashMap<String, ExpiringLot>();
+		}
+		ExpiringLot change = changes.get(lot.getCode());
+		if (change == null) {
+			change = new ExpiringLot(lot.getCode(), movement.getMedical().getCode(), lot.getDueDate().getTimeInMillis(), 0);
+			changes.put(lot.getCode(), change);
+		}
+		change.quantity += quantity;
+		if (now) {
+			updates.applyNow(changes);
+		}
+	}
+
+	private synchronized void _apply(Map<String, ExpiringLot> changes) {
+		if (watched == null) {
+			return;
+		}
+		for (ExpiringLot change : changes.values()) {
+			ExpiringLot lot = watched.lots.get(change.lotCode);
+			if (lot == null) {
+				lot = new ExpiringLot(change.lotCode, change.medicalCode, change.dueDate, 0);
+				watched.lots.put(lot.lotCode, lot);
+			}
+			watched.queue.remove(lot);
+			lot.quantity += change.quantity;
+			if (lot.quantity > 0) {
+				watched.queue.add(lot);
+			} else {
+				watched.lots.remove(lot.lotCode);
+			}
+		}
+	}
+
+	private static List<ExpiringLot> _getExpiringBefore(Lots lots, GregorianCalendar date) {
+		List<ExpiringLot> result = new ArrayList<ExpiringLot>();
+		for (ExpiringLot lot : lots.queue) {
+			if (lot.dueDate >= date.getTimeInMillis()) {
+				break;
+			}
+			result.add(new ExpiringLot(lot.lotCode, lot.medicalCode, lot.dueDate, lot.quantity));
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the lots in a new transaction, that does not see the changes of the current one.
+	 */
+	private Lots _load() {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		transaction.setReadOnly(true);
+		return transaction.execute(status -> {
+			Lots loaded = new Lots();
+			for (Object[] row : lotRepository.findAllWithPositiveMainStoreQuantity()) {
+				ExpiringLot lot = new ExpiringLot((String) row[0], (Integer) row[1],
+						((GregorianCalendar) row[2]).getTimeInMillis(), ((Number) row[3]).intValue());
+				loaded.lots.put(lot.lotCode, lot);
+				loaded.queue.add(lot);
+			}
+			return loaded;
+		});
+	}
+
+	/**
+	 * The watched lots, by code and by due date.
+	 */
+	private static class Lots {
+
+		private final TreeSet<ExpiringLot> queue = new TreeSet<ExpiringLot>(BY_DUE_DATE);
+		private final Map<String, ExpiringLot> lots = new HashMap<String, ExpiringLot>();
+	}
+}
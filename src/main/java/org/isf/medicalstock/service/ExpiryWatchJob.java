@@ -0,0 +1,77 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import org.isf.generaldata.GeneralData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background job that reloads the {@link ExpiryWatch} every {@link GeneralData}<code>.EXPIRYWATCHLOOP</code> seconds,
+ * to pick up the lots moved by other clients.
+ * It is started with the application by {@link ExpiryWatchJobStarter} and stops when interrupted.
+ */
+public class ExpiryWatchJob implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ExpiryWatchJob.class);
+
+	private final ExpiryWatch watch;
+
+	private boolean running = true;
+	private int delay = 600;
+
+	public ExpiryWatchJob(ExpiryWatch watch) {
+		LOGGER.info("Expiry Watch Job started...");
+		this.watch = watch;
+		GeneralData.getGeneralData();
+		delay = GeneralData.EXPIRYWATCHLOOP;
+		LOGGER.info("Expiry Watch Job loop set to {} seconds.", delay);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			LOGGER.debug("Expiry Watch Job running...");
+			if (watch.isEnabled()) {
+				try {
+					watch.reload();
+				} catch (RuntimeException e) {
+					LOGGER.error("Failed reloading the expiry watch: {}", e.getMessage());
+				}
+			}
+			try {
+				Thread.sleep(delay * 1000L);
+			} catch (InterruptedException e) {
+				LOGGER.info("Expiry Watch Job stopped");
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * @param running
+	 *            the running to set
+	 */
+	public void setRunning(boolean running) {
+		this.running = running;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.isf.medicalstock.model.Lot;
+import org.isf.medicalstock.model.Movement;
+
+/**
+ * Splits discharging {@link Movement}s over the {@link Lot}s of their medical, first expiring first out,
+ * working only in memory on a snapshot of the lots main store quantities.
+ * Every allocation consumes the snapshot, so requests allocated one after the other never take the same stock twice.
+ */
+public class FefoAllocator {
+
+	private final Map<Integer, List<LotBalance>> balances = new HashMap<>();
+
+	/**
+	 * @param lots the lots with their main store quantity, expiring first on top.
+	 */
+	public FefoAllocator(List<Lot> lots) {
+		for (Lot lot : lots) {
+			Integer medicalCode = lot.getMedical().getCode();
+			List<LotBalance> medicalBalances = balances.get(medicalCode);
+			if (medicalBalances == null) {
+				medicalBalances = new ArrayList<>();
+				balances.put(medicalCode, medicalBalances);
+			}
+			medicalBalances.add(new LotBalance(lot, lot.getMainStoreQuantity()));
+		}
+	}
+
+	/**
+	 * Splits the specified movement over the lots with some quantity left, expiring first on top.
+	 * If the lots are not enough the split movements cover only the available quantity.
+	 * @param movement the movement to split, it is not modified.
+	 * @return the split movements, one for each lot used, empty if the medical has no quantity left.
+	 */
+	public List<Movement> allocate(Movement movement) {
+		List<Movement> splitMovements = new ArrayList<>();
+		List<LotBalance> medicalBalances = balances.get(movement.getMedical().getCode());
+		if (medicalBalances == null) {
+			return splitMovements;
+		}
+		int qty = movement.getQuantity();
+		for (LotBalance balance : medicalBalances) {
+			if (qty <= 0) {
+				break;
+			}
+			if (balance.quantity <= 0) {
+				continue;
+			}
+			int splitQty = Math.min(qty, balance.quantity);
+			splitMovements.add(new Movement(movement.getMedical(), movement.getType(), movement.getWard(),
+					balance.lot,
+					movement.getDate(),
+					splitQty,
+					null,
+					movement.getRefNo()));
+			balance.quantity -= splitQty;
+			qty -= splitQty;
+		}
+		return splitMovements;
+	}
+
+	/**
+	 * Returns the quantity still available for the specified medical.
+	 * @param medicalCode the medical code.
+	 * @return the quantity left in all the lots of the medical.
+	 */
+	public int getAvailableQuantity(Integer medicalCode) {
+		int quantity = 0;
+		List<LotBalance> medicalBalances = balances.get(medicalCode);
+		if (medicalBalances != null) {
+			for (LotBalance balance : medicalBalances) {
+				quantity += balance.quantity;
+			}
+		}
+		return quantity;
+	}
+
+	private static class LotBalance {
+
+		private final Lot lot;
+		private int quantity;
+
+		LotBalance(Lot lot, int quantity) {
+			this.lot = lot;
+			this.quantity = quantity;
+		}
+	}
+}
@@ -21,6 +21,7 @@
  */
 package org.isf.medicalstock.service;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.isf.medicalstock.model.Lot;
@@ -31,11 +32,45 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public interface LotIoOperationRepository extends JpaRepository<Lot, String> {
+public interface LotIoOperationRepository extends JpaRepository<Lot, String>, LotIoOperationRepositoryCustom {
 
 	@Query("select l from Lot l where l.medical.code = :medical order by l.dueDate")
 	List<Lot> findByMedicalOrderByDueDate(@Param("medical") int medicalCode);
 	
+	/**
+	 * Retrieves the lots of a medical, expiring first on top, together with their main store and wards quantities.
+	 * @param medicalCode the medical code.
+	 * @return rows made of the {@link Lot}, its main store quantity and its wards total quantity.
+	 */
+	@Query("select l, "
+			+ "(select coalesce(sum(case when m.type.type like '+%' then m.quantity else -m.quantity end), 0) from Movement m where m.lot = l), "
+			+ "(select coalesce(sum(w.in_quantity - w.out_quantity), 0) from MedicalWard w where w.id.lot = l) "
+			+ "from Lot l join fetch l.medical med left join fetch med.type "
+			+ "where med.code = :medical order by l.dueDate")
+	List<Object[]> findByMedicalWithQuantitiesOrderByDueDate(@Param("medical") int medicalCode);
+
+	/**
+	 * Retrieves the lots of the specified medicals, expiring first on top, together with their main store and wards quantities.
+	 * @param medicalCodes the medical codes.
+	 * @return rows made of the {@link Lot}, its main store quantity and its wards total quantity.
+	 */
+	@Query("select l, "
+			+ "(select coalesce(sum(case when m.type.type like '+%' then m.quantity else -m.quantity end), 0) from Movement m where m.lot = l), "
+			+ "(select coalesce(sum(w.in_quantity - w.out_quantity), 0) from MedicalWard w where w.id.lot = l) "
+			+ "from Lot l join fetch l.medical med left join fetch med.type "
+			+ "where med.code in :medicals order by l.dueDate")
+	List<Object[]> findByMedicalInWithQuantitiesOrderByDueDate(@Param("medicals") Collection<Integer> medicalCodes);
+
+	/**
+	 * Retrieves, with a single grouped query, the lots with a positive main store quantity.
+	 * @return rows made of the lot code, the medical code, the due date and the main store quantity.
+	 */
+	@Query("select l.code, l.medical.code, l.dueDate, sum(case when m.type.type like '+%' then m.quantity else -m.quantity end) "
+			+ "from Movement m join m.lot l "
+			+ "group by l.code, l.medical.code, l.dueDate "
+			+ "having sum(case when m.type.type like '+%' then m.quantity else -m.quantity end) > 0")
+	List<Object[]> findAllWithPositiveMainStoreQuantity();
+
 	@Query("select coalesce(sum(case when m.type.type like '+%' then m.quantity else -m.quantity end), 0) from Movement m where m.lot = :lot")
 	Integer getMainStoreQuantity(@Param("lot") Lot lot);
 	
@@ -0,0 +1,111 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.isf.medicalstock.model.Lot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.AuditorAware;
+import org.springframework.transaction.annotation.Transactional;
+
+@Transactional
+public class LotIoOperationRepositoryImpl implements LotIoOperationRepositoryCustom {
+
+	private static final int BATCH_SIZE = 100;
+	private static final String INSERT_LOT = "INSERT INTO MEDICALDSRLOT (LT_ID_A, LT_MDSR_ID, LT_PREP_DATE, LT_DUE_DATE, LT_COST, "
+			+ "LT_CREATED_BY, LT_CREATED_DATE, LT_LAST_MODIFIED_BY, LT_LAST_MODIFIED_DATE, LT_ACTIVE) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Autowired
+	private AuditorAware<String> auditorAware;
+
+	@Override
+	public int insertLots(final List<Lot> lots) {
+		if (lots.isEmpty()) {
+			return 0;
+		}
+		entityManager.flush();
+		final String user = auditorAware.getCurrentAuditor();
+		final Date now = new Date();
+		entityManager.unwrap(Session.class).doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(INSERT_LOT);
+				try {
+					int pending = 0;
+					for (Lot lot : lots) {
+						lot.setCreatedBy(user);
+						lot.setCreatedDate(now);
+						lot.setLastModifiedBy(user);
+						lot.setLastModifiedDate(now);
+						statement.setString(1, lot.getCode());
+						statement.setInt(2, lot.getMedical().getCode());
+						_setCalendar(statement, 3, lot.getPreparationDate());
+						_setCalendar(statement, 4, lot.getDueDate());
+						statement.setBigDecimal(5, lot.getCost());
+						statement.setString(6, user);
+						statement.setTimestamp(7, new Timestamp(now.getTime()));
+						statement.setString(8, user);
+						statement.setTimestamp(9, new Timestamp(now.getTime()));
+						statement.setInt(10, lot.getActive());
+						statement.addBatch();
+						if (++pending == BATCH_SIZE) {
+							statement.executeBatch();
+							pending = 0;
+						}
+					}
+					if (pending > 0) {
+						statement.executeBatch();
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		return lots.size();
+	}
+
+	private void _setCalendar(PreparedStatement statement, int index, GregorianCalendar calendar) throws SQLException {
+		if (calendar != null) {
+			statement.setTimestamp(index, new Timestamp(calendar.getTimeInMillis()));
+		} else {
+			statement.setNull(index, Types.TIMESTAMP);
+		}
+	}
+}
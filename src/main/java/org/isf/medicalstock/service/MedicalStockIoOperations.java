@@ -22,19 +22,30 @@
 package org.isf.medicalstock.service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Random;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.isf.generaldata.GeneralData;
 import org.isf.medicals.model.Medical;
-import org.isf.medicals.service.MedicalsIoOperationRepository;
+import org.isf.medicals.service.MedicalQuantityCoalescer;
 import org.isf.medicalstock.model.Lot;
 import org.isf.medicalstock.model.Movement;
 import org.isf.medicalstockward.model.MedicalWard;
 import org.isf.medicalstockward.service.MedicalStockWardIoOperationRepository;
+import org.isf.medicalstockward.service.WardStockLedger;
+import org.isf.utils.db.KeysetCursor;
 import org.isf.utils.db.TranslateOHServiceException;
+import org.isf.utils.db.UniqueIdGenerator;
 import org.isf.utils.exception.OHServiceException;
 import org.isf.ward.model.Ward;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -60,15 +71,35 @@ public class MedicalStockIoOperations {
 	private LotIoOperationRepository lotRepository;
 	
 	@Autowired
-	private MedicalsIoOperationRepository medicalRepository;
+	private MedicalStockWardIoOperationRepository medicalStockRepository;
 
 	@Autowired
-	private MedicalStockWardIoOperationRepository medicalStockRepository;
+	private WardStockLedger wardStockLedger;
+
+	@Autowired
+	private MedicalQuantityCoalescer quantityCoalescer;
+
+	@Autowired
+	private StockSnapshotIoOperations stockSnapshotIoOperations;
+
+	@Autowired
+	private ExpiryWatch expiryWatch;
 
 	public enum MovementOrder {
 		DATE, WARD, PHARMACEUTICAL_TYPE, TYPE
 	}
 
+	/**
+	 * Default JDBC fetch size used when streaming {@link Movement}s; on MySQL it needs <code>useCursorFetch=true</code>
+	 * in the jdbc url, otherwise the rows are streamed one at a time.
+	 */
+	public static final int STREAM_FETCH_SIZE = 500;
+
+	/**
+	 * Default number of streamed {@link Movement}s after which they are detached from the persistence context.
+	 */
+	public static final int STREAM_CLEAR_INTERVAL = 500;
+
 	/**
 	 * Checks if we are in automatic lot mode.
 	 * @return <code>true</code> if automatic lot mode, <code>false</code> otherwise.
@@ -90,6 +121,30 @@ public class MedicalStockIoOperations {
 		
 		return medicalIds;
 	}
+
+	/**
+	 * Retrieves, with a single query, all medicals referencing each of the specified lot codes.
+	 * @param lotCodes the lot codes.
+	 * @return the ids of the referencing medicals by lot code, lots not referenced by any movement are not included.
+	 * @throws OHServiceException if an error occurs retrieving the referencing medicals.
+	 */
+	public Map<String, List<Integer>> getMedicalsFromLots(
+			Collection<String> lotCodes) throws OHServiceException
+	{
+		Map<String, List<Integer>> medicalIds = new HashMap<>();
+		if (lotCodes.isEmpty()) {
+			return medicalIds;
+		}
+		for (Object[] row : movRepository.findAllByLotIn(lotCodes)) {
+			List<Integer> ids = medicalIds.get(row[0]);
+			if (ids == null) {
+				ids = new ArrayList<>();
+				medicalIds.put((String) row[0], ids);
+			}
+			ids.add((Integer) row[1]);
+		}
+		return medicalIds;
+	}
 	
 	/**
 	 * Store the specified {@link Movement} by using automatically the most old lots
@@ -99,39 +154,56 @@ public class MedicalStockIoOperations {
 	 * @throws OHServiceException
 	 */
 	public boolean newAutomaticDischargingMovement(Movement movement) throws OHServiceException {
-		boolean result = false;
+		return newAutomaticDischargingMovements(Collections.singletonList(movement));
+	}
 
-		List<Lot> lots = getLotsByMedical(movement.getMedical());
-
-		int qty = movement.getQuantity(); // movement initial quantity
-		for (Lot lot : lots) {
-			Movement splitMovement = new Movement(movement.getMedical(), movement.getType(), movement.getWard(),
-					null, // lot to be set
-					movement.getDate(),
-					qty, // quantity can remain the same or changed if greater than lot quantity
-					null,
-					movement.getRefNo());
-			int qtLot = lot.getMainStoreQuantity();
-			if (qtLot < qty) {
-				splitMovement.setQuantity(qtLot);
-				result = storeMovement(splitMovement, lot.getCode());
-				if (result) {
-					//medical stock movement inserted updates quantity of the medical
-					result = updateStockQuantity(splitMovement);
-				}
-				qty = qty - qtLot;
-			} else {
-				splitMovement.setQuantity(qty);
-				result = storeMovement(splitMovement, lot.getCode());
-				if (result) {
-					//medical stock movement inserted updates quantity of the medical
-					result = updateStockQuantity(splitMovement);
-				}
-				break;
+	/**
+	 * Stores the specified {@link Movement}s by using automatically the most old lots
+	 * and splitting in more movements if required.
+	 * All the splits are computed in memory from one retrieval of the lots quantities
+	 * and then stored as a single batch.
+	 * @param movements - the {@link Movement}s to store
+	 * @return <code>true</code> if every movement has been stored in at least one lot, <code>false</code> otherwise.
+	 * @throws OHServiceException if an error occurs during the store operation.
+	 */
+	public boolean newAutomaticDischargingMovements(List<Movement> movements) throws OHServiceException {
+		boolean result = true;
+		List<Movement> splitMovements = new ArrayList<>();
+		for (List<Movement> movementSplits : _allocate(movements)) {
+			if (movementSplits.isEmpty()) {
+				result = false;
 			}
+			splitMovements.addAll(movementSplits);
 		}
+		return storeMovements(splitMovements) && result;
+	}
 
-		return result;
+	/**
+	 * Computes, without storing anything, how the specified {@link Movement}s would be split
+	 * by {@link #newAutomaticDischargingMovements(List)}.
+	 * @param movements - the {@link Movement}s to split
+	 * @return the split movements, in the same order as the specified ones.
+	 * @throws OHServiceException if an error occurs retrieving the lots.
+	 */
+	public List<Movement> getAutomaticDischargingPlan(List<Movement> movements) throws OHServiceException {
+		List<Movement> splitMovements = new ArrayList<>();
+		for (List<Movement> movementSplits : _allocate(movements)) {
+			splitMovements.addAll(movementSplits);
+		}
+		return splitMovements;
+	}
+
+	private List<List<Movement>> _allocate(List<Movement> movements) throws OHServiceException {
+		Set<Integer> medicalCodes = new HashSet<>();
+		for (Movement movement : movements) {
+			medicalCodes.add(movement.getMedical().getCode());
+		}
+		FefoAllocator allocator = new FefoAllocator(getLotsByMedicals(medicalCodes));
+		List<List<Movement>> splitMovements = new ArrayList<>(movements.size());
+		for (Movement movement : movements) {
+			splitMovements.add(allocator.allocate(movement));
+		}
+		return splitMovements;
 	}
 		
 	/**
@@ -152,10 +224,11 @@ public class MedicalStockIoOperations {
 			//if is in automatic lot mode then we have to generate a new lot code
 			if (isAutomaticLotMode() || lotCode.equals("")) {
 				lotCode = generateLotCode();
-			}
-
-			boolean lotExists = lotExists(lotCode);
-			if (!lotExists) {
+				//a generated code is always a new lot: the plain insert fails instead of reusing a stored one
+				Lot lot = movement.getLot();
+				lotRepository.insertLots(Collections.singletonList(
+						new Lot(movement.getMedical(), lotCode, lot.getPreparationDate(), lot.getDueDate(), lot.getCost())));
+			} else if (!lotExists(lotCode)) {
 				boolean lotStored = storeLot(lotCode, movement.getLot(), movement.getMedical());
 				if (!lotStored) {
 					return false;
@@ -175,6 +248,124 @@ public class MedicalStockIoOperations {
 		return false;
 	}
 	
+	/**
+	 * Stores the specified {@link Movement}s as a single batch: missing {@link Lot}s are checked
+	 * with one query and inserted with JDBC batching, then the movements are stored by {@link #storeMovements(List)}.
+	 * @param movements the movements to store.
+	 * @return <code>true</code> if the movements have been stored, <code>false</code> otherwise.
+	 * @throws OHServiceException if an error occurs during the store operation.
+	 */
+	public boolean newMovements(List<Movement> movements) throws OHServiceException {
+		List<Movement> newMovements = new ArrayList<>();
+		for (Movement movement : movements) {
+			// movements already stored are saved again one by one, as before
+			if (movement.getCode() != 0) {
+				if (!newMovement(movement)) {
+					return false;
+				}
+			} else {
+				newMovements.add(movement);
+			}
+		}
+		List<String> lotCodes = new ArrayList<>();
+		int generatedCodes = 0;
+		for (Movement movement : newMovements) {
+			if (movement.getType().getType().contains("+")) {
+				String lotCode = movement.getLot().getCode();
+				if (isAutomaticLotMode() || lotCode.equals("")) {
+					generatedCodes++;
+				} else {
+					lotCodes.add(lotCode);
+				}
+			}
+		}
+		Set<String> storedLots = new HashSet<>();
+		if (!lotCodes.isEmpty()) {
+			for (Lot lot : lotRepository.findAll(lotCodes)) {
+				storedLots.add(lot.getCode());
+			}
+		}
+		Iterator<String> newCodes = generateLotCodes(generatedCodes).iterator();
+
+		List<Lot> newLots = new ArrayList<>();
+		for (Movement movement : newMovements) {
+			if (movement.getType().getType().contains("+")) {
+				Lot lot = movement.getLot();
+				String lotCode = lot.getCode();
+				if (isAutomaticLotMode() || lotCode.equals("")) {
+					lotCode = newCodes.next();
+				}
+				if (storedLots.add(lotCode)) {
+					lot = new Lot(movement.getMedical(), lotCode, lot.getPreparationDate(), lot.getDueDate(), lot.getCost());
+					newLots.add(lot);
+				}
+				movement.setLot(lot);
+			}
+		}
+
+		lotRepository.insertLots(newLots);
+		return storeMovements(newMovements);
+	}
+
+	/**
+	 * Stores the specified new {@link Movement}s, whose {@link Lot}s must already exist, as a single batch:
+	 * the movements are inserted with JDBC batching and the {@link Medical} and {@link MedicalWard}
+	 * quantities are updated once per medical and once per ward, medical and lot.
+	 * @param movements the movements to store.
+	 * @return <code>true</code> if the movements have been stored, <code>false</code> otherwise.
+	 * @throws OHServiceException if an error occurs during the store operation.
+	 */
+	protected boolean storeMovements(List<Movement> movements) throws OHServiceException {
+		Map<Integer, Double> incomingQuantities = new LinkedHashMap<>();
+		Map<Integer, Double> outgoingQuantities = new LinkedHashMap<>();
+		Map<List<Object>, Movement> wardMovements = new LinkedHashMap<>();
+		GregorianCalendar firstDate = null;
+		for (Movement movement : movements) {
+			if (firstDate == null || movement.getDate().before(firstDate)) {
+				firstDate = movement.getDate();
+			}
+			Integer medicalCode = movement.getMedical().getCode();
+			if (movement.getType().getType().contains("+")) {
+				_addQuantity(incomingQuantities, medicalCode, movement.getQuantity());
+			} else {
+				_addQuantity(outgoingQuantities, medicalCode, movement.getQuantity());
+				Ward ward = movement.getWard();
+				if (ward != null) {
+					List<Object> key = Arrays.<Object>asList(ward.getCode(), medicalCode, movement.getLot().getCode());
+					Movement wardMovement = wardMovements.get(key);
+					if (wardMovement == null) {
+						wardMovements.put(key, new Movement(movement.getMedical(), movement.getType(), ward, movement.getLot(),
+								movement.getDate(), movement.getQuantity(), null, movement.getRefNo()));
+					} else {
+						wardMovement.setQuantity(wardMovement.getQuantity() + movement.getQuantity());
+					}
+				}
+			}
+		}
+
+		stockSnapshotIoOperations.invalidateSnapshots(firstDate);
+		movRepository.insertMovements(movements);
+		for (Movement movement : movements) {
+			expiryWatch.movementStored(movement);
+		}
+
+		for (Map.Entry<Integer, Double> quantity : incomingQuantities.entrySet()) {
+			updateMedicalIncomingQuantity(quantity.getKey(), quantity.getValue());
+		}
+		for (Map.Entry<Integer, Double> quantity : outgoingQuantities.entrySet()) {
+			updateMedicalOutcomingQuantity(quantity.getKey(), quantity.getValue());
+		}
+		for (Movement wardMovement : wardMovements.values()) {
+			updateMedicalWardQuantity(wardMovement.getWard(), wardMovement.getMedical(), wardMovement.getQuantity(), wardMovement.getLot());
+		}
+		return true;
+	}
+
+	private void _addQuantity(Map<Integer, Double> quantities, Integer medicalCode, int quantity) {
+		Double current = quantities.get(medicalCode);
+		quantities.put(medicalCode, current == null ? quantity : current + quantity);
+	}
+	
 	/**
 	 * Prepare the insert of the specified {@link Movement} (no commit)
 	 * @param movement - the movement to store.
@@ -230,8 +421,12 @@ public class MedicalStockIoOperations {
 
 		Lot lot = (Lot)lotRepository.findOne(lotCode); 
 		movement.setLot(lot);
+		stockSnapshotIoOperations.invalidateSnapshots(movement);
 		Movement savedMovement = movRepository.save(movement);
 		result = (savedMovement != null);
+		if (result) {
+			expiryWatch.movementStored(savedMovement);
+		}
 		
 		return result;
 	}
@@ -243,18 +438,23 @@ public class MedicalStockIoOperations {
 	 */
 	protected String generateLotCode() throws OHServiceException
 	{
-		Random random = new Random();
-		long candidateCode = 0;
-		Lot lot = null;
-				
-		do 
-		{
-			candidateCode = Math.abs(random.nextLong());
-
-			lot = (Lot)lotRepository.findOne(String.valueOf(candidateCode)); 
-		} while (lot !=null); 
+		return generateLotCodes(1).get(0);
+	}
 
-		return String.valueOf(candidateCode);
+	/**
+	 * Creates the specified number of new unique lot codes: they are never checked against the stored {@link Lot}s,
+	 * the insert of a new lot fails on the primary key if a code is already in use.
+	 * @param count the number of codes to create.
+	 * @return the new unique codes.
+	 * @throws OHServiceException if an error occurs during the code generation.
+	 */
+	protected List<String> generateLotCodes(int count) throws OHServiceException
+	{
+		List<String> codes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			codes.add(UniqueIdGenerator.getInstance().nextIdAsString());
+		}
+		return codes;
 	}
 
 	/**
@@ -356,14 +556,7 @@ public class MedicalStockIoOperations {
 			int medicalCode, 
 			double incrementQuantity) throws OHServiceException
 	{
-		boolean result = true;
-				
-		
-		Medical medical = (Medical)medicalRepository.findOne(medicalCode); 
-		medical.setInqty(medical.getInqty()+incrementQuantity);
-		medicalRepository.save(medical);
-		
-		return result;
+		return quantityCoalescer.increaseIncomingQuantity(medicalCode, incrementQuantity);
 	}
 
 	/**
@@ -377,14 +570,7 @@ public class MedicalStockIoOperations {
 			int medicalCode, 
 			double incrementQuantity) throws OHServiceException
 	{
-		boolean result = true;
-				
-
-		Medical medical = (Medical)medicalRepository.findOne(medicalCode); 
-		medical.setOutqty(medical.getOutqty()+incrementQuantity);
-		medicalRepository.save(medical);
-				
-		return result;
+		return quantityCoalescer.increaseOutcomingQuantity(medicalCode, incrementQuantity);
 	}
 
 	/**
@@ -416,6 +602,7 @@ public class MedicalStockIoOperations {
 			medicalStockRepository.insertMedicalWard(ward.getCode(), medical.getCode(), quan, lot.getCode());
 		}
 		medicalStockRepository.save(medicalWard);
+		wardStockLedger.add(ward.getCode(), medical.getCode(), lot.getCode(), quantity, true);
 		return true;
 	}
 
@@ -437,18 +624,23 @@ public class MedicalStockIoOperations {
 	 * @throws OHServiceException if an error occurs retrieving the movements.
 	 */
 	public List<Movement> getMovements(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo) throws OHServiceException {
-		ArrayList<Integer> pMovementCode = null;
-		ArrayList<Movement> pMovement = new ArrayList<>();
-
-		pMovementCode = new ArrayList<>(movRepository.findMovementWhereDatesAndId(wardId, dateFrom, dateTo));
-		for (int i = 0; i < pMovementCode.size(); i++) {
-			Integer code = pMovementCode.get(i);
-			Movement movement = movRepository.findOne(code);
-
-			pMovement.add(i, movement);
-		}
+		return new ArrayList<>(movRepository.fetchMovementWhereDatesAndId(wardId, dateFrom, dateTo));
+	}
 
-		return pMovement;
+	/**
+	 * Retrieves a page of the stored {@link Movement}s for the specified {@link Ward},
+	 * ordered by date, reference number and code descending.
+	 * @param wardId the ward id.
+	 * @param dateFrom the lower bound for the movement date range.
+	 * @param dateTo the upper bound for the movement date range.
+	 * @param after the {@link KeysetCursor} of the last movement of the previous page, <code>null</code> for the first page.
+	 * @param pageSize the maximum number of movements to retrieve.
+	 * @return the retrieved movements.
+	 * @throws OHServiceException if an error occurs retrieving the movements.
+	 */
+	public List<Movement> getMovements(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo,
+			KeysetCursor after, int pageSize) throws OHServiceException {
+		return new ArrayList<>(movRepository.fetchMovementWhereDatesAndId(wardId, dateFrom, dateTo, after, pageSize));
 	}
 
 	/**
@@ -478,22 +670,55 @@ public class MedicalStockIoOperations {
 			GregorianCalendar lotDueFrom, 
 			GregorianCalendar lotDueTo) throws OHServiceException 
 	{
-		ArrayList<Integer> pMovementCode = null;
-		ArrayList<Movement> pMovement = new ArrayList<>();
-		
-		pMovementCode = new ArrayList<>(movRepository.findMovementWhereData(
+		return new ArrayList<>(movRepository.fetchMovementWhereData(
 				medicalCode, medicalType, wardId, movType,
-				movFrom, movTo, lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo));			
-		for (int i=0; i<pMovementCode.size(); i++)
-		{
-			Integer code = pMovementCode.get(i);
-			Movement movement = movRepository.findOne(code);
-			
-			
-			pMovement.add(i, movement);
-		}
-		
-		return pMovement;	
+				movFrom, movTo, lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo));
+	}
+
+	/**
+	 * Retrieves a page of the stored {@link Movement}s with the specified criteria,
+	 * ordered by date, reference number and code descending.
+	 * @param medicalCode the medical code.
+	 * @param medicalType the medical type.
+	 * @param wardId the ward type.
+	 * @param movType the movement type.
+	 * @param movFrom the lower bound for the movement date range.
+	 * @param movTo the upper bound for the movement date range.
+	 * @param lotPrepFrom the lower bound for the lot preparation date range.
+	 * @param lotPrepTo the upper bound for the lot preparation date range.
+	 * @param lotDueFrom the lower bound for the lot due date range.
+	 * @param lotDueTo the lower bound for the lot due date range.
+	 * @param after the {@link KeysetCursor} of the last movement of the previous page, <code>null</code> for the first page.
+	 * @param pageSize the maximum number of movements to retrieve.
+	 * @return the retrieved movements.
+	 * @throws OHServiceException if an error occurs retrieving the movements.
+	 */
+	public List<Movement> getMovements(
+			Integer medicalCode,
+			String medicalType, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo,
+			GregorianCalendar lotPrepFrom, 
+			GregorianCalendar lotPrepTo,
+			GregorianCalendar lotDueFrom, 
+			GregorianCalendar lotDueTo,
+			KeysetCursor after,
+			int pageSize) throws OHServiceException 
+	{
+		return new ArrayList<>(movRepository.fetchMovementWhereData(
+				medicalCode, medicalType, wardId, movType,
+				movFrom, movTo, lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo, after, pageSize));
+	}
+
+	/**
+	 * Returns the {@link KeysetCursor} positioned on the specified {@link Movement}, to retrieve the following page.
+	 * @param movement the last movement of a page.
+	 * @return the cursor.
+	 */
+	public static KeysetCursor getCursor(Movement movement) {
+		return new KeysetCursor(movement.getDate(), movement.getRefNo(), movement.getCode());
 	}
 
 	/**
@@ -519,23 +744,107 @@ public class MedicalStockIoOperations {
 			String lotCode,
 			MovementOrder order) throws OHServiceException 
 	{
+		return new ArrayList<>(movRepository.fetchMovementForPrint(
+				medicalDescription, medicalTypeCode, wardId, movType,
+				movFrom, movTo, lotCode, order));
+	}
 
-		ArrayList<Integer> pMovementCode = null;
-		ArrayList<Movement> pMovement = new ArrayList<>();
-		
-		pMovementCode = new ArrayList<>(movRepository.findMovementForPrint(
+	/**
+	 * Streams all the stored {@link Movement}s for the specified {@link Ward}, in the same order as
+	 * {@link #getMovements(String, GregorianCalendar, GregorianCalendar)}, without loading the whole result in memory.
+	 * @param wardId the ward id.
+	 * @param dateFrom the lower bound for the movement date range.
+	 * @param dateTo the upper bound for the movement date range.
+	 * @param fetchSize the JDBC fetch size (see {@link #STREAM_FETCH_SIZE}).
+	 * @param clearInterval the number of rows after which the streamed movements are detached (see {@link #STREAM_CLEAR_INTERVAL}).
+	 * @param consumer the consumer receiving the movements; they are detached every <code>clearInterval</code> rows, unless they were already managed.
+	 * @throws OHServiceException if an error occurs retrieving the movements.
+	 */
+	public void streamMovements(
+			String wardId,
+			GregorianCalendar dateFrom,
+			GregorianCalendar dateTo,
+			int fetchSize,
+			int clearInterval,
+			Consumer<? super Movement> consumer) throws OHServiceException 
+	{
+		movRepository.streamMovementWhereDatesAndId(wardId, dateFrom, dateTo, fetchSize, clearInterval, consumer);
+	}
+
+	/**
+	 * Streams all the stored {@link Movement} with the specified criteria, in the same order as
+	 * {@link #getMovements(Integer, String, String, String, GregorianCalendar, GregorianCalendar, GregorianCalendar, GregorianCalendar, GregorianCalendar, GregorianCalendar)},
+	 * without loading the whole result in memory.
+	 * @param medicalCode the medical code.
+	 * @param medicalType the medical type.
+	 * @param wardId the ward type.
+	 * @param movType the movement type.
+	 * @param movFrom the lower bound for the movement date range.
+	 * @param movTo the upper bound for the movement date range.
+	 * @param lotPrepFrom the lower bound for the lot preparation date range.
+	 * @param lotPrepTo the upper bound for the lot preparation date range.
+	 * @param lotDueFrom the lower bound for the lot due date range.
+	 * @param lotDueTo the lower bound for the lot due date range.
+	 * @param fetchSize the JDBC fetch size (see {@link #STREAM_FETCH_SIZE}).
+	 * @param clearInterval the number of rows after which the streamed movements are detached (see {@link #STREAM_CLEAR_INTERVAL}).
+	 * @param consumer the consumer receiving the movements; they are detached every <code>clearInterval</code> rows, unless they were already managed.
+	 * @throws OHServiceException if an error occurs retrieving the movements.
+	 */
+	public void streamMovements(
+			Integer medicalCode,
+			String medicalType, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo,
+			GregorianCalendar lotPrepFrom, 
+			GregorianCalendar lotPrepTo,
+			GregorianCalendar lotDueFrom, 
+			GregorianCalendar lotDueTo,
+			int fetchSize,
+			int clearInterval,
+			Consumer<? super Movement> consumer) throws OHServiceException 
+	{
+		movRepository.streamMovementWhereData(
+				medicalCode, medicalType, wardId, movType,
+				movFrom, movTo, lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo,
+				fetchSize, clearInterval, consumer);
+	}
+
+	/**
+	 * Streams {@link Movement}s for printing using specified filtering criteria, in the same order as
+	 * {@link #getMovementForPrint(String, String, String, String, GregorianCalendar, GregorianCalendar, String, MovementOrder)},
+	 * without loading the whole result in memory.
+	 * @param medicalDescription the medical description.
+	 * @param medicalTypeCode the medical type code.
+	 * @param wardId the ward id.
+	 * @param movType the movement type.
+	 * @param movFrom the lower bound for the movement date range.
+	 * @param movTo the upper bound for the movement date range.
+	 * @param lotCode the lot code.
+	 * @param order the result order.
+	 * @param fetchSize the JDBC fetch size (see {@link #STREAM_FETCH_SIZE}).
+	 * @param clearInterval the number of rows after which the streamed movements are detached (see {@link #STREAM_CLEAR_INTERVAL}).
+	 * @param consumer the consumer receiving the movements; they are detached every <code>clearInterval</code> rows, unless they were already managed.
+	 * @throws OHServiceException if an error occurs retrieving the movements.
+	 */
+	public void streamMovementForPrint(
+			String medicalDescription,
+			String medicalTypeCode, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo, 
+			String lotCode,
+			MovementOrder order,
+			int fetchSize,
+			int clearInterval,
+			Consumer<? super Movement> consumer) throws OHServiceException 
+	{
+		movRepository.streamMovementForPrint(
 				medicalDescription, medicalTypeCode, wardId, movType,
-				movFrom, movTo, lotCode, order));			
-		for (int i=0; i<pMovementCode.size(); i++)
-		{
-			Integer code = pMovementCode.get(i);
-			Movement movement = movRepository.findOne(code);
-			
-			
-			pMovement.add(i, movement);
-		}
-		
-		return pMovement;	
+				movFrom, movTo, lotCode, order,
+				fetchSize, clearInterval, consumer);
 	}
 
 	/**
@@ -546,14 +855,35 @@ public class MedicalStockIoOperations {
 	 * @throws OHServiceException if an error occurs retrieving the lot list.
 	 */
 	public List<Lot> getLotsByMedical(Medical medical) throws OHServiceException {
-		List<Lot> lots = lotRepository.findByMedicalOrderByDueDate(medical.getCode());
-		//retrieve quantities
-		lots.stream().forEach(lot -> {
-			lot.setMainStoreQuantity(lotRepository.getMainStoreQuantity(lot));
-			lot.setWardsTotalQuantity(lotRepository.getWardsTotalQuantity(lot));
-		});
-		// remove empty lots
-		return new ArrayList<>(lots.stream().filter(lot -> lot.getMainStoreQuantity() > 0).collect(Collectors.toList()));
+		return _toLots(lotRepository.findByMedicalWithQuantitiesOrderByDueDate(medical.getCode()));
+	}
+
+	/**
+	 * Retrieves, with a single query, the lots referred to the specified {@link Medical}s, expiring first on top
+	 * Lots with zero quantities will be stripped out
+	 * @param medicalCodes the medical codes.
+	 * @return a list of {@link Lot}.
+	 * @throws OHServiceException if an error occurs retrieving the lot list.
+	 */
+	public List<Lot> getLotsByMedicals(Collection<Integer> medicalCodes) throws OHServiceException {
+		if (medicalCodes.isEmpty()) {
+			return new ArrayList<>();
+		}
+		return _toLots(lotRepository.findByMedicalInWithQuantitiesOrderByDueDate(medicalCodes));
+	}
+
+	private List<Lot> _toLots(List<Object[]> rows) {
+		List<Lot> lots = new ArrayList<>(rows.size());
+		for (Object[] row : rows) {
+			Lot lot = (Lot) row[0];
+			lot.setMainStoreQuantity(((Number) row[1]).intValue());
+			lot.setWardsTotalQuantity(((Number) row[2]).doubleValue());
+			// remove empty lots
+			if (lot.getMainStoreQuantity() > 0) {
+				lots.add(lot);
+			}
+		}
+		return lots;
 	}
 
 	/**
@@ -582,6 +912,21 @@ public class MedicalStockIoOperations {
 		return result;
 	}
 
+	/**
+	 * Retrieves, with a single query, which of the specified reference numbers are already used.
+	 * @param refNos the reference numbers to check.
+	 * @return the reference numbers already used.
+	 * @throws OHServiceException if an error occurs during the check.
+	 */
+	public Set<String> getUsedRefNos(
+			Collection<String> refNos) throws OHServiceException
+	{
+		if (refNos.isEmpty()) {
+			return new HashSet<>();
+		}
+		return new HashSet<>(movRepository.findAllWhereRefNoIn(refNos));
+	}
+
 	/**
 	 * Retrieves all the movement associated to the specified reference number.
 	 * In case of error a message error is shown and a <code>null</code> value is returned.
@@ -21,6 +21,7 @@
  */
 package org.isf.medicalstock.service;
 
+import java.util.Collection;
 import java.util.GregorianCalendar;
 import java.util.List;
 
@@ -45,6 +46,12 @@ public interface MovementIoOperationRepository extends JpaRepository<Movement, I
 			"join mov.lot lot " +
 			"where lot.code=:lot")
     List<Integer> findAllByLot(@Param("lot") String lot);
+
+    @Query(value = "select distinct lot.code, med.code from Movement mov " +
+			"join mov.medical med " +
+			"join mov.lot lot " +
+			"where lot.code in :lots")
+    List<Object[]> findAllByLotIn(@Param("lots") Collection<String> lots);
     
     @Query(value = "select mov from Movement mov " +
 			"join mov.type movtype " +
@@ -60,4 +67,7 @@ public interface MovementIoOperationRepository extends JpaRepository<Movement, I
 
     @Query(value = "select mov.refNo from Movement mov where mov.refNo like :refNo")
     List<String> findAllWhereRefNo(@Param("refNo") String refNo);
+
+    @Query(value = "select distinct mov.refNo from Movement mov where mov.refNo in :refNos")
+    List<String> findAllWhereRefNoIn(@Param("refNos") Collection<String> refNos);
 }
@@ -21,11 +21,14 @@
  */
 package org.isf.medicalstock.service;
 
+import org.isf.medicalstock.model.Movement;
 import org.isf.medicalstock.service.MedicalStockIoOperations.MovementOrder;
+import org.isf.utils.db.KeysetCursor;
 import org.springframework.stereotype.Repository;
 
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.function.Consumer;
 
 @Repository
 public interface MovementIoOperationRepositoryCustom {
@@ -38,5 +41,59 @@ public interface MovementIoOperationRepositoryCustom {
 
 	List<Integer> findMovementForPrint(String medicalDescription, String medicalTypeCode, String wardId,
 									   String movType, GregorianCalendar movFrom, GregorianCalendar movTo, String lotCode, MovementOrder order);
-	
+
+	/*
+	 * The fetch* variants apply the same filters and ordering as the find* ones above but return fully
+	 * populated movements (medical, type, ward, lot and supplier fetched) in a single statement.
+	 */
+
+	List<Movement> fetchMovementWhereDatesAndId(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo);
+
+	List<Movement> fetchMovementWhereData(Integer medicalCode, String medicalType, String wardId, String movType,
+										GregorianCalendar movFrom, GregorianCalendar movTo, GregorianCalendar lotPrepFrom,
+										GregorianCalendar lotPrepTo, GregorianCalendar lotDueFrom, GregorianCalendar lotDueTo);
+
+	List<Movement> fetchMovementForPrint(String medicalDescription, String medicalTypeCode, String wardId,
+									   String movType, GregorianCalendar movFrom, GregorianCalendar movTo, String lotCode, MovementOrder order);
+
+	/*
+	 * The paged fetch* variants return at most pageSize movements following the cursor (the first page
+	 * when it is null) in date, refNo and code descending order, seeking past the cursor in the index
+	 * so that every page costs the same whatever its depth.
+	 */
+
+	List<Movement> fetchMovementWhereDatesAndId(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo,
+												KeysetCursor after, int pageSize);
+
+	List<Movement> fetchMovementWhereData(Integer medicalCode, String medicalType, String wardId, String movType,
+										GregorianCalendar movFrom, GregorianCalendar movTo, GregorianCalendar lotPrepFrom,
+										GregorianCalendar lotPrepTo, GregorianCalendar lotDueFrom, GregorianCalendar lotDueTo,
+										KeysetCursor after, int pageSize);
+
+	/*
+	 * The stream* variants run the fetch* queries on a forward-only cursor and hand each movement to the consumer,
+	 * clearing the persistence context every clearInterval rows so that memory stays constant.
+	 */
+
+	void streamMovementWhereDatesAndId(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo,
+									   int fetchSize, int clearInterval, Consumer<? super Movement> consumer);
+
+	void streamMovementWhereData(Integer medicalCode, String medicalType, String wardId, String movType,
+								 GregorianCalendar movFrom, GregorianCalendar movTo, GregorianCalendar lotPrepFrom,
+								 GregorianCalendar lotPrepTo, GregorianCalendar lotDueFrom, GregorianCalendar lotDueTo,
+								 int fetchSize, int clearInterval, Consumer<? super Movement> consumer);
+
+	void streamMovementForPrint(String medicalDescription, String medicalTypeCode, String wardId,
+								String movType, GregorianCalendar movFrom, GregorianCalendar movTo, String lotCode, MovementOrder order,
+								int fetchSize, int clearInterval, Consumer<? super Movement> consumer);
+
+	/**
+	 * Inserts the specified movements with JDBC batching, setting the generated codes on them.
+	 * The movements are not attached to the persistence context and their {@link org.isf.medicalstock.model.Lot}
+	 * must already be stored.
+	 * @param movements the movements to insert.
+	 * @return the number of inserted movements.
+	 */
+	int insertMovements(List<Movement> movements);
+
 }
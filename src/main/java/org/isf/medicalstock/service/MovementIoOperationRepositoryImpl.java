@@ -21,25 +21,51 @@
  */
 package org.isf.medicalstock.service;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
 import org.isf.medicals.model.Medical;
 import org.isf.medicalstock.model.Lot;
 import org.isf.medicalstock.model.Movement;
 import org.isf.medicalstock.service.MedicalStockIoOperations.MovementOrder;
 import org.isf.medstockmovtype.model.MovementType;
 import org.isf.medtype.model.MedicalType;
+import org.isf.supplier.model.Supplier;
+import org.isf.utils.db.DbQueryLogger;
+import org.isf.utils.db.KeysetCursor;
 import org.isf.ward.model.Ward;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.AuditorAware;
 import org.springframework.transaction.annotation.Transactional;
 
 @Transactional
@@ -53,10 +79,24 @@ public class MovementIoOperationRepositoryImpl implements MovementIoOperationRep
 	private static final String LOT = "lot";
 	private static final String TYPE ="type";
 	private static final String DESCRIPTION = "description";
+	private static final String SUPPLIER = "supplier";
+
+	private static final int BATCH_SIZE = 100;
+	private static final String INSERT_MOVEMENT = "INSERT INTO MEDICALDSRSTOCKMOV (MMV_MDSR_ID, MMV_MMVT_ID_A, MMV_WRD_ID_A, "
+			+ "MMV_LT_ID_A, MMV_DATE, MMV_QTY, MMV_FROM, MMV_REFNO, MMV_CREATED_BY, MMV_CREATED_DATE, "
+			+ "MMV_LAST_MODIFIED_BY, MMV_LAST_MODIFIED_DATE, MMV_ACTIVE) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
 	@PersistenceContext
 	private EntityManager entityManager;
 
+	/**
+	 * The database url, to choose the streaming fetch size (see {@link #_getStreamingFetchSize(int)})
+	 */
+	private volatile String databaseUrl;
+
+	@Autowired
+	private AuditorAware<String> auditorAware;
+
 	@SuppressWarnings("unchecked")	
 	@Override
 	public List<Integer> findMovementWhereDatesAndId(
@@ -98,6 +138,282 @@ public class MovementIoOperationRepositoryImpl implements MovementIoOperationRep
 				lotCode, order);
 	}	
 
+	@Override
+	public List<Movement> fetchMovementWhereDatesAndId(
+			String wardId, 
+			GregorianCalendar dateFrom, 
+			GregorianCalendar dateTo) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Movement> query = builder.createQuery(Movement.class);
+		Root<Movement> root = query.from(Movement.class);
+		_fetchAssociations(root);
+		query.select(root);
+		_whereDatesAndId(builder, query, root, wardId, dateFrom, dateTo);
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	@Override
+	public List<Movement> fetchMovementWhereData(
+			Integer medicalCode,
+			String medicalType, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo,
+			GregorianCalendar lotPrepFrom, 
+			GregorianCalendar lotPrepTo,
+			GregorianCalendar lotDueFrom, 
+			GregorianCalendar lotDueTo) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Movement> query = builder.createQuery(Movement.class);
+		Root<Movement> root = query.from(Movement.class);
+		_fetchAssociations(root);
+		query.select(root);
+		_whereData(builder, query, root, medicalCode, medicalType, wardId, movType, movFrom, movTo,
+				lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo);
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	@Override
+	public List<Movement> fetchMovementForPrint(
+			String medicalDescription,
+			String medicalTypeCode, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo, 
+			String lotCode,
+			MovementOrder order) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Movement> query = builder.createQuery(Movement.class);
+		Root<Movement> root = query.from(Movement.class);
+		_fetchAssociations(root);
+		query.select(root);
+		_whereForPrint(builder, query, root, medicalDescription, medicalTypeCode, wardId, movType, movFrom, movTo,
+				lotCode, order);
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	@Override
+	public List<Movement> fetchMovementWhereDatesAndId(
+			String wardId, 
+			GregorianCalendar dateFrom, 
+			GregorianCalendar dateTo,
+			KeysetCursor after,
+			int pageSize) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Movement> query = builder.createQuery(Movement.class);
+		Root<Movement> root = query.from(Movement.class);
+		_fetchAssociations(root);
+		query.select(root);
+		_whereDatesAndId(builder, query, root, wardId, dateFrom, dateTo);
+		_seek(builder, query, root, after);
+		return entityManager.createQuery(query).setMaxResults(pageSize).getResultList();
+	}
+
+	@Override
+	public List<Movement> fetchMovementWhereData(
+			Integer medicalCode,
+			String medicalType, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo,
+			GregorianCalendar lotPrepFrom, 
+			GregorianCalendar lotPrepTo,
+			GregorianCalendar lotDueFrom, 
+			GregorianCalendar lotDueTo,
+			KeysetCursor after,
+			int pageSize) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Movement> query = builder.createQuery(Movement.class);
+		Root<Movement> root = query.from(Movement.class);
+		_fetchAssociations(root);
+		query.select(root);
+		_whereData(builder, query, root, medicalCode, medicalType, wardId, movType, movFrom, movTo,
+				lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo);
+		_seek(builder, query, root, after);
+		return entityManager.createQuery(query).setMaxResults(pageSize).getResultList();
+	}
+
+	/**
+	 * Adds the code as last sort key, so that the order is total, and restricts the query to the rows
+	 * following the cursor in date, refNo and code descending order.
+	 * The redundant <code>date &lt;= cursor date</code> term lets the database start a range scan
+	 * of the date index at the cursor position.
+	 * @param builder the criteria builder.
+	 * @param query the movement query, with its filters and order already set.
+	 * @param root the movement root of the query.
+	 * @param after the cursor, <code>null</code> for the first page.
+	 */
+	private void _seek(CriteriaBuilder builder, CriteriaQuery<?> query, Root<Movement> root, KeysetCursor after) {
+		List<Order> orderList = new ArrayList<>(query.getOrderList());
+		orderList.add(builder.desc(root.get(CODE)));
+		query.orderBy(orderList);
+		if (after == null) {
+			return;
+		}
+		Path<GregorianCalendar> date = root.get(DATE);
+		Path<String> refNo = root.get(REF_NO);
+		Path<Integer> code = root.get(CODE);
+		Predicate seek = builder.and(
+				builder.lessThanOrEqualTo(date, after.getDate()),
+				builder.or(
+						builder.lessThan(date, after.getDate()),
+						builder.lessThan(refNo, after.getRefNo()),
+						builder.and(builder.equal(refNo, after.getRefNo()), builder.lessThan(code, after.getCode()))));
+		Predicate restriction = query.getRestriction();
+		query.where(restriction == null ? seek : builder.and(restriction, seek));
+	}
+
+	@Override
+	public void streamMovementWhereDatesAndId(
+			String wardId, 
+			GregorianCalendar dateFrom, 
+			GregorianCalendar dateTo,
+			int fetchSize,
+			int clearInterval,
+			Consumer<? super Movement> consumer) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Movement> query = builder.createQuery(Movement.class);
+		Root<Movement> root = query.from(Movement.class);
+		_fetchAssociations(root);
+		query.select(root);
+		_whereDatesAndId(builder, query, root, wardId, dateFrom, dateTo);
+		_scroll(query, fetchSize, clearInterval, consumer);
+	}
+
+	@Override
+	public void streamMovementWhereData(
+			Integer medicalCode,
+			String medicalType, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo,
+			GregorianCalendar lotPrepFrom, 
+			GregorianCalendar lotPrepTo,
+			GregorianCalendar lotDueFrom, 
+			GregorianCalendar lotDueTo,
+			int fetchSize,
+			int clearInterval,
+			Consumer<? super Movement> consumer) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Movement> query = builder.createQuery(Movement.class);
+		Root<Movement> root = query.from(Movement.class);
+		_fetchAssociations(root);
+		query.select(root);
+		_whereData(builder, query, root, medicalCode, medicalType, wardId, movType, movFrom, movTo,
+				lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo);
+		_scroll(query, fetchSize, clearInterval, consumer);
+	}
+
+	@Override
+	public void streamMovementForPrint(
+			String medicalDescription,
+			String medicalTypeCode, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo, 
+			String lotCode,
+			MovementOrder order,
+			int fetchSize,
+			int clearInterval,
+			Consumer<? super Movement> consumer) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Movement> query = builder.createQuery(Movement.class);
+		Root<Movement> root = query.from(Movement.class);
+		_fetchAssociations(root);
+		query.select(root);
+		_whereForPrint(builder, query, root, medicalDescription, medicalTypeCode, wardId, movType, movFrom, movTo,
+				lotCode, order);
+		_scroll(query, fetchSize, clearInterval, consumer);
+	}
+
+	/**
+	 * Runs the query on a forward-only, read-only cursor and hands every row to the consumer.
+	 * Every <code>clearInterval</code> rows the movements already handed out, and their lots, are detached
+	 * so they can be garbage collected; the entities that were already managed when the query started
+	 * (and any change to them not flushed yet) are left in the persistence context.
+	 * @param query the movement query.
+	 * @param fetchSize the JDBC fetch size (see {@link #_getStreamingFetchSize(int)}).
+	 * @param clearInterval the number of rows after which the streamed movements are detached, 0 to never detach them.
+	 * @param consumer the row consumer.
+	 */
+	private void _scroll(CriteriaQuery<Movement> query, int fetchSize, int clearInterval, Consumer<? super Movement> consumer) {
+		Set<Object> managed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		if (clearInterval > 0) {
+			managed.addAll(entityManager.unwrap(SessionImplementor.class).getPersistenceContext().getEntitiesByKey().values());
+		}
+		Query hibernateQuery = entityManager.createQuery(query).unwrap(Query.class);
+		hibernateQuery.setFetchSize(_getStreamingFetchSize(fetchSize));
+		hibernateQuery.setReadOnly(true);
+		ScrollableResults results = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			List<Movement> streamed = new ArrayList<Movement>();
+			while (results.next()) {
+				Movement movement = (Movement) results.get(0);
+				consumer.accept(movement);
+				if (clearInterval > 0) {
+					streamed.add(movement);
+					if (streamed.size() == clearInterval) {
+						_detach(streamed, managed);
+					}
+				}
+			}
+			_detach(streamed, managed);
+		} finally {
+			results.close();
+		}
+	}
+
+	private void _detach(List<Movement> streamed, Set<Object> managed) {
+		for (Movement movement : streamed) {
+			if (!managed.contains(movement) && entityManager.contains(movement)) {
+				entityManager.detach(movement);
+			}
+			Lot lot = movement.getLot();
+			if (lot != null && !managed.contains(lot) && entityManager.contains(lot)) {
+				entityManager.detach(lot);
+			}
+		}
+		streamed.clear();
+	}
+
+	/**
+	 * Returns the fetch size that really streams the rows on the current database
+	 * (see {@link DbQueryLogger#getStreamingFetchSize(String, int)}): as rows can be streamed one at a time,
+	 * no other statement must run on the connection meanwhile, which holds as every association is fetched by the query.
+	 * @param fetchSize the requested fetch size.
+	 * @return the fetch size to set on the query.
+	 */
+	private int _getStreamingFetchSize(int fetchSize) {
+		if (databaseUrl == null) {
+			databaseUrl = entityManager.unwrap(Session.class).doReturningWork(new ReturningWork<String>() {
+
+				@Override
+				public String execute(Connection connection) throws SQLException {
+					return connection.getMetaData().getURL();
+				}
+			});
+		}
+		return DbQueryLogger.getStreamingFetchSize(databaseUrl, fetchSize);
+	}
+
+	/**
+	 * Fetches in the same statement every association of {@link Movement} (and the {@link MedicalType}
+	 * of its {@link Medical}) that would otherwise be loaded eagerly one row at a time.
+	 * @param root the movement root of the query.
+	 */
+	private void _fetchAssociations(Root<Movement> root) {
+		root.fetch(MEDICAL, JoinType.INNER).fetch(TYPE, JoinType.LEFT);
+		root.fetch(TYPE, JoinType.INNER);
+		root.fetch(WARD, JoinType.LEFT);
+		root.fetch(LOT, JoinType.LEFT);
+		root.fetch(SUPPLIER, JoinType.LEFT);
+	}
+
 		
 	private List<Integer> _getMovementWhereDatesAndId(
 			String wardId, 
@@ -108,6 +424,18 @@ public class MovementIoOperationRepositoryImpl implements MovementIoOperationRep
 		CriteriaQuery<Integer> query = builder.createQuery(Integer.class);
 		Root<Movement> root = query.from(Movement.class);
 		query.select(root.<Integer>get(CODE));
+		_whereDatesAndId(builder, query, root, wardId, dateFrom, dateTo);
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	private void _whereDatesAndId(
+			CriteriaBuilder builder,
+			CriteriaQuery<?> query,
+			Root<Movement> root,
+			String wardId, 
+			GregorianCalendar dateFrom, 
+			GregorianCalendar dateTo)
+	{
 		List<Predicate> predicates = new ArrayList<>();
 
 		if ((dateFrom != null) && (dateTo != null))
@@ -123,7 +451,6 @@ public class MovementIoOperationRepositoryImpl implements MovementIoOperationRep
 		orderList.add(builder.desc(root.get(DATE)));
 		orderList.add(builder.desc(root.get(REF_NO)));
 		query.where(predicates.toArray(new Predicate[]{})).orderBy(orderList);
-		return entityManager.createQuery(query).getResultList();
 	}
 	
 	private List<Integer> _getMovementWhereData(
@@ -141,6 +468,25 @@ public class MovementIoOperationRepositoryImpl implements MovementIoOperationRep
 		CriteriaQuery<Integer> query = builder.createQuery(Integer.class);
 		Root<Movement> root = query.from(Movement.class);
 		query.select(root.<Integer>get(CODE));
+		_whereData(builder, query, root, medicalCode, medicalType, wardId, movType, movFrom, movTo,
+				lotPrepFrom, lotPrepTo, lotDueFrom, lotDueTo);
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	private void _whereData(
+			CriteriaBuilder builder,
+			CriteriaQuery<?> query,
+			Root<Movement> root,
+			Integer medicalCode,
+			String medicalType, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo,
+			GregorianCalendar lotPrepFrom, 
+			GregorianCalendar lotPrepTo,
+			GregorianCalendar lotDueFrom, 
+			GregorianCalendar lotDueTo) {
 		List<Predicate> predicates = new ArrayList<>();
 
 		if (medicalCode != null) {
@@ -169,7 +515,6 @@ public class MovementIoOperationRepositoryImpl implements MovementIoOperationRep
 		orderList.add(builder.desc(root.get(DATE)));
 		orderList.add(builder.desc(root.get(REF_NO)));
 		query.where(predicates.toArray(new Predicate[]{})).orderBy(orderList);
-		return entityManager.createQuery(query).getResultList();
 	}	
 	
 	private List<Integer> _getMovementForPrint(
@@ -185,6 +530,23 @@ public class MovementIoOperationRepositoryImpl implements MovementIoOperationRep
 		CriteriaQuery<Integer> query = builder.createQuery(Integer.class);
 		Root<Movement> root = query.from(Movement.class);
 		query.select(root.<Integer>get(CODE));
+		_whereForPrint(builder, query, root, medicalDescription, medicalTypeCode, wardId, movType, movFrom, movTo,
+				lotCode, order);
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	private void _whereForPrint(
+			CriteriaBuilder builder,
+			CriteriaQuery<?> query,
+			Root<Movement> root,
+			String medicalDescription,
+			String medicalTypeCode, 
+			String wardId, 
+			String movType,
+			GregorianCalendar movFrom, 
+			GregorianCalendar movTo, 
+			String lotCode,
+			MovementOrder order) {
 		List<Predicate> predicates = new ArrayList<>();
 
 		if (medicalDescription != null) {
@@ -226,6 +588,73 @@ public class MovementIoOperationRepositoryImpl implements MovementIoOperationRep
 				break;
 		}
 		query.where(predicates.toArray(new Predicate[]{})).orderBy(orderList);
-		return entityManager.createQuery(query).getResultList();
+	}
+
+	@Override
+	public int insertMovements(final List<Movement> movements) {
+		if (movements.isEmpty()) {
+			return 0;
+		}
+		entityManager.flush();
+		final String user = auditorAware.getCurrentAuditor();
+		final Date now = new Date();
+		entityManager.unwrap(Session.class).doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(INSERT_MOVEMENT, Statement.RETURN_GENERATED_KEYS);
+				try {
+					for (int from = 0; from < movements.size(); from += BATCH_SIZE) {
+						List<Movement> chunk = movements.subList(from, Math.min(from + BATCH_SIZE, movements.size()));
+						for (Movement movement : chunk) {
+							movement.setCreatedBy(user);
+							movement.setCreatedDate(now);
+							movement.setLastModifiedBy(user);
+							movement.setLastModifiedDate(now);
+							_bind(statement, movement);
+							statement.addBatch();
+						}
+						statement.executeBatch();
+						ResultSet keys = statement.getGeneratedKeys();
+						try {
+							for (Movement movement : chunk) {
+								if (!keys.next()) {
+									break;
+								}
+								movement.setCode(keys.getInt(1));
+							}
+						} finally {
+							keys.close();
+						}
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		return movements.size();
+	}
+
+	private void _bind(PreparedStatement statement, Movement movement) throws SQLException {
+		Ward ward = movement.getWard();
+		Lot lot = movement.getLot();
+		Supplier supplier = movement.getSupplier();
+		statement.setInt(1, movement.getMedical().getCode());
+		statement.setString(2, movement.getType().getCode());
+		statement.setString(3, ward != null ? ward.getCode() : null);
+		statement.setString(4, lot != null ? lot.getCode() : null);
+		statement.setTimestamp(5, new Timestamp(movement.getDate().getTimeInMillis()));
+		statement.setInt(6, movement.getQuantity());
+		if (supplier != null) {
+			statement.setInt(7, supplier.getSupId());
+		} else {
+			statement.setNull(7, Types.INTEGER);
+		}
+		statement.setString(8, movement.getRefNo());
+		statement.setString(9, movement.getCreatedBy());
+		statement.setTimestamp(10, new Timestamp(movement.getCreatedDate().getTime()));
+		statement.setString(11, movement.getLastModifiedBy());
+		statement.setTimestamp(12, new Timestamp(movement.getLastModifiedDate().getTime()));
+		statement.setInt(13, movement.getActive());
 	}
 }
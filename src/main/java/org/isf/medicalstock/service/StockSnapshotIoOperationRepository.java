@@ -0,0 +1,120 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import javax.persistence.QueryHint;
+
+import org.isf.medicalstock.model.StockSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface StockSnapshotIoOperationRepository extends JpaRepository<StockSnapshot, Integer> {
+
+	@Query("select max(d.date) from StockSnapshotDate d where d.date <= :date")
+	GregorianCalendar findLastDateUntil(@Param("date") GregorianCalendar date);
+
+	@Query("select max(d.date) from StockSnapshotDate d")
+	GregorianCalendar findMaxDate();
+
+	@Query("select d.date from StockSnapshotDate d order by d.date")
+	List<GregorianCalendar> findAllDates();
+
+	/**
+	 * Registers a snapshot date with a plain INSERT, that fails if another client has registered it
+	 */
+	@Modifying
+	@Query(value="insert into MEDICALDSRSTOCKSNAPSHOTDATE (MSSD_DATE) values (:date)", nativeQuery=true)
+	int insertDate(@Param("date") GregorianCalendar date);
+
+	@Modifying
+	@Query("delete from StockSnapshotDate d where d.date = :date")
+	int deleteDate(@Param("date") GregorianCalendar date);
+
+	@Modifying
+	@Query("delete from StockSnapshotDate d where d.date > :date")
+	int deleteDatesAfter(@Param("date") GregorianCalendar date);
+
+	List<StockSnapshot> findByDate(GregorianCalendar date);
+
+	@Modifying
+	@Query("delete from StockSnapshot s where s.date = :date")
+	int deleteByDate(@Param("date") GregorianCalendar date);
+
+	@Modifying
+	@Query("delete from StockSnapshot s where s.date > :date")
+	int deleteAfter(@Param("date") GregorianCalendar date);
+
+	/**
+	 * Stored date of a movement, read without flushing the changes made to it in the persistence context
+	 */
+	@Query("select m.date from Movement m where m.code = :code")
+	@QueryHints(@QueryHint(name="org.hibernate.flushMode", value="COMMIT"))
+	GregorianCalendar findMovementDate(@Param("code") int code);
+
+	/**
+	 * Stored date of a ward movement, read without flushing the changes made to it in the persistence context
+	 */
+	@Query("select m.date from MovementWard m where m.code = :code")
+	@QueryHints(@QueryHint(name="org.hibernate.flushMode", value="COMMIT"))
+	GregorianCalendar findMovementWardDate(@Param("code") int code);
+
+	@Query("select min(m.date) from Movement m")
+	GregorianCalendar findMinMovementDate();
+
+	@Query("select min(m.date) from MovementWard m")
+	GregorianCalendar findMinMovementWardDate();
+
+	/**
+	 * Main store balance changes in [from, to) as (medical, lot, quantity)
+	 */
+	@Query("select m.medical.code, lot.code, sum(case when m.type.type like '+%' then m.quantity else -m.quantity end) "
+			+ "from Movement m left join m.lot lot "
+			+ "where m.date >= :from and m.date < :to "
+			+ "group by m.medical.code, lot.code")
+	List<Object[]> findMainStoreQuantities(@Param("from") GregorianCalendar from, @Param("to") GregorianCalendar to);
+
+	/**
+	 * Quantities discharged from the main store to the wards in [from, to) as (ward, medical, lot, quantity)
+	 */
+	@Query("select m.ward.code, m.medical.code, lot.code, sum(m.quantity) "
+			+ "from Movement m left join m.lot lot "
+			+ "where m.ward is not null and m.type.type like '-%' and m.date >= :from and m.date < :to "
+			+ "group by m.ward.code, m.medical.code, lot.code")
+	List<Object[]> findWardIncomingQuantities(@Param("from") GregorianCalendar from, @Param("to") GregorianCalendar to);
+
+	/**
+	 * Quantities moved out of the wards in [from, to) as (ward, medical, lot, quantity)
+	 */
+	@Query("select w.ward.code, w.medical.code, lot.code, sum(w.quantity) "
+			+ "from MovementWard w left join w.lot lot "
+			+ "where w.date >= :from and w.date < :to "
+			+ "group by w.ward.code, w.medical.code, lot.code")
+	List<Object[]> findWardOutgoingQuantities(@Param("from") GregorianCalendar from, @Param("to") GregorianCalendar to);
+}
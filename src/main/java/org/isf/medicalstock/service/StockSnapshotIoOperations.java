@@ -0,0 +1,361 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.isf.medicalstock.model.Movement;
+import org.isf.medicalstock.model.StockSnapshot;
+import org.isf.medicalstockward.model.MovementWard;
+import org.isf.utils.db.TranslateOHServiceException;
+import org.isf.utils.exception.OHServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Builds the stock balances (main store and wards, by medical and lot) at any date
+ * starting from the nearest {@link StockSnapshot} and adding the movements after it,
+ * instead of aggregating the whole movement history every time.
+ * <p>
+ * Storing, changing or deleting a movement drops the snapshots dated after it, which are
+ * created again by {@link StockSnapshotJob}.
+ * <p>
+ * Every snapshot registers its date in MEDICALDSRSTOCKSNAPSHOTDATE in the transaction that stores its
+ * balances: when two clients create the same snapshot, the primary key of the date lets only one of them commit.
+ */
+@Service
+@Transactional(rollbackFor=OHServiceException.class)
+@TranslateOHServiceException
+public class StockSnapshotIoOperations {
+
+	/**
+	 * Length of the period between two snapshots
+	 */
+	public enum SnapshotPeriod {
+		DAILY, MONTHLY
+	}
+
+	/**
+	 * Quantities below this threshold are considered zero (ward quantities are decimals)
+	 */
+	private static final double EPSILON = 1e-6;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StockSnapshotIoOperations.class);
+
+	@Autowired
+	private StockSnapshotIoOperationRepository repository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	/**
+	 * Retrieves the stock balances at the specified date, taking in account all the movements
+	 * dated strictly before it. Zero balances are not returned.
+	 * @param date the balance date.
+	 * @return the balances, one for each medical, lot and ward (<code>null</code> for the main store).
+	 * @throws OHServiceException if an error occurs retrieving the balances.
+	 */
+	public List<StockSnapshot> getStockAtDate(GregorianCalendar date) throws OHServiceException {
+		return _getStockAtDate(date);
+	}
+
+	private List<StockSnapshot> _getStockAtDate(GregorianCalendar date) {
+		Map<List<Object>, StockSnapshot> balances = new LinkedHashMap<List<Object>, StockSnapshot>();
+		GregorianCalendar from = repository.findLastDateUntil(date);
+		if (from != null) {
+			for (StockSnapshot snapshot : repository.findByDate(from)) {
+				_add(balances, snapshot.getMedicalCode(), snapshot.getLotCode(), snapshot.getWardCode(), snapshot.getQuantity());
+			}
+		} else {
+			from = _getFirstMovementDate();
+		}
+		if (from != null) {
+			_addMovements(balances, from, date);
+		}
+		return _toList(balances, date);
+	}
+
+	/**
+	 * Retrieves the main store quantity of every medical at the specified date, taking in account all the movements
+	 * dated strictly before it.
+	 * @param date the balance date.
+	 * @return the quantities by medical code; medicals without stock are not returned.
+	 * @throws OHServiceException if an error occurs retrieving the balances.
+	 */
+	public Map<Integer, Double> getMainStoreStockAtDate(GregorianCalendar date) throws OHServiceException {
+		Map<Integer, Double> quantities = new LinkedHashMap<Integer, Double>();
+		for (StockSnapshot balance : _getStockAtDate(date)) {
+			if (balance.getWardCode() == null) {
+				Double quantity = quantities.get(balance.getMedicalCode());
+				quantities.put(balance.getMedicalCode(), (quantity == null ? 0. : quantity) + balance.getQuantity());
+			}
+		}
+		return quantities;
+	}
+
+	/**
+	 * Recomputes the stock balances at the specified date from the whole movement history,
+	 * ignoring the stored snapshots.
+	 * @param date the balance date.
+	 * @return the balances, one for each medical, lot and ward (<code>null</code> for the main store).
+	 * @throws OHServiceException if an error occurs retrieving the balances.
+	 */
+	public List<StockSnapshot> getStockAtDateFromHistory(GregorianCalendar date) throws OHServiceException {
+		Map<List<Object>, StockSnapshot> balances = new LinkedHashMap<List<Object>, StockSnapshot>();
+		GregorianCalendar from = _getFirstMovementDate();
+		if (from != null) {
+			_addMovements(balances, from, date);
+		}
+		return _toList(balances, date);
+	}
+
+	/**
+	 * Stores (or replaces) the snapshot at the specified date.
+	 * @param date the snapshot date.
+	 * @return the stored balances.
+	 * @throws OHServiceException if an error occurs storing the snapshot.
+	 */
+	public List<StockSnapshot> createSnapshot(GregorianCalendar date) throws OHServiceException {
+		return _createSnapshot(date);
+	}
+
+	private List<StockSnapshot> _createSnapshot(GregorianCalendar date) {
+		// the date first: a concurrent creation of the same snapshot waits for this transaction
+		repository.deleteDate(date);
+		repository.deleteByDate(date);
+		List<StockSnapshot> balances = _getStockAtDate(date);
+		repository.insertDate(date);
+		return repository.save(balances);
+	}
+
+	/**
+	 * Stores a snapshot not stored yet: registering its date fails if another client has stored it meanwhile.
+	 */
+	private List<StockSnapshot> _createMissingSnapshot(GregorianCalendar date) {
+		List<StockSnapshot> balances = _getStockAtDate(date);
+		repository.insertDate(date);
+		return repository.save(balances);
+	}
+
+	/**
+	 * Stores the missing snapshots, one for each period boundary after the last stored
+	 * snapshot (or after the first movement) until the beginning of the current period.
+	 * @param period the snapshot period.
+	 * @return the number of snapshots created.
+	 * @throws OHServiceException if an error occurs storing the snapshots.
+	 */
+	public int updateSnapshots(SnapshotPeriod period) throws OHServiceException {
+		return updateSnapshots(period, new GregorianCalendar());
+	}
+
+	/**
+	 * Stores the missing snapshots, one for each period boundary after the last stored
+	 * snapshot (or after the first movement) until the specified date.
+	 * <p>
+	 * Outside of a transaction every snapshot is committed on its own, so an interrupted catch-up keeps the
+	 * snapshots already created. It stops at the first snapshot being created by another client.
+	 * @param period the snapshot period.
+	 * @param until the last date to consider.
+	 * @return the number of snapshots created.
+	 * @throws OHServiceException if an error occurs storing the snapshots.
+	 */
+	@Transactional(propagation=Propagation.SUPPORTS, rollbackFor=OHServiceException.class)
+	public int updateSnapshots(SnapshotPeriod period, GregorianCalendar until) throws OHServiceException {
+		GregorianCalendar last = repository.findMaxDate();
+		if (last == null) {
+			last = _getFirstMovementDate();
+			if (last == null) {
+				return 0;
+			}
+		}
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		int created = 0;
+		GregorianCalendar boundary = nextBoundary(last, period);
+		while (!boundary.after(until)) {
+			final GregorianCalendar date = boundary;
+			try {
+				transaction.execute(status -> _createMissingSnapshot(date));
+			} catch (DataIntegrityViolationException | ConcurrencyFailureException e) {
+				LOGGER.info("Stock snapshot at {} created by another client", date.getTime());
+				break;
+			}
+			created++;
+			boundary = nextBoundary(boundary, period);
+		}
+		return created;
+	}
+
+	/**
+	 * Drops the snapshots that include a movement dated at the specified date, that is the ones dated after it.
+	 * They are created again by the next {@link #updateSnapshots(SnapshotPeriod)}.
+	 * @param date the date of a stored, changed or deleted movement.
+	 * @return the number of dropped balances.
+	 * @throws OHServiceException if an error occurs dropping the snapshots.
+	 */
+	public int invalidateSnapshots(GregorianCalendar date) throws OHServiceException {
+		if (date == null) {
+			return 0;
+		}
+		repository.deleteDatesAfter(date);
+		return repository.deleteAfter(date);
+	}
+
+	/**
+	 * Drops the snapshots that include the specified {@link Movement}, before storing it:
+	 * for a movement already stored the snapshots including its stored date are dropped as well.
+	 * @param movement the movement to store.
+	 * @return the number of dropped balances.
+	 * @throws OHServiceException if an error occurs dropping the snapshots.
+	 */
+	public int invalidateSnapshots(Movement movement) throws OHServiceException {
+		GregorianCalendar storedDate = movement.getCode() == 0 ? null : repository.findMovementDate(movement.getCode());
+		return invalidateSnapshots(_min(storedDate, movement.getDate()));
+	}
+
+	/**
+	 * Drops the snapshots that include the specified {@link MovementWard}, before storing, changing or deleting it:
+	 * for a movement already stored the snapshots including its stored date are dropped as well.
+	 * @param movement the ward movement.
+	 * @return the number of dropped balances.
+	 * @throws OHServiceException if an error occurs dropping the snapshots.
+	 */
+	public int invalidateSnapshots(MovementWard movement) throws OHServiceException {
+		GregorianCalendar storedDate = movement.getCode() == 0 ? null : repository.findMovementWardDate(movement.getCode());
+		return invalidateSnapshots(_min(storedDate, movement.getDate()));
+	}
+
+	/**
+	 * Checks every stored snapshot against a full recompute from the movement history.
+	 * @return the expected balances that differ from the stored ones (empty if all the snapshots are consistent).
+	 * @throws OHServiceException if an error occurs retrieving the balances.
+	 */
+	public List<StockSnapshot> verifySnapshots() throws OHServiceException {
+		List<StockSnapshot> mismatches = new ArrayList<StockSnapshot>();
+		for (GregorianCalendar date : repository.findAllDates()) {
+			Map<List<Object>, StockSnapshot> stored = new LinkedHashMap<List<Object>, StockSnapshot>();
+			for (StockSnapshot snapshot : repository.findByDate(date)) {
+				_add(stored, snapshot.getMedicalCode(), snapshot.getLotCode(), snapshot.getWardCode(), snapshot.getQuantity());
+			}
+			Set<List<Object>> checked = new HashSet<List<Object>>();
+			for (StockSnapshot expected : getStockAtDateFromHistory(date)) {
+				List<Object> key = _key(expected.getMedicalCode(), expected.getLotCode(), expected.getWardCode());
+				checked.add(key);
+				StockSnapshot actual = stored.get(key);
+				if (actual == null || Math.abs(actual.getQuantity() - expected.getQuantity()) > EPSILON) {
+					mismatches.add(expected);
+				}
+			}
+			for (Map.Entry<List<Object>, StockSnapshot> entry : stored.entrySet()) {
+				StockSnapshot actual = entry.getValue();
+				if (!checked.contains(entry.getKey()) && Math.abs(actual.getQuantity()) > EPSILON) {
+					mismatches.add(new StockSnapshot(date, actual.getMedicalCode(), actual.getLotCode(), actual.getWardCode(), 0.));
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Returns the first period boundary strictly after the specified date.
+	 * @param date the date.
+	 * @param period the snapshot period.
+	 * @return the boundary (midnight of the next day or first day of the next month).
+	 */
+	public static GregorianCalendar nextBoundary(GregorianCalendar date, SnapshotPeriod period) {
+		GregorianCalendar boundary = new GregorianCalendar(date.get(GregorianCalendar.YEAR), date.get(GregorianCalendar.MONTH), date.get(GregorianCalendar.DAY_OF_MONTH));
+		if (period == SnapshotPeriod.MONTHLY) {
+			boundary.set(GregorianCalendar.DAY_OF_MONTH, 1);
+			boundary.add(GregorianCalendar.MONTH, 1);
+		} else {
+			boundary.add(GregorianCalendar.DAY_OF_MONTH, 1);
+		}
+		return boundary;
+	}
+
+	private static GregorianCalendar _min(GregorianCalendar date1, GregorianCalendar date2) {
+		if (date1 == null || (date2 != null && date2.before(date1))) {
+			return date2;
+		}
+		return date1;
+	}
+
+	private GregorianCalendar _getFirstMovementDate() {
+		GregorianCalendar first = repository.findMinMovementDate();
+		GregorianCalendar firstWard = repository.findMinMovementWardDate();
+		if (first == null || (firstWard != null && firstWard.before(first))) {
+			return firstWard;
+		}
+		return first;
+	}
+
+	private void _addMovements(Map<List<Object>, StockSnapshot> balances, GregorianCalendar from, GregorianCalendar to) {
+		for (Object[] row : repository.findMainStoreQuantities(from, to)) {
+			_add(balances, (Integer) row[0], (String) row[1], null, ((Number) row[2]).doubleValue());
+		}
+		for (Object[] row : repository.findWardIncomingQuantities(from, to)) {
+			_add(balances, (Integer) row[1], (String) row[2], (String) row[0], ((Number) row[3]).doubleValue());
+		}
+		for (Object[] row : repository.findWardOutgoingQuantities(from, to)) {
+			_add(balances, (Integer) row[1], (String) row[2], (String) row[0], -((Number) row[3]).doubleValue());
+		}
+	}
+
+	private static List<Object> _key(Integer medical, String lot, String ward) {
+		return Arrays.<Object>asList(medical, lot, ward);
+	}
+
+	private static void _add(Map<List<Object>, StockSnapshot> balances, Integer medical, String lot, String ward, double quantity) {
+		List<Object> key = _key(medical, lot, ward);
+		StockSnapshot balance = balances.get(key);
+		if (balance == null) {
+			balances.put(key, new StockSnapshot(null, medical, lot, ward, quantity));
+		} else {
+			balance.setQuantity(balance.getQuantity() + quantity);
+		}
+	}
+
+	private static List<StockSnapshot> _toList(Map<List<Object>, StockSnapshot> balances, GregorianCalendar date) {
+		List<StockSnapshot> result = new ArrayList<StockSnapshot>(balances.size());
+		for (StockSnapshot balance : balances.values()) {
+			if (Math.abs(balance.getQuantity()) > EPSILON) {
+				balance.setDate(date);
+				result.add(balance);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import org.isf.generaldata.GeneralData;
+import org.isf.medicalstock.service.StockSnapshotIoOperations.SnapshotPeriod;
+import org.isf.utils.exception.OHServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background job that keeps the stock snapshots up to date, creating
+ * the missing ones every {@link GeneralData}<code>.STOCKSNAPSHOTLOOP</code> seconds.
+ * It is started with the application by {@link StockSnapshotJobStarter} and stops when interrupted.
+ */
+public class StockSnapshotJob implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StockSnapshotJob.class);
+
+	private final StockSnapshotIoOperations ioOperations;
+
+	private boolean running = true;
+	private int delay = 3600;
+	private SnapshotPeriod period = SnapshotPeriod.MONTHLY;
+
+	public StockSnapshotJob(StockSnapshotIoOperations ioOperations) {
+		LOGGER.info("Stock Snapshot Job started...");
+		this.ioOperations = ioOperations;
+		GeneralData.getGeneralData();
+		delay = GeneralData.STOCKSNAPSHOTLOOP;
+		try {
+			period = SnapshotPeriod.valueOf(GeneralData.STOCKSNAPSHOTPERIOD.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			LOGGER.error("Unknown stock snapshot period '{}', using {}", GeneralData.STOCKSNAPSHOTPERIOD, period);
+		}
+		LOGGER.info("Stock Snapshot Job loop set to {} seconds, period {}.", delay, period);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			LOGGER.debug("Stock Snapshot Job running...");
+			try {
+				int created = ioOperations.updateSnapshots(period);
+				if (created > 0) {
+					LOGGER.info("Created {} stock snapshots", created);
+				}
+			} catch (OHServiceException | RuntimeException e) {
+				LOGGER.error("Failed updating stock snapshots: {}", e.getMessage());
+			}
+			try {
+				Thread.sleep(delay * 1000L);
+			} catch (InterruptedException e) {
+				LOGGER.info("Stock Snapshot Job stopped");
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * @param running
+	 *            the running to set
+	 */
+	public void setRunning(boolean running) {
+		this.running = running;
+	}
+}
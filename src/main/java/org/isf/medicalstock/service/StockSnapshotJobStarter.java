@@ -0,0 +1,50 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import org.isf.generaldata.GeneralData;
+import org.isf.utils.jobs.JobStarter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Starts the {@link StockSnapshotJob} with the application when <code>STOCKSNAPSHOTLOOP</code> in settings.properties
+ * is set (<code>0</code>, the default, disables it): it is meant to be enabled on one client only, though
+ * a snapshot created by two clients at once is stored only once.
+ */
+@Component
+public class StockSnapshotJobStarter extends JobStarter {
+
+	@Autowired
+	private StockSnapshotIoOperations ioOperations;
+
+	@Override
+	protected boolean isJobEnabled() {
+		GeneralData.getGeneralData();
+		return GeneralData.STOCKSNAPSHOTLOOP > 0;
+	}
+
+	@Override
+	protected Runnable createJob() {
+		return new StockSnapshotJob(ioOperations);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstock.service;
+
+import java.util.List;
+
+import org.isf.medicalstock.model.StockSnapshot;
+import org.isf.menu.manager.Context;
+import org.isf.utils.exception.OHServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Command line check of the stored stock snapshots against a full recompute
+ * from the movement history; exits with status 1 if any snapshot is inconsistent.
+ */
+public class StockSnapshotVerifier {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StockSnapshotVerifier.class);
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("applicationContext.xml");
+		int status = 0;
+		try {
+			Context.setApplicationContext(context);
+			List<StockSnapshot> mismatches = context.getBean(StockSnapshotIoOperations.class).verifySnapshots();
+			for (StockSnapshot expected : mismatches) {
+				LOGGER.warn("Mismatch at {}: expected {}", expected.getDate().getTime(), expected);
+			}
+			if (mismatches.isEmpty()) {
+				LOGGER.info("Stock snapshots OK.");
+			} else {
+				LOGGER.warn("{} stock snapshot mismatches found.", mismatches.size());
+			}
+			status = mismatches.isEmpty() ? 0 : 1;
+		} catch (OHServiceException e) {
+			LOGGER.error("Failed verifying stock snapshots: {}", e.getMessage());
+			status = 2;
+		} finally {
+			context.close();
+		}
+		System.exit(status);
+	}
+}
@@ -22,10 +22,12 @@
 package org.isf.medicalstockward.manager;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
 
 import org.isf.generaldata.MessageBundle;
 import org.isf.medicals.model.Medical;
@@ -38,6 +40,7 @@ import org.isf.patient.model.Patient;
 import org.isf.serviceprinting.print.MedicalWardForPrint;
 import org.isf.serviceprinting.print.MovementForPrint;
 import org.isf.serviceprinting.print.MovementWardForPrint;
+import org.isf.utils.db.KeysetCursor;
 import org.isf.utils.exception.OHDataValidationException;
 import org.isf.utils.exception.OHServiceException;
 import org.isf.utils.exception.model.OHExceptionMessage;
@@ -118,6 +121,28 @@ public class MovWardBrowserManager {
 		return ioOperations.getMedicalsWardTotalQuantity(wardId);
 	}
 
+	/**
+	 * Gets, for every ward, the {@link MedicalWard}s summarized by lot (total quantity, regardless the lot).
+	 *
+	 * @return the retrieved medicals by ward code.
+	 * @throws OHServiceException
+	 */
+	public Map<String, List<MedicalWard>> getMedicalsWardTotalQuantities() throws OHServiceException {
+		return ioOperations.getMedicalsWardTotalQuantities();
+	}
+
+	/**
+	 * Gets the specified {@link Medical}s, with their main store quantities, together with their total quantity
+	 * in all the wards.
+	 *
+	 * @param medicalCodes the codes of the medicals.
+	 * @return the {@link MedicalWard}s (no ward, no lot) by medical code.
+	 * @throws OHServiceException
+	 */
+	public Map<Integer, MedicalWard> getMedicalsWardTotalQuantity(Collection<Integer> medicalCodes) throws OHServiceException {
+		return ioOperations.getMedicalsWardTotalQuantity(medicalCodes);
+	}
+
 	/**
 	 * Gets all the movement ward with the specified criteria.
 	 *
@@ -131,6 +156,23 @@ public class MovWardBrowserManager {
 		return ioOperations.getWardMovements(wardId, dateFrom, dateTo);
 	}
 
+	/**
+	 * Gets a page of the movement ward with the specified criteria.
+	 *
+	 * @param wardId the ward id.
+	 * @param dateFrom the lower bound for the movement date range.
+	 * @param dateTo the upper bound for the movement date range.
+	 * @param after the cursor of the last movement of the previous page (see {@link MedicalStockWardIoOperations#getCursor(MovementWard)}),
+	 * <code>null</code> for the first page.
+	 * @param pageSize the maximum number of movements to retrieve.
+	 * @return the retrieved movements.
+	 * @throws OHServiceException
+	 */
+	public List<MovementWard> getMovementWard(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo,
+			KeysetCursor after, int pageSize) throws OHServiceException {
+		return ioOperations.getWardMovements(wardId, dateFrom, dateTo, after, pageSize);
+	}
+
 	/**
 	 * Gets all the movement ward with the specified criteria.
 	 *
@@ -21,6 +21,7 @@
  */
 package org.isf.medicalstockward.service;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.isf.medicalstockward.model.MedicalWard;
@@ -50,6 +51,33 @@ public interface MedicalStockWardIoOperationRepository extends JpaRepository<Med
 			"where medWard.id.medical.code=:medical and medWard.id.ward.code=:ward")
 	Double findQuantityInWardWhereMedicalAndWard(@Param("medical") int medical, @Param("ward") String ward);
 
+	/**
+	 * Rows (ward code, medical code, total quantity) of the medicals with at least one non-empty lot in the ward
+	 */
+	@Query(value = "select medWard.id.ward.code, medWard.id.medical.code, sum(medWard.in_quantity-medWard.out_quantity) " +
+			"from MedicalWard medWard where medWard.id.ward.code=:ward " +
+			"group by medWard.id.ward.code, medWard.id.medical.code " +
+			"having sum(case when medWard.in_quantity <> medWard.out_quantity then 1 else 0 end) > 0 " +
+			"order by medWard.id.medical.code")
+	List<Object[]> findTotalQuantityWhereWardGroupByMedical(@Param("ward") String ward);
+
+	/**
+	 * Rows (ward code, medical code, total quantity) of the medicals with at least one non-empty lot, for every ward
+	 */
+	@Query(value = "select medWard.id.ward.code, medWard.id.medical.code, sum(medWard.in_quantity-medWard.out_quantity) " +
+			"from MedicalWard medWard " +
+			"group by medWard.id.ward.code, medWard.id.medical.code " +
+			"having sum(case when medWard.in_quantity <> medWard.out_quantity then 1 else 0 end) > 0 " +
+			"order by medWard.id.ward.code, medWard.id.medical.code")
+	List<Object[]> findTotalQuantityGroupByWardAndMedical();
+
+	/**
+	 * Rows (medical, total quantity in all the wards) of the specified medicals, including the ones without ward stock
+	 */
+	@Query(value = "select med, (select sum(medWard.in_quantity-medWard.out_quantity) from MedicalWard medWard " +
+			"where medWard.id.medical.code=med.code) from Medical med join fetch med.type where med.code in :medicals")
+	List<Object[]> findMedicalAndQuantityInWardsWhereMedicalIn(@Param("medicals") Collection<Integer> medicals);
+
 	@Modifying
 	@Transactional
 	@Query(value = "UPDATE MEDICALDSRWARD SET MDSRWRD_IN_QTI = MDSRWRD_IN_QTI + :quantity WHERE MDSRWRD_WRD_ID_A = :ward AND MDSRWRD_MDSR_ID = :medical AND MDSRWRD_LT_ID_A = :lot", nativeQuery = true)
@@ -69,6 +97,28 @@ public interface MedicalStockWardIoOperationRepository extends JpaRepository<Med
 			"VALUES (?, ?, ?, '0', ?)", nativeQuery = true)
 	void insertMedicalWard(@Param("ward") String ward, @Param("medical") int medical, @Param("quantity") Double quantity, @Param("lot") String lot);
 
+	/**
+	 * Rows (ward code, medical code, lot code) of the stored ward lots for the specified wards and medicals
+	 */
+	@Query(value = "select medWard.id.ward.code, medWard.id.medical.code, medWard.id.lot.code from MedicalWard medWard " +
+			"where medWard.id.ward.code in :wards and medWard.id.medical.code in :medicals")
+	List<Object[]> findKeysWhereWardInAndMedicalIn(@Param("wards") Collection<String> wards, @Param("medicals") Collection<Integer> medicals);
+
+	/**
+	 * Rows (ward code, medical code, lot code, quantity) of all the stored ward lots
+	 */
+	@Query(value = "select medWard.id.ward.code, medWard.id.medical.code, medWard.id.lot.code, medWard.in_quantity-medWard.out_quantity " +
+			"from MedicalWard medWard")
+	List<Object[]> findAllQuantities();
+
+	/**
+	 * Rows (medical code, lot code, quantity) of the main store movements discharged to the specified ward
+	 */
+	@Query(value = "select mov.medical.code, mov.lot.code, sum(mov.quantity) from Movement mov " +
+			"where mov.ward.code=:ward and mov.type.type not like '%+%' " +
+			"group by mov.medical.code, mov.lot.code")
+	List<Object[]> findDischargedQuantitiesWhereWardGroupByMedicalAndLot(@Param("ward") String ward);
+
 	@Query(value = "SELECT * FROM MEDICALDSRWARD WHERE MDSRWRD_WRD_ID_A = :ward", nativeQuery = true)
 	List<MedicalWard> findAllWhereWard(@Param("ward") char wardId);
 
@@ -21,6 +21,9 @@
  */
 package org.isf.medicalstockward.service;
 
+import org.isf.medicalstockward.model.MedicalWard;
+import org.isf.medicalstockward.model.MovementWard;
+import org.isf.utils.db.KeysetCursor;
 import org.springframework.stereotype.Repository;
 
 import java.util.GregorianCalendar;
@@ -30,5 +33,36 @@ import java.util.List;
 public interface MedicalStockWardIoOperationRepositoryCustom {
 
 	List<Integer> findAllWardMovement(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo);
+
+	/**
+	 * Applies the same filters and ordering as {@link #findAllWardMovement(String, GregorianCalendar, GregorianCalendar)}
+	 * but returns fully populated movements (ward, wardTo, wardFrom, medical, lot and patient fetched) in a single statement.
+	 */
+	List<MovementWard> fetchAllWardMovement(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo);
+
+	/**
+	 * Retrieves at most pageSize ward movements following the cursor (the first page when it is null),
+	 * in date and code ascending order, seeking past the cursor so that every page costs the same whatever its depth.
+	 */
+	List<MovementWard> findWardMovementPage(String wardId, GregorianCalendar dateFrom, GregorianCalendar dateTo,
+											KeysetCursor after, int pageSize);
+
+	/**
+	 * Adds, with JDBC batching and one UPDATE per row, the incoming and outgoing quantities of the specified
+	 * {@link MedicalWard}s to the stored rows with the same ward, medical and lot.
+	 * @param deltas the quantities to add.
+	 * @return the number of updated rows.
+	 */
+	int increaseQuantities(List<MedicalWard> deltas);
+
+	/**
+	 * Inserts the specified {@link MedicalWard}s with JDBC batching.
+	 * The rows are not attached to the persistence context.
+	 * @param medicalWards the rows to insert.
+	 * @return the number of inserted rows.
+	 */
+	int insertMedicalWards(List<MedicalWard> medicalWards);
+
+	int setQuantities(List<MedicalWard> medicalWards);
 	
 }
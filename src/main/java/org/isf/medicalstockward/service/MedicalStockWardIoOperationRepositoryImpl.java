@@ -21,7 +21,12 @@
  */
 package org.isf.medicalstockward.service;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 
@@ -29,13 +34,21 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.isf.medicalstockward.model.MedicalWard;
 import org.isf.medicalstockward.model.MovementWard;
+import org.isf.utils.db.KeysetCursor;
 import org.isf.ward.model.Ward;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.AuditorAware;
 import org.springframework.transaction.annotation.Transactional;
 
 @Transactional
@@ -44,10 +57,29 @@ public class MedicalStockWardIoOperationRepositoryImpl implements MedicalStockWa
 	private static final String WARD = "ward";
 	private static final String DATE = "date";
 	private static final String CODE = "code";
+	private static final String WARD_TO = "wardTo";
+	private static final String WARD_FROM = "wardFrom";
+	private static final String MEDICAL = "medical";
+	private static final String TYPE = "type";
+	private static final String LOT = "lot";
+	private static final String PATIENT = "patient";
+
+	private static final int BATCH_SIZE = 100;
+	private static final String UPDATE_QUANTITIES = "UPDATE MEDICALDSRWARD SET MDSRWRD_IN_QTI = MDSRWRD_IN_QTI + ?, "
+			+ "MDSRWRD_OUT_QTI = MDSRWRD_OUT_QTI + ? WHERE MDSRWRD_WRD_ID_A = ? AND MDSRWRD_MDSR_ID = ? AND MDSRWRD_LT_ID_A = ?";
+	private static final String INSERT_MEDICAL_WARD = "INSERT INTO MEDICALDSRWARD (MDSRWRD_WRD_ID_A, MDSRWRD_MDSR_ID, MDSRWRD_LT_ID_A, "
+			+ "MDSRWRD_IN_QTI, MDSRWRD_OUT_QTI, MDSRWRD_CREATED_BY, MDSRWRD_CREATED_DATE, MDSRWRD_LAST_MODIFIED_BY, "
+			+ "MDSRWRD_LAST_MODIFIED_DATE, MDSRWRD_ACTIVE) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String SET_QUANTITIES = "UPDATE MEDICALDSRWARD SET MDSRWRD_IN_QTI = ?, MDSRWRD_OUT_QTI = ?, "
+			+ "MDSRWRD_LAST_MODIFIED_BY = ?, MDSRWRD_LAST_MODIFIED_DATE = ? "
+			+ "WHERE MDSRWRD_WRD_ID_A = ? AND MDSRWRD_MDSR_ID = ? AND MDSRWRD_LT_ID_A = ?";
 
 	@PersistenceContext
 	private EntityManager entityManager;
 
+	@Autowired
+	private AuditorAware<String> auditorAware;
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public List<Integer> findAllWardMovement(
@@ -59,6 +91,207 @@ public class MedicalStockWardIoOperationRepositoryImpl implements MedicalStockWa
 		CriteriaQuery<Integer> query = builder.createQuery(Integer.class);
 		Root<MovementWard> root = query.from(MovementWard.class);
 		query.select(root.<Integer>get(CODE));
+		List<Predicate> predicates = _getPredicates(builder, root, wardId, dateFrom, dateTo);
+
+		List<Order> orderList = new ArrayList<>();
+		orderList.add(builder.asc(root.get(DATE)));
+
+		query.where(predicates.toArray(new Predicate[] {})).orderBy(orderList);
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	@Override
+	public List<MovementWard> fetchAllWardMovement(
+			String wardId,
+			GregorianCalendar dateFrom,
+			GregorianCalendar dateTo) {
+
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<MovementWard> query = builder.createQuery(MovementWard.class);
+		Root<MovementWard> root = query.from(MovementWard.class);
+		_fetchAssociations(root);
+		query.select(root);
+		List<Predicate> predicates = _getPredicates(builder, root, wardId, dateFrom, dateTo);
+
+		List<Order> orderList = new ArrayList<>();
+		orderList.add(builder.asc(root.get(DATE)));
+
+		query.where(predicates.toArray(new Predicate[] {})).orderBy(orderList);
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	@Override
+	public List<MovementWard> findWardMovementPage(
+			String wardId,
+			GregorianCalendar dateFrom,
+			GregorianCalendar dateTo,
+			KeysetCursor after,
+			int pageSize) {
+
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<MovementWard> query = builder.createQuery(MovementWard.class);
+		Root<MovementWard> root = query.from(MovementWard.class);
+		_fetchAssociations(root);
+		query.select(root);
+		List<Predicate> predicates = _getPredicates(builder, root, wardId, dateFrom, dateTo);
+
+		if (after != null) {
+			// the redundant date >= cursor date term lets the database start a range scan of the date index at the cursor
+			Path<GregorianCalendar> date = root.get(DATE);
+			Path<Integer> code = root.get(CODE);
+			predicates.add(builder.greaterThanOrEqualTo(date, after.getDate()));
+			predicates.add(builder.or(
+					builder.greaterThan(date, after.getDate()),
+					builder.greaterThan(code, after.getCode())));
+		}
+
+		List<Order> orderList = new ArrayList<>();
+		orderList.add(builder.asc(root.get(DATE)));
+		orderList.add(builder.asc(root.get(CODE)));
+
+		query.where(predicates.toArray(new Predicate[] {})).orderBy(orderList);
+		return entityManager.createQuery(query).setMaxResults(pageSize).getResultList();
+	}
+
+	@Override
+	public int increaseQuantities(final List<MedicalWard> deltas) {
+		if (deltas.isEmpty()) {
+			return 0;
+		}
+		entityManager.flush();
+		final int[] updated = new int[1];
+		entityManager.unwrap(Session.class).doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(UPDATE_QUANTITIES);
+				try {
+					for (int from = 0; from < deltas.size(); from += BATCH_SIZE) {
+						for (MedicalWard delta : deltas.subList(from, Math.min(from + BATCH_SIZE, deltas.size()))) {
+							statement.setFloat(1, delta.getInQuantity());
+							statement.setFloat(2, delta.getOutQuantity());
+							statement.setString(3, delta.getWard().getCode());
+							statement.setInt(4, delta.getMedical().getCode());
+							statement.setString(5, delta.getLot().getCode());
+							statement.addBatch();
+						}
+						for (int count : statement.executeBatch()) {
+							updated[0] += count > 0 ? count : 0;
+						}
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		return updated[0];
+	}
+
+	@Override
+	public int insertMedicalWards(final List<MedicalWard> medicalWards) {
+		if (medicalWards.isEmpty()) {
+			return 0;
+		}
+		entityManager.flush();
+		final String user = auditorAware.getCurrentAuditor();
+		final Date now = new Date();
+		entityManager.unwrap(Session.class).doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(INSERT_MEDICAL_WARD);
+				try {
+					int pending = 0;
+					for (MedicalWard medicalWard : medicalWards) {
+						medicalWard.setCreatedBy(user);
+						medicalWard.setCreatedDate(now);
+						medicalWard.setLastModifiedBy(user);
+						medicalWard.setLastModifiedDate(now);
+						statement.setString(1, medicalWard.getWard().getCode());
+						statement.setInt(2, medicalWard.getMedical().getCode());
+						statement.setString(3, medicalWard.getLot().getCode());
+						statement.setFloat(4, medicalWard.getInQuantity());
+						statement.setFloat(5, medicalWard.getOutQuantity());
+						statement.setString(6, user);
+						statement.setTimestamp(7, new Timestamp(now.getTime()));
+						statement.setString(8, user);
+						statement.setTimestamp(9, new Timestamp(now.getTime()));
+						statement.setInt(10, medicalWard.getActive());
+						statement.addBatch();
+						if (++pending == BATCH_SIZE) {
+							statement.executeBatch();
+							pending = 0;
+						}
+					}
+					if (pending > 0) {
+						statement.executeBatch();
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		return medicalWards.size();
+	}
+
+	@Override
+	public int setQuantities(final List<MedicalWard> medicalWards) {
+		if (medicalWards.isEmpty()) {
+			return 0;
+		}
+		entityManager.flush();
+		final String user = auditorAware.getCurrentAuditor();
+		final Timestamp now = new Timestamp(System.currentTimeMillis());
+		final int[] updated = new int[1];
+		entityManager.unwrap(Session.class).doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(SET_QUANTITIES);
+				try {
+					for (int from = 0; from < medicalWards.size(); from += BATCH_SIZE) {
+						for (MedicalWard medicalWard : medicalWards.subList(from, Math.min(from + BATCH_SIZE, medicalWards.size()))) {
+							statement.setFloat(1, medicalWard.getInQuantity());
+							statement.setFloat(2, medicalWard.getOutQuantity());
+							statement.setString(3, user);
+							statement.setTimestamp(4, now);
+							statement.setString(5, medicalWard.getWard().getCode());
+							statement.setInt(6, medicalWard.getMedical().getCode());
+							statement.setString(7, medicalWard.getLot().getCode());
+							statement.addBatch();
+						}
+						for (int count : statement.executeBatch()) {
+							updated[0] += count > 0 ? count : 0;
+						}
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		return updated[0];
+	}
+
+	/**
+	 * Fetches in the same statement every association of {@link MovementWard} (and the type
+	 * of its medical) that would otherwise be loaded eagerly one row at a time.
+	 * @param root the movement root of the query.
+	 */
+	private void _fetchAssociations(Root<MovementWard> root) {
+		root.fetch(WARD, JoinType.LEFT);
+		root.fetch(WARD_TO, JoinType.LEFT);
+		root.fetch(WARD_FROM, JoinType.LEFT);
+		root.fetch(MEDICAL, JoinType.LEFT).fetch(TYPE, JoinType.LEFT);
+		root.fetch(LOT, JoinType.LEFT);
+		root.fetch(PATIENT, JoinType.LEFT);
+	}
+
+	private List<Predicate> _getPredicates(
+			CriteriaBuilder builder,
+			Root<MovementWard> root,
+			String wardId,
+			GregorianCalendar dateFrom,
+			GregorianCalendar dateTo) {
 		List<Predicate> predicates = new ArrayList<>();
 
 		if (!StringUtils.isEmpty(wardId)) {
@@ -67,11 +300,6 @@ public class MedicalStockWardIoOperationRepositoryImpl implements MedicalStockWa
 		if ((dateFrom != null) && (dateTo != null)) {
 			predicates.add(builder.between(root.<GregorianCalendar>get(DATE), dateFrom, dateTo));
 		}
-
-		List<Order> orderList = new ArrayList<>();
-		orderList.add(builder.asc(root.get(DATE)));
-
-		query.where(predicates.toArray(new Predicate[] {})).orderBy(orderList);
-		return entityManager.createQuery(query).getResultList();
+		return predicates;
 	}
 }
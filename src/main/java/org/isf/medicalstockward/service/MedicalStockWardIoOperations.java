@@ -22,19 +22,29 @@
 package org.isf.medicalstockward.service;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.isf.medicals.model.Medical;
+import org.isf.medicals.service.MedicalsIoOperationRepository;
 import org.isf.medicalstock.model.Lot;
 import org.isf.medicalstock.model.Movement;
 import org.isf.medicalstock.service.LotIoOperationRepository;
+import org.isf.medicalstock.service.StockSnapshotIoOperations;
 import org.isf.medicalstockward.model.MedicalWard;
 import org.isf.medicalstockward.model.MovementWard;
 import org.isf.patient.model.Patient;
+import org.isf.utils.db.KeysetCursor;
 import org.isf.utils.db.TranslateOHServiceException;
 import org.isf.utils.exception.OHServiceException;
 import org.isf.ward.model.Ward;
+import org.isf.ward.service.WardIoOperationRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -54,6 +64,14 @@ public class MedicalStockWardIoOperations
 	private MovementWardIoOperationRepository movementRepository;
 	@Autowired
 	private LotIoOperationRepository lotRepository;
+	@Autowired
+	private MedicalsIoOperationRepository medicalRepository;
+	@Autowired
+	private WardIoOperationRepository wardRepository;
+	@Autowired
+	private WardStockLedger ledger;
+	@Autowired
+	private StockSnapshotIoOperations stockSnapshotIoOperations;
 	
 	/**
 	 * Get all {@link MovementWard}s with the specified criteria.
@@ -68,18 +86,36 @@ public class MedicalStockWardIoOperations
 			GregorianCalendar dateFrom, 
 			GregorianCalendar dateTo) throws OHServiceException 
 	{
-		List<Integer> pMovementWardCode = null;
-		List<MovementWard> pMovementWard = new ArrayList<>();
-
-		pMovementWardCode = new ArrayList<>(repository.findAllWardMovement(wardId, dateFrom, dateTo));
-        for (Integer code : pMovementWardCode) {
-            MovementWard movementWard = movementRepository.findOne(code);
+		return new ArrayList<>(repository.fetchAllWardMovement(wardId, dateFrom, dateTo));
+	}
 
+	/**
+	 * Get a page of the {@link MovementWard}s with the specified criteria, ordered by date and code.
+	 * @param wardId the ward id.
+	 * @param dateFrom the lower bound for the movement date range.
+	 * @param dateTo the upper bound for the movement date range.
+	 * @param after the {@link KeysetCursor} of the last movement of the previous page, <code>null</code> for the first page.
+	 * @param pageSize the maximum number of movements to retrieve.
+	 * @return the retrieved movements.
+	 * @throws OHServiceException if an error occurs retrieving the movements.
+	 */
+	public List<MovementWard> getWardMovements(
+			String wardId, 
+			GregorianCalendar dateFrom, 
+			GregorianCalendar dateTo,
+			KeysetCursor after,
+			int pageSize) throws OHServiceException 
+	{
+		return repository.findWardMovementPage(wardId, dateFrom, dateTo, after, pageSize);
+	}
 
-            pMovementWard.add(movementWard);
-        }
-		
-		return pMovementWard;
+	/**
+	 * Returns the {@link KeysetCursor} positioned on the specified {@link MovementWard}, to retrieve the following page.
+	 * @param movement the last movement of a page.
+	 * @return the cursor.
+	 */
+	public static KeysetCursor getCursor(MovementWard movement) {
+		return new KeysetCursor(movement.getDate(), movement.getCode());
 	}
         
     /**
@@ -109,6 +145,9 @@ public class MedicalStockWardIoOperations
 	{
 		Double mainQuantity = 0.0;
 		
+		if (ledger.isEnabled()) {
+			return (int) (ward != null ? ledger.getQuantity(ward.getCode(), medical.getCode()) : ledger.getQuantity(medical.getCode()));
+		}
 
 		if (ward!=null) 
 		{
@@ -134,7 +173,10 @@ public class MedicalStockWardIoOperations
 			Lot lot) throws OHServiceException 
 	{
 		Double quantity;
-		if (ward != null) {
+		if (ledger.isEnabled() && lot.getMedical() != null) {
+			quantity = ward != null ? ledger.getQuantity(ward.getCode(), lot.getMedical().getCode(), lot.getCode())
+					: ledger.getQuantity(lot.getMedical().getCode());
+		} else if (ward != null) {
 			quantity = lotRepository.getQuantityByWard(lot, ward);
 		} else {
 			quantity = repository.findQuantityInWardWhereMedical(lot.getMedical().getCode());
@@ -149,32 +191,141 @@ public class MedicalStockWardIoOperations
 	 * @throws OHServiceException if an error occurs.
 	 */
 	public void newMovementWard(MovementWard movement) throws OHServiceException {
+		stockSnapshotIoOperations.invalidateSnapshots(movement);
 		MovementWard savedMovement = movementRepository.save(movement);
 		if (savedMovement.getWardTo() != null) {
 			// We have to register also the income movement for the destination Ward
-			MovementWard destinationWardIncomeMovement = new MovementWard();
-			destinationWardIncomeMovement.setDate(savedMovement.getDate());
-			destinationWardIncomeMovement.setDescription(savedMovement.getWard().getDescription());
-			destinationWardIncomeMovement.setMedical(savedMovement.getMedical());
-			destinationWardIncomeMovement.setQuantity(-savedMovement.getQuantity());
-			destinationWardIncomeMovement.setUnits(savedMovement.getUnits());
-			destinationWardIncomeMovement.setWard(savedMovement.getWardTo());
-			destinationWardIncomeMovement.setWardFrom(savedMovement.getWard());
-			destinationWardIncomeMovement.setlot(savedMovement.getLot());
-			movementRepository.save(destinationWardIncomeMovement);
+			movementRepository.save(_getDestinationWardIncomeMovement(savedMovement));
 		}
 		updateStockWardQuantity(movement);
 	}
 
 	/**
 	 * Stores the specified {@link Movement} list.
+	 * <p>
+	 * New movements (and the income movements of their destination wards) are written with one JDBC batch, and
+	 * the MEDICALDSRWARD rows they touch are folded per ward, medical and lot into one batched update for the
+	 * rows already present and one batched insert for the missing ones. The resulting quantities are the same
+	 * as storing the movements one by one.
 	 * @param movements the movement to store.
 	 * @throws OHServiceException if an error occurs.
 	 */
 	public void newMovementWard(List<MovementWard> movements) throws OHServiceException {
+		List<MovementWard> batched = new ArrayList<>();
+		List<MovementWard> rows = new ArrayList<>();
+		Set<String> wards = new HashSet<>();
+		Set<Integer> medicals = new HashSet<>();
+		GregorianCalendar firstDate = null;
 		for (MovementWard movement : movements) {
-			newMovementWard(movement);
+			if (movement.getCode() != 0) {
+				// already stored movements keep the single path (update semantics of save())
+				newMovementWard(movement);
+				continue;
+			}
+			batched.add(movement);
+			rows.add(movement);
+			if (firstDate == null || movement.getDate().before(firstDate)) {
+				firstDate = movement.getDate();
+			}
+			wards.add(movement.getWard().getCode());
+			if (movement.getWardTo() != null) {
+				rows.add(_getDestinationWardIncomeMovement(movement));
+				wards.add(movement.getWardTo().getCode());
+			}
+			medicals.add(movement.getMedical().getCode());
+		}
+		if (rows.isEmpty()) {
+			return;
+		}
+		stockSnapshotIoOperations.invalidateSnapshots(firstDate);
+		movementRepository.insertMovementWards(rows);
+
+		Set<String> existing = new HashSet<>();
+		for (Object[] key : repository.findKeysWhereWardInAndMedicalIn(wards, medicals)) {
+			existing.add(_getStockWardKey((String) key[0], (Integer) key[1], (String) key[2]));
+		}
+		Map<String, MedicalWard> updates = new LinkedHashMap<>();
+		Map<String, MedicalWard> inserts = new LinkedHashMap<>();
+		for (MovementWard movement : batched) {
+			float qty = movement.getQuantity().floatValue();
+			if (movement.getWardTo() != null) {
+				_addStockWardQuantity(existing, updates, inserts, movement.getWardTo(), movement, Math.abs(qty), 0, true);
+				_addStockWardQuantity(existing, updates, inserts, movement.getWard(), movement, 0, Math.abs(qty), false);
+			} else if (qty < 0) {
+				_addStockWardQuantity(existing, updates, inserts, movement.getWard(), movement, -qty, 0, true);
+			} else {
+				// a missing row is created with a negative income, as updateStockWardQuantity() does
+				String key = _getStockWardKey(movement.getWard().getCode(), movement.getMedical().getCode(), movement.getLot().getCode());
+				boolean known = existing.contains(key) || inserts.containsKey(key);
+				_addStockWardQuantity(existing, updates, inserts, movement.getWard(), movement, known ? 0 : -qty, known ? qty : 0, true);
+			}
+		}
+		repository.increaseQuantities(new ArrayList<>(updates.values()));
+		repository.insertMedicalWards(new ArrayList<>(inserts.values()));
+		for (MedicalWard medicalWard : updates.values()) {
+			_addToLedger(medicalWard, false);
+		}
+		for (MedicalWard medicalWard : inserts.values()) {
+			_addToLedger(medicalWard, true);
+		}
+	}
+
+	/**
+	 * Builds the income movement registered for the destination {@link Ward} of a transfer.
+	 * @param movement the outgoing movement.
+	 * @return the income movement for {@link MovementWard#getWardTo()}.
+	 */
+	private MovementWard _getDestinationWardIncomeMovement(MovementWard movement) {
+		MovementWard destinationWardIncomeMovement = new MovementWard();
+		destinationWardIncomeMovement.setDate(movement.getDate());
+		destinationWardIncomeMovement.setDescription(movement.getWard().getDescription());
+		destinationWardIncomeMovement.setMedical(movement.getMedical());
+		destinationWardIncomeMovement.setQuantity(-movement.getQuantity());
+		destinationWardIncomeMovement.setUnits(movement.getUnits());
+		destinationWardIncomeMovement.setWard(movement.getWardTo());
+		destinationWardIncomeMovement.setWardFrom(movement.getWard());
+		destinationWardIncomeMovement.setlot(movement.getLot());
+		return destinationWardIncomeMovement;
+	}
+
+	/**
+	 * Accumulates a quantity change on the MEDICALDSRWARD row of the given ward, medical and lot.
+	 * Rows already in the database collect a delta in <code>updates</code>, rows created by this batch collect
+	 * their final quantities in <code>inserts</code>.
+	 * @param create whether a missing row has to be created (otherwise the change is dropped, as an
+	 *        <code>UPDATE</code> matching no row would do).
+	 */
+	private void _addStockWardQuantity(Set<String> existing, Map<String, MedicalWard> updates, Map<String, MedicalWard> inserts,
+			Ward ward, MovementWard movement, float in, float out, boolean create) {
+		String key = _getStockWardKey(ward.getCode(), movement.getMedical().getCode(), movement.getLot().getCode());
+		MedicalWard medicalWard;
+		if (existing.contains(key)) {
+			medicalWard = updates.get(key);
+			if (medicalWard == null) {
+				medicalWard = new MedicalWard(ward, movement.getMedical(), 0.0f, 0.0f, movement.getLot());
+				updates.put(key, medicalWard);
+			}
+		} else {
+			medicalWard = inserts.get(key);
+			if (medicalWard == null) {
+				if (!create) {
+					return;
+				}
+				medicalWard = new MedicalWard(ward, movement.getMedical(), 0.0f, 0.0f, movement.getLot());
+				inserts.put(key, medicalWard);
+			}
 		}
+		medicalWard.setInQuantity(medicalWard.getInQuantity() + in);
+		medicalWard.setOutQuantity(medicalWard.getOutQuantity() + out);
+	}
+
+	private void _addToLedger(MedicalWard medicalWard, boolean create) {
+		ledger.add(medicalWard.getWard().getCode(), medicalWard.getMedical().getCode(), medicalWard.getLot().getCode(),
+				medicalWard.getInQuantity() - medicalWard.getOutQuantity(), create);
+	}
+
+	private static String _getStockWardKey(String ward, Integer medical, String lot) {
+		return ward + '|' + medical + '|' + lot;
 	}
 
 	/**
@@ -189,6 +340,7 @@ public class MedicalStockWardIoOperations
 		boolean result = true;
 	
 
+		stockSnapshotIoOperations.invalidateSnapshots(movement);
 		MovementWard savedMovement = movementRepository.save(movement);
 		result = (savedMovement != null);
 		
@@ -207,6 +359,7 @@ public class MedicalStockWardIoOperations
 		boolean result = true;
 	
 		
+		stockSnapshotIoOperations.invalidateSnapshots(movement);
 		movementRepository.delete(movement);
 		
 		return result;
@@ -246,6 +399,8 @@ public class MedicalStockWardIoOperations
 				repository.save(medicalWard);
 			}
 			repository.updateOutQuantity(Math.abs(qty), ward, medical, lot);
+			ledger.add(wardTo, medical, lot, Math.abs(qty), true);
+			ledger.add(ward, medical, lot, -Math.abs(qty), false);
 			return result;
 		}
 
@@ -265,6 +420,8 @@ public class MedicalStockWardIoOperations
 				repository.updateOutQuantity(qty, ward, medical, lot); // TODO: change to jpa
 			}
 		}
+		// a new lot gets -qty as incoming quantity, an existing one -qty as incoming or qty as outgoing
+		ledger.add(ward, medical, lot, -qty, true);
 		return result;
 	}
 
@@ -301,25 +458,87 @@ public class MedicalStockWardIoOperations
 
 	/**
 	 * Gets all the {@link MedicalWard}s associated to the specified ward summarized by lot
-	 * (total quantity, regardless the lot)
+	 * (total quantity, regardless the lot), with one grouped query.
+	 * Medicals whose lots are all empty are not included.
 	 * @param wardId
 	 * @return the retrieved medicals.
 	 * @throws OHServiceException
 	 */
 	public List<MedicalWard> getMedicalsWardTotalQuantity(char wardId) throws OHServiceException {
 		String WardID = String.valueOf(wardId);
-		List<MedicalWard> medicalWards = getMedicalsWard(wardId, true);
+		List<MedicalWard> medicalWards = _toMedicalWards(repository.findTotalQuantityWhereWardGroupByMedical(WardID)).get(WardID);
+		return medicalWards == null ? new ArrayList<>() : medicalWards;
+	}
 
-		List<MedicalWard> medicalWardsQty = new ArrayList<>();
+	/**
+	 * Gets, for every ward, the {@link MedicalWard}s summarized by lot as {@link #getMedicalsWardTotalQuantity(char)}
+	 * does for a single ward, with one grouped query.
+	 * @return the retrieved medicals by ward code; wards without stock are not included.
+	 * @throws OHServiceException
+	 */
+	public Map<String, List<MedicalWard>> getMedicalsWardTotalQuantities() throws OHServiceException {
+		return _toMedicalWards(repository.findTotalQuantityGroupByWardAndMedical());
+	}
 
-		for (MedicalWard medicalWard : medicalWards) {
+	/**
+	 * Gets the specified {@link Medical}s, with their main store quantities, together with their total quantity
+	 * in all the wards, with one query.
+	 * @param medicalCodes the codes of the medicals.
+	 * @return the {@link MedicalWard}s (no ward, no lot) by medical code; unknown codes are not included.
+	 * @throws OHServiceException
+	 */
+	public Map<Integer, MedicalWard> getMedicalsWardTotalQuantity(Collection<Integer> medicalCodes) throws OHServiceException {
+		Map<Integer, MedicalWard> medicalWards = new LinkedHashMap<>();
+		if (medicalCodes.isEmpty()) {
+			return medicalWards;
+		}
+		for (Object[] row : repository.findMedicalAndQuantityInWardsWhereMedicalIn(medicalCodes)) {
+			Medical medical = (Medical) row[0];
+			double quantity;
+			if (ledger.isEnabled()) {
+				quantity = ledger.getQuantity(medical.getCode());
+			} else {
+				quantity = row[1] == null ? 0. : ((Number) row[1]).doubleValue();
+			}
+			medicalWards.put(medical.getCode(), new MedicalWard(medical, quantity));
+		}
+		return medicalWards;
+	}
 
-			if (!medicalWardsQty.contains(medicalWard)) {
-				Double qty = repository.findQuantityInWardWhereMedicalAndWard(medicalWard.getId().getMedical().getCode(), WardID);
-				medicalWard.setQty(qty);
-				medicalWardsQty.add(medicalWard);
+	/**
+	 * Builds the {@link MedicalWard}s from rows (ward code, medical code, total quantity),
+	 * retrieving the wards and the medicals with one query each.
+	 */
+	private Map<String, List<MedicalWard>> _toMedicalWards(List<Object[]> rows) {
+		Map<String, List<MedicalWard>> medicalWards = new LinkedHashMap<>();
+		if (rows.isEmpty()) {
+			return medicalWards;
+		}
+		Set<String> wardCodes = new HashSet<>();
+		Set<Integer> medicalCodes = new HashSet<>();
+		for (Object[] row : rows) {
+			wardCodes.add((String) row[0]);
+			medicalCodes.add((Integer) row[1]);
+		}
+		Map<String, Ward> wards = new HashMap<>();
+		for (Ward ward : wardRepository.findAll(wardCodes)) {
+			wards.put(ward.getCode(), ward);
+		}
+		Map<Integer, Medical> medicals = new HashMap<>();
+		for (Medical medical : medicalRepository.findAllWhereCodeIn(medicalCodes)) {
+			medicals.put(medical.getCode(), medical);
+		}
+		for (Object[] row : rows) {
+			String wardCode = (String) row[0];
+			MedicalWard medicalWard = new MedicalWard(medicals.get((Integer) row[1]), ((Number) row[2]).doubleValue());
+			medicalWard.setWard(wards.get(wardCode));
+			List<MedicalWard> wardList = medicalWards.get(wardCode);
+			if (wardList == null) {
+				wardList = new ArrayList<>();
+				medicalWards.put(wardCode, wardList);
 			}
+			wardList.add(medicalWard);
 		}
-		return medicalWardsQty;
+		return medicalWards;
 	}
 }
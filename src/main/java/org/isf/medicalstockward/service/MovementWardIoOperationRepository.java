@@ -32,7 +32,7 @@ import java.util.GregorianCalendar;
 import java.util.List;
 
 @Repository
-public interface MovementWardIoOperationRepository extends JpaRepository<MovementWard, Integer>{
+public interface MovementWardIoOperationRepository extends JpaRepository<MovementWard, Integer>, MovementWardIoOperationRepositoryCustom {
     @Query(value = "select movWard from MovementWard movWard where movWard.wardTo.code=:idWardTo and (movWard.date>= :dateFrom and movWard.date < :dateTo)")
     ArrayList<MovementWard> findWardMovements(@Param("idWardTo") String idWardTo,
                                               @Param("dateFrom") GregorianCalendar dateFrom,
@@ -40,6 +40,16 @@ public interface MovementWardIoOperationRepository extends JpaRepository<Movemen
 
     List<MovementWard> findByPatient_code(int code);
 
+    /**
+     * Rows (medical code, lot code, incoming quantity, outgoing quantity) of the movements of the specified ward
+     */
+    @Query(value = "select movWard.medical.code, movWard.lot.code, " +
+            "sum(case when movWard.quantity < 0 then -movWard.quantity else 0.0 end), " +
+            "sum(case when movWard.quantity < 0 then 0.0 else movWard.quantity end) " +
+            "from MovementWard movWard where movWard.ward.code=:ward " +
+            "group by movWard.medical.code, movWard.lot.code")
+    List<Object[]> findQuantitiesWhereWardGroupByMedicalAndLot(@Param("ward") String ward);
+
     @Query(value = "SELECT * FROM MEDICALDSRSTOCKMOVWARD WHERE MMVN_PAT_ID = :patId", nativeQuery= true)
     ArrayList<MovementWard> findWardMovementPat(@Param("patId") Integer patId);
 }
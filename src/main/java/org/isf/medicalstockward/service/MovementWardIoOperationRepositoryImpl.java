@@ -0,0 +1,139 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstockward.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.isf.medicalstock.model.Lot;
+import org.isf.medicalstockward.model.MovementWard;
+import org.isf.patient.model.Patient;
+import org.isf.ward.model.Ward;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.AuditorAware;
+import org.springframework.transaction.annotation.Transactional;
+
+@Transactional
+public class MovementWardIoOperationRepositoryImpl implements MovementWardIoOperationRepositoryCustom {
+
+	private static final int BATCH_SIZE = 100;
+	private static final String INSERT_MOVEMENT_WARD = "INSERT INTO MEDICALDSRSTOCKMOVWARD (MMVN_WRD_ID_A, MMVN_LT_ID, MMVN_DATE, "
+			+ "MMVN_IS_PATIENT, MMVN_PAT_ID, MMVN_PAT_AGE, MMVN_PAT_WEIGHT, MMVN_DESC, MMVN_MDSR_ID, MMVN_MDSR_QTY, MMVN_MDSR_UNITS, "
+			+ "MMVN_WRD_ID_A_TO, MMVN_WRD_ID_A_FROM, MMVN_CREATED_BY, MMVN_CREATED_DATE, MMVN_LAST_MODIFIED_BY, "
+			+ "MMVN_LAST_MODIFIED_DATE, MMVN_ACTIVE) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Autowired
+	private AuditorAware<String> auditorAware;
+
+	@Override
+	public int insertMovementWards(final List<MovementWard> movements) {
+		if (movements.isEmpty()) {
+			return 0;
+		}
+		entityManager.flush();
+		final String user = auditorAware.getCurrentAuditor();
+		final Date now = new Date();
+		entityManager.unwrap(Session.class).doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(INSERT_MOVEMENT_WARD, Statement.RETURN_GENERATED_KEYS);
+				try {
+					for (int from = 0; from < movements.size(); from += BATCH_SIZE) {
+						List<MovementWard> chunk = movements.subList(from, Math.min(from + BATCH_SIZE, movements.size()));
+						for (MovementWard movement : chunk) {
+							movement.setCreatedBy(user);
+							movement.setCreatedDate(now);
+							movement.setLastModifiedBy(user);
+							movement.setLastModifiedDate(now);
+							_bind(statement, movement);
+							statement.addBatch();
+						}
+						statement.executeBatch();
+						ResultSet keys = statement.getGeneratedKeys();
+						try {
+							for (MovementWard movement : chunk) {
+								if (!keys.next()) {
+									break;
+								}
+								movement.setCode(keys.getInt(1));
+							}
+						} finally {
+							keys.close();
+						}
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		return movements.size();
+	}
+
+	private void _bind(PreparedStatement statement, MovementWard movement) throws SQLException {
+		Lot lot = movement.getLot();
+		Patient patient = movement.getPatient();
+		Ward wardTo = movement.getWardTo();
+		Ward wardFrom = movement.getWardFrom();
+		statement.setString(1, movement.getWard().getCode());
+		statement.setString(2, lot != null ? lot.getCode() : null);
+		statement.setTimestamp(3, new Timestamp(movement.getDate().getTimeInMillis()));
+		statement.setBoolean(4, movement.isPatient());
+		if (patient != null) {
+			statement.setInt(5, patient.getCode());
+		} else {
+			statement.setNull(5, Types.INTEGER);
+		}
+		statement.setInt(6, movement.getAge());
+		statement.setFloat(7, movement.getWeight());
+		statement.setString(8, movement.getDescription());
+		if (movement.getMedical() != null) {
+			statement.setInt(9, movement.getMedical().getCode());
+		} else {
+			statement.setNull(9, Types.INTEGER);
+		}
+		statement.setDouble(10, movement.getQuantity());
+		statement.setString(11, movement.getUnits());
+		statement.setString(12, wardTo != null ? wardTo.getCode() : null);
+		statement.setString(13, wardFrom != null ? wardFrom.getCode() : null);
+		statement.setString(14, movement.getCreatedBy());
+		statement.setTimestamp(15, new Timestamp(movement.getCreatedDate().getTime()));
+		statement.setString(16, movement.getLastModifiedBy());
+		statement.setTimestamp(17, new Timestamp(movement.getLastModifiedDate().getTime()));
+		statement.setInt(18, movement.getActive());
+	}
+}
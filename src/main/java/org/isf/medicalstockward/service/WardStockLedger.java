@@ -0,0 +1,346 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstockward.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import org.isf.generaldata.GeneralData;
+import org.isf.utils.db.AfterCommitUpdates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Keeps in memory the quantity (incoming minus outgoing) of every ward lot stored in MEDICALDSRWARD,
+ * so that the current quantity of a medical in a ward is read without a <code>SUM</code> query.
+ * <p>
+ * When the ledger is enabled (<code>WARDSTOCKLEDGER</code> in settings.properties) it is loaded at the first
+ * lookup and then updated by {@link MedicalStockWardIoOperations} and
+ * {@link org.isf.medicalstock.service.MedicalStockIoOperations} for every change of the ward quantities.
+ * The changes are seen at once by the transaction that makes them and by the others once it has committed;
+ * a rolled back transaction leaves the ledger untouched. Loads wait for the transactions being committed
+ * (see {@link AfterCommitUpdates}), so no change is lost or counted twice. Changes made to MEDICALDSRWARD
+ * by other means are picked up by {@link #reconcile()}, run every <code>WARDSTOCKLEDGERLOOP</code> seconds
+ * by {@link WardStockLedgerJob}.
+ */
+@Component
+public class WardStockLedger {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WardStockLedger.class);
+
+	private static final double TOLERANCE = 0.001;
+
+	/**
+	 * How long a load waits for the transactions being committed, in milliseconds
+	 */
+	private static final long LOAD_TIMEOUT = 5000;
+
+	@Autowired
+	private MedicalStockWardIoOperationRepository repository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private boolean enabled;
+
+	private volatile Quantities quantities;
+
+	private final AfterCommitUpdates<Changes> updates = new AfterCommitUpdates<>(Changes::new, this::_apply);
+
+	public WardStockLedger() {
+		GeneralData.getGeneralData();
+		this.enabled = GeneralData.WARDSTOCKLEDGER;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			quantities = null;
+		}
+	}
+
+	/**
+	 * Reloads the quantities of all the ward lots.
+	 * @return <code>false</code> if the transactions being committed did not complete in time and the ledger has not been reloaded.
+	 */
+	public synchronized boolean reload() {
+		long start = System.currentTimeMillis();
+		boolean reloaded = updates.reload(() -> quantities = _load(), LOAD_TIMEOUT);
+		if (reloaded) {
+			LOGGER.info("Ward stock ledger loaded {} lots in {} ms", quantities.lots.size(), System.currentTimeMillis() - start);
+		} else {
+			LOGGER.warn("Ward stock ledger not loaded: transactions still committing after {} ms", LOAD_TIMEOUT);
+		}
+		return reloaded;
+	}
+
+	/**
+	 * Reloads the quantities of all the ward lots, logging the ones that differ from the stored ones.
+	 * @return the number of lots whose quantity has been corrected.
+	 */
+	public synchronized int reconcile() {
+		int[] corrected = new int[1];
+		boolean reloaded = updates.reload(() -> {
+			Quantities stored = _load();
+			if (quantities != null) {
+				for (String difference : _compare(quantities, stored)) {
+					LOGGER.warn("Ward stock ledger corrected: {}", difference);
+					corrected[0]++;
+				}
+			}
+			quantities = stored;
+		}, LOAD_TIMEOUT);
+		if (!reloaded) {
+			LOGGER.warn("Ward stock ledger not reconciled: transactions still committing after {} ms", LOAD_TIMEOUT);
+		}
+		return corrected[0];
+	}
+
+	/**
+	 * Compares the ledger with the quantities stored in MEDICALDSRWARD, without changing it.
+	 * @return a description of every lot whose quantity differs, empty if the ledger is consistent.
+	 */
+	public List<String> verify() {
+		Quantities current = _getQuantities();
+		List<String> differences = new ArrayList<>();
+		if (!updates.reload(() -> differences.addAll(_compare(current, _load())), LOAD_TIMEOUT)) {
+			LOGGER.warn("Ward stock ledger not verified: transactions still committing after {} ms", LOAD_TIMEOUT);
+		}
+		return differences;
+	}
+
+	/**
+	 * @param ward the ward code.
+	 * @param medical the medical code.
+	 * @return the quantity of the medical in the ward.
+	 */
+	public double getQuantity(String ward, Integer medical) {
+		Key key = new Key(ward, medical, null);
+		Changes changes = updates.findChanges();
+		return _sum(_getQuantities().wardMedicals.get(key)) + (changes == null ? 0.0 : _sum(changes.quantities.wardMedicals.get(key)));
+	}
+
+	/**
+	 * @param medical the medical code.
+	 * @return the quantity of the medical in all the wards.
+	 */
+	public double getQuantity(Integer medical) {
+		Changes changes = updates.findChanges();
+		return _sum(_getQuantities().medicals.get(medical)) + (changes == null ? 0.0 : _sum(changes.quantities.medicals.get(medical)));
+	}
+
+	/**
+	 * @param ward the ward code.
+	 * @param medical the medical code.
+	 * @param lot the lot code.
+	 * @return the quantity of the lot in the ward.
+	 */
+	public double getQuantity(String ward, Integer medical, String lot) {
+		Key key = new Key(ward, medical, lot);
+		Changes changes = updates.findChanges();
+		return _sum(_getQuantities().lots.get(key)) + (changes == null ? 0.0 : _sum(changes.quantities.lots.get(key)));
+	}
+
+	/**
+	 * @return the number of ward lots in the ledger, <code>0</code> if not loaded.
+	 */
+	public int size() {
+		Quantities current = quantities;
+		return current == null ? 0 : current.lots.size();
+	}
+
+	/**
+	 * Records a change of the quantity of a ward lot, applied to the ledger when the current transaction commits.
+	 * @param ward the ward code.
+	 * @param medical the medical code.
+	 * @param lot the lot code.
+	 * @param quantity the quantity added (negative if removed).
+	 * @param create whether the lot has been created if missing; if <code>false</code> a change to a missing
+	 *        lot is ignored, as an <code>UPDATE</code> matching no row does.
+	 */
+	public void add(String ward, Integer medical, String lot, double quantity, boolean create) {
+		if (!enabled) {
+			return;
+		}
+		Key key = new Key(ward, medical, lot);
+		Changes changes = updates.getChanges();
+		if (changes == null) {
+			changes = new Changes();
+			changes.add(key, quantity, create);
+			updates.applyNow(changes);
+		} else {
+			changes.add(key, quantity, create);
+		}
+	}
+
+	private Quantities _getQuantities() {
+		Quantities current = quantities;
+		if (current == null) {
+			synchronized (this) {
+				if (quantities == null && !reload()) {
+					// not kept, the changes being committed may be missing
+					return _load();
+				}
+				current = quantities;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Reads the quantities in a new transaction, that does not see the changes of the current one.
+	 */
+	private Quantities _load() {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		transaction.setReadOnly(true);
+		return transaction.execute(status -> {
+			Quantities loaded = new Quantities();
+			for (Object[] row : repository.findAllQuantities()) {
+				loaded.add(new Key((String) row[0], (Integer) row[1], (String) row[2]), ((Number) row[3]).doubleValue());
+			}
+			return loaded;
+		});
+	}
+
+	/**
+	 * Applies the changes of a committed transaction; a change to a lot that is not in the ledger
+	 * is applied only if the transaction created it.
+	 */
+	private void _apply(Changes changes) {
+		Quantities current = quantities;
+		if (current == null) {
+			return;
+		}
+		for (Map.Entry<Key, DoubleAdder> entry : changes.quantities.lots.entrySet()) {
+			if (changes.created.contains(entry.getKey()) || current.lots.containsKey(entry.getKey())) {
+				current.add(entry.getKey(), entry.getValue().sum());
+			}
+		}
+	}
+
+	private static List<String> _compare(Quantities ledger, Quantities stored) {
+		List<String> differences = new ArrayList<>();
+		Map<Key, DoubleAdder> missing = new HashMap<>(stored.lots);
+		for (Map.Entry<Key, DoubleAdder> entry : ledger.lots.entrySet()) {
+			double expected = _sum(missing.remove(entry.getKey()));
+			double actual = entry.getValue().sum();
+			if (Math.abs(expected - actual) > TOLERANCE) {
+				differences.add(entry.getKey() + ": " + actual + " instead of " + expected);
+			}
+		}
+		for (Map.Entry<Key, DoubleAdder> entry : missing.entrySet()) {
+			differences.add(entry.getKey() + ": missing instead of " + entry.getValue().sum());
+		}
+		return differences;
+	}
+
+	private static double _sum(DoubleAdder quantity) {
+		return quantity == null ? 0.0 : quantity.sum();
+	}
+
+	/**
+	 * The changes made by a transaction, with the lots it created.
+	 */
+	private class Changes {
+
+		private final Quantities quantities = new Quantities();
+		private final Set<Key> created = new HashSet<>();
+
+		void add(Key key, double quantity, boolean create) {
+			if (create) {
+				created.add(key);
+			} else if (!created.contains(key) && !quantities.lots.containsKey(key)) {
+				Quantities current = WardStockLedger.this.quantities;
+				if (current != null && !current.lots.containsKey(key)) {
+					return;
+				}
+			}
+			quantities.add(key, quantity);
+		}
+	}
+
+	/**
+	 * The quantities per ward lot, with the totals per ward and medical and per medical kept alongside.
+	 */
+	private static class Quantities {
+
+		private final ConcurrentHashMap<Key, DoubleAdder> lots = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<Key, DoubleAdder> wardMedicals = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<Integer, DoubleAdder> medicals = new ConcurrentHashMap<>();
+
+		void add(Key key, double quantity) {
+			lots.computeIfAbsent(key, k -> new DoubleAdder()).add(quantity);
+			wardMedicals.computeIfAbsent(new Key(key.ward, key.medical, null), k -> new DoubleAdder()).add(quantity);
+			medicals.computeIfAbsent(key.medical, k -> new DoubleAdder()).add(quantity);
+		}
+	}
+
+	private static final class Key {
+
+		private final String ward;
+		private final Integer medical;
+		private final String lot;
+
+		Key(String ward, Integer medical, String lot) {
+			this.ward = ward;
+			this.medical = medical;
+			this.lot = lot;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return ward.equals(other.ward) && medical.equals(other.medical)
+					&& (lot == null ? other.lot == null : lot.equals(other.lot));
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 31 * ward.hashCode() + medical.hashCode();
+			return 31 * result + (lot == null ? 0 : lot.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return ward + "/" + medical + "/" + lot;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstockward.service;
+
+import org.isf.generaldata.GeneralData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background job that reconciles the {@link WardStockLedger} with MEDICALDSRWARD
+ * every {@link GeneralData}<code>.WARDSTOCKLEDGERLOOP</code> seconds.
+ * It is started with the application by {@link WardStockLedgerJobStarter} and stops when interrupted.
+ */
+public class WardStockLedgerJob implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WardStockLedgerJob.class);
+
+	private final WardStockLedger ledger;
+
+	private boolean running = true;
+	private int delay = 600;
+
+	public WardStockLedgerJob(WardStockLedger ledger) {
+		LOGGER.info("Ward Stock Ledger Job started...");
+		this.ledger = ledger;
+		GeneralData.getGeneralData();
+		delay = GeneralData.WARDSTOCKLEDGERLOOP;
+		LOGGER.info("Ward Stock Ledger Job loop set to {} seconds.", delay);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			LOGGER.debug("Ward Stock Ledger Job running...");
+			if (ledger.isEnabled()) {
+				try {
+					int corrected = ledger.reconcile();
+					if (corrected > 0) {
+						LOGGER.warn("Corrected {} ward lots in the ward stock ledger", corrected);
+					}
+				} catch (RuntimeException e) {
+					LOGGER.error("Failed reconciling the ward stock ledger: {}", e.getMessage());
+				}
+			}
+			try {
+				Thread.sleep(delay * 1000L);
+			} catch (InterruptedException e) {
+				LOGGER.info("Ward Stock Ledger Job stopped");
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * @param running
+	 *            the running to set
+	 */
+	public void setRunning(boolean running) {
+		this.running = running;
+	}
+}
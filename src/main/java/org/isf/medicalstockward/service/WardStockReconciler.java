@@ -0,0 +1,321 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstockward.service;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.isf.generaldata.MessageBundle;
+import org.isf.medicals.model.Medical;
+import org.isf.medicalstock.model.Lot;
+import org.isf.medicalstockward.model.MedicalWard;
+import org.isf.utils.exception.OHServiceException;
+import org.isf.utils.exception.model.OHExceptionMessage;
+import org.isf.utils.exception.model.OHSeverityLevel;
+import org.isf.ward.model.Ward;
+import org.isf.ward.service.WardIoOperationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Recomputes the incoming and outgoing quantities stored in MEDICALDSRWARD from the movement history:
+ * the main store movements discharged to the ward and the {@link org.isf.medicalstockward.model.MovementWard}s
+ * of the ward, aggregated by the database per medical and lot.
+ * <p>
+ * Only the resulting quantity (incoming minus outgoing) is compared: the rows created by an incoming
+ * {@link org.isf.medicalstockward.model.MovementWard} store it as a negative income rather than as an outcome.
+ * <p>
+ * Every ward is checked in its own transaction by a worker of a bounded {@link ForkJoinPool}, so the
+ * parallelism should not exceed the size of the connection pool. In repair mode the mismatched rows are
+ * rewritten with batched updates (and the missing ones inserted) in the same transaction that read them.
+ * Movements stored while a ward is checked may be reported as differences; run it when the wards are quiet.
+ */
+@Component
+public class WardStockReconciler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WardStockReconciler.class);
+
+	private static final double TOLERANCE = 0.01;
+
+	@Autowired
+	private MedicalStockWardIoOperationRepository repository;
+
+	@Autowired
+	private MovementWardIoOperationRepository movementRepository;
+
+	@Autowired
+	private WardIoOperationRepository wardRepository;
+
+	@Autowired
+	private WardStockLedger ledger;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private int parallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * A ward lot whose stored quantity differs from the one computed from the movement history.
+	 */
+	public static class Difference {
+
+		private final String ward;
+		private final Integer medical;
+		private final String lot;
+		private final Float storedIn;
+		private final Float storedOut;
+		private final double expectedIn;
+		private final double expectedOut;
+
+		Difference(String ward, Integer medical, String lot, Float storedIn, Float storedOut, double expectedIn, double expectedOut) {
+			this.ward = ward;
+			this.medical = medical;
+			this.lot = lot;
+			this.storedIn = storedIn;
+			this.storedOut = storedOut;
+			this.expectedIn = expectedIn;
+			this.expectedOut = expectedOut;
+		}
+
+		public String getWard() {
+			return ward;
+		}
+
+		public Integer getMedical() {
+			return medical;
+		}
+
+		public String getLot() {
+			return lot;
+		}
+
+		/**
+		 * @return the stored incoming quantity, <code>null</code> if the row is missing.
+		 */
+		public Float getStoredIn() {
+			return storedIn;
+		}
+
+		/**
+		 * @return the stored outgoing quantity, <code>null</code> if the row is missing.
+		 */
+		public Float getStoredOut() {
+			return storedOut;
+		}
+
+		public double getExpectedIn() {
+			return expectedIn;
+		}
+
+		public double getExpectedOut() {
+			return expectedOut;
+		}
+
+		/**
+		 * @return the stored quantity (incoming minus outgoing), <code>null</code> if the row is missing.
+		 */
+		public Double getStoredQuantity() {
+			return storedIn == null ? null : (double) storedIn - storedOut;
+		}
+
+		public double getExpectedQuantity() {
+			return expectedIn - expectedOut;
+		}
+
+		@Override
+		public String toString() {
+			return ward + ";" + medical + ";" + lot + ";" + (storedIn == null ? "" : storedIn) + ";"
+					+ (storedOut == null ? "" : storedOut) + ";" + expectedIn + ";" + expectedOut + ";"
+					+ (storedIn == null ? "" : getStoredQuantity()) + ";" + getExpectedQuantity();
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Checks every ward against its movement history.
+	 * @param repair whether the mismatched rows have to be fixed.
+	 * @return the differences found, ordered by ward.
+	 * @throws OHServiceException if an error occurs checking a ward.
+	 */
+	public List<Difference> reconcile(final boolean repair) throws OHServiceException {
+		long start = System.currentTimeMillis();
+		List<Callable<List<Difference>>> tasks = new ArrayList<>();
+		for (final Ward ward : wardRepository.findAll()) {
+			tasks.add(new Callable<List<Difference>>() {
+
+				@Override
+				public List<Difference> call() {
+					return reconcile(ward.getCode(), repair);
+				}
+			});
+		}
+		List<Difference> differences = new ArrayList<>();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for (Future<List<Difference>> result : pool.invokeAll(tasks)) {
+				differences.addAll(result.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw _error(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw _error(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		if (repair && !differences.isEmpty() && ledger.isEnabled()) {
+			ledger.reconcile();
+		}
+		LOGGER.info("Ward stock reconciliation of {} wards found {} differences in {} ms", tasks.size(), differences.size(),
+				System.currentTimeMillis() - start);
+		return differences;
+	}
+
+	/**
+	 * Checks one ward against its movement history, in a transaction of its own.
+	 * @param ward the ward code.
+	 * @param repair whether the mismatched rows have to be fixed.
+	 * @return the differences found.
+	 */
+	public List<Difference> reconcile(final String ward, final boolean repair) {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setReadOnly(!repair);
+		return transaction.execute(new TransactionCallback<List<Difference>>() {
+
+			@Override
+			public List<Difference> doInTransaction(TransactionStatus status) {
+				return _reconcile(ward, repair);
+			}
+		});
+	}
+
+	/**
+	 * Writes the differences as semicolon separated values, one per line.
+	 * @param differences the differences found by {@link #reconcile(boolean)}.
+	 * @param writer the destination; it is flushed but not closed.
+	 */
+	public static void writeReport(List<Difference> differences, Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		out.println("WARD;MEDICAL;LOT;STORED_IN;STORED_OUT;EXPECTED_IN;EXPECTED_OUT;STORED_QTY;EXPECTED_QTY");
+		for (Difference difference : differences) {
+			out.println(difference);
+		}
+		out.flush();
+	}
+
+	private List<Difference> _reconcile(String ward, boolean repair) {
+		Map<String, double[]> expected = new LinkedHashMap<>();
+		for (Object[] row : repository.findDischargedQuantitiesWhereWardGroupByMedicalAndLot(ward)) {
+			_expected(expected, (Integer) row[0], (String) row[1])[0] += ((Number) row[2]).doubleValue();
+		}
+		for (Object[] row : movementRepository.findQuantitiesWhereWardGroupByMedicalAndLot(ward)) {
+			double[] quantities = _expected(expected, (Integer) row[0], (String) row[1]);
+			quantities[0] += ((Number) row[2]).doubleValue();
+			quantities[1] += ((Number) row[3]).doubleValue();
+		}
+
+		List<Difference> differences = new ArrayList<>();
+		List<MedicalWard> updates = new ArrayList<>();
+		for (MedicalWard stored : repository.findAllWhereWard(ward)) {
+			Integer medical = stored.getMedical().getCode();
+			String lot = stored.getLot().getCode();
+			double[] quantities = expected.remove(_key(medical, lot));
+			if (quantities == null) {
+				quantities = new double[2];
+			}
+			if (Math.abs((double) stored.getInQuantity() - stored.getOutQuantity() - (quantities[0] - quantities[1])) > TOLERANCE) {
+				differences.add(new Difference(ward, medical, lot, stored.getInQuantity(), stored.getOutQuantity(), quantities[0], quantities[1]));
+				updates.add(_medicalWard(ward, medical, lot, quantities));
+			}
+		}
+		List<MedicalWard> inserts = new ArrayList<>();
+		for (Map.Entry<String, double[]> entry : expected.entrySet()) {
+			double[] quantities = entry.getValue();
+			if (Math.abs(quantities[0] - quantities[1]) <= TOLERANCE) {
+				continue;
+			}
+			String[] key = entry.getKey().split("\\|", 2);
+			Integer medical = Integer.valueOf(key[0]);
+			differences.add(new Difference(ward, medical, key[1], null, null, quantities[0], quantities[1]));
+			inserts.add(_medicalWard(ward, medical, key[1], quantities));
+		}
+		if (repair) {
+			repository.setQuantities(updates);
+			repository.insertMedicalWards(inserts);
+		}
+		return differences;
+	}
+
+	private static double[] _expected(Map<String, double[]> expected, Integer medical, String lot) {
+		String key = _key(medical, lot);
+		double[] quantities = expected.get(key);
+		if (quantities == null) {
+			quantities = new double[2];
+			expected.put(key, quantities);
+		}
+		return quantities;
+	}
+
+	private static String _key(Integer medical, String lot) {
+		return medical + "|" + lot;
+	}
+
+	private static MedicalWard _medicalWard(String wardCode, Integer medicalCode, String lotCode, double[] quantities) {
+		Ward ward = new Ward();
+		ward.setCode(wardCode);
+		Medical medical = new Medical();
+		medical.setCode(medicalCode);
+		Lot lot = new Lot();
+		lot.setCode(lotCode);
+		return new MedicalWard(ward, medical, (float) quantities[0], (float) quantities[1], lot);
+	}
+
+	private static OHServiceException _error(Throwable cause) {
+		LOGGER.error(cause.getMessage(), cause);
+		return new OHServiceException(cause, new OHExceptionMessage(MessageBundle.getMessage("angal.common.error.title"),
+				MessageBundle.getMessage("angal.sql.anunexpectederroroccurredpleasecheckthelogs.msg"), OHSeverityLevel.ERROR));
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.medicalstockward.service;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.isf.medicalstockward.service.WardStockReconciler.Difference;
+import org.isf.menu.manager.Context;
+import org.isf.utils.exception.OHServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Command line reconciliation of the ward stock quantities against the movement history.
+ * <p>
+ * Usage: <code>WardStockReconciliationJob [--repair] [--parallelism N] [report file]</code>;
+ * the differences are written to the report file (or to the standard output) and fixed only with <code>--repair</code>.
+ * Exits with status 1 if any difference is found, 2 on errors.
+ */
+public class WardStockReconciliationJob {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WardStockReconciliationJob.class);
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		boolean repair = false;
+		Integer parallelism = null;
+		String reportFile = null;
+		for (int i = 0; i < args.length; i++) {
+			if ("--repair".equals(args[i])) {
+				repair = true;
+			} else if ("--parallelism".equals(args[i]) && i + 1 < args.length) {
+				parallelism = Integer.valueOf(args[++i]);
+			} else {
+				reportFile = args[i];
+			}
+		}
+
+		ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("applicationContext.xml");
+		int status = 0;
+		try {
+			Context.setApplicationContext(context);
+			WardStockReconciler reconciler = context.getBean(WardStockReconciler.class);
+			if (parallelism != null) {
+				reconciler.setParallelism(parallelism);
+			}
+			List<Difference> differences = reconciler.reconcile(repair);
+			Writer writer = reportFile == null ? new OutputStreamWriter(System.out) : new FileWriter(reportFile);
+			try {
+				WardStockReconciler.writeReport(differences, writer);
+			} finally {
+				if (reportFile != null) {
+					writer.close();
+				}
+			}
+			System.out.println(differences.isEmpty() ? "Ward stock quantities OK."
+					: differences.size() + " ward stock differences found" + (repair ? " and repaired." : "."));
+			status = differences.isEmpty() ? 0 : 1;
+		} catch (OHServiceException e) {
+			LOGGER.error("Failed reconciling ward stock quantities: {}", e.getMessage());
+			status = 2;
+		} catch (IOException e) {
+			LOGGER.error("Failed writing the ward stock report: {}", e.getMessage());
+			status = 2;
+		} finally {
+			context.close();
+		}
+		System.exit(status);
+	}
+}
@@ -27,11 +27,16 @@ import java.util.List;
 import org.isf.sms.model.Sms;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
-public interface SmsIoOperationRepository extends JpaRepository<Sms, Integer> {
+public interface SmsIoOperationRepository extends JpaRepository<Sms, Integer>, SmsIoOperationRepositoryCustom {
     List<Sms> findBySmsDateSchedBetweenOrderBySmsDateSchedAsc(Date start, Date stop);
     List<Sms> findBySmsDateSchedBetweenAndSmsDateSentIsNullOrderBySmsDateSchedAsc(Date start, Date stop);
     List<Sms> findBySmsDateSentIsNullOrderBySmsDateSchedAsc();
     @Modifying
     void deleteByModuleAndModuleIDAndSmsDateSentIsNull(String mod, String id);
+    @Modifying
+    @Query(value = "delete from Sms where module = :module and moduleID = :moduleID and smsDateSent is null")
+    int deleteWhereModuleAndModuleIDAndNotSent(@Param("module") String module, @Param("moduleID") String moduleID);
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.sms.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.isf.sms.model.Sms;
+import org.springframework.transaction.annotation.Transactional;
+
+@Transactional
+public class SmsIoOperationRepositoryImpl implements SmsIoOperationRepositoryCustom {
+
+	private static final int BATCH_SIZE = 100;
+	private static final String INSERT_SMS = "INSERT INTO SMS (SMS_DATE, SMS_DATE_SCHED, SMS_NUMBER, SMS_TEXT, SMS_DATE_SENT, "
+			+ "SMS_USER, SMS_MOD, SMS_MOD_ID) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Override
+	public int insertSms(final List<Sms> smsList) {
+		if (smsList.isEmpty()) {
+			return 0;
+		}
+		entityManager.flush();
+		final Date now = new Date();
+		entityManager.unwrap(Session.class).doWork(new Work() {
+
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(INSERT_SMS, Statement.RETURN_GENERATED_KEYS);
+				try {
+					for (int from = 0; from < smsList.size(); from += BATCH_SIZE) {
+						List<Sms> chunk = smsList.subList(from, Math.min(from + BATCH_SIZE, smsList.size()));
+						for (Sms sms : chunk) {
+							if (sms.getSmsDate() == null) {
+								sms.setSmsDate(now);
+							}
+							_bind(statement, sms);
+							statement.addBatch();
+						}
+						statement.executeBatch();
+						ResultSet keys = statement.getGeneratedKeys();
+						try {
+							for (Sms sms : chunk) {
+								if (!keys.next()) {
+									break;
+								}
+								sms.setSmsId(keys.getInt(1));
+							}
+						} finally {
+							keys.close();
+						}
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		return smsList.size();
+	}
+
+	private void _bind(PreparedStatement statement, Sms sms) throws SQLException {
+		statement.setTimestamp(1, new Timestamp(sms.getSmsDate().getTime()));
+		statement.setTimestamp(2, new Timestamp(sms.getSmsDateSched().getTime()));
+		statement.setString(3, sms.getSmsNumber());
+		statement.setString(4, sms.getSmsText());
+		statement.setTimestamp(5, sms.getSmsDateSent() != null ? new Timestamp(sms.getSmsDateSent().getTime()) : null);
+		statement.setString(6, sms.getSmsUser());
+		statement.setString(7, sms.getModule());
+		statement.setString(8, sms.getModuleID());
+	}
+}
@@ -67,6 +67,16 @@ public class SmsOperations {
 		return repository.save(smsList) != null;
 	}
 	
+	/**
+	 * Inserts a list of new {@link Sms}s with JDBC batching
+	 * @param smsList - the list of {@link Sms} to insert
+	 * @return the number of inserted {@link Sms}s
+	 * @throws OHServiceException 
+	 */
+	public int insert(List<Sms> smsList) throws OHServiceException {
+		return repository.insertSms(smsList);
+	}
+	
 	/**
 	 * Returns a {@link Sms} with specified ID
 	 * @param ID - sms ID
@@ -132,6 +142,20 @@ public class SmsOperations {
 		repository.deleteByModuleAndModuleIDAndSmsDateSentIsNull(module, moduleID);
 	}
 
+	/**
+	 * Replaces the {@link Sms}s not already sent of a module ID with the specified ones,
+	 * with one delete statement and one batched insert
+	 * @param module - the module name which generated the {@link Sms}s
+	 * @param moduleID - the module ID within its generated {@link Sms}s
+	 * @param smsList - the new {@link Sms}s
+	 * @return the number of inserted {@link Sms}s
+	 * @throws OHServiceException 
+	 */
+	public int replaceByModuleModuleID(String module, String moduleID, List<Sms> smsList) throws OHServiceException {
+		repository.deleteWhereModuleAndModuleIDAndNotSent(module, moduleID);
+		return repository.insertSms(smsList);
+	}
+
 	/**
 	 * Checks if the code is already in use
 	 *
@@ -28,8 +28,11 @@ import java.sql.SQLException;
 import java.text.Format;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -44,7 +47,10 @@ import org.isf.generaldata.GeneralData;
 import org.isf.generaldata.MessageBundle;
 import org.isf.hospital.manager.HospitalBrowsingManager;
 import org.isf.hospital.model.Hospital;
+import org.isf.medicals.manager.MedicalBrowsingManager;
 import org.isf.medicals.model.Medical;
+import org.isf.medicalstock.service.MedicalStockIoOperations;
+import org.isf.medicalstock.service.StockSnapshotIoOperations;
 import org.isf.patient.model.Patient;
 import org.isf.stat.dto.JasperReportResultDto;
 import org.isf.utils.db.DbQueryLogger;
@@ -65,6 +71,7 @@ import net.sf.jasperreports.engine.JRBand;
 import net.sf.jasperreports.engine.JRChild;
 import net.sf.jasperreports.engine.JRException;
 import net.sf.jasperreports.engine.JRExpressionChunk;
+import net.sf.jasperreports.engine.JRField;
 import net.sf.jasperreports.engine.JRParameter;
 import net.sf.jasperreports.engine.JRQuery;
 import net.sf.jasperreports.engine.JasperExportManager;
@@ -72,6 +79,7 @@ import net.sf.jasperreports.engine.JasperFillManager;
 import net.sf.jasperreports.engine.JasperPrint;
 import net.sf.jasperreports.engine.JasperReport;
 import net.sf.jasperreports.engine.base.JRBaseSubreport;
+import net.sf.jasperreports.engine.data.JRMapCollectionDataSource;
 import net.sf.jasperreports.engine.util.JRLoader;
 
 @Component
@@ -84,6 +92,28 @@ public class JasperReportsManager {
     
     @Autowired
     private DataSource dataSource;
+
+    @Autowired
+    private MedicalBrowsingManager medicalManager;
+
+    @Autowired
+    private StockSnapshotIoOperations stockSnapshotIoOperations;
+
+    /**
+     * Fields, with their types, of the pharmaceutical stock reports that are filled from the stock snapshots
+     * instead of aggregating the whole movement history in the report query.
+     */
+    private static final Map<String, Class<?>> STOCK_AT_DATE_FIELDS = new LinkedHashMap<String, Class<?>>();
+
+    static {
+        STOCK_AT_DATE_FIELDS.put("MDSR_ID", Integer.class);
+        STOCK_AT_DATE_FIELDS.put("MDSR_CODE", String.class);
+        STOCK_AT_DATE_FIELDS.put("MDSR_DESC", String.class);
+        STOCK_AT_DATE_FIELDS.put("MDSRT_ID_A", String.class);
+        STOCK_AT_DATE_FIELDS.put("MDSRT_DESC", String.class);
+        STOCK_AT_DATE_FIELDS.put("MDSR_MIN_STOCK_QTI", Double.class);
+        STOCK_AT_DATE_FIELDS.put("STOCK", Double.class);
+    }
     
 
     public JasperReportResultDto getExamsListPdf() throws OHServiceException {
@@ -463,7 +493,16 @@ public class JasperReportsManager {
 
             String pdfFilename = "rpt/PDF/"+jasperFileName + "_" + dateFile +".pdf";
 
-            JasperReportResultDto result = generateJasperReport(compileJasperFilename(jasperFileName), pdfFilename, parameters);
+            String jasperFilename = compileJasperFilename(jasperFileName);
+            JasperReport jasperReport = (JasperReport)JRLoader.loadObject(new File(jasperFilename));
+            JasperReportResultDto result;
+            if (isStockAtDateReport(jasperReport)) {
+                JasperPrint jasperPrint = JasperFillManager.fillReport(jasperReport, parameters,
+                        new JRMapCollectionDataSource(getStockAtDateRows(date, filter, groupBy, sortBy)));
+                result = new JasperReportResultDto(jasperPrint, jasperFilename, pdfFilename);
+            } else {
+                result = generateJasperReport(jasperFilename, pdfFilename, parameters);
+            }
             JasperExportManager.exportReportToPdfFile(result.getJasperPrint(), pdfFilename);
             return result;
     	} catch(Exception e) {
@@ -483,6 +522,16 @@ public class JasperReportsManager {
             File jasperFile = new File(compileJasperFilename(jasperFileName));
             
             JasperReport jasperReport = (JasperReport)JRLoader.loadObject(jasperFile);
+            File exportFile = new File(exportFilename);
+            ExcelExporter xlsExport = new ExcelExporter();
+            if (isStockAtDateReport(jasperReport)) {
+                List<Map<String, ?>> rows = getStockAtDateRows(date, filter, groupBy, sortBy);
+                if (exportFile.getName().endsWith(".xls"))
+                    xlsExport.exportDataToExcelOLD(rows, exportFile);
+                else
+                    xlsExport.exportDataToExcel(rows, exportFile);
+                return;
+            }
             JRQuery query = jasperReport.getMainDataset().getQuery();
             
             String queryString = query.getText();
@@ -492,14 +541,15 @@ public class JasperReportsManager {
 			if (filter != null) queryString = queryString.replace("$P{filter}", "'" + filter + "'");
 
             DbQueryLogger dbQuery = new DbQueryLogger();
-            ResultSet resultSet = dbQuery.getData(queryString, true);
-
-            File exportFile = new File(exportFilename);
-            ExcelExporter xlsExport = new ExcelExporter();
-			if (exportFile.getName().endsWith(".xls"))
-				xlsExport.exportResultsetToExcelOLD(resultSet, exportFile);
-			else
-				xlsExport.exportResultsetToExcel(resultSet, exportFile);
+            ResultSet resultSet = dbQuery.getStreamingData(queryString, MedicalStockIoOperations.STREAM_FETCH_SIZE);
+            try {
+                if (exportFile.getName().endsWith(".xls"))
+                    xlsExport.exportResultsetToExcelOLD(resultSet, exportFile);
+                else
+                    xlsExport.exportResultsetToExcel(resultSet, exportFile);
+            } finally {
+                resultSet.getStatement().close();
+            }
 
         } catch(Exception e) {
             //Any exception
@@ -567,14 +617,18 @@ public class JasperReportsManager {
 			if (ward != null) queryString = queryString.replace("$P{WardCode}", "'" + ward.getCode() + "'");
 
             DbQueryLogger dbQuery = new DbQueryLogger();
-            ResultSet resultSet = dbQuery.getData(queryString, true);
+            ResultSet resultSet = dbQuery.getStreamingData(queryString, MedicalStockIoOperations.STREAM_FETCH_SIZE);
 
             File exportFile = new File(exportFileName);
             ExcelExporter xlsExport = new ExcelExporter();
-			if (exportFile.getName().endsWith(".xls"))
-				xlsExport.exportResultsetToExcelOLD(resultSet, exportFile);
-			else
-				xlsExport.exportResultsetToExcel(resultSet, exportFile);
+            try {
+                if (exportFile.getName().endsWith(".xls"))
+                    xlsExport.exportResultsetToExcelOLD(resultSet, exportFile);
+                else
+                    xlsExport.exportResultsetToExcel(resultSet, exportFile);
+            } finally {
+                resultSet.getStatement().close();
+            }
 
         } catch(Exception e) {
             //Any exception
@@ -944,6 +998,79 @@ public class JasperReportsManager {
 		}
 	}
 
+    /**
+     * Tells if the pharmaceutical stock report can be filled from the stock snapshots instead of its own query,
+     * that is if it only declares fields among {@link #STOCK_AT_DATE_FIELDS}, with compatible types.
+     */
+    private boolean isStockAtDateReport(JasperReport jasperReport) {
+        JRField[] fields = jasperReport.getFields();
+        if (fields == null || fields.length == 0) {
+            return false;
+        }
+        for (JRField field : fields) {
+            Class<?> valueClass = STOCK_AT_DATE_FIELDS.get(field.getName());
+            if (valueClass == null || !field.getValueClass().isAssignableFrom(valueClass)) {
+                LOGGER.info("Report {} declares field {}: filling it from its query", jasperReport.getName(), field.getName());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the rows of the pharmaceutical stock report from the stock snapshots, one for each medical
+     * with its main store quantity at the beginning of the specified day (the same bound passed to the report query as <code>todate</code>).
+     * @param date the report date.
+     * @param filter if not <code>null</code>, the code of the medical type to report.
+     * @param groupBy if it names a report field, the first sort field.
+     * @param sortBy if it names a report field, the sort field (<code>MDSR_DESC</code> otherwise).
+     */
+    private List<Map<String, ?>> getStockAtDateRows(Date date, String filter, String groupBy, String sortBy) throws OHServiceException {
+        GregorianCalendar time = new GregorianCalendar();
+        time.setTime(date);
+        GregorianCalendar day = new GregorianCalendar(time.get(GregorianCalendar.YEAR), time.get(GregorianCalendar.MONTH), time.get(GregorianCalendar.DAY_OF_MONTH));
+        Map<Integer, Double> quantities = stockSnapshotIoOperations.getMainStoreStockAtDate(day);
+        List<Map<String, ?>> rows = new ArrayList<Map<String, ?>>();
+        for (Medical medical : medicalManager.getMedicals()) {
+            if (filter != null && !filter.isEmpty() && !filter.equals(medical.getType().getCode())) {
+                continue;
+            }
+            Double quantity = quantities.get(medical.getCode());
+            Map<String, Object> row = new LinkedHashMap<String, Object>();
+            row.put("MDSR_ID", medical.getCode());
+            row.put("MDSR_CODE", medical.getProd_code());
+            row.put("MDSR_DESC", medical.getDescription());
+            row.put("MDSRT_ID_A", medical.getType().getCode());
+            row.put("MDSRT_DESC", medical.getType().getDescription());
+            row.put("MDSR_MIN_STOCK_QTI", medical.getMinqty());
+            row.put("STOCK", quantity == null ? 0. : quantity);
+            rows.add(row);
+        }
+        List<String> sortFields = new ArrayList<String>();
+        if (groupBy != null && STOCK_AT_DATE_FIELDS.containsKey(groupBy)) {
+            sortFields.add(groupBy);
+        }
+        sortFields.add(sortBy != null && STOCK_AT_DATE_FIELDS.containsKey(sortBy) ? sortBy : "MDSR_DESC");
+        rows.sort((row1, row2) -> {
+            for (String field : sortFields) {
+                int compare = compareValues(row1.get(field), row2.get(field));
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+            return 0;
+        });
+        return rows;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compareValues(Object value1, Object value2) {
+        if (value1 == null || value2 == null) {
+            return value1 == null ? (value2 == null ? 0 : -1) : 1;
+        }
+        return ((Comparable) value1).compareTo(value2);
+    }
+
     private JasperReportResultDto generateJasperReport(String jasperFilename, String filename, Map parameters) throws JRException, SQLException {
         File jasperFile = new File(jasperFilename);
         final JasperReport jasperReport = (JasperReport) JRLoader.loadObject(jasperFile);
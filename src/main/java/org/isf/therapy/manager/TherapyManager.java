@@ -23,24 +23,29 @@ package org.isf.therapy.manager;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.isf.generaldata.MessageBundle;
 import org.isf.medicals.manager.MedicalBrowsingManager;
 import org.isf.medicals.model.Medical;
 import org.isf.medicalstockward.manager.MovWardBrowserManager;
+import org.isf.medicalstockward.model.MedicalWard;
 import org.isf.menu.manager.UserBrowsingManager;
 import org.isf.patient.manager.PatientBrowserManager;
 import org.isf.patient.model.Patient;
 import org.isf.sms.manager.SmsManager;
 import org.isf.sms.model.Sms;
 import org.isf.sms.service.SmsOperations;
+import org.isf.therapy.model.MedicalDemand;
 import org.isf.therapy.model.Therapy;
 import org.isf.therapy.model.TherapyRow;
+import org.isf.therapy.model.TherapySchedule;
 import org.isf.therapy.service.TherapyIoOperations;
 import org.isf.utils.exception.OHServiceException;
-import org.isf.utils.time.TimeTools;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
@@ -78,7 +83,7 @@ public class TherapyManager {
 
 	/**
 	 * Creates a {@link Therapy} from its parameters, fetching the {@link Medical}
-	 * and building the array of Dates ({@link GregorianCalendar})
+	 * and building its {@link TherapySchedule}
 	 *
 	 * @param therapyID
 	 * @param patID
@@ -97,33 +102,9 @@ public class TherapyManager {
 			GregorianCalendar startDate, GregorianCalendar endDate, int freqInPeriod,
 			int freqInDay, String note, boolean notify, boolean sms) throws OHServiceException {
 
-		ArrayList<GregorianCalendar> datesArray = new ArrayList<>();
-
-		GregorianCalendar stepDate = new GregorianCalendar();
-		stepDate.setTime(startDate.getTime());
-		datesArray.add(new GregorianCalendar(
-				startDate.get(GregorianCalendar.YEAR),
-				startDate.get(GregorianCalendar.MONTH),
-				startDate.get(GregorianCalendar.DAY_OF_MONTH)));
-
-		while (stepDate.before(endDate)) {
-
-			stepDate.add(GregorianCalendar.DAY_OF_MONTH, freqInPeriod);
-			datesArray.add(new GregorianCalendar(
-					stepDate.get(GregorianCalendar.YEAR),
-					stepDate.get(GregorianCalendar.MONTH),
-					stepDate.get(GregorianCalendar.DAY_OF_MONTH))
-			);
-		}
-
-		GregorianCalendar[] dates = new GregorianCalendar[datesArray.size()];
-
-		for (int i = 0; i < datesArray.size(); i++) {
-			dates[i] = datesArray.get(i);
-		}
-
+		TherapySchedule schedule = TherapySchedule.of(startDate, endDate, freqInPeriod);
 		Medical med = medManager.getMedical(medId);
-		return new Therapy(therapyID, patID, dates, med, qty, "", freqInDay, note, notify, sms);
+		return new Therapy(therapyID, patID, schedule, med, qty, "", freqInDay, note, notify, sms);
 	}
 
 	/**
@@ -172,7 +153,8 @@ public class TherapyManager {
 	}
 
 	/**
-	 * Replace all {@link TherapyRow}s (therapies) for related Patient
+	 * Replace all {@link TherapyRow}s (therapies) for related Patient, replacing also the {@link Sms} reminders
+	 * not already sent with the ones of the therapies with SMS enabled, one for each dose day after today
 	 *
 	 * @param thRows - the list of {@link TherapyRow}s (therapies)
 	 * @return <code>true</code> if the row has been inserted, <code>false</code> otherwise
@@ -183,31 +165,41 @@ public class TherapyManager {
 		if (!thRows.isEmpty()) {
 
 			int patID = thRows.get(0).getPatient().getCode();
-			smsOp.deleteByModuleModuleID("therapy", String.valueOf(patID));
+			Patient pat = null;
+			String user = UserBrowsingManager.getCurrentUser();
+			long tomorrow = TherapySchedule.toEpochDay(new GregorianCalendar()) + 1;
+			List<Sms> smsList = new ArrayList<>();
 
 			for (TherapyRow thRow : thRows) {
 
 				ioOperations.newTherapy(thRow);
 				if (thRow.isSms()) {
 					Therapy th = createTherapy(thRow);
-					GregorianCalendar[] dates = th.getDates();
-					for (GregorianCalendar date : dates) {
+					TherapySchedule schedule = th.getSchedule();
+					int first = schedule.indexFrom(tomorrow);
+					if (first == schedule.getCount()) {
+						continue;
+					}
+					if (pat == null) {
+						pat = patientManager.getPatientById(patID);
+					}
+					String text = prepareSmsFromTherapy(th);
+					for (int i = first; i < schedule.getCount(); i++) {
+						GregorianCalendar date = TherapySchedule.toCalendar(schedule.getDay(i));
 						date.set(Calendar.HOUR_OF_DAY, 8);
-						if (date.after(TimeTools.getDateToday24())) {
-							Patient pat = patientManager.getPatientById(patID);
-
-							Sms sms = new Sms();
-							sms.setSmsDateSched(date.getTime());
-							sms.setSmsNumber(pat.getTelephone());
-							sms.setSmsText(prepareSmsFromTherapy(th));
-							sms.setSmsUser(UserBrowsingManager.getCurrentUser());
-							sms.setModule("therapy");
-							sms.setModuleID(String.valueOf(patID));
-							smsOp.saveOrUpdate(sms);
-						}
+
+						Sms sms = new Sms();
+						sms.setSmsDateSched(date.getTime());
+						sms.setSmsNumber(pat.getTelephone());
+						sms.setSmsText(text);
+						sms.setSmsUser(user);
+						sms.setModule("therapy");
+						sms.setModuleID(String.valueOf(patID));
+						smsList.add(sms);
 					}
 				}
 			}
+			smsOp.replaceByModuleModuleID("therapy", String.valueOf(patID), smsList);
 		}
 		return true;
 	}
@@ -251,7 +243,8 @@ public class TherapyManager {
 	}
 
 	/**
-	 * Returns the {@link Medical}s that are not available for the specified list of {@link Therapy}s
+	 * Returns the {@link Medical}s that are not available for the specified list of {@link Therapy}s,
+	 * comparing their total demand with the stock in the main store and in all the wards
 	 *
 	 * @param therapies - the list of {@link Therapy}s
 	 * @return the list of {@link Medical}s out of stock
@@ -260,47 +253,107 @@ public class TherapyManager {
 	@Transactional(rollbackFor = OHServiceException.class)
 	public List<Medical> getMedicalsOutOfStock(List<Therapy> therapies) throws OHServiceException {
 		ArrayList<Medical> medOutStock = new ArrayList<>();
+		for (MedicalDemand demand : getMedicalDemands(therapies)) {
+			if (demand.getShortfall() > 0) {
+				medOutStock.add(demand.getMedical());
+			}
+		}
+		return medOutStock;
+	}
 
-		List<Medical> medArray = medManager.getMedicals();
-
-		double neededQty = 0.;
-		double actualQty = 0.;
-
+	/**
+	 * Returns, for each {@link Medical} of the specified list of {@link Therapy}s, the quantity required
+	 * from today to the end of the therapies, together with the stock in the main store and in all the wards
+	 * (medicals not required anymore are not included)
+	 *
+	 * @param therapies - the list of {@link Therapy}s
+	 * @return the list of {@link MedicalDemand}s, in order of first appearance in the therapies
+	 * @throws OHServiceException
+	 */
+	@Transactional(rollbackFor = OHServiceException.class)
+	public List<MedicalDemand> getMedicalDemands(List<Therapy> therapies) throws OHServiceException {
+		GregorianCalendar todayDate = _getToday();
+		Map<Integer, MedicalDemand> demands = new LinkedHashMap<>();
 		for (Therapy th : therapies) {
+			int dayCount = th.countDaysFrom(todayDate);
+			_addDemand(demands, th.getMedical().getCode(), th.getQty() * th.getFreqInDay() * dayCount);
+		}
+		return _getDemands(demands);
+	}
 
-			// CALCULATING NEEDINGS
-			Double qty = th.getQty();
-			int freq = th.getFreqInDay();
-			GregorianCalendar now = new GregorianCalendar();
-			GregorianCalendar todayDate = new GregorianCalendar(now
-					.get(GregorianCalendar.YEAR), now
-					.get(GregorianCalendar.MONTH), now
-					.get(GregorianCalendar.DAY_OF_MONTH));
-
-			int dayCount = 0;
-			for (GregorianCalendar date : th.getDates()) {
-				if (date.after(todayDate) || date.equals(todayDate))
-					dayCount++;
-			}
+	/**
+	 * Returns, for each {@link Medical} required by the stored therapies of all the patients,
+	 * the quantity required from today to the end of the therapies, together with the stock in the main store
+	 * and in all the wards, to plan the orders for the whole hospital
+	 *
+	 * @return the list of {@link MedicalDemand}s, the ones with the biggest shortfall first
+	 * @throws OHServiceException
+	 */
+	@Transactional(rollbackFor = OHServiceException.class)
+	public List<MedicalDemand> getMedicalDemands() throws OHServiceException {
+		long today = TherapySchedule.toEpochDay(new GregorianCalendar());
+		Map<Integer, MedicalDemand> demands = new LinkedHashMap<>();
+		for (TherapyRow thRow : ioOperations.getTherapyRows(0)) {
+			int dayCount = TherapySchedule.of(thRow.getStartDate(), thRow.getEndDate(), thRow.getFreqInPeriod()).countFrom(today);
+			_addDemand(demands, thRow.getMedical(), thRow.getQty() * thRow.getFreqInDay() * dayCount);
+		}
+		List<MedicalDemand> result = _getDemands(demands);
+		result.sort(new Comparator<MedicalDemand>() {
 
-			if (dayCount != 0) {
+			@Override
+			public int compare(MedicalDemand demand1, MedicalDemand demand2) {
+				return Double.compare(demand2.getShortfall(), demand1.getShortfall());
+			}
+		});
+		return result;
+	}
 
-				neededQty = qty * freq * dayCount;
+	/**
+	 * Returns today at midnight, as the dose days of a {@link Therapy}
+	 */
+	private GregorianCalendar _getToday() {
+		GregorianCalendar now = new GregorianCalendar();
+		return new GregorianCalendar(now.get(GregorianCalendar.YEAR), now.get(GregorianCalendar.MONTH), now.get(GregorianCalendar.DAY_OF_MONTH));
+	}
 
-				// CALCULATING STOCK QUANTITIES
-				Medical med = medArray.get(medArray.indexOf(th.getMedical()));
-				actualQty = med.getInitialqty() + med.getInqty() - med.getOutqty(); // MAIN STORE
-				int currentQuantity = wardManager.getCurrentQuantityInWard(null, med);
-				actualQty += currentQuantity;
+	/**
+	 * Adds the required quantity of a therapy to the demand of its {@link Medical}
+	 */
+	private void _addDemand(Map<Integer, MedicalDemand> demands, Integer medical, double requiredQty) {
+		if (requiredQty <= 0) {
+			return;
+		}
+		MedicalDemand demand = demands.get(medical);
+		if (demand == null) {
+			demand = new MedicalDemand();
+			demands.put(medical, demand);
+		}
+		demand.setRequiredQty(demand.getRequiredQty() + requiredQty);
+		demand.setTherapies(demand.getTherapies() + 1);
+	}
 
-				if (neededQty > actualQty) {
-					if (!medOutStock.contains(med)) {
-						medOutStock.add(med);
-					}
-				}
+	/**
+	 * Completes the demands with the {@link Medical}s and their main store and wards quantities, retrieved at once
+	 */
+	private List<MedicalDemand> _getDemands(Map<Integer, MedicalDemand> demands) throws OHServiceException {
+		List<MedicalDemand> result = new ArrayList<>();
+		if (demands.isEmpty()) {
+			return result;
+		}
+		Map<Integer, MedicalWard> stock = wardManager.getMedicalsWardTotalQuantity(demands.keySet());
+		for (Map.Entry<Integer, MedicalDemand> entry : demands.entrySet()) {
+			MedicalWard medicalWard = stock.get(entry.getKey());
+			if (medicalWard == null) {
+				continue;
 			}
+			Medical med = medicalWard.getMedical();
+			MedicalDemand demand = entry.getValue();
+			demand.setMedical(med);
+			demand.setMainStoreQty(med.getInitialqty() + med.getInqty() - med.getOutqty());
+			demand.setWardQty(medicalWard.getQty());
+			result.add(demand);
 		}
-		return medOutStock;
+		return result;
 	}
 
 	/**
@@ -0,0 +1,125 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.therapy.model;
+
+import org.isf.medicals.model.Medical;
+
+/**
+ * Bean to host the quantity of a {@link Medical} still required by a set of {@link Therapy}s,
+ * together with the quantities available in the main store and in the wards.
+ */
+public class MedicalDemand {
+
+	private Medical medical;
+	private double requiredQty;
+	private double mainStoreQty;
+	private double wardQty;
+	private int therapies;
+
+	public MedicalDemand() {
+		super();
+	}
+
+	/**
+	 * @param medical
+	 * @param requiredQty
+	 * @param mainStoreQty
+	 * @param wardQty
+	 * @param therapies
+	 */
+	public MedicalDemand(Medical medical, double requiredQty, double mainStoreQty, double wardQty, int therapies) {
+		super();
+		this.medical = medical;
+		this.requiredQty = requiredQty;
+		this.mainStoreQty = mainStoreQty;
+		this.wardQty = wardQty;
+		this.therapies = therapies;
+	}
+
+	public Medical getMedical() {
+		return medical;
+	}
+
+	public void setMedical(Medical medical) {
+		this.medical = medical;
+	}
+
+	/**
+	 * @return the quantity required from today to the end of the therapies
+	 */
+	public double getRequiredQty() {
+		return requiredQty;
+	}
+
+	public void setRequiredQty(double requiredQty) {
+		this.requiredQty = requiredQty;
+	}
+
+	public double getMainStoreQty() {
+		return mainStoreQty;
+	}
+
+	public void setMainStoreQty(double mainStoreQty) {
+		this.mainStoreQty = mainStoreQty;
+	}
+
+	/**
+	 * @return the quantity in all the wards
+	 */
+	public double getWardQty() {
+		return wardQty;
+	}
+
+	public void setWardQty(double wardQty) {
+		this.wardQty = wardQty;
+	}
+
+	/**
+	 * @return the number of therapies requiring the medical
+	 */
+	public int getTherapies() {
+		return therapies;
+	}
+
+	public void setTherapies(int therapies) {
+		this.therapies = therapies;
+	}
+
+	/**
+	 * @return the quantity available in the main store and in the wards
+	 */
+	public double getAvailableQty() {
+		return mainStoreQty + wardQty;
+	}
+
+	/**
+	 * @return the quantity missing to cover the required quantity, <code>0</code> if the stock is enough
+	 */
+	public double getShortfall() {
+		return Math.max(0., requiredQty - getAvailableQty());
+	}
+
+	@Override
+	public String toString() {
+		return medical + ": " + requiredQty + " required, " + getAvailableQty() + " available";
+	}
+}
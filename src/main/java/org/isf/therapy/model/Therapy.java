@@ -35,6 +35,7 @@ public class Therapy {
 	private int therapyID;
 	private int patID;
 	private GregorianCalendar[] dates;
+	private TherapySchedule schedule;
 	private Medical medical;
 	private Double qty;
 	private String units;
@@ -75,6 +76,25 @@ public class Therapy {
 		this.sms = sms;
 	}
 	
+	/**
+	 * @param therapyID
+	 * @param patID
+	 * @param schedule
+	 * @param medical
+	 * @param qty
+	 * @param units
+	 * @param freqInDay
+	 * @param note
+	 * @param notify
+	 * @param sms
+	 */
+	public Therapy(int therapyID, int patID, TherapySchedule schedule,
+			Medical medical, Double qty, String units, int freqInDay,
+			String note, boolean notify, boolean sms) {
+		this(therapyID, patID, (GregorianCalendar[]) null, medical, qty, units, freqInDay, note, notify, sms);
+		this.schedule = schedule;
+	}
+	
 	public int getTherapyID() {
 		return therapyID;
 	}
@@ -83,12 +103,58 @@ public class Therapy {
 		this.therapyID = therapyID;
 	}
 
+	/**
+	 * Returns the dose days; for a therapy with a {@link TherapySchedule} a new array is built at each call,
+	 * prefer {@link #getSchedule()} or {@link #countDaysFrom(GregorianCalendar)} where possible.
+	 *
+	 * @return the dose days
+	 */
 	public GregorianCalendar[] getDates() {
+		if (dates == null && schedule != null) {
+			return schedule.toCalendars();
+		}
 		return dates;
 	}
 
+	/**
+	 * Sets explicit dose days, replacing the {@link TherapySchedule}
+	 *
+	 * @param dates
+	 */
 	public void setDates(GregorianCalendar[] dates) {
 		this.dates = dates;
+		this.schedule = null;
+	}
+
+	/**
+	 * @return the {@link TherapySchedule}, <code>null</code> if the therapy has explicit dose days
+	 */
+	public TherapySchedule getSchedule() {
+		return schedule;
+	}
+
+	public void setSchedule(TherapySchedule schedule) {
+		this.schedule = schedule;
+		this.dates = null;
+	}
+
+	/**
+	 * @param date - a date at midnight
+	 * @return the number of dose days not before the specified date
+	 */
+	public int countDaysFrom(GregorianCalendar date) {
+		if (schedule != null) {
+			return schedule.countFrom(date);
+		}
+		int dayCount = 0;
+		if (dates != null) {
+			for (GregorianCalendar day : dates) {
+				if (!day.before(date)) {
+					dayCount++;
+				}
+			}
+		}
+		return dayCount;
 	}
 
 	public Double getQty() {
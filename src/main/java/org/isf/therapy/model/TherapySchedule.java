@@ -0,0 +1,186 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.therapy.model;
+
+import java.time.LocalDate;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Immutable dose days of a {@link Therapy}: <code>count</code> days, one every <code>step</code> days
+ * starting from <code>startDay</code>. Days are epoch days (see {@link LocalDate#toEpochDay()}), so the
+ * schedule can be walked with {@link #getDay(int)} without building any {@link GregorianCalendar}.
+ */
+public final class TherapySchedule {
+
+	private final long startDay;
+	private final int step;
+	private final int count;
+
+	/**
+	 * @param startDay - the first dose day (epoch day)
+	 * @param step - the days between two dose days
+	 * @param count - the number of dose days
+	 */
+	public TherapySchedule(long startDay, int step, int count) {
+		if (step < 1 || count < 0) {
+			throw new IllegalArgumentException("Invalid schedule: step " + step + ", count " + count);
+		}
+		this.startDay = startDay;
+		this.step = step;
+		this.count = count;
+	}
+
+	/**
+	 * Builds the schedule of a therapy, one dose day every <code>freqInPeriod</code> days from
+	 * <code>startDate</code> until <code>endDate</code>: as for the stepping of a calendar from the start date,
+	 * the last dose day is the first one not before the end date.
+	 *
+	 * @param startDate - the start of the therapy
+	 * @param endDate - the end of the therapy
+	 * @param freqInPeriod - the days between two dose days
+	 * @return the schedule
+	 */
+	public static TherapySchedule of(GregorianCalendar startDate, GregorianCalendar endDate, int freqInPeriod) {
+		long startDay = toEpochDay(startDate);
+		long days = toEpochDay(endDate) - startDay;
+		int step = Math.max(1, freqInPeriod);
+		long steps = days > 0 ? (days + step - 1) / step : 0;
+		if (days >= 0 && days % step == 0 && _getTimeOfDay(startDate) < _getTimeOfDay(endDate)) {
+			steps++;
+		}
+		return new TherapySchedule(startDay, step, (int) (steps + 1));
+	}
+
+	/**
+	 * @param date - a date
+	 * @return the epoch day of the date, regardless the time
+	 */
+	public static long toEpochDay(Calendar date) {
+		return LocalDate.of(date.get(Calendar.YEAR), date.get(Calendar.MONTH) + 1, date.get(Calendar.DAY_OF_MONTH)).toEpochDay();
+	}
+
+	/**
+	 * @param epochDay - an epoch day
+	 * @return a new {@link GregorianCalendar} at the midnight of the day
+	 */
+	public static GregorianCalendar toCalendar(long epochDay) {
+		LocalDate date = LocalDate.ofEpochDay(epochDay);
+		return new GregorianCalendar(date.getYear(), date.getMonthValue() - 1, date.getDayOfMonth());
+	}
+
+	private static long _getTimeOfDay(Calendar date) {
+		return ((date.get(Calendar.HOUR_OF_DAY) * 60L + date.get(Calendar.MINUTE)) * 60L + date.get(Calendar.SECOND)) * 1000L
+				+ date.get(Calendar.MILLISECOND);
+	}
+
+	public long getStartDay() {
+		return startDay;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the last dose day (epoch day), or the day before the start if there are no dose days
+	 */
+	public long getEndDay() {
+		return count == 0 ? startDay - 1 : getDay(count - 1);
+	}
+
+	/**
+	 * @param index - the index of the dose day, from <code>0</code> to <code>{@link #getCount()} - 1</code>
+	 * @return the dose day (epoch day)
+	 */
+	public long getDay(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Count: " + count);
+		}
+		return startDay + (long) index * step;
+	}
+
+	/**
+	 * @param epochDay - an epoch day
+	 * @return the index of the first dose day on or after the specified day, {@link #getCount()} if there are none
+	 */
+	public int indexFrom(long epochDay) {
+		if (epochDay <= startDay) {
+			return 0;
+		}
+		long index = (epochDay - startDay + step - 1) / step;
+		return (int) Math.min(index, count);
+	}
+
+	/**
+	 * @param epochDay - an epoch day
+	 * @return the number of dose days on or after the specified day
+	 */
+	public int countFrom(long epochDay) {
+		return count - indexFrom(epochDay);
+	}
+
+	/**
+	 * @param date - a date
+	 * @return the number of dose days on or after the day of the specified date
+	 */
+	public int countFrom(Calendar date) {
+		return countFrom(toEpochDay(date));
+	}
+
+	/**
+	 * @return a new array with the dose days at midnight
+	 */
+	public GregorianCalendar[] toCalendars() {
+		GregorianCalendar[] dates = new GregorianCalendar[count];
+		for (int i = 0; i < count; i++) {
+			dates[i] = toCalendar(getDay(i));
+		}
+		return dates;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof TherapySchedule)) {
+			return false;
+		}
+		TherapySchedule other = (TherapySchedule) obj;
+		return startDay == other.startDay && step == other.step && count == other.count;
+	}
+
+	@Override
+	public int hashCode() {
+		return (Long.hashCode(startDay) * 31 + step) * 31 + count;
+	}
+
+	@Override
+	public String toString() {
+		return LocalDate.ofEpochDay(startDay) + " every " + step + " days, " + count + " times";
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.utils.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Collects the changes made by each transaction to an in-memory copy of stored data and applies them
+ * only after the transaction has committed, so that a rolled back transaction leaves the copy untouched.
+ * <p>
+ * The copy is replaced through {@link #reload(Runnable, long)}, that waits for the transactions being committed
+ * to apply their changes and holds back the ones that start committing until the data has been read:
+ * every committed change is then either in the reloaded data or applied to it afterwards, never both.
+ * @param <P> the type holding the changes of a transaction.
+ */
+public class AfterCommitUpdates<P> {
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Supplier<P> newChanges;
+
+	private final Consumer<P> apply;
+
+	/**
+	 * @param newChanges creates the holder of the changes of a transaction.
+	 * @param apply applies committed changes to the copy; it may run concurrently for different transactions.
+	 */
+	public AfterCommitUpdates(Supplier<P> newChanges, Consumer<P> apply) {
+		this.newChanges = newChanges;
+		this.apply = apply;
+	}
+
+	/**
+	 * Returns the changes of the current transaction, creating them at the first call.
+	 * @return the changes to fill, <code>null</code> outside a transaction: the changes are then passed to {@link #applyNow(Object)}.
+	 */
+	public P getChanges() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		Changes changes = _getChanges();
+		if (changes == null) {
+			changes = new Changes(newChanges.get());
+			TransactionSynchronizationManager.bindResource(this, changes);
+			TransactionSynchronizationManager.registerSynchronization(changes);
+		}
+		return changes.changes;
+	}
+
+	/**
+	 * @return the changes made so far by the current transaction, <code>null</code> if none.
+	 */
+	public P findChanges() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		Changes changes = _getChanges();
+		return changes == null ? null : changes.changes;
+	}
+
+	/**
+	 * Applies changes made outside a transaction.
+	 * @param changes the changes.
+	 */
+	public void applyNow(P changes) {
+		lock.readLock().lock();
+		try {
+			apply.accept(changes);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the copy while no transaction is being committed.
+	 * @param load reads the data in a new transaction, which does not see the changes of the current one
+	 *        (they are applied after its commit), and replaces the copy.
+	 * @param timeoutMillis how long to wait for the transactions being committed.
+	 * @return <code>false</code> if the wait timed out and the copy has not been replaced.
+	 */
+	public boolean reload(Runnable load, long timeoutMillis) {
+		try {
+			if (!lock.writeLock().tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		try {
+			load.run();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Changes _getChanges() {
+		return (Changes) TransactionSynchronizationManager.getResource(this);
+	}
+
+	private class Changes extends TransactionSynchronizationAdapter {
+
+		private final P changes;
+		private boolean committing;
+
+		Changes(P changes) {
+			this.changes = changes;
+		}
+
+		@Override
+		public void beforeCommit(boolean readOnly) {
+			lock.readLock().lock();
+			committing = true;
+		}
+
+		@Override
+		public void afterCommit() {
+			apply.accept(changes);
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(AfterCommitUpdates.this);
+			if (committing) {
+				committing = false;
+				lock.readLock().unlock();
+			}
+		}
+	}
+}
@@ -45,6 +45,9 @@ import org.slf4j.LoggerFactory;
 public class DbQueryLogger {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(DbQueryLogger.class);
+
+	private static final String MYSQL_URL = "jdbc:mysql:";
+	private static final String MYSQL_CURSOR_FETCH = "usecursorfetch=true";
     
 	/**
      * Method that executes a query and returns a resultset
@@ -71,6 +74,49 @@ public class DbQueryLogger {
     	}
     }
     
+    /**
+     * Method that executes a query on a forward-only, read-only cursor and returns a resultset
+     * whose rows are fetched while reading it, instead of all at once;
+     * the caller must close its statement once done
+     * @param aQuery
+     * @param fetchSize the requested fetch size (see {@link #getStreamingFetchSize(String, int)})
+     * @return ResultSet
+     * @throws OHException
+     */
+    public ResultSet getStreamingData(String aQuery, int fetchSize) throws OHException {
+    	if (LOGGER.isDebugEnabled()) {
+		    LOGGER.debug("Query {}", sanitize(aQuery));
+		}
+    	try{
+	        Connection conn = DbSingleJpaConn.getConnection();
+	        conn.setAutoCommit(true);
+	        Statement stat = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	        stat.setFetchSize(getStreamingFetchSize(conn.getMetaData().getURL(), fetchSize));
+	        return stat.executeQuery(aQuery);
+        }catch (OHException e){
+            throw e;
+    	} catch (SQLException e) {
+    		throw new OHException(MessageBundle.getMessage("angal.sql.problemsoccurredwiththesqlinstruction.msg"), e);
+    	} catch (Exception e) {
+    		throw new OHException(MessageBundle.getMessage("angal.sql.problemsoccurredwithserverconnection.msg"), e); 
+    	}
+    }
+
+    /**
+     * MySQL Connector/J reads the whole result set in memory whatever the fetch size, unless the url sets
+     * <code>useCursorFetch=true</code>; without it, rows are streamed one at a time only with the
+     * {@link Integer#MIN_VALUE} fetch size (and no other statement can run on the connection meanwhile)
+     * @param url the database url
+     * @param fetchSize the requested fetch size
+     * @return the fetch size that really streams the rows on the database
+     */
+    public static int getStreamingFetchSize(String url, int fetchSize) {
+    	if (url != null && url.startsWith(MYSQL_URL) && !url.toLowerCase().contains(MYSQL_CURSOR_FETCH)) {
+    		return Integer.MIN_VALUE;
+    	}
+    	return fetchSize;
+    }
+    
     /**
      * Method that executes a PreparedStatement with params and returns a resultset
      * @param aQuery
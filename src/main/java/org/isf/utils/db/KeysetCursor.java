@@ -0,0 +1,63 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.utils.db;
+
+import java.util.GregorianCalendar;
+
+/**
+ * Position of the last row of a page in a movement listing ordered by date, reference number and code,
+ * used to retrieve the next page by seeking past it instead of skipping rows with an offset.
+ * Listings without a reference number (e.g. ward movements) leave it <code>null</code>.
+ */
+public class KeysetCursor {
+
+	private final GregorianCalendar date;
+	private final String refNo;
+	private final int code;
+
+	public KeysetCursor(GregorianCalendar date, String refNo, int code) {
+		this.date = date;
+		this.refNo = refNo;
+		this.code = code;
+	}
+
+	public KeysetCursor(GregorianCalendar date, int code) {
+		this(date, null, code);
+	}
+
+	public GregorianCalendar getDate() {
+		return date;
+	}
+
+	public String getRefNo() {
+		return refNo;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	@Override
+	public String toString() {
+		return "KeysetCursor [date=" + (date == null ? null : date.getTime()) + ", refNo=" + refNo + ", code=" + code + "]";
+	}
+}
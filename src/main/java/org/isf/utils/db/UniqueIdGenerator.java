@@ -0,0 +1,207 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.utils.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.IntSupplier;
+
+import org.isf.generaldata.GeneralData;
+import org.isf.utils.exception.OHException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates unique identifiers without checking the storage for collisions.
+ * <p>
+ * Every identifier is a positive long made of the milliseconds elapsed since 2020-01-01 (40 bits),
+ * the node id (10 bits) and a counter of the identifiers generated in the same millisecond (12 bits).
+ * The highest free bit is always set, so the decimal form is always 19 digits long and the identifiers
+ * generated by one node sort as strings in the same order they were created.
+ * <p>
+ * Different processes sharing the same data must be configured with different node ids
+ * (<code>NODEID</code> in settings.properties). When no node id is configured, the installation claims
+ * the next one from the CLIENTNODE table the first time and keeps it in {@link #NODEID_FILE}.
+ */
+public class UniqueIdGenerator {
+
+	public static final int MAX_NODE_ID = 1023;
+
+	/**
+	 * The file keeping the node id claimed by this installation when none is configured.
+	 */
+	public static final File NODEID_FILE = new File(System.getProperty("user.home"), ".openhospital" + File.separator + "nodeid");
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(UniqueIdGenerator.class);
+
+	private static final String CLAIM_NODE_ID = "INSERT INTO CLIENTNODE (CN_CREATED_DATE) VALUES (CURRENT_TIMESTAMP)";
+
+	private static final long EPOCH = 1577836800000L; // 2020-01-01T00:00:00Z
+	private static final int NODE_BITS = 10;
+	private static final int SEQUENCE_BITS = 12;
+	private static final long MAX_TIMESTAMP = (1L << 40) - 1;
+	private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+	private static final long PREFIX = 1L << 62;
+
+	private static UniqueIdGenerator instance;
+
+	private final long nodeId;
+	private long lastTimestamp = -1L;
+	private long sequence;
+
+	/**
+	 * @param nodeId the id of this node, from 0 to {@link #MAX_NODE_ID}.
+	 */
+	public UniqueIdGenerator(int nodeId) {
+		if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+			throw new IllegalArgumentException("node id must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+		}
+		this.nodeId = nodeId;
+	}
+
+	/**
+	 * Returns the generator of this process, using the configured node id
+	 * or the one claimed by this installation when none is configured.
+	 * @return the shared {@link UniqueIdGenerator}.
+	 * @throws IllegalStateException if the node id of this installation cannot be read nor claimed.
+	 */
+	public static synchronized UniqueIdGenerator getInstance() {
+		if (instance == null) {
+			GeneralData.getGeneralData();
+			int nodeId = GeneralData.NODEID;
+			if (nodeId < 0) {
+				nodeId = getInstallationNodeId(NODEID_FILE, UniqueIdGenerator::claimNodeId);
+				LOGGER.info("NODEID is not configured, using {} from {}", nodeId, NODEID_FILE);
+			}
+			instance = new UniqueIdGenerator(nodeId);
+		}
+		return instance;
+	}
+
+	/**
+	 * Reads the node id kept in the specified file, claiming a new one and storing it
+	 * if the file does not exist yet.
+	 * @param file the file keeping the node id.
+	 * @param claim claims a node id never given to another installation.
+	 * @return the node id, from 0 to {@link #MAX_NODE_ID}.
+	 * @throws IllegalStateException if the file cannot be read nor stored, its content is not a valid node id
+	 * or no node id can be claimed.
+	 */
+	static int getInstallationNodeId(File file, IntSupplier claim) {
+		Path path = file.toPath();
+		try {
+			if (!file.exists()) {
+				int nodeId = claim.getAsInt();
+				if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+					throw new IllegalStateException("every node id has been claimed, configure NODEID in settings.properties");
+				}
+				Files.createDirectories(path.toAbsolutePath().getParent());
+				Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), file.getName(), ".tmp");
+				try {
+					Files.write(temp, Integer.toString(nodeId).getBytes(StandardCharsets.US_ASCII));
+					Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					Files.deleteIfExists(temp);
+				}
+			}
+			int nodeId = Integer.parseInt(new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim());
+			if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+				throw new IllegalStateException("invalid node id in " + file + ": " + nodeId);
+			}
+			return nodeId;
+		} catch (IOException | NumberFormatException e) {
+			throw new IllegalStateException("cannot read the node id from " + file + ", configure NODEID in settings.properties", e);
+		}
+	}
+
+	/**
+	 * Claims the next node id from the database: every row inserted in CLIENTNODE gets a new auto-increment key,
+	 * so two installations never get the same node id.
+	 * @return the claimed node id (the key minus one, as keys start from 1).
+	 * @throws IllegalStateException if the node id cannot be claimed.
+	 */
+	static int claimNodeId() {
+		try {
+			ResultSet keys = new DbQueryLogger().setDataReturnGeneratedKey(CLAIM_NODE_ID, true);
+			try {
+				if (!keys.next()) {
+					throw new IllegalStateException("no node id claimed from CLIENTNODE");
+				}
+				return keys.getInt(1) - 1;
+			} finally {
+				keys.getStatement().close();
+			}
+		} catch (OHException | SQLException e) {
+			throw new IllegalStateException("cannot claim a node id from CLIENTNODE, configure NODEID in settings.properties", e);
+		}
+	}
+
+	/**
+	 * Generates a new identifier, always greater than the ones previously generated by this instance.
+	 * If the clock goes back or more than 4096 identifiers are requested in the same millisecond
+	 * the identifiers keep increasing by borrowing the following milliseconds.
+	 * @return the new identifier.
+	 */
+	public synchronized long nextId() {
+		long timestamp = Math.max(currentTimeMillis() - EPOCH, lastTimestamp);
+		if (timestamp == lastTimestamp) {
+			sequence = (sequence + 1) & MAX_SEQUENCE;
+			if (sequence == 0) {
+				timestamp++;
+			}
+		} else {
+			sequence = 0;
+		}
+		if (timestamp > MAX_TIMESTAMP) {
+			throw new IllegalStateException("unique identifiers exhausted");
+		}
+		lastTimestamp = timestamp;
+		return PREFIX | (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+	}
+
+	/**
+	 * Generates a new identifier in its decimal form.
+	 * @return the new identifier, 19 characters long.
+	 */
+	public String nextIdAsString() {
+		return Long.toString(nextId());
+	}
+
+	/**
+	 * Extracts the node id from an identifier generated by this class.
+	 * @param id the identifier.
+	 * @return the id of the node that generated it.
+	 */
+	public static int getNodeId(long id) {
+		return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE_ID);
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+}
@@ -63,12 +63,18 @@ import org.apache.poi.ss.usermodel.RichTextString;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.isf.generaldata.MessageBundle;
 import org.isf.utils.exception.OHException;
 
 public class ExcelExporter {
 
+	/**
+	 * Rows kept in memory while exporting a {@link ResultSet} to Excel
+	 */
+	public static final int STREAMING_ROWS = 100;
+
 	private CharsetEncoder encoder;
 	private Locale currentLocale;
 	private Workbook workbook;
@@ -402,7 +408,8 @@ public class ExcelExporter {
 	}
 
 	/**
-	 * Export a {@link ResultSet} to Excel using Apache POI library
+	 * Export a {@link ResultSet} to Excel using Apache POI library; only the last {@link #STREAMING_ROWS} rows
+	 * are kept in memory, so a streamed {@link ResultSet} is exported in constant memory
 	 *
 	 * @param resultSet
 	 * @param exportFile
@@ -417,7 +424,8 @@ public class ExcelExporter {
 			throw new OHException(e.getLocalizedMessage());
 		}
 
-		workbook = new XSSFWorkbook();
+		SXSSFWorkbook streamingWorkbook = new SXSSFWorkbook(STREAMING_ROWS);
+		workbook = streamingWorkbook;
 		createHelper = workbook.getCreationHelper();
 
 		Sheet worksheet = workbook.createSheet();
@@ -452,6 +460,8 @@ public class ExcelExporter {
 
 		} catch (SQLException e) {
 			throw new OHException(MessageBundle.getMessage("angal.sql.problemsoccurredwiththesqlinstruction.msg"), e);
+		} finally {
+			streamingWorkbook.dispose();
 		}
 
 	}
@@ -488,7 +498,6 @@ public class ExcelExporter {
 					h++;
 				}
 				header = true;
-				continue;
 			}
 
 			Row row = worksheet.createRow(index);
@@ -669,7 +678,6 @@ public class ExcelExporter {
 					h++;
 				}
 				header = true;
-				continue;
 			}
 
 			HSSFRow row = worksheet.createRow((short) index);
@@ -0,0 +1,93 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.utils.jobs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ApplicationContextEvent;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/**
+ * Runs a background job in a daemon thread while the application context is active:
+ * the job is started when the context is refreshed, if enabled, and interrupted when the context is closed.
+ * The job must stop when its thread is interrupted.
+ */
+public abstract class JobStarter implements ApplicationListener<ApplicationContextEvent> {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobStarter.class);
+
+	private Thread thread;
+
+	/**
+	 * @return <code>true</code> if the job has to be started.
+	 */
+	protected abstract boolean isJobEnabled();
+
+	/**
+	 * @return a new instance of the job.
+	 */
+	protected abstract Runnable createJob();
+
+	@Override
+	public void onApplicationEvent(ApplicationContextEvent event) {
+		if (event instanceof ContextRefreshedEvent) {
+			start();
+		} else if (event instanceof ContextClosedEvent) {
+			stop();
+		}
+	}
+
+	/**
+	 * Starts the job, if enabled and not already running.
+	 */
+	public synchronized void start() {
+		if (thread != null || !isJobEnabled()) {
+			return;
+		}
+		Runnable job = createJob();
+		thread = new Thread(job, job.getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("{} started", thread.getName());
+	}
+
+	/**
+	 * Stops the job, if running.
+	 */
+	public synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		thread.interrupt();
+		LOGGER.info("{} stopped", thread.getName());
+		thread = null;
+	}
+
+	/**
+	 * @return <code>true</code> if the job has been started and not stopped.
+	 */
+	public synchronized boolean isRunning() {
+		return thread != null;
+	}
+}
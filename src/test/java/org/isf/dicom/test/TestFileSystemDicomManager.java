@@ -24,16 +24,34 @@ package org.isf.dicom.test;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Blob;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.aspectj.util.FileUtil;
 import org.isf.OHCoreTestCase;
+import org.isf.dicom.manager.DicomIdAllocator;
 import org.isf.dicom.manager.DicomManagerFactory;
 import org.isf.dicom.manager.DicomManagerInterface;
+import org.isf.dicom.manager.DicomThumbnailCache;
 import org.isf.dicom.manager.FileSystemDicomManager;
 import org.isf.dicom.model.FileDicom;
 import org.isf.dicom.service.DicomIoOperationRepository;
@@ -185,6 +203,62 @@ public class TestFileSystemDicomManager extends OHCoreTestCase {
 		_cleanupDicomFiles(dicomFile.getPatId());
 	}
 
+	@Test
+	public void testLoadPatientFilesThumbnailCache() throws Exception {
+		DicomType dicomType = testDicomType.setup(true);
+		FileDicom dicomFile = testFileDicom.setup(dicomType, true);
+		dicomFile.setDicomThumbnail(new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB));
+		fileSystemDicomManager.saveFile(dicomFile);
+		DicomThumbnailCache thumbnails = ((FileSystemDicomManager) fileSystemDicomManager).getThumbnailCache();
+
+		FileDicom[] fileDicoms = fileSystemDicomManager.loadPatientFiles(0);
+		BufferedImage thumbnail = fileDicoms[0].getDicomThumbnailAsImage();
+		assertThat(thumbnail.getWidth()).isEqualTo(100);
+		assertThat(thumbnails.getMisses()).isEqualTo(1);
+		assertThat(thumbnails.getHits()).isZero();
+
+		fileDicoms = fileSystemDicomManager.loadPatientFiles(0);
+		assertThat(fileDicoms[0].getDicomThumbnailAsImage()).isSameAs(thumbnail);
+		assertThat(fileDicoms[0].getDicomThumbnail()).isNull();
+		assertThat(thumbnails.getHits()).isEqualTo(1);
+
+		assertThat(fileSystemDicomManager.deleteSerie(0, "TestSeriesNumber")).isTrue();
+		assertThat(thumbnails.getCount()).isZero();
+		_cleanupDicomFiles(dicomFile.getPatId());
+	}
+
+	@Test
+	public void testThumbnailCacheEviction() throws Exception {
+		BufferedImage small = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+		BufferedImage gray = new BufferedImage(20, 10, BufferedImage.TYPE_BYTE_GRAY);
+		DicomThumbnailCache thumbnails = new DicomThumbnailCache(900);
+		thumbnails.put(0, "A", 1, small);
+		thumbnails.put(0, "A", 2, gray);
+		thumbnails.put(0, "B", 3, gray);
+		assertThat(thumbnails.getSize()).isEqualTo(800);
+		assertThat(thumbnails.get(0, "A", 1)).isSameAs(small);
+
+		// evicts the least recently used
+		thumbnails.put(1, "A", 1, gray);
+		assertThat(thumbnails.getSize()).isEqualTo(800);
+		assertThat(thumbnails.get(0, "A", 2)).isNull();
+		thumbnails.put(1, "A", 2, gray);
+		assertThat(thumbnails.get(0, "B", 3)).isNull();
+		assertThat(thumbnails.get(0, "A", 1)).isSameAs(small);
+		assertThat(thumbnails.getHits()).isEqualTo(2);
+		assertThat(thumbnails.getMisses()).isEqualTo(2);
+
+		// larger than the whole cache
+		thumbnails.put(2, "A", 1, new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB));
+		assertThat(thumbnails.getCount()).isEqualTo(3);
+
+		thumbnails.invalidate(1, "A");
+		assertThat(thumbnails.getCount()).isEqualTo(1);
+		assertThat(thumbnails.getSize()).isEqualTo(400);
+		thumbnails.invalidate(0, "A", 1);
+		assertThat(thumbnails.getSize()).isZero();
+	}
+
 	@Test
 	public void testLoadDetails() throws Exception {
 		FileDicom fileDicom = fileSystemDicomManager.loadDetails(2, 1, "TestSeriesNumber");
@@ -250,6 +324,144 @@ public class TestFileSystemDicomManager extends OHCoreTestCase {
 		_cleanupDicomFiles(dicomFile.getPatId());
 	}
 
+	@Test
+	public void testExistWithInstanceIndex() throws Exception {
+		DicomType dicomType = testDicomType.setup(true);
+		FileDicom dicomFile = testFileDicom.setup(dicomType, true);
+		fileSystemDicomManager.saveFile(dicomFile);
+		FileDicom otherFile = testFileDicom.setup(dicomType, true);
+		otherFile.setDicomInstanceUID("OtherInstanceUid");
+		assertThat(fileSystemDicomManager.exist(otherFile)).isFalse();
+		fileSystemDicomManager.saveFile(otherFile);
+		assertThat(fileSystemDicomManager.exist(otherFile)).isTrue();
+
+		File index = new File("rsc-test/dicom/0/.index/TestSeriesNumber.index");
+		assertThat(index).exists();
+		assertThat(Files.readAllLines(index.toPath())).hasSize(2);
+		assertThat(fileSystemDicomManager.loadPatientFiles(0)).hasSize(1);
+
+		// torn last line
+		Files.write(index.toPath(), "1\tTestInteanceUid\n2\tOther".getBytes(StandardCharsets.UTF_8));
+		fileSystemDicomManager = new FileSystemDicomManager(_getDicomProperties());
+		assertThat(fileSystemDicomManager.exist(dicomFile)).isTrue();
+		assertThat(fileSystemDicomManager.exist(otherFile)).isTrue();
+		assertThat(Files.readAllLines(index.toPath())).hasSize(2);
+
+		// missing
+		assertThat(index.delete()).isTrue();
+		fileSystemDicomManager = new FileSystemDicomManager(_getDicomProperties());
+		assertThat(fileSystemDicomManager.exist(otherFile)).isTrue();
+		assertThat(index).exists();
+
+		// stale, the instance has been removed
+		assertThat(new File("rsc-test/dicom/0/TestSeriesNumber/2.properties").delete()).isTrue();
+		fileSystemDicomManager = new FileSystemDicomManager(_getDicomProperties());
+		assertThat(fileSystemDicomManager.exist(otherFile)).isFalse();
+		assertThat(fileSystemDicomManager.exist(dicomFile)).isTrue();
+
+		assertThat(fileSystemDicomManager.deleteSerie(0, "TestSeriesNumber")).isTrue();
+		assertThat(index).doesNotExist();
+
+		_cleanupDicomFiles(dicomFile.getPatId());
+	}
+
+	@Test
+	public void testSaveFileStreamingData() throws Exception {
+		DicomType dicomType = testDicomType.setup(true);
+		FileDicom dicomFile = testFileDicom.setup(dicomType, true);
+		byte[] content = new byte[200000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		File source = File.createTempFile("dicom", ".data");
+		try {
+			Files.write(source.toPath(), content);
+			fileSystemDicomManager.saveFile(dicomFile, source);
+		} finally {
+			source.delete();
+		}
+
+		InputStream data = fileSystemDicomManager.openDicomData(1, 0, "TestSeriesNumber");
+		try {
+			assertThat(data).hasSameContentAs(new ByteArrayInputStream(content));
+		} finally {
+			data.close();
+		}
+		ByteBuffer mapped = ((FileSystemDicomManager) fileSystemDicomManager).mapDicomData(1, 0, "TestSeriesNumber");
+		assertThat(mapped).isEqualTo(ByteBuffer.wrap(content));
+		Blob blob = fileSystemDicomManager.loadDetails(1, 0, "TestSeriesNumber").getDicomData();
+		assertThat(blob.getBytes(1, (int) blob.length())).isEqualTo(content);
+
+		assertThat(fileSystemDicomManager.openDicomData(2, 0, "TestSeriesNumber")).isNull();
+		assertThat(fileSystemDicomManager.openDicomData(1, 0, null)).isNull();
+		assertThat(((FileSystemDicomManager) fileSystemDicomManager).mapDicomData(2, 0, "TestSeriesNumber")).isNull();
+
+		_cleanupDicomFiles(dicomFile.getPatId());
+	}
+
+	@Test
+	public void testIdAllocatorConcurrent() throws Exception {
+		File root = Files.createTempDirectory("dicom").toFile();
+		try {
+			DicomIdAllocator[] allocators = { new DicomIdAllocator(root, 100), new DicomIdAllocator(root, 100) };
+			Set<Long> ids = ConcurrentHashMap.newKeySet();
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				DicomIdAllocator allocator = allocators[t % 2];
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 2000; i++) {
+						assertThat(ids.add(allocator.nextId())).isTrue();
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			executor.shutdown();
+			assertThat(ids).hasSize(16000);
+			assertThat(Collections.min(ids)).isEqualTo(1L);
+			// a new allocator (e.g. after a restart) starts after the leased blocks
+			assertThat(new DicomIdAllocator(root, 100).nextId()).isGreaterThan(Collections.max(ids));
+		} finally {
+			FileSystemUtils.deleteRecursively(root);
+		}
+	}
+
+	@Test
+	public void testIdAllocatorRecovery() throws Exception {
+		File root = Files.createTempDirectory("dicom").toFile();
+		try {
+			File storage = new File(root, "dicom.storage");
+			// former format, last id 41
+			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(storage));
+			oos.writeLong(41);
+			oos.close();
+			assertThat(new DicomIdAllocator(root, 10).nextId()).isEqualTo(42L);
+			assertThat(new DicomIdAllocator(root, 10).nextId()).isEqualTo(52L);
+
+			// torn write of one slot: the other one is used
+			byte[] content = Files.readAllBytes(storage.toPath());
+			assertThat(content).hasSize(32);
+			content[0] ^= 0x7F;
+			content[16] ^= 0x7F;
+			Files.write(storage.toPath(), content);
+			File serie = new File(root, "3/1234");
+			assertThat(serie.mkdirs()).isTrue();
+			assertThat(new File(serie, "75.properties").createNewFile()).isTrue();
+			// both slots corrupt: restart after the highest idFile
+			assertThat(new DicomIdAllocator(root, 10).nextId()).isEqualTo(76L);
+			assertThat(new DicomIdAllocator(root, 10).nextId()).isEqualTo(86L);
+
+			// empty file with series stored (e.g. a crash during a former migration): restart after the highest idFile
+			Files.write(storage.toPath(), new byte[0]);
+			assertThat(new DicomIdAllocator(root, 10).nextId()).isEqualTo(76L);
+		} finally {
+			FileSystemUtils.deleteRecursively(root);
+		}
+	}
+
 	@Test
 	public void testExistWhenDicomFileNoExist() throws OHServiceException {
 		FileDicom dicomFile = new FileDicom();
@@ -287,6 +499,6 @@ public class TestFileSystemDicomManager extends OHCoreTestCase {
 
 	private static void _cleanupDicomFiles(int patientId) {
 		FileSystemUtils.deleteRecursively(new File("rsc-test/dicom/" + patientId));
-		FileUtil.deleteContents(new File("rsc-test/dicom/dicom.storage"));
+		new File("rsc-test/dicom/dicom.storage").delete();
 	}
 }
@@ -23,10 +23,17 @@ package org.isf.dicom.test;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.text.ParseException;
 
 import org.isf.OHCoreTestCase;
 import org.isf.dicom.manager.DicomManagerInterface;
+import org.isf.dicom.manager.DicomThumbnailCache;
+import org.isf.dicom.manager.SqlDicomManager;
 import org.isf.dicom.model.FileDicom;
 import org.isf.dicom.service.DicomIoOperationRepository;
 import org.isf.dicomtype.model.DicomType;
@@ -87,6 +94,34 @@ public class TestSqlDicomManager extends OHCoreTestCase {
 		assertThat(fileDicoms).isEmpty();
 	}
 
+	@Test
+	public void testLoadPatientFilesThumbnailCache() throws Exception {
+		DicomType dicomType = testDicomType.setup(true);
+		FileDicom dicomFile = testFileDicom.setup(dicomType, true);
+		dicomFile.setDicomThumbnail(new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB));
+		dicomTypeIoOperationRepository.saveAndFlush(dicomType);
+		sqlDicomManager.saveFile(dicomFile);
+		DicomThumbnailCache thumbnails = ((SqlDicomManager) sqlDicomManager).getThumbnailCache();
+		thumbnails.clear();
+		long hits = thumbnails.getHits();
+		long misses = thumbnails.getMisses();
+
+		FileDicom[] fileDicoms = sqlDicomManager.loadPatientFiles(0);
+		assertThat(fileDicoms).hasSize(1);
+		BufferedImage thumbnail = fileDicoms[0].getDicomThumbnailAsImage();
+		assertThat(thumbnail.getWidth()).isEqualTo(100);
+		assertThat(thumbnails.getMisses() - misses).isEqualTo(1);
+		assertThat(thumbnails.getSize()).isEqualTo(100 * 80 * 3);
+
+		fileDicoms = sqlDicomManager.loadPatientFiles(0);
+		assertThat(fileDicoms[0].getDicomThumbnailAsImage()).isSameAs(thumbnail);
+		assertThat(fileDicoms[0].getDicomThumbnail()).isNull();
+		assertThat(thumbnails.getHits() - hits).isEqualTo(1);
+
+		assertThat(sqlDicomManager.deleteSerie(0, "TestSeriesNumber")).isTrue();
+		assertThat(thumbnails.getCount()).isZero();
+	}
+
 	@Test
 	public void testLoadDetails() throws Exception {
 		long id = _setupTestFileDicom(true);
@@ -101,6 +136,33 @@ public class TestSqlDicomManager extends OHCoreTestCase {
 		testFileDicom.check(fileDicom);
 	}
 
+	@Test
+	public void testSaveFileStreamingData() throws Exception {
+		DicomType dicomType = testDicomType.setup(true);
+		FileDicom dicomFile = testFileDicom.setup(dicomType, true);
+		dicomTypeIoOperationRepository.saveAndFlush(dicomType);
+		byte[] content = new byte[200000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		File source = File.createTempFile("dicom", ".data");
+		try {
+			Files.write(source.toPath(), content);
+			sqlDicomManager.saveFile(dicomFile, source);
+		} finally {
+			source.delete();
+		}
+
+		long id = sqlDicomManager.getSerieDetail(0, "TestSeriesNumber")[0];
+		InputStream data = sqlDicomManager.openDicomData(id, 0, "TestSeriesNumber");
+		try {
+			assertThat(data).hasSameContentAs(new ByteArrayInputStream(content));
+		} finally {
+			data.close();
+		}
+		assertThat(sqlDicomManager.openDicomData(id + 1, 0, "TestSeriesNumber")).isNull();
+	}
+
 	@Test
 	public void testGetSerieDetail() throws Exception {
 		long id = _setupTestFileDicom(true);
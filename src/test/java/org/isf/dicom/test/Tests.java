@@ -22,24 +22,30 @@
 package org.isf.dicom.test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 import javax.swing.JFrame;
 
-import org.aspectj.util.FileUtil;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.imageio.plugins.dcm.DicomStreamMetaData;
 import org.isf.OHCoreTestCase;
 import org.isf.dicom.manager.AbstractDicomLoader;
 import org.isf.dicom.manager.AbstractThumbnailViewGui;
+import org.isf.dicom.manager.DicomImportPipeline;
 import org.isf.dicom.manager.DicomManagerFactory;
 import org.isf.dicom.manager.DicomManagerInterface;
 import org.isf.dicom.manager.FileSystemDicomManager;
@@ -51,6 +57,7 @@ import org.isf.dicomtype.model.DicomType;
 import org.isf.dicomtype.service.DicomTypeIoOperationRepository;
 import org.isf.dicomtype.test.TestDicomType;
 import org.isf.menu.manager.Context;
+import org.isf.utils.exception.OHDicomException;
 import org.isf.utils.exception.OHException;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -209,6 +216,62 @@ public class Tests extends OHCoreTestCase {
 		_cleanupDicomFiles(dicomFile.getPatId());
 	}
 
+	@Test
+	public void testDicomImportPipeline() throws Exception {
+		File image = _getFile("image.0007.jpg");
+		File dir = Files.createTempDirectory("dicomimport").toFile();
+		try {
+			for (String name : new String[] { "c.jpg", "a.jpg", "e.jpg", "b.jpg", "sub/d.jpg" }) {
+				File copy = new File(dir, name);
+				copy.getParentFile().mkdirs();
+				Files.copy(image.toPath(), copy.toPath());
+			}
+			FileDicom fileDicom = new FileDicom();
+			fileDicom.setDicomSeriesNumber("TestSeriesNumber");
+			DicomImportPipeline pipeline = new DicomImportPipeline(3, null);
+			pipeline.importDir(fileDicom, dir, PATIENT_ID);
+			assertThat(pipeline.getLoaded()).isEqualTo(5);
+			assertThat(fileDicom.getDicomInstanceUID()).isEmpty();
+
+			DicomManagerInterface manager = DicomManagerFactory.getManager();
+			Long[] ids = manager.getSerieDetail(PATIENT_ID, "TestSeriesNumber");
+			Arrays.sort(ids);
+			List<String> fileNames = new ArrayList<>();
+			for (Long id : ids) {
+				fileNames.add(manager.loadDetails(id, PATIENT_ID, "TestSeriesNumber").getFileName());
+			}
+			// stored in scan order
+			assertThat(fileNames).containsExactly("a.jpg", "b.jpg", "c.jpg", "e.jpg", "d.jpg");
+
+			pipeline = new DicomImportPipeline(3, null);
+			pipeline.cancel();
+			pipeline.importDir(fileDicom, dir, PATIENT_ID);
+			assertThat(pipeline.getLoaded()).isZero();
+		} finally {
+			FileSystemUtils.deleteRecursively(dir);
+			_cleanupDicomFiles(PATIENT_ID);
+		}
+	}
+
+	@Test
+	public void testDicomImportPipelineFailure() throws Exception {
+		File dir = Files.createTempDirectory("dicomimport").toFile();
+		try {
+			Files.copy(_getFile("image.0007.jpg").toPath(), new File(dir, "a.jpg").toPath());
+			Files.write(new File(dir, "b.txt").toPath(), "not an image".getBytes(StandardCharsets.UTF_8));
+			FileDicom fileDicom = new FileDicom();
+			fileDicom.setDicomSeriesNumber("TestSeriesNumber");
+			final DicomImportPipeline pipeline = new DicomImportPipeline(2, null);
+			assertThatThrownBy(() -> pipeline.importDir(fileDicom, dir, PATIENT_ID))
+					.isInstanceOf(OHDicomException.class);
+			assertThat(pipeline.isCancelled()).isTrue();
+			assertThat(pipeline.getLoaded()).isEqualTo(1);
+		} finally {
+			FileSystemUtils.deleteRecursively(dir);
+			_cleanupDicomFiles(PATIENT_ID);
+		}
+	}
+
 	@Test
 	public void testSourceFilesPreloadDicom() throws Exception {
 		File file = _getFile("case3c_002.dcm");
@@ -324,7 +387,7 @@ public class Tests extends OHCoreTestCase {
 
 	private static void _cleanupDicomFiles(int patientId) {
 		FileSystemUtils.deleteRecursively(new File("rsc-test/dicom/" + patientId));
-		FileUtil.deleteContents(new File("rsc-test/dicom/dicom.storage"));
+		new File("rsc-test/dicom/dicom.storage").delete();
 	}
 
 	private File _getFile(String fileName) {
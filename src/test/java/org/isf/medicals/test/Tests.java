@@ -24,11 +24,31 @@ package org.isf.medicals.test;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
 
 import org.isf.OHCoreTestCase;
 import org.isf.medicals.manager.MedicalBrowsingManager;
 import org.isf.medicals.model.Medical;
+import org.isf.medicals.service.MedicalCatalog;
+import org.isf.medicals.service.MedicalQuantityCoalescer;
+import org.isf.medicals.service.MedicalSearchIndex;
 import org.isf.medicals.service.MedicalsIoOperationRepository;
 import org.isf.medicals.service.MedicalsIoOperations;
 import org.isf.medicalstock.model.Lot;
@@ -49,6 +69,7 @@ import org.isf.supplier.test.TestSupplier;
 import org.isf.utils.exception.OHDataIntegrityViolationException;
 import org.isf.utils.exception.OHDataValidationException;
 import org.isf.utils.exception.OHException;
+import org.isf.utils.exception.OHServiceException;
 import org.isf.ward.model.Ward;
 import org.isf.ward.service.WardIoOperationRepository;
 import org.isf.ward.test.TestWard;
@@ -56,9 +77,15 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 public class Tests extends OHCoreTestCase {
 
+	private static final int THREADS = 4;
+	private static final int UPDATES = 50;
+	private static final int BATCH = 10;
+
 	private static TestMedical testMedical;
 	private static TestMedicalType testMedicalType;
 	private static TestMovement testMovement;
@@ -85,6 +112,16 @@ public class Tests extends OHCoreTestCase {
 	LotIoOperationRepository lotIoOperationRepository;
 	@Autowired
 	SupplierIoOperationRepository supplierIoOperationRepository;
+	@Autowired
+	MedicalQuantityCoalescer medicalQuantityCoalescer;
+	@Autowired
+	MedicalCatalog medicalCatalog;
+	@PersistenceContext
+	EntityManager entityManager;
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	TransactionTemplate transactionTemplate;
 
 	@BeforeClass
 	public static void setUpClass() {
@@ -100,6 +137,7 @@ public class Tests extends OHCoreTestCase {
 	@Before
 	public void setUp() {
 		cleanH2InMemoryDb();
+		transactionTemplate = new TransactionTemplate(transactionManager);
 	}
 
 	@Test
@@ -603,6 +641,282 @@ public class Tests extends OHCoreTestCase {
 		assertThat(medical.clone()).isEqualTo(medical);
 	}
 
+	@Test
+	public void testIoConcurrentQuantityUpdates() throws Exception {
+		int code = _setupTestMedical(false);
+		double inqty = medicalsIoOperationRepository.findOne(code).getInqty();
+		AtomicInteger atomicConflicts = new AtomicInteger();
+		AtomicInteger readModifyWriteConflicts = new AtomicInteger();
+
+		// every thread starts with a transaction that has read the medical, so that all the writes overlap
+		CyclicBarrier atomicStart = new CyclicBarrier(THREADS);
+		ThreadLocal<Boolean> atomicStarted = new ThreadLocal<>();
+		_runConcurrently(() -> {
+			try {
+				transactionTemplate.execute(status -> {
+					medicalsIoOperationRepository.findOne(code);
+					_awaitOnce(atomicStart, atomicStarted);
+					return medicalsIoOperationRepository.increaseIncomingQuantity(code, 1);
+				});
+			} catch (RuntimeException e) {
+				atomicConflicts.incrementAndGet();
+			}
+		});
+		assertThat(medicalsIoOperationRepository.findOne(code).getInqty()).isEqualTo(inqty + THREADS * UPDATES);
+
+		// the former findOne, setInqty and save, retried until it does not fail
+		CyclicBarrier readModifyWriteStart = new CyclicBarrier(THREADS);
+		ThreadLocal<Boolean> readModifyWriteStarted = new ThreadLocal<>();
+		_runConcurrently(() -> {
+			boolean updated = false;
+			while (!updated) {
+				try {
+					transactionTemplate.execute(status -> {
+						Medical medical = medicalsIoOperationRepository.findOne(code);
+						_awaitOnce(readModifyWriteStart, readModifyWriteStarted);
+						medical.setInqty(medical.getInqty() + 1);
+						return medicalsIoOperationRepository.save(medical);
+					});
+					updated = true;
+				} catch (RuntimeException e) {
+					// optimistic lock failure, try again
+					readModifyWriteConflicts.incrementAndGet();
+				}
+			}
+		});
+		assertThat(medicalsIoOperationRepository.findOne(code).getInqty()).isEqualTo(inqty + 2 * THREADS * UPDATES);
+		assertThat(atomicConflicts.get()).isZero();
+		assertThat(readModifyWriteConflicts.get()).isGreaterThanOrEqualTo(THREADS - 1);
+	}
+
+	@Test
+	public void testIoConcurrentQuantityUpdatesThroughput() throws Exception {
+		int code = _setupTestMedical(false);
+		double inqty = medicalsIoOperationRepository.findOne(code).getInqty();
+
+		// every transaction stores BATCH movements of the same medical, as a multi-line discharge does
+		long readModifyWrite = _timeConcurrently(() -> {
+			boolean updated = false;
+			while (!updated) {
+				try {
+					transactionTemplate.execute(status -> {
+						for (int i = 0; i < BATCH; i++) {
+							Medical medical = medicalsIoOperationRepository.findOne(code);
+							medical.setInqty(medical.getInqty() + 1);
+							medicalsIoOperationRepository.save(medical);
+						}
+						return null;
+					});
+					updated = true;
+				} catch (RuntimeException e) {
+					// optimistic lock failure, try again
+				}
+			}
+		});
+		assertThat(medicalsIoOperationRepository.findOne(code).getInqty()).isEqualTo(inqty + THREADS * UPDATES * BATCH);
+
+		long atomic = _timeConcurrently(() -> transactionTemplate.execute(status -> {
+			for (int i = 0; i < BATCH; i++) {
+				medicalQuantityCoalescer.increaseIncomingQuantity(code, 1);
+			}
+			return null;
+		}));
+		assertThat(medicalsIoOperationRepository.findOne(code).getInqty()).isEqualTo(inqty + 2 * THREADS * UPDATES * BATCH);
+
+		long coalesced;
+		medicalQuantityCoalescer.setEnabled(true);
+		try {
+			coalesced = _timeConcurrently(() -> transactionTemplate.execute(status -> {
+				for (int i = 0; i < BATCH; i++) {
+					medicalQuantityCoalescer.increaseIncomingQuantity(code, 1);
+				}
+				return null;
+			}));
+		} finally {
+			medicalQuantityCoalescer.setEnabled(false);
+		}
+		assertThat(medicalsIoOperationRepository.findOne(code).getInqty()).isEqualTo(inqty + 3 * THREADS * UPDATES * BATCH);
+
+		System.out.printf("Transactions per second with %d threads: read-modify-write %.0f, atomic %.0f, atomic and coalesced %.0f%n",
+				THREADS, _perSecond(readModifyWrite), _perSecond(atomic), _perSecond(coalesced));
+		assertThat(atomic).isLessThan(readModifyWrite);
+		assertThat(coalesced).isLessThan(readModifyWrite);
+	}
+
+	@Test
+	public void testIoCoalescedQuantitiesFlushedBeforeReads() throws Exception {
+		int code = _setupTestMedical(false);
+		Medical medical = medicalsIoOperationRepository.findOne(code);
+		medicalQuantityCoalescer.setEnabled(true);
+		try {
+			transactionTemplate.execute(status -> {
+				medicalQuantityCoalescer.increaseIncomingQuantity(code, 3);
+				assertThat(medicalsIoOperationRepository.findOne(code).getInqty()).isEqualTo(medical.getInqty() + 3);
+				medicalQuantityCoalescer.increaseOutcomingQuantity(code, 2);
+				assertThat(medicalsIoOperationRepository.findAllWhereCodeIn(Arrays.asList(code)))
+						.extracting(Medical::getOutqty).containsExactly(medical.getOutqty() + 2);
+				return null;
+			});
+		} finally {
+			medicalQuantityCoalescer.setEnabled(false);
+		}
+		Medical foundMedical = medicalsIoOperationRepository.findOne(code);
+		assertThat(foundMedical.getInqty()).isEqualTo(medical.getInqty() + 3);
+		assertThat(foundMedical.getOutqty()).isEqualTo(medical.getOutqty() + 2);
+	}
+
+	@Test
+	public void testIoIncreaseQuantityKeepsPendingChanges() throws Exception {
+		int code = _setupTestMedical(false);
+		double inqty = medicalsIoOperationRepository.findOne(code).getInqty();
+		transactionTemplate.execute(status -> {
+			// nothing is written before the commit but what the update writes itself
+			entityManager.setFlushMode(FlushModeType.COMMIT);
+			Medical medical = medicalsIoOperationRepository.findOne(code);
+			medical.setDescription("changed");
+			medicalsIoOperationRepository.increaseIncomingQuantity(code, 5);
+			assertThat(medical.getDescription()).isEqualTo("changed");
+			assertThat(medical.getInqty()).isEqualTo(inqty + 5);
+			return null;
+		});
+		Medical foundMedical = medicalsIoOperationRepository.findOne(code);
+		assertThat(foundMedical.getDescription()).isEqualTo("changed");
+		assertThat(foundMedical.getInqty()).isEqualTo(inqty + 5);
+	}
+
+	@Test
+	public void testIoIncreaseQuantityVersionsMedical() throws Exception {
+		int code = _setupTestMedical(false);
+		Medical medical = medicalsIoOperationRepository.findOne(code);
+		double inqty = medical.getInqty();
+
+		medicalsIoOperationRepository.increaseIncomingQuantity(code, 5);
+		assertThat(medicalsIoOperationRepository.findOne(code).getLock()).isEqualTo(medical.getLock() + 1);
+
+		// saving the instance read before the update would write back the old quantity
+		medical.setDescription("stale");
+		assertThatThrownBy(() -> medicalsIoOperations.updateMedical(medical)).isInstanceOf(OHServiceException.class);
+		Medical foundMedical = medicalsIoOperationRepository.findOne(code);
+		assertThat(foundMedical.getInqty()).isEqualTo(inqty + 5);
+		assertThat(foundMedical.getDescription()).isNotEqualTo("stale");
+	}
+
+	@Test
+	public void testIoCoalescedQuantityUpdates() throws Exception {
+		int code = _setupTestMedical(false);
+		Medical medical = medicalsIoOperationRepository.findOne(code);
+		Statistics statistics = transactionTemplate.execute(status -> entityManager.unwrap(Session.class).getSessionFactory().getStatistics());
+		medicalQuantityCoalescer.setEnabled(true);
+		try {
+			statistics.clear();
+			transactionTemplate.execute(status -> {
+				for (int i = 0; i < 10; i++) {
+					medicalQuantityCoalescer.increaseIncomingQuantity(code, 1);
+					medicalQuantityCoalescer.increaseOutcomingQuantity(code, 2);
+				}
+				assertThat(statistics.getPrepareStatementCount()).isZero();
+				return null;
+			});
+			assertThat(statistics.getPrepareStatementCount()).isEqualTo(2);
+		} finally {
+			medicalQuantityCoalescer.setEnabled(false);
+		}
+		Medical foundMedical = medicalsIoOperationRepository.findOne(code);
+		assertThat(foundMedical.getInqty()).isEqualTo(medical.getInqty() + 10);
+		assertThat(foundMedical.getOutqty()).isEqualTo(medical.getOutqty() + 20);
+	}
+
+	@Test
+	public void testIoMedicalCatalog() throws Exception {
+		int code = _setupTestMedical(false);
+		Medical medical = medicalsIoOperationRepository.findOne(code);
+		Medical second = new Medical(null, medical.getType(), "XYZ", "Zeta Drug", 100, 1, 5, 0, 0);
+		medicalsIoOperationRepository.saveAndFlush(second);
+
+		List<Medical> all = medicalsIoOperations.getMedicals(null, null, false);
+		List<Medical> critical = medicalsIoOperations.getMedicals(null, null, true);
+		List<Medical> sortedByName = medicalsIoOperations.getMedicals(null, true);
+		medicalCatalog.setEnabled(true);
+		try {
+			assertThat(medicalsIoOperations.getMedicals(null, null, false)).isEqualTo(all);
+			assertThat(medicalsIoOperations.getMedicals(null, null, true)).isEqualTo(critical);
+			assertThat(medicalsIoOperations.getMedicals(null, true)).isEqualTo(sortedByName);
+			assertThat(medicalCatalog.size()).isEqualTo(2);
+
+			assertThat(medicalsIoOperations.getMedicals("zeta", null, false)).extracting(Medical::getCode).containsExactly(second.getCode());
+			assertThat(medicalsIoOperations.getMedicals("xy", medical.getType().getCode(), false)).extracting(Medical::getCode).containsExactly(second.getCode());
+			assertThat(medicalsIoOperations.getMedicals(null, "unknown", false)).isEmpty();
+			assertThat(medicalsIoOperations.getMedicalsByCode(Arrays.asList(second.getCode(), code, -1))).containsOnlyKeys(second.getCode(), code);
+			assertThat(medicalsIoOperations.productCodeExists(second, false)).isTrue();
+			assertThat(medicalsIoOperations.productCodeExists(second, true)).isFalse();
+
+			// callers get copies
+			Medical copy = medicalsIoOperations.getMedical(code);
+			copy.setDescription("Alpha");
+			assertThat(medicalsIoOperations.getMedical(code).getDescription()).isEqualTo(medical.getDescription());
+
+			// changes are visible after the commit
+			medicalsIoOperations.updateMedical(copy);
+			assertThat(medicalsIoOperations.getMedical(code).getDescription()).isEqualTo("Alpha");
+			transactionTemplate.execute(status -> medicalQuantityCoalescer.increaseOutcomingQuantity(second.getCode(), 99));
+			assertThat(medicalsIoOperations.getMedical(second.getCode()).getOutqty()).isEqualTo(99);
+			assertThat(medicalsIoOperations.getMedicals(null, null, true)).extracting(Medical::getCode).containsExactly(code, second.getCode());
+			medicalsIoOperations.deleteMedical(medicalsIoOperations.getMedical(second.getCode()));
+			assertThat(medicalsIoOperations.getMedical(second.getCode())).isNull();
+			assertThat(medicalCatalog.size()).isEqualTo(1);
+		} finally {
+			medicalCatalog.setEnabled(false);
+		}
+	}
+
+	@Test
+	public void testMedicalSearchIndex() throws Exception {
+		MedicalType medicalType = testMedicalType.setup(false);
+		MedicalSearchIndex index = new MedicalSearchIndex();
+		index.rebuild(Arrays.asList(
+				new Medical(1, medicalType, "AMX500", "Amoxicillin 500mg", 0, 1, 0, 0, 0),
+				new Medical(2, medicalType, "PAR", "Paracetamol 500mg", 0, 1, 0, 0, 0),
+				new Medical(3, medicalType, "IBU", "Syrup of Amoxicillin", 0, 1, 0, 0, 0),
+				new Medical(4, medicalType, "CLAMOX", "Co-amoxiclav", 0, 1, 0, 0, 0)));
+
+		assertThat(index.size()).isEqualTo(4);
+		// description prefix, word prefix, substring of description, substring of product code
+		assertThat(index.search("AMOX", 10)).containsExactly(1, 4, 3);
+		assertThat(index.search("500MG", 10)).containsExactly(1, 2);
+		assertThat(index.search("par", 10)).containsExactly(2);
+		assertThat(index.search("mox", 2)).containsExactly(1, 4);
+		assertThat(index.search("x", 10)).containsExactly(1, 4, 3);
+		assertThat(index.search("ciprofloxacin", 10)).isEmpty();
+
+		index.put(new Medical(2, medicalType, "PAR", "Amoxil", 0, 1, 0, 0, 0));
+		index.remove(4);
+		index.put(new Medical(5, medicalType, "AMOX", "Clavulanic acid", 0, 1, 0, 0, 0));
+		assertThat(index.size()).isEqualTo(4);
+		assertThat(index.search("amox", 10)).containsExactly(5, 1, 2, 3);
+		assertThat(index.search("500mg", 10)).containsExactly(1);
+		assertThat(index.search("co-amox", 10)).isEmpty();
+	}
+
+	@Test
+	public void testIoSearchMedicals() throws Exception {
+		int code = _setupTestMedical(false);
+		Medical medical = medicalsIoOperationRepository.findOne(code);
+		Medical second = new Medical(null, medical.getType(), "XYZ", "Description of TestDescription", 0, 1, 0, 0, 0);
+		medicalsIoOperationRepository.saveAndFlush(second);
+
+		assertThat(medicalsIoOperations.searchMedicals("TestDesc", 1)).hasSize(1);
+		medicalCatalog.setEnabled(true);
+		try {
+			assertThat(medicalBrowsingManager.searchMedicals("testdesc", 10)).extracting(Medical::getCode).containsExactly(code, second.getCode());
+			second.setDescription("Other");
+			medicalsIoOperations.updateMedical(second);
+			assertThat(medicalBrowsingManager.searchMedicals("testdesc", 10)).extracting(Medical::getCode).containsExactly(code);
+			assertThat(medicalsIoOperations.getMedicals("OTH", null, false)).extracting(Medical::getCode).containsExactly(second.getCode());
+		} finally {
+			medicalCatalog.setEnabled(false);
+		}
+	}
+
 	private int _setupTestMedical(boolean usingSet) throws OHException {
 		MedicalType medicalType = testMedicalType.setup(false);
 		Medical medical = testMedical.setup(medicalType, usingSet);
@@ -611,6 +925,43 @@ public class Tests extends OHCoreTestCase {
 		return medical.getCode();
 	}
 
+	private void _awaitOnce(CyclicBarrier barrier, ThreadLocal<Boolean> started) {
+		if (started.get() == null) {
+			started.set(Boolean.TRUE);
+			try {
+				barrier.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private long _timeConcurrently(Runnable update) throws Exception {
+		long start = System.nanoTime();
+		_runConcurrently(update);
+		return System.nanoTime() - start;
+	}
+
+	private static double _perSecond(long nanos) {
+		return THREADS * UPDATES * 1e9 / nanos;
+	}
+
+	private void _runConcurrently(Runnable update) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(executor.submit(() -> {
+				for (int j = 0; j < UPDATES; j++) {
+					update.run();
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+	}
+
 	private void _checkMedicalIntoDb(int code) throws OHException {
 		Medical foundMedical = medicalsIoOperationRepository.findOne(code);
 		testMedical.check(foundMedical);
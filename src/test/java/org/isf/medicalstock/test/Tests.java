@@ -28,10 +28,22 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 
 import org.assertj.core.api.Condition;
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
 import org.isf.OHCoreTestCase;
 import org.isf.generaldata.GeneralData;
 import org.isf.medicals.model.Medical;
@@ -41,11 +53,17 @@ import org.isf.medicalstock.manager.MovBrowserManager;
 import org.isf.medicalstock.manager.MovStockInsertingManager;
 import org.isf.medicalstock.model.Lot;
 import org.isf.medicalstock.model.Movement;
+import org.isf.medicalstock.model.StockSnapshot;
+import org.isf.medicalstock.service.ExpiryWatch;
+import org.isf.medicalstock.service.ExpiryWatch.ExpiringLot;
 import org.isf.medicalstock.service.LotIoOperationRepository;
 import org.isf.medicalstock.service.MedicalStockIoOperations;
 import org.isf.medicalstock.service.MedicalStockIoOperations.MovementOrder;
 import org.isf.medicalstock.service.MovementIoOperationRepository;
+import org.isf.medicalstock.service.StockSnapshotIoOperations;
+import org.isf.medicalstock.service.StockSnapshotIoOperations.SnapshotPeriod;
 import org.isf.medicalstockward.model.MedicalWard;
+import org.isf.medicalstockward.model.MovementWard;
 import org.isf.medicalstockward.service.MedicalStockWardIoOperationRepository;
 import org.isf.medicalstockward.service.MovementWardIoOperationRepository;
 import org.isf.medstockmovtype.model.MovementType;
@@ -57,6 +75,7 @@ import org.isf.medtype.test.TestMedicalType;
 import org.isf.supplier.model.Supplier;
 import org.isf.supplier.service.SupplierIoOperationRepository;
 import org.isf.supplier.test.TestSupplier;
+import org.isf.utils.db.KeysetCursor;
 import org.isf.utils.exception.OHDataValidationException;
 import org.isf.utils.exception.OHException;
 import org.isf.utils.exception.OHServiceException;
@@ -73,9 +92,11 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.rules.SpringClassRule;
 import org.springframework.test.context.junit4.rules.SpringMethodRule;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 @Transactional
@@ -100,6 +121,10 @@ public class Tests extends OHCoreTestCase {
 	@Autowired
 	MedicalStockIoOperations medicalStockIoOperation;
 	@Autowired
+	StockSnapshotIoOperations stockSnapshotIoOperation;
+	@Autowired
+	ExpiryWatch expiryWatch;
+	@Autowired
 	MovBrowserManager movBrowserManager;
 	@Autowired
 	MovStockInsertingManager movStockInsertingManager;
@@ -123,6 +148,8 @@ public class Tests extends OHCoreTestCase {
 	SupplierIoOperationRepository supplierIoOperationRepository;
 	@Autowired
 	ApplicationEventPublisher applicationEventPublisher;
+	@PersistenceContext
+	EntityManager entityManager;
 
 	public Tests(boolean in, boolean out, boolean toward) {
 		GeneralData.AUTOMATICLOT_IN = in;
@@ -212,6 +239,35 @@ public class Tests extends OHCoreTestCase {
 		assertThat(lots.get(0).getCode()).isEqualTo(foundMovement.getLot().getCode());
 	}
 
+	@Test
+	public void testIoGetLotsByMedicalSingleStatement() throws Exception {
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		Medical medical = foundMovement.getMedical();
+		Lot lot2 = testLot.setup(medical, false);
+		lot2.setCode("second");
+		lot2.setDueDate(new GregorianCalendar(1990, 1, 1));
+		lotIoOperationRepository.saveAndFlush(lot2);
+		movementIoOperationRepository.saveAndFlush(new Movement(medical, foundMovement.getType(), foundMovement.getWard(),
+				lot2, foundMovement.getDate(), 3, foundMovement.getSupplier(), "secondRef"));
+		Lot emptyLot = testLot.setup(medical, false);
+		emptyLot.setCode("empty");
+		lotIoOperationRepository.saveAndFlush(emptyLot);
+		MedicalWard medicalWard = new MedicalWard(foundMovement.getWard(), medical, 5, 2, lot2);
+		medicalStockWardIoOperationRepository.saveAndFlush(medicalWard);
+		entityManager.clear();
+		Statistics statistics = entityManager.unwrap(Session.class).getSessionFactory().getStatistics();
+
+		statistics.clear();
+		List<Lot> lots = medicalStockIoOperation.getLotsByMedical(medical);
+		assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+		assertThat(lots).extracting(Lot::getCode).containsExactly("second", foundMovement.getLot().getCode());
+		assertThat(lots.get(0).getMainStoreQuantity()).isEqualTo(3);
+		assertThat(lots.get(0).getWardsTotalQuantity()).isEqualTo(3.0);
+		assertThat(lots.get(1).getMainStoreQuantity()).isEqualTo(foundMovement.getQuantity());
+		assertThat(lots.get(1).getWardsTotalQuantity()).isZero();
+	}
+
 	@Test
 	public void testIoGetLotsByMedicalEmptyLot() throws Exception {
 		int code = _setupTestMovement(false);
@@ -241,6 +297,228 @@ public class Tests extends OHCoreTestCase {
 		assertThat(medicalStockIoOperation.newAutomaticDischargingMovement(foundMovement)).isTrue();
 	}
 
+	@Test
+	public void testIoAutomaticDischargingPlanAndBatch() throws Exception {
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		Medical medical = foundMovement.getMedical();
+		Lot lot2 = testLot.setup(medical, false);
+		lot2.setCode("second");
+		lot2.setDueDate(new GregorianCalendar(2010, 1, 1));
+		lotIoOperationRepository.saveAndFlush(lot2);
+		movementIoOperationRepository.saveAndFlush(new Movement(medical, foundMovement.getType(), null,
+				lot2, new GregorianCalendar(), 7, foundMovement.getSupplier(), "secondRef"));
+
+		MovementType dischargeMovementType = testMovementType.setup(false);
+		dischargeMovementType.setCode("discharge");
+		dischargeMovementType.setType("-");
+		medicalStockMovementTypeIoOperationRepository.saveAndFlush(dischargeMovementType);
+		List<Movement> dischargeMovements = new ArrayList<>();
+		dischargeMovements.add(new Movement(medical, dischargeMovementType, foundMovement.getWard(), null,
+				new GregorianCalendar(), 6, null, "discharge1"));
+		dischargeMovements.add(new Movement(medical, dischargeMovementType, foundMovement.getWard(), null,
+				new GregorianCalendar(), 8, null, "discharge2"));
+		long movementCount = movementIoOperationRepository.count();
+
+		List<Movement> plan = movStockInsertingManager.getAutomaticDischargingPlan(dischargeMovements);
+		assertThat(plan).extracting(movement -> movement.getLot().getCode())
+				.containsExactly(foundMovement.getLot().getCode(), foundMovement.getLot().getCode(), "second");
+		assertThat(plan).extracting(Movement::getQuantity).containsExactly(6, 4, 4);
+		assertThat(plan).extracting(Movement::getRefNo).containsExactly("discharge1", "discharge2", "discharge2");
+		assertThat(movementIoOperationRepository.count()).isEqualTo(movementCount);
+
+		assertThat(medicalStockIoOperation.newAutomaticDischargingMovements(dischargeMovements)).isTrue();
+		assertThat(movementIoOperationRepository.count()).isEqualTo(movementCount + 3);
+		List<Lot> lots = medicalStockIoOperation.getLotsByMedical(medical);
+		assertThat(lots).extracting(Lot::getCode).containsExactly("second");
+		assertThat(lots.get(0).getMainStoreQuantity()).isEqualTo(3);
+		assertThat(lots.get(0).getWardsTotalQuantity()).isEqualTo(4.0);
+	}
+
+	@Test
+	public void testIoStockSnapshots() throws Exception {
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		Medical medical = foundMovement.getMedical();
+		Lot lot = foundMovement.getLot();
+		Ward ward = foundMovement.getWard();
+		MovementType dischargeMovementType = testMovementType.setup(false);
+		dischargeMovementType.setCode("discharge");
+		dischargeMovementType.setType("-");
+		medicalStockMovementTypeIoOperationRepository.saveAndFlush(dischargeMovementType);
+		movementIoOperationRepository.saveAndFlush(new Movement(medical, dischargeMovementType, ward,
+				lot, new GregorianCalendar(2000, 3, 10), 4, null, "discharge"));
+		movementWardIoOperationRepository.saveAndFlush(new MovementWard(ward, new GregorianCalendar(2000, 4, 20), false,
+				null, 0, 0, "TestDescription", medical, 1.5, "units", lot));
+
+		assertThat(stockSnapshotIoOperation.updateSnapshots(SnapshotPeriod.MONTHLY, new GregorianCalendar(2000, 6, 15))).isEqualTo(4);
+		assertThat(stockSnapshotIoOperation.updateSnapshots(SnapshotPeriod.MONTHLY, new GregorianCalendar(2000, 6, 15))).isZero();
+
+		GregorianCalendar date = new GregorianCalendar(2000, 5, 15);
+		List<StockSnapshot> balances = stockSnapshotIoOperation.getStockAtDate(date);
+		assertThat(balances).extracting(StockSnapshot::getWardCode).containsExactlyInAnyOrder(null, ward.getCode());
+		assertThat(balances).extracting(StockSnapshot::getQuantity).containsExactlyInAnyOrder(6.0, 2.5);
+		assertThat(balances).extracting(StockSnapshot::getLotCode).containsOnly(lot.getCode());
+		assertThat(balances).usingFieldByFieldElementComparator()
+				.containsExactlyInAnyOrderElementsOf(stockSnapshotIoOperation.getStockAtDateFromHistory(date));
+		assertThat(stockSnapshotIoOperation.getStockAtDate(new GregorianCalendar(2000, 3, 1)))
+				.extracting(StockSnapshot::getQuantity).containsExactly(10.0);
+		assertThat(stockSnapshotIoOperation.getMainStoreStockAtDate(date)).containsOnlyKeys(medical.getCode())
+				.containsEntry(medical.getCode(), 6.0);
+		assertThat(stockSnapshotIoOperation.verifySnapshots()).isEmpty();
+
+		// a backdated charge makes every following snapshot stale
+		movementIoOperationRepository.saveAndFlush(new Movement(medical, foundMovement.getType(), null,
+				lot, new GregorianCalendar(2000, 2, 10), 5, foundMovement.getSupplier(), "backdated"));
+		List<StockSnapshot> mismatches = stockSnapshotIoOperation.verifySnapshots();
+		assertThat(mismatches).hasSize(4);
+		assertThat(mismatches).extracting(StockSnapshot::getWardCode).containsOnlyNulls();
+		assertThat(mismatches).extracting(StockSnapshot::getQuantity).containsExactly(15.0, 11.0, 11.0, 11.0);
+		stockSnapshotIoOperation.createSnapshot(new GregorianCalendar(2000, 3, 1));
+		assertThat(stockSnapshotIoOperation.verifySnapshots()).hasSize(3);
+	}
+
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void testIoStockSnapshotsCreatedOnce() throws Exception {
+		// two clients catching up the same committed history at once
+		_setupTestMovement(false);
+		GregorianCalendar until = new GregorianCalendar(2000, 6, 15);
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		List<Future<Integer>> results = new ArrayList<>();
+		try {
+			for (int i = 0; i < 2; i++) {
+				results.add(executor.submit((Callable<Integer>) () -> {
+					barrier.await();
+					return stockSnapshotIoOperation.updateSnapshots(SnapshotPeriod.MONTHLY, until);
+				}));
+			}
+			int created = 0;
+			for (Future<Integer> result : results) {
+				created += result.get();
+			}
+			assertThat(created).isEqualTo(4);
+		} finally {
+			executor.shutdown();
+		}
+		assertThat(stockSnapshotIoOperation.updateSnapshots(SnapshotPeriod.MONTHLY, until)).isZero();
+		assertThat(stockSnapshotIoOperation.verifySnapshots()).isEmpty();
+		assertThat(stockSnapshotIoOperation.getStockAtDate(until)).extracting(StockSnapshot::getQuantity).containsExactly(10.0);
+	}
+
+	@Test
+	public void testIoStoredMovementsInvalidateSnapshots() throws Exception {
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		assertThat(stockSnapshotIoOperation.updateSnapshots(SnapshotPeriod.MONTHLY, new GregorianCalendar(2000, 6, 15))).isEqualTo(4);
+
+		Lot lot = testLot.setup(foundMovement.getMedical(), false);
+		medicalStockIoOperation.newMovement(new Movement(foundMovement.getMedical(), foundMovement.getType(), null,
+				lot, new GregorianCalendar(2000, 2, 10), 5, foundMovement.getSupplier(), "backdated"));
+		assertThat(stockSnapshotIoOperation.verifySnapshots()).isEmpty();
+		assertThat(stockSnapshotIoOperation.updateSnapshots(SnapshotPeriod.MONTHLY, new GregorianCalendar(2000, 6, 15))).isEqualTo(4);
+
+		Movement batchedMovement = new Movement(foundMovement.getMedical(), foundMovement.getType(), null,
+				testLot.setup(foundMovement.getMedical(), false), new GregorianCalendar(2000, 4, 10), 2, foundMovement.getSupplier(), "batched");
+		medicalStockIoOperation.newMovements(Collections.singletonList(batchedMovement));
+		assertThat(stockSnapshotIoOperation.verifySnapshots()).isEmpty();
+		assertThat(stockSnapshotIoOperation.updateSnapshots(SnapshotPeriod.MONTHLY, new GregorianCalendar(2000, 6, 15))).isEqualTo(2);
+		assertThat(stockSnapshotIoOperation.verifySnapshots()).isEmpty();
+	}
+
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void testIoExpiryWatch() throws Exception {
+		// the watch reads committed lots only: the movements are committed as they are stored
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		Medical medical = foundMovement.getMedical();
+		String lotCode = foundMovement.getLot().getCode();
+		assertThat(expiryWatch.isEnabled()).isFalse();
+		assertThat(expiryWatch.getExpiringWithin(0)).extracting(ExpiringLot::getLotCode).containsExactly(lotCode);
+		assertThat(expiryWatch.isLoaded()).isFalse();
+
+		expiryWatch.setEnabled(true);
+		try {
+			assertThat(expiryWatch.reload()).isTrue();
+			assertThat(expiryWatch.getWarmUpMillis()).isNotNegative();
+			assertThat(expiryWatch.getExpiringBefore(new GregorianCalendar(2000, 0, 1))).isEmpty();
+			assertThat(expiryWatch.getExpiringWithin(0)).extracting(ExpiringLot::getLotCode).containsExactly(lotCode);
+
+			Lot lot2 = testLot.setup(medical, false);
+			lot2.setCode("second");
+			lot2.setDueDate(new GregorianCalendar(2000, 0, 15));
+			Movement secondMovement = new Movement(medical, foundMovement.getType(), null,
+					lot2, new GregorianCalendar(), 7, foundMovement.getSupplier(), "secondRef");
+			medicalStockIoOperation.newMovement(secondMovement);
+			List<ExpiringLot> expiring = expiryWatch.getExpiringWithin(0);
+			assertThat(expiring).extracting(ExpiringLot::getLotCode).containsExactly(secondMovement.getLot().getCode(), lotCode);
+			assertThat(expiring).extracting(ExpiringLot::getQuantity).containsExactly(7, 10);
+
+			MovementType dischargeMovementType = testMovementType.setup(false);
+			dischargeMovementType.setCode("discharge");
+			dischargeMovementType.setType("-");
+			medicalStockMovementTypeIoOperationRepository.saveAndFlush(dischargeMovementType);
+			medicalStockIoOperation.newAutomaticDischargingMovement(new Movement(medical, dischargeMovementType,
+					foundMovement.getWard(), null, new GregorianCalendar(), 9, null, "discharge"));
+			expiring = expiryWatch.getExpiringBefore(new GregorianCalendar(2000, 1, 2));
+			assertThat(expiring).extracting(ExpiringLot::getLotCode).containsExactly(lotCode);
+			assertThat(expiring).extracting(ExpiringLot::getQuantity).containsExactly(8);
+			assertThat(expiryWatch.size()).isEqualTo(1);
+
+			// a reload reads the same lots from the database
+			assertThat(expiryWatch.reload()).isTrue();
+			assertThat(expiryWatch.getExpiringBefore(new GregorianCalendar(2000, 1, 2)))
+					.extracting(ExpiringLot::getQuantity).containsExactly(8);
+		} finally {
+			expiryWatch.setEnabled(false);
+		}
+		assertThat(expiryWatch.isLoaded()).isFalse();
+		assertThat(expiryWatch.getExpiringBefore(new GregorianCalendar(2000, 1, 2)))
+				.extracting(ExpiringLot::getQuantity).containsExactly(8);
+	}
+
+	@Test
+	public void testIoGetMovementsPaged() throws Exception {
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		String[] refNos = { "A", "B", "B", foundMovement.getRefNo(), "A" };
+		for (int i = 0; i < refNos.length; i++) {
+			GregorianCalendar date = (GregorianCalendar) foundMovement.getDate().clone();
+			date.add(GregorianCalendar.DAY_OF_MONTH, i % 2);
+			movementIoOperationRepository.saveAndFlush(new Movement(foundMovement.getMedical(), foundMovement.getType(),
+					foundMovement.getWard(), foundMovement.getLot(), date, 1, foundMovement.getSupplier(), refNos[i]));
+		}
+		List<Movement> expected = movBrowserManager.getMovements();
+		expected.sort((movement1, movement2) -> {
+			int result = movement2.getDate().compareTo(movement1.getDate());
+			if (result == 0) {
+				result = movement2.getRefNo().compareTo(movement1.getRefNo());
+			}
+			return result != 0 ? result : Integer.compare(movement2.getCode(), movement1.getCode());
+		});
+
+		List<Movement> paged = new ArrayList<>();
+		KeysetCursor cursor = null;
+		List<Movement> page;
+		do {
+			page = movBrowserManager.getMovements(null, null, null, null, null, null, null, null, null, null, cursor, 2);
+			assertThat(page.size()).isLessThanOrEqualTo(2);
+			paged.addAll(page);
+			if (!page.isEmpty()) {
+				cursor = MedicalStockIoOperations.getCursor(page.get(page.size() - 1));
+			}
+		} while (!page.isEmpty());
+		assertThat(paged).extracting(Movement::getCode)
+				.containsExactlyElementsOf(expected.stream().map(Movement::getCode).collect(Collectors.toList()));
+
+		List<Movement> wardPage = movBrowserManager.getMovements(foundMovement.getWard().getCode(), null, null,
+				MedicalStockIoOperations.getCursor(expected.get(1)), 3);
+		assertThat(wardPage).extracting(Movement::getCode)
+				.containsExactlyElementsOf(expected.subList(2, 5).stream().map(Movement::getCode).collect(Collectors.toList()));
+	}
+
 	@Test
 	public void testIoNewAutomaticDischargingMovementDifferentLots() throws Exception {
 		int code = _setupTestMovement(false);
@@ -347,6 +625,17 @@ public class Tests extends OHCoreTestCase {
 		GeneralData.AUTOMATICLOT_IN = automaticLotMode;
 	}
 
+	@Test
+	public void testIoInsertLotsDuplicateCode() throws Exception {
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		Lot lot = foundMovement.getLot();
+		// generated lot codes are not checked in advance: the primary key reports a code already in use
+		assertThatThrownBy(() -> lotIoOperationRepository.insertLots(Collections.singletonList(
+				new Lot(foundMovement.getMedical(), lot.getCode(), lot.getPreparationDate(), lot.getDueDate(), lot.getCost()))))
+				.isInstanceOf(DataIntegrityViolationException.class);
+	}
+
 	@Test
 	public void testIoNewMovementUpdateMedicalWardQuantityMedicalWardFound() throws Exception {
 		int code = _setupTestMovement(false);
@@ -505,6 +794,157 @@ public class Tests extends OHCoreTestCase {
 		assertThat(movements.get(0).getCode()).isEqualTo(foundMovement.getCode());
 	}
 
+	@Test
+	public void testIoGetMovementsSingleStatement() throws Exception {
+		GregorianCalendar fromDate = new GregorianCalendar(2000, 1, 1);
+		GregorianCalendar toDate = new GregorianCalendar(2000, 3, 3);
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		for (int i = 0; i < 4; i++) {
+			Movement movement = new Movement(foundMovement.getMedical(), foundMovement.getType(), foundMovement.getWard(),
+					foundMovement.getLot(), foundMovement.getDate(), 1, foundMovement.getSupplier(), "refNo" + i);
+			movementIoOperationRepository.saveAndFlush(movement);
+		}
+		entityManager.clear();
+		Statistics statistics = entityManager.unwrap(Session.class).getSessionFactory().getStatistics();
+
+		statistics.clear();
+		List<Movement> movements = medicalStockIoOperation.getMovements(foundMovement.getWard().getCode(), fromDate, toDate);
+		_touchAssociations(movements);
+		assertThat(movements).hasSize(5);
+		assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+
+		entityManager.clear();
+		statistics.clear();
+		movements = medicalStockIoOperation.getMovements(
+				foundMovement.getMedical().getCode(),
+				foundMovement.getMedical().getType().getCode(),
+				foundMovement.getWard().getCode(),
+				foundMovement.getType().getCode(),
+				fromDate,
+				toDate,
+				fromDate,
+				toDate,
+				fromDate,
+				toDate);
+		_touchAssociations(movements);
+		assertThat(movements).hasSize(5);
+		assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+
+		for (MovementOrder order : MovementOrder.values()) {
+			entityManager.clear();
+			statistics.clear();
+			movements = medicalStockIoOperation.getMovementForPrint(
+					foundMovement.getMedical().getDescription(),
+					foundMovement.getMedical().getType().getCode(),
+					foundMovement.getWard().getCode(),
+					foundMovement.getType().getCode(),
+					fromDate,
+					toDate,
+					foundMovement.getLot().getCode(),
+					order);
+			_touchAssociations(movements);
+			assertThat(movements).hasSize(5);
+			assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+		}
+	}
+
+	@Test
+	public void testIoStreamMovements() throws Exception {
+		GregorianCalendar fromDate = new GregorianCalendar(2000, 1, 1);
+		GregorianCalendar toDate = new GregorianCalendar(2000, 3, 3);
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		for (int i = 0; i < 4; i++) {
+			Movement movement = new Movement(foundMovement.getMedical(), foundMovement.getType(), foundMovement.getWard(),
+					foundMovement.getLot(), foundMovement.getDate(), 1, foundMovement.getSupplier(), "refNo" + i);
+			movementIoOperationRepository.saveAndFlush(movement);
+		}
+		entityManager.clear();
+
+		List<Movement> movements = medicalStockIoOperation.getMovements(
+				foundMovement.getMedical().getCode(),
+				foundMovement.getMedical().getType().getCode(),
+				foundMovement.getWard().getCode(),
+				foundMovement.getType().getCode(),
+				fromDate,
+				toDate,
+				fromDate,
+				toDate,
+				fromDate,
+				toDate);
+		entityManager.clear();
+		// a change not flushed yet to an entity managed before streaming survives the detaching of the rows
+		MovementType movementType = medicalStockMovementTypeIoOperationRepository.findOne(foundMovement.getType().getCode());
+		List<Movement> streamed = new ArrayList<>();
+		medicalStockIoOperation.streamMovements(
+				foundMovement.getMedical().getCode(),
+				foundMovement.getMedical().getType().getCode(),
+				foundMovement.getWard().getCode(),
+				foundMovement.getType().getCode(),
+				fromDate,
+				toDate,
+				fromDate,
+				toDate,
+				fromDate,
+				toDate,
+				2,
+				2,
+				movement -> {
+					assertThat(entityManager.contains(movement)).isTrue();
+					assertThat(movement.getType()).isSameAs(movementType);
+					if (streamed.isEmpty()) {
+						movementType.setDescription("changed while streaming");
+					}
+					streamed.add(movement);
+				});
+		assertThat(streamed).containsExactlyElementsOf(movements);
+		assertThat(entityManager.contains(streamed.get(0))).isFalse();
+		assertThat(entityManager.contains(streamed.get(0).getLot())).isFalse();
+		assertThat(entityManager.contains(movementType)).isTrue();
+		entityManager.flush();
+		entityManager.clear();
+		assertThat(medicalStockMovementTypeIoOperationRepository.findOne(movementType.getCode()).getDescription())
+				.isEqualTo("changed while streaming");
+
+		movements = medicalStockIoOperation.getMovements(foundMovement.getWard().getCode(), fromDate, toDate);
+		streamed.clear();
+		medicalStockIoOperation.streamMovements(
+				foundMovement.getWard().getCode(),
+				fromDate,
+				toDate,
+				MedicalStockIoOperations.STREAM_FETCH_SIZE,
+				MedicalStockIoOperations.STREAM_CLEAR_INTERVAL,
+				streamed::add);
+		assertThat(streamed).containsExactlyElementsOf(movements);
+
+		for (MovementOrder order : MovementOrder.values()) {
+			movements = medicalStockIoOperation.getMovementForPrint(
+					foundMovement.getMedical().getDescription(),
+					foundMovement.getMedical().getType().getCode(),
+					foundMovement.getWard().getCode(),
+					foundMovement.getType().getCode(),
+					fromDate,
+					toDate,
+					foundMovement.getLot().getCode(),
+					order);
+			streamed.clear();
+			medicalStockIoOperation.streamMovementForPrint(
+					foundMovement.getMedical().getDescription(),
+					foundMovement.getMedical().getType().getCode(),
+					foundMovement.getWard().getCode(),
+					foundMovement.getType().getCode(),
+					fromDate,
+					toDate,
+					foundMovement.getLot().getCode(),
+					order,
+					MedicalStockIoOperations.STREAM_FETCH_SIZE,
+					MedicalStockIoOperations.STREAM_CLEAR_INTERVAL,
+					streamed::add);
+			assertThat(streamed).containsExactlyElementsOf(movements);
+		}
+	}
+
 	@Test
 	public void testIoGetLastMovementDate() throws Exception {
 		_setupTestMovement(false);
@@ -874,6 +1314,38 @@ public class Tests extends OHCoreTestCase {
 				);
 	}
 
+	@Test
+	public void testMgrNewMultipleChargingMovementsBatch() throws Exception {
+		int code = _setupTestMovement(false);
+		Movement foundMovement = movementIoOperationRepository.findOne(code);
+		Medical medical = foundMovement.getMedical();
+		double inqty = medical.getInqty();
+		List<Movement> movements = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			Lot lot = testLot.setup(medical, false);
+			lot.setCode("batch" + i);
+			movements.add(new Movement(medical, foundMovement.getType(), foundMovement.getWard(), lot,
+					new GregorianCalendar(), i + 1, foundMovement.getSupplier(), "batchRef"));
+		}
+		Statistics statistics = entityManager.unwrap(Session.class).getSessionFactory().getStatistics();
+
+		statistics.clear();
+		assertThat(movStockInsertingManager.newMultipleChargingMovements(movements, "batchRef")).isTrue();
+		assertThat(statistics.getPrepareStatementCount()).isLessThan(movements.size() / 2);
+
+		entityManager.clear();
+		assertThat(medicalsIoOperationRepository.findOne(medical.getCode()).getInqty()).isEqualTo(inqty + 210);
+		assertThat(medicalStockIoOperation.getMovementsByReference("batchRef")).hasSize(movements.size());
+		for (Movement movement : movements) {
+			assertThat(movement.getCode()).isPositive();
+			Movement stored = movementIoOperationRepository.findOne(movement.getCode());
+			assertThat(stored.getQuantity()).isEqualTo(movement.getQuantity());
+			assertThat(stored.getLot().getCode()).isEqualTo(movement.getLot().getCode());
+			assertThat(stored.getLot().getMedical().getCode()).isEqualTo(medical.getCode());
+			assertThat(stored.getCreatedDate()).isNotNull();
+		}
+	}
+
 	@Test
 	public void testMgrValidateNullMovementType() {
 		assertThatThrownBy(() ->
@@ -1146,6 +1618,16 @@ public class Tests extends OHCoreTestCase {
 		return movement.getCode();
 	}
 
+	private void _touchAssociations(List<Movement> movements) {
+		for (Movement movement : movements) {
+			assertThat(movement.getMedical().getType().getDescription()).isNotNull();
+			assertThat(movement.getType().getDescription()).isNotNull();
+			assertThat(movement.getWard().getDescription()).isNotNull();
+			assertThat(movement.getLot().getMedical()).isEqualTo(movement.getMedical());
+			assertThat(movement.getSupplier().getSupName()).isNotNull();
+		}
+	}
+
 	private void _checkMovementIntoDb(int code) {
 		Movement foundMovement = movementIoOperationRepository.findOne(code);
 		testMovement.check(foundMovement);
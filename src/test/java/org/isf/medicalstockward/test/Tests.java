@@ -25,11 +25,18 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.data.Offset.offset;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
 import org.isf.OHCoreTestCase;
 import org.isf.medicals.model.Medical;
 import org.isf.medicals.service.MedicalsIoOperationRepository;
@@ -38,6 +45,8 @@ import org.isf.medicalstock.model.Lot;
 import org.isf.medicalstock.model.Movement;
 import org.isf.medicalstock.service.LotIoOperationRepository;
 import org.isf.medicalstock.service.MovementIoOperationRepository;
+import org.isf.medicalstock.service.StockSnapshotIoOperationRepository;
+import org.isf.medicalstock.service.StockSnapshotIoOperations;
 import org.isf.medicalstock.test.TestLot;
 import org.isf.medicalstock.test.TestMovement;
 import org.isf.medicalstockward.manager.MovWardBrowserManager;
@@ -47,6 +56,9 @@ import org.isf.medicalstockward.model.MovementWard;
 import org.isf.medicalstockward.service.MedicalStockWardIoOperationRepository;
 import org.isf.medicalstockward.service.MedicalStockWardIoOperations;
 import org.isf.medicalstockward.service.MovementWardIoOperationRepository;
+import org.isf.medicalstockward.service.WardStockLedger;
+import org.isf.medicalstockward.service.WardStockReconciler;
+import org.isf.medicalstockward.service.WardStockReconciler.Difference;
 import org.isf.medstockmovtype.model.MovementType;
 import org.isf.medstockmovtype.service.MedicalStockMovementTypeIoOperationRepository;
 import org.isf.medstockmovtype.test.TestMovementType;
@@ -63,8 +75,10 @@ import org.isf.serviceprinting.print.MovementWardForPrint;
 import org.isf.supplier.model.Supplier;
 import org.isf.supplier.service.SupplierIoOperationRepository;
 import org.isf.supplier.test.TestSupplier;
+import org.isf.utils.db.KeysetCursor;
 import org.isf.utils.exception.OHDataValidationException;
 import org.isf.utils.exception.OHException;
+import org.isf.utils.exception.OHServiceException;
 import org.isf.ward.model.Ward;
 import org.isf.ward.service.WardIoOperationRepository;
 import org.isf.ward.test.TestWard;
@@ -74,6 +88,8 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 public class Tests extends OHCoreTestCase {
 
@@ -114,6 +130,18 @@ public class Tests extends OHCoreTestCase {
 	LotIoOperationRepository lotIoOperationRepository;
 	@Autowired
 	ApplicationEventPublisher applicationEventPublisher;
+	@Autowired
+	WardStockLedger wardStockLedger;
+	@Autowired
+	StockSnapshotIoOperations stockSnapshotIoOperations;
+	@Autowired
+	StockSnapshotIoOperationRepository stockSnapshotIoOperationRepository;
+	@Autowired
+	WardStockReconciler wardStockReconciler;
+	@Autowired
+	PlatformTransactionManager transactionManager;
+	@PersistenceContext
+	EntityManager entityManager;
 
 	@BeforeClass
 	public static void setUpClass() {
@@ -189,6 +217,74 @@ public class Tests extends OHCoreTestCase {
 		assertThat(movements.get(0).getCode()).isEqualTo(foundMovement.getCode());
 	}
 
+	@Test
+	public void testIoGetWardMovementsSingleStatement() throws Exception {
+		GregorianCalendar now = new GregorianCalendar();
+		GregorianCalendar fromDate = new GregorianCalendar(now.get(Calendar.YEAR), 1, 1);
+		GregorianCalendar toDate = new GregorianCalendar(now.get(Calendar.YEAR), 3, 3);
+		int code = _setupTestMovementWard(false);
+		MovementWard foundMovement = movementWardIoOperationRepository.findOne(code);
+		for (int i = 0; i < 3; i++) {
+			Patient patient = testPatient.setup(false);
+			patientIoOperationRepository.saveAndFlush(patient);
+			Ward wardTo = testWard.setup(false);
+			wardTo.setCode("T" + i);
+			wardIoOperationRepository.saveAndFlush(wardTo);
+			movementWardIoOperationRepository.saveAndFlush(new MovementWard(foundMovement.getWard(), foundMovement.getDate(),
+					true, patient, 0, 0, "fetched", foundMovement.getMedical(), 1.0, "units", wardTo, null, foundMovement.getLot()));
+		}
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		Statistics statistics = transactionTemplate.execute(status -> entityManager.unwrap(Session.class).getSessionFactory().getStatistics());
+
+		statistics.clear();
+		List<MovementWard> movements = medicalStockWardIoOperations.getWardMovements(foundMovement.getWard().getCode(), fromDate, toDate);
+		assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+		assertThat(movements).hasSize(4);
+		assertThat(movements).extracting(MovementWard::getCode).contains(code);
+		assertThat(movements).extracting(MovementWard::getPatient).doesNotContainNull();
+		assertThat(movements).extracting(movement -> movement.getWardTo().getCode())
+				.containsExactlyInAnyOrder(foundMovement.getWardTo().getCode(), "T0", "T1", "T2");
+	}
+
+	@Test
+	public void testIoGetWardMovementsPaged() throws Exception {
+		int code = _setupTestMovementWard(false);
+		MovementWard foundMovement = movementWardIoOperationRepository.findOne(code);
+		List<Integer> expectedCodes = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			GregorianCalendar date = (GregorianCalendar) foundMovement.getDate().clone();
+			date.add(Calendar.DAY_OF_MONTH, i % 2);
+			MovementWard movementWard = new MovementWard(foundMovement.getWard(), date, false, null, 0, 0,
+					"paged", foundMovement.getMedical(), 1.0, "units", foundMovement.getLot());
+			movementWardIoOperationRepository.saveAndFlush(movementWard);
+			if (i % 2 == 0) {
+				expectedCodes.add(movementWard.getCode());
+			}
+		}
+		List<Integer> laterCodes = new ArrayList<>();
+		for (MovementWard movementWard : movementWardIoOperationRepository.findAll()) {
+			if (movementWard.getDate().after(foundMovement.getDate())) {
+				laterCodes.add(movementWard.getCode());
+			}
+		}
+		expectedCodes.add(0, code);
+		laterCodes.sort(null);
+		expectedCodes.addAll(laterCodes);
+
+		List<Integer> pagedCodes = new ArrayList<>();
+		KeysetCursor cursor = null;
+		List<MovementWard> page;
+		do {
+			page = movWardBrowserManager.getMovementWard(foundMovement.getWard().getCode(), null, null, cursor, 2);
+			assertThat(page.size()).isLessThanOrEqualTo(2);
+			for (MovementWard movementWard : page) {
+				pagedCodes.add(movementWard.getCode());
+				cursor = MedicalStockWardIoOperations.getCursor(movementWard);
+			}
+		} while (!page.isEmpty());
+		assertThat(pagedCodes).containsExactlyElementsOf(expectedCodes);
+	}
+
 	@Test
 	public void testIoGetCurrentQuantityInWard() throws Exception {
 		MedicalType medicalType = testMedicalType.setup(false);
@@ -378,6 +474,221 @@ public class Tests extends OHCoreTestCase {
 		medicalStockWardIoOperations.newMovementWard(movementWards);
 	}
 
+	@Test
+	public void testIoNewMovementWardArrayListCoalesced() throws Exception {
+		MedicalType medicalType = testMedicalType.setup(false);
+		Medical medical = testMedical.setup(medicalType, false);
+		Ward ward = testWard.setup(false);
+		Patient patient = testPatient.setup(false);
+		Lot lot = testLot.setup(medical, false);
+
+		Ward wardTo = testWard.setup(false);
+		wardTo.setCode("X");
+
+		medicalTypeIoOperationRepository.saveAndFlush(medicalType);
+		medicalsIoOperationRepository.saveAndFlush(medical);
+		wardIoOperationRepository.saveAndFlush(ward);
+		wardIoOperationRepository.saveAndFlush(wardTo);
+		patientIoOperationRepository.saveAndFlush(patient);
+		lotIoOperationRepository.saveAndFlush(lot);
+
+		medicalStockWardIoOperationRepository.saveAndFlush(new MedicalWard(ward, medical, 10.0F, 5.0F, lot));
+
+		ArrayList<MovementWard> movementWards = new ArrayList<>();
+		movementWards.add(_setupTestMovementWard(ward, patient, medical, wardTo, lot, 2.0));
+		movementWards.add(_setupTestMovementWard(ward, patient, medical, null, lot, 3.0));
+		movementWards.add(_setupTestMovementWard(ward, patient, medical, wardTo, lot, 1.0));
+		movementWards.add(_setupTestMovementWard(ward, patient, medical, null, lot, -4.0));
+
+		medicalStockWardIoOperations.newMovementWard(movementWards);
+
+		for (MovementWard movementWard : movementWards) {
+			assertThat(movementWard.getCode()).isPositive();
+			MovementWard foundMovementWard = movementWardIoOperationRepository.findOne(movementWard.getCode());
+			assertThat(foundMovementWard.getQuantity()).isEqualTo(movementWard.getQuantity());
+		}
+		// two income movements are registered for the destination ward
+		assertThat(movementWardIoOperationRepository.count()).isEqualTo(6);
+
+		MedicalWard medicalWard = medicalStockWardIoOperationRepository.findOneWhereCodeAndMedicalAndLot(ward.getCode(), medical.getCode(), lot.getCode());
+		assertThat(medicalWard.getInQuantity()).isEqualTo(14.0F);
+		assertThat(medicalWard.getOutQuantity()).isEqualTo(11.0F);
+		MedicalWard medicalWardTo = medicalStockWardIoOperationRepository.findOneWhereCodeAndMedicalAndLot(wardTo.getCode(), medical.getCode(), lot.getCode());
+		assertThat(medicalWardTo.getInQuantity()).isEqualTo(3.0F);
+		assertThat(medicalWardTo.getOutQuantity()).isEqualTo(0.0F);
+	}
+
+	@Test
+	public void testIoWardStockLedger() throws Exception {
+		MedicalType medicalType = testMedicalType.setup(false);
+		Medical medical = testMedical.setup(medicalType, false);
+		Ward ward = testWard.setup(false);
+		Patient patient = testPatient.setup(false);
+		Lot lot = testLot.setup(medical, false);
+
+		Ward wardTo = testWard.setup(false);
+		wardTo.setCode("X");
+
+		medicalTypeIoOperationRepository.saveAndFlush(medicalType);
+		medicalsIoOperationRepository.saveAndFlush(medical);
+		wardIoOperationRepository.saveAndFlush(ward);
+		wardIoOperationRepository.saveAndFlush(wardTo);
+		patientIoOperationRepository.saveAndFlush(patient);
+		lotIoOperationRepository.saveAndFlush(lot);
+
+		medicalStockWardIoOperationRepository.saveAndFlush(new MedicalWard(ward, medical, 10.0F, 5.0F, lot));
+
+		wardStockLedger.setEnabled(true);
+		try {
+			assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(ward, medical)).isEqualTo(5);
+			assertThat(wardStockLedger.size()).isEqualTo(1);
+
+			medicalStockWardIoOperations.newMovementWard(_setupTestMovementWard(ward, patient, medical, wardTo, lot, 2.0));
+			medicalStockWardIoOperations.newMovementWard(_setupTestMovementWard(ward, patient, medical, null, lot, 1.0));
+			ArrayList<MovementWard> movementWards = new ArrayList<>();
+			movementWards.add(_setupTestMovementWard(ward, patient, medical, wardTo, lot, 1.0));
+			movementWards.add(_setupTestMovementWard(ward, patient, medical, null, lot, -4.0));
+			medicalStockWardIoOperations.newMovementWard(movementWards);
+
+			assertThat(wardStockLedger.verify()).isEmpty();
+			assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(ward, medical)).isEqualTo(5);
+			assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(wardTo, medical)).isEqualTo(3);
+			assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(wardTo, lot)).isEqualTo(3);
+			assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(null, medical)).isEqualTo(8);
+
+			// a change made without the ledger is found by the check and fixed by the reconciliation
+			medicalStockWardIoOperationRepository.updateInQuantity(7.0, ward.getCode(), medical.getCode(), lot.getCode());
+			assertThat(wardStockLedger.verify()).hasSize(1);
+			assertThat(wardStockLedger.reconcile()).isEqualTo(1);
+			assertThat(wardStockLedger.verify()).isEmpty();
+			assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(ward, medical)).isEqualTo(12);
+		} finally {
+			wardStockLedger.setEnabled(false);
+		}
+		assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(null, medical)).isEqualTo(15);
+	}
+
+	@Test
+	public void testIoWardStockLedgerAppliesCommittedChanges() throws Exception {
+		MedicalType medicalType = testMedicalType.setup(false);
+		Medical medical = testMedical.setup(medicalType, false);
+		Ward ward = testWard.setup(false);
+		Patient patient = testPatient.setup(false);
+		Lot lot = testLot.setup(medical, false);
+		medicalTypeIoOperationRepository.saveAndFlush(medicalType);
+		medicalsIoOperationRepository.saveAndFlush(medical);
+		wardIoOperationRepository.saveAndFlush(ward);
+		patientIoOperationRepository.saveAndFlush(patient);
+		lotIoOperationRepository.saveAndFlush(lot);
+		medicalStockWardIoOperationRepository.saveAndFlush(new MedicalWard(ward, medical, 10.0F, 5.0F, lot));
+
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		wardStockLedger.setEnabled(true);
+		try {
+			assertThat(wardStockLedger.getQuantity(ward.getCode(), medical.getCode())).isEqualTo(5.0);
+
+			// a rolled back transaction leaves the ledger untouched, but sees its own changes
+			transactionTemplate.execute(status -> {
+				try {
+					medicalStockWardIoOperations.newMovementWard(_setupTestMovementWard(ward, patient, medical, null, lot, 2.0));
+				} catch (OHException | OHServiceException e) {
+					throw new IllegalStateException(e);
+				}
+				assertThat(wardStockLedger.getQuantity(ward.getCode(), medical.getCode())).isEqualTo(3.0);
+				status.setRollbackOnly();
+				return null;
+			});
+			assertThat(wardStockLedger.getQuantity(ward.getCode(), medical.getCode())).isEqualTo(5.0);
+
+			// a reload before the commit does not see the change, which is applied once committed
+			transactionTemplate.execute(status -> {
+				try {
+					medicalStockWardIoOperations.newMovementWard(_setupTestMovementWard(ward, patient, medical, null, lot, 1.0));
+				} catch (OHException | OHServiceException e) {
+					throw new IllegalStateException(e);
+				}
+				assertThat(wardStockLedger.reload()).isTrue();
+				assertThat(wardStockLedger.getQuantity(ward.getCode(), medical.getCode(), lot.getCode())).isEqualTo(4.0);
+				return null;
+			});
+			assertThat(wardStockLedger.getQuantity(ward.getCode(), medical.getCode(), lot.getCode())).isEqualTo(4.0);
+			assertThat(wardStockLedger.verify()).isEmpty();
+			assertThat(wardStockLedger.reconcile()).isZero();
+		} finally {
+			wardStockLedger.setEnabled(false);
+		}
+	}
+
+	@Test
+	public void testIoWardStockReconciler() throws Exception {
+		MedicalType medicalType = testMedicalType.setup(false);
+		Medical medical = testMedical.setup(medicalType, false);
+		MovementType movementType = testMovementType.setup(false);
+		movementType.setType("-");
+		Ward ward = testWard.setup(false);
+		Patient patient = testPatient.setup(false);
+		Supplier supplier = testSupplier.setup(false);
+		Lot lot = testLot.setup(medical, false);
+
+		Ward wardTo = testWard.setup(false);
+		wardTo.setCode("X");
+
+		medicalTypeIoOperationRepository.saveAndFlush(medicalType);
+		medicalsIoOperationRepository.saveAndFlush(medical);
+		medicalStockMovementTypeIoOperationRepository.saveAndFlush(movementType);
+		wardIoOperationRepository.saveAndFlush(ward);
+		wardIoOperationRepository.saveAndFlush(wardTo);
+		patientIoOperationRepository.saveAndFlush(patient);
+		supplierIoOperationRepository.saveAndFlush(supplier);
+		lotIoOperationRepository.saveAndFlush(lot);
+
+		// 10 discharged from the main store to the ward
+		movementIoOperationRepository.saveAndFlush(testMovement.setup(medical, movementType, ward, lot, supplier, false));
+		medicalStockWardIoOperationRepository.saveAndFlush(new MedicalWard(ward, medical, 10.0F, 0.0F, lot));
+		medicalStockWardIoOperations.newMovementWard(_setupTestMovementWard(ward, patient, medical, wardTo, lot, 2.0));
+		medicalStockWardIoOperations.newMovementWard(_setupTestMovementWard(ward, patient, medical, null, lot, 3.0));
+
+		// a lot never charged to the ward gets a row with a negative income, matching the history as a quantity
+		Lot legacyLot = testLot.setup(medical, false);
+		legacyLot.setCode("legacy");
+		lotIoOperationRepository.saveAndFlush(legacyLot);
+		medicalStockWardIoOperations.newMovementWard(_setupTestMovementWard(ward, patient, medical, null, legacyLot, 1.0));
+		MedicalWard legacyRow = medicalStockWardIoOperationRepository.findOneWhereCodeAndMedicalAndLot(ward.getCode(), medical.getCode(), legacyLot.getCode());
+		assertThat(legacyRow.getInQuantity()).isEqualTo(-1.0F);
+		assertThat(legacyRow.getOutQuantity()).isZero();
+
+		assertThat(wardStockReconciler.reconcile(false)).isEmpty();
+
+		medicalStockWardIoOperationRepository.updateInQuantity(7.0, ward.getCode(), medical.getCode(), lot.getCode());
+		medicalStockWardIoOperationRepository.delete(
+				medicalStockWardIoOperationRepository.findOneWhereCodeAndMedicalAndLot(wardTo.getCode(), medical.getCode(), lot.getCode()));
+
+		List<Difference> differences = wardStockReconciler.reconcile(false);
+		assertThat(differences).hasSize(2);
+		assertThat(differences).extracting(Difference::getWard).containsOnly(ward.getCode(), wardTo.getCode());
+		for (Difference difference : differences) {
+			if (difference.getWard().equals(ward.getCode())) {
+				assertThat(difference.getStoredIn()).isEqualTo(17.0F);
+				assertThat(difference.getExpectedIn()).isEqualTo(10.0);
+				assertThat(difference.getExpectedOut()).isEqualTo(5.0);
+				assertThat(difference.getStoredQuantity()).isEqualTo(12.0);
+				assertThat(difference.getExpectedQuantity()).isEqualTo(5.0);
+			} else {
+				assertThat(difference.getStoredIn()).isNull();
+				assertThat(difference.getStoredQuantity()).isNull();
+				assertThat(difference.getExpectedIn()).isEqualTo(2.0);
+			}
+		}
+		StringWriter report = new StringWriter();
+		WardStockReconciler.writeReport(differences, report);
+		assertThat(report.toString().split(System.lineSeparator())).hasSize(3);
+
+		assertThat(wardStockReconciler.reconcile(true)).hasSize(2);
+		assertThat(wardStockReconciler.reconcile(false)).isEmpty();
+		assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(ward, medical)).isEqualTo(4);
+		assertThat(medicalStockWardIoOperations.getCurrentQuantityInWard(wardTo, medical)).isEqualTo(2);
+	}
+
 	@Test
 	public void testIoUpdateMovementWard() throws Exception {
 		int code = _setupTestMovementWard(false);
@@ -389,6 +700,31 @@ public class Tests extends OHCoreTestCase {
 		assertThat(updateMovementWard.getDescription()).isEqualTo("Update");
 	}
 
+	@Test
+	public void testIoMovementWardChangesInvalidateSnapshots() throws Exception {
+		int code = _setupTestMovementWard(false);
+		MovementWard foundMovementWard = movementWardIoOperationRepository.findOne(code);
+		GregorianCalendar storedDate = foundMovementWard.getDate();
+		GregorianCalendar snapshotDate = (GregorianCalendar) storedDate.clone();
+		snapshotDate.add(GregorianCalendar.DAY_OF_MONTH, 1);
+		stockSnapshotIoOperations.createSnapshot(snapshotDate);
+		assertThat(stockSnapshotIoOperationRepository.findAllDates()).hasSize(1);
+
+		// moved after the snapshot: the snapshot still includes the stored date
+		GregorianCalendar newDate = (GregorianCalendar) snapshotDate.clone();
+		newDate.add(GregorianCalendar.YEAR, 1);
+		foundMovementWard.setDate(newDate);
+		medicalStockWardIoOperations.updateMovementWard(foundMovementWard);
+		assertThat(stockSnapshotIoOperationRepository.findAllDates()).isEmpty();
+
+		GregorianCalendar lastSnapshotDate = (GregorianCalendar) newDate.clone();
+		lastSnapshotDate.add(GregorianCalendar.DAY_OF_MONTH, 1);
+		stockSnapshotIoOperations.createSnapshot(lastSnapshotDate);
+		assertThat(stockSnapshotIoOperationRepository.findAllDates()).hasSize(1);
+		medicalStockWardIoOperations.deleteMovementWard(movementWardIoOperationRepository.findOne(code));
+		assertThat(stockSnapshotIoOperationRepository.findAllDates()).isEmpty();
+	}
+
 	@Test
 	public void testIoDeleteMovementWard() throws Exception {
 		int code = _setupTestMovementWard(false);
@@ -470,6 +806,46 @@ public class Tests extends OHCoreTestCase {
 		assertThat(medicalWards.get(0).getWard().getCode()).isEqualTo("X");
 	}
 
+	@Test
+	public void testIoGetMedicalsWardTotalQuantities() throws Exception {
+		MedicalType medicalType = testMedicalType.setup(false);
+		Medical medical = testMedical.setup(medicalType, false);
+		Medical emptyMedical = testMedical.setup(medicalType, false);
+		emptyMedical.setProd_code("EMPTY");
+		Ward ward = testWard.setup(false);
+		Ward otherWard = testWard.setup(false);
+		otherWard.setCode("Y");
+		Lot lot = testLot.setup(medical, false);
+		Lot lot2 = testLot.setup(medical, false);
+		lot2.setCode("second");
+		Lot emptyLot = testLot.setup(emptyMedical, false);
+		emptyLot.setCode("empty");
+		medicalTypeIoOperationRepository.saveAndFlush(medicalType);
+		medicalsIoOperationRepository.saveAndFlush(medical);
+		medicalsIoOperationRepository.saveAndFlush(emptyMedical);
+		wardIoOperationRepository.saveAndFlush(ward);
+		wardIoOperationRepository.saveAndFlush(otherWard);
+		lotIoOperationRepository.saveAndFlush(lot);
+		lotIoOperationRepository.saveAndFlush(lot2);
+		lotIoOperationRepository.saveAndFlush(emptyLot);
+		medicalStockWardIoOperationRepository.saveAndFlush(new MedicalWard(ward, medical, 10, 4, lot));
+		medicalStockWardIoOperationRepository.saveAndFlush(new MedicalWard(ward, medical, 5, 5, lot2));
+		medicalStockWardIoOperationRepository.saveAndFlush(new MedicalWard(ward, emptyMedical, 3, 3, emptyLot));
+		medicalStockWardIoOperationRepository.saveAndFlush(new MedicalWard(otherWard, medical, 7, 0, lot2));
+
+		List<MedicalWard> medicalWards = medicalStockWardIoOperations.getMedicalsWardTotalQuantity(ward.getCode().charAt(0));
+		assertThat(medicalWards).hasSize(1);
+		assertThat(medicalWards.get(0).getMedical().getCode()).isEqualTo(medical.getCode());
+		assertThat(medicalWards.get(0).getWard().getCode()).isEqualTo(ward.getCode());
+		assertThat(medicalWards.get(0).getQty()).isEqualTo(6.0);
+
+		Map<String, List<MedicalWard>> totals = movWardBrowserManager.getMedicalsWardTotalQuantities();
+		assertThat(totals.keySet()).containsExactly("Y", ward.getCode());
+		assertThat(totals.get("Y")).extracting(MedicalWard::getQty).containsExactly(7.0);
+		assertThat(totals.get("Y").get(0).getWard().getCode()).isEqualTo("Y");
+		assertThat(medicalStockWardIoOperations.getMedicalsWardTotalQuantity('Q')).isEmpty();
+	}
+
 	@Test
 	public void testIoListenerShouldUpdatePatientToMergedWhenPatientMergedEventArrive() throws Exception {
 		// given:
@@ -1391,6 +1767,13 @@ public class Tests extends OHCoreTestCase {
 		return movementWard.getCode();
 	}
 
+	private MovementWard _setupTestMovementWard(Ward ward, Patient patient, Medical medical, Ward wardTo, Lot lot, double quantity)
+			throws OHException {
+		MovementWard movementWard = testMovementWard.setup(ward, patient, medical, wardTo, null, lot, false);
+		movementWard.setQuantity(quantity);
+		return movementWard;
+	}
+
 	private void _checkMovementWardIntoDb(int id) throws OHException {
 		MovementWard foundMovementWard = movementWardIoOperationRepository.findOne(id);
 		testMovementWard.check(foundMovementWard);
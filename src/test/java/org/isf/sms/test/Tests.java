@@ -23,6 +23,7 @@ package org.isf.sms.test;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
@@ -121,6 +122,43 @@ public class Tests extends OHCoreTestCase {
 		assertThat(result).isFalse();
 	}
 
+	@Test
+	public void testIoInsertSms() throws Exception {
+		List<Sms> smsList = new ArrayList<>();
+		for (int i = 0; i < 150; i++) {
+			smsList.add(testSms.setup(true));
+		}
+		assertThat(smsIoOperation.insert(smsList)).isEqualTo(150);
+		assertThat(smsIoOperationRepository.count()).isEqualTo(150);
+		for (Sms sms : smsList) {
+			_checksmsIntoDb(sms.getSmsId());
+		}
+	}
+
+	@Test
+	public void testIoReplaceByModuleModuleID() throws Exception {
+		int code = _setupTestSms(false);
+		Sms sent = testSms.setup(false);
+		sent.setSmsDateSent(new Date());
+		smsIoOperationRepository.saveAndFlush(sent);
+		Sms other = testSms.setup(false);
+		other.setModuleID("OtherModId");
+		smsIoOperationRepository.saveAndFlush(other);
+		Sms foundSms = smsIoOperation.getByID(code);
+
+		List<Sms> smsList = new ArrayList<>();
+		smsList.add(testSms.setup(true));
+		smsList.add(testSms.setup(true));
+		assertThat(smsIoOperation.replaceByModuleModuleID(foundSms.getModule(), foundSms.getModuleID(), smsList)).isEqualTo(2);
+
+		assertThat(smsIoOperation.isCodePresent(code)).isFalse();
+		assertThat(smsIoOperation.isCodePresent(sent.getSmsId())).isTrue();
+		assertThat(smsIoOperation.isCodePresent(other.getSmsId())).isTrue();
+		assertThat(smsIoOperation.isCodePresent(smsList.get(0).getSmsId())).isTrue();
+		assertThat(smsIoOperation.isCodePresent(smsList.get(1).getSmsId())).isTrue();
+		assertThat(smsIoOperationRepository.count()).isEqualTo(4);
+	}
+
 	private int _setupTestSms(boolean usingSet) throws OHException {
 		Sms sms = testSms.setup(usingSet);
 		smsIoOperationRepository.saveAndFlush(sms);
@@ -42,8 +42,10 @@ import org.isf.patient.test.TestPatient;
 import org.isf.sms.manager.SmsManager;
 import org.isf.sms.service.SmsOperations;
 import org.isf.therapy.manager.TherapyManager;
+import org.isf.therapy.model.MedicalDemand;
 import org.isf.therapy.model.Therapy;
 import org.isf.therapy.model.TherapyRow;
+import org.isf.therapy.model.TherapySchedule;
 import org.isf.therapy.service.TherapyIoOperationRepository;
 import org.isf.therapy.service.TherapyIoOperations;
 import org.isf.utils.exception.OHException;
@@ -346,6 +348,96 @@ public class Tests extends OHCoreTestCase {
 		assertThat(medicals).isEmpty();
 	}
 
+	@Test
+	public void testMgrGetMedicalDemandsOfTherapies() throws Exception {
+		MedicalType medicalType = testMedicalType.setup(false);
+		Medical medical = testMedical.setup(medicalType, false);
+		medical.setInitialqty(10);
+		medical.setInqty(10);
+		medical.setOutqty(0);
+		Patient patient = testPatient.setup(false);
+		medicalTypeIoOperationRepository.saveAndFlush(medicalType);
+		medicalsIoOperationRepository.saveAndFlush(medical);
+		patientIoOperationRepository.saveAndFlush(patient);
+
+		// each therapy alone is covered by the stock, both together are not
+		GregorianCalendar[] dates = new GregorianCalendar[] { new GregorianCalendar(), new GregorianCalendar() };
+		ArrayList<Therapy> therapies = new ArrayList<>();
+		therapies.add(new Therapy(1, patient.getCode(), dates, medical, 6.0, "", 1, "TestNote", true, true));
+		therapies.add(new Therapy(2, patient.getCode(), dates, medical, 6.0, "", 1, "TestNote", true, true));
+
+		List<MedicalDemand> demands = therapyManager.getMedicalDemands(therapies);
+		assertThat(demands).hasSize(1);
+		MedicalDemand demand = demands.get(0);
+		assertThat(demand.getMedical().getCode()).isEqualTo(medical.getCode());
+		assertThat(demand.getTherapies()).isEqualTo(2);
+		assertThat(demand.getRequiredQty()).isEqualTo(24.0);
+		assertThat(demand.getMainStoreQty()).isEqualTo(20.0);
+		assertThat(demand.getWardQty()).isZero();
+		assertThat(demand.getShortfall()).isEqualTo(4.0);
+		assertThat(therapyManager.getMedicalsOutOfStock(therapies)).containsExactly(demand.getMedical());
+		assertThat(therapyManager.getMedicalsOutOfStock(therapies.subList(0, 1))).isEmpty();
+	}
+
+	@Test
+	public void testMgrGetMedicalDemandsOfAllTherapies() throws Exception {
+		MedicalType medicalType = testMedicalType.setup(false);
+		Medical medical = testMedical.setup(medicalType, false);
+		medical.setInitialqty(0);
+		medical.setInqty(0);
+		medical.setOutqty(0);
+		Patient patient = testPatient.setup(false);
+		medicalTypeIoOperationRepository.saveAndFlush(medicalType);
+		medicalsIoOperationRepository.saveAndFlush(medical);
+		patientIoOperationRepository.saveAndFlush(patient);
+
+		// ended long ago
+		therapyIoOperationRepository.saveAndFlush(testTherapyRow.setup(patient, medical, false));
+		// today and the next two days
+		GregorianCalendar endDate = TimeTools.getDateToday0();
+		endDate.add(Calendar.DATE, 2);
+		therapyIoOperationRepository.saveAndFlush(new TherapyRow(0, patient, TimeTools.getDateToday0(), endDate,
+				medical, 2.0, 1, 1, 1, "TestNote", false, false));
+
+		List<MedicalDemand> demands = therapyManager.getMedicalDemands();
+		assertThat(demands).hasSize(1);
+		assertThat(demands.get(0).getTherapies()).isEqualTo(1);
+		assertThat(demands.get(0).getRequiredQty()).isEqualTo(6.0);
+		assertThat(demands.get(0).getShortfall()).isEqualTo(6.0);
+	}
+
+	@Test
+	public void testTherapySchedule() throws Exception {
+		GregorianCalendar start = new GregorianCalendar(2021, Calendar.MARCH, 20, 10, 30);
+		for (int days = -2; days <= 40; days++) {
+			for (int hour : new int[] { 0, 10, 23 }) {
+				GregorianCalendar end = new GregorianCalendar(2021, Calendar.MARCH, 20 + days, hour, 30);
+				for (int freqInPeriod = 1; freqInPeriod <= 7; freqInPeriod++) {
+					TherapySchedule schedule = TherapySchedule.of(start, end, freqInPeriod);
+					assertThat(schedule.toCalendars()).containsExactly(_getDates(start, end, freqInPeriod));
+				}
+			}
+		}
+
+		TherapySchedule schedule = new TherapySchedule(TherapySchedule.toEpochDay(start), 3, 4);
+		assertThat(schedule.getEndDay()).isEqualTo(schedule.getStartDay() + 9);
+		assertThat(schedule.countFrom(schedule.getStartDay() - 1)).isEqualTo(4);
+		assertThat(schedule.countFrom(schedule.getStartDay())).isEqualTo(4);
+		assertThat(schedule.countFrom(schedule.getStartDay() + 1)).isEqualTo(3);
+		assertThat(schedule.countFrom(schedule.getStartDay() + 9)).isEqualTo(1);
+		assertThat(schedule.countFrom(schedule.getStartDay() + 10)).isZero();
+		assertThat(schedule.countFrom(new GregorianCalendar(2021, Calendar.MARCH, 23, 18, 0))).isEqualTo(3);
+
+		MedicalType medicalType = testMedicalType.setup(false);
+		Medical medical = testMedical.setup(medicalType, false);
+		Therapy therapy = new Therapy(1, 1, schedule, medical, 1.0, "", 1, "TestNote", false, false);
+		assertThat(therapy.getDates()).hasSize(4).isNotSameAs(therapy.getDates());
+		assertThat(therapy.countDaysFrom(TherapySchedule.toCalendar(schedule.getStartDay() + 3))).isEqualTo(3);
+		therapy.setDates(therapy.getDates());
+		assertThat(therapy.getSchedule()).isNull();
+		assertThat(therapy.countDaysFrom(TherapySchedule.toCalendar(schedule.getStartDay() + 3))).isEqualTo(3);
+	}
+
 	@Test
 	public void testTherapyRowToString() throws Exception {
 		int id = _setupTestTherapyRow(false);
@@ -462,6 +554,21 @@ public class Tests extends OHCoreTestCase {
 		assertThat(therapy).hasToString("10.0 of TestDescription - 1 per day");
 	}
 
+	/**
+	 * The dose days as they were built before {@link TherapySchedule}
+	 */
+	private GregorianCalendar[] _getDates(GregorianCalendar startDate, GregorianCalendar endDate, int freqInPeriod) {
+		List<GregorianCalendar> dates = new ArrayList<>();
+		GregorianCalendar stepDate = new GregorianCalendar();
+		stepDate.setTime(startDate.getTime());
+		dates.add(new GregorianCalendar(startDate.get(Calendar.YEAR), startDate.get(Calendar.MONTH), startDate.get(Calendar.DAY_OF_MONTH)));
+		while (stepDate.before(endDate)) {
+			stepDate.add(Calendar.DAY_OF_MONTH, freqInPeriod);
+			dates.add(new GregorianCalendar(stepDate.get(Calendar.YEAR), stepDate.get(Calendar.MONTH), stepDate.get(Calendar.DAY_OF_MONTH)));
+		}
+		return dates.toArray(new GregorianCalendar[0]);
+	}
+
 	private Patient _setupTestPatient(boolean usingSet) throws OHException {
 		Patient patient = testPatient.setup(usingSet);
 		patientIoOperationRepository.saveAndFlush(patient);
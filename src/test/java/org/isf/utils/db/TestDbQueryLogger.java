@@ -0,0 +1,38 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.utils.db;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class TestDbQueryLogger {
+
+	@Test
+	public void testGetStreamingFetchSize() throws Exception {
+		assertThat(DbQueryLogger.getStreamingFetchSize("jdbc:mysql://localhost:3306/oh", 500)).isEqualTo(Integer.MIN_VALUE);
+		assertThat(DbQueryLogger.getStreamingFetchSize("jdbc:mysql://localhost:3306/oh?useCursorFetch=true", 500)).isEqualTo(500);
+		assertThat(DbQueryLogger.getStreamingFetchSize("jdbc:h2:mem:myDb;MODE=MySQL", 500)).isEqualTo(500);
+		assertThat(DbQueryLogger.getStreamingFetchSize(null, 500)).isEqualTo(500);
+	}
+
+}
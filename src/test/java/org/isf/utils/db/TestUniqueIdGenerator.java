@@ -0,0 +1,150 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.utils.db;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+public class TestUniqueIdGenerator {
+
+	@Test
+	public void testIdsAreIncreasingAndSortAsStrings() {
+		UniqueIdGenerator generator = new UniqueIdGenerator(5);
+		String previous = generator.nextIdAsString();
+		for (int i = 0; i < 10000; i++) {
+			String id = generator.nextIdAsString();
+			assertThat(id).hasSize(19);
+			assertThat(Long.parseLong(id)).isGreaterThan(Long.parseLong(previous));
+			assertThat(id.compareTo(previous)).isPositive();
+			assertThat(UniqueIdGenerator.getNodeId(Long.parseLong(id))).isEqualTo(5);
+			previous = id;
+		}
+	}
+
+	@Test
+	public void testSameMillisecondAndClockGoingBack() {
+		FixedClockGenerator generator = new FixedClockGenerator();
+		Set<Long> ids = new HashSet<>();
+		long previous = 0;
+		for (int i = 0; i < 10000; i++) {
+			long id = generator.nextId();
+			assertThat(id).isGreaterThan(previous);
+			ids.add(id);
+			previous = id;
+		}
+		generator.now -= 60000;
+		assertThat(generator.nextId()).isGreaterThan(previous);
+		assertThat(ids).hasSize(10000);
+	}
+
+	@Test
+	public void testConcurrentIdsAreUnique() throws Exception {
+		final UniqueIdGenerator generator = new UniqueIdGenerator(0);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<List<Long>>> futures = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			futures.add(executor.submit(new Callable<List<Long>>() {
+
+				@Override
+				public List<Long> call() {
+					List<Long> ids = new ArrayList<>();
+					for (int j = 0; j < 20000; j++) {
+						ids.add(generator.nextId());
+					}
+					return ids;
+				}
+			}));
+		}
+		Set<Long> ids = new HashSet<>();
+		for (Future<List<Long>> future : futures) {
+			ids.addAll(future.get());
+		}
+		executor.shutdown();
+		assertThat(ids).hasSize(80000);
+	}
+
+	@Test
+	public void testInvalidNodeId() {
+		assertThatThrownBy(() -> new UniqueIdGenerator(-1)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> new UniqueIdGenerator(UniqueIdGenerator.MAX_NODE_ID + 1)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	public void testInstallationNodeId() throws Exception {
+		File dir = Files.createTempDirectory("nodeid").toFile();
+		try {
+			File file = new File(dir, "oh" + File.separator + "nodeid");
+			AtomicInteger claims = new AtomicInteger();
+			IntSupplier claim = () -> claims.getAndIncrement() + 7;
+			assertThat(UniqueIdGenerator.getInstallationNodeId(file, claim)).isEqualTo(7);
+			assertThat(file).exists();
+			assertThat(file.getParentFile().list()).containsExactly("nodeid");
+			// the node id is claimed once per installation
+			assertThat(UniqueIdGenerator.getInstallationNodeId(file, claim)).isEqualTo(7);
+			assertThat(claims.get()).isEqualTo(1);
+
+			Files.write(file.toPath(), Integer.toString(UniqueIdGenerator.MAX_NODE_ID + 1).getBytes(StandardCharsets.US_ASCII));
+			assertThatThrownBy(() -> UniqueIdGenerator.getInstallationNodeId(file, claim)).isInstanceOf(IllegalStateException.class);
+			Files.write(file.toPath(), "node".getBytes(StandardCharsets.US_ASCII));
+			assertThatThrownBy(() -> UniqueIdGenerator.getInstallationNodeId(file, claim)).isInstanceOf(IllegalStateException.class);
+
+			// no node id is left once every one has been claimed
+			Files.delete(file.toPath());
+			assertThatThrownBy(() -> UniqueIdGenerator.getInstallationNodeId(file, () -> UniqueIdGenerator.MAX_NODE_ID + 1))
+					.isInstanceOf(IllegalStateException.class);
+			assertThat(file).doesNotExist();
+		} finally {
+			FileSystemUtils.deleteRecursively(dir);
+		}
+	}
+
+	private static class FixedClockGenerator extends UniqueIdGenerator {
+
+		long now = System.currentTimeMillis();
+
+		FixedClockGenerator() {
+			super(UniqueIdGenerator.MAX_NODE_ID);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Open Hospital (www.open-hospital.org)
+ * Copyright © 2006-2021 Informatici Senza Frontiere (info@informaticisenzafrontiere.org)
+ *
+ * Open Hospital is a free and open source software for healthcare data management.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * https://www.gnu.org/licenses/gpl-3.0-standalone.html
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.isf.utils.jobs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestJobStarter {
+
+	@Test
+	public void testStartAndStop() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch stopped = new CountDownLatch(1);
+		JobStarter starter = new JobStarter() {
+
+			@Override
+			protected boolean isJobEnabled() {
+				return true;
+			}
+
+			@Override
+			protected Runnable createJob() {
+				return () -> {
+					assertThat(Thread.currentThread().isDaemon()).isTrue();
+					started.countDown();
+					try {
+						Thread.sleep(60000L);
+					} catch (InterruptedException e) {
+						stopped.countDown();
+					}
+				};
+			}
+		};
+		starter.start();
+		starter.start();
+		assertThat(starter.isRunning()).isTrue();
+		assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+		starter.stop();
+		assertThat(starter.isRunning()).isFalse();
+		assertThat(stopped.await(10, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	public void testDisabled() {
+		JobStarter starter = new JobStarter() {
+
+			@Override
+			protected boolean isJobEnabled() {
+				return false;
+			}
+
+			@Override
+			protected Runnable createJob() {
+				throw new IllegalStateException("disabled job created");
+			}
+		};
+		starter.start();
+		assertThat(starter.isRunning()).isFalse();
+		starter.stop();
+	}
+}